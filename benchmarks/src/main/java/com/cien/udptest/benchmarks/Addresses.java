@@ -0,0 +1,32 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ *
+ * @author Cien
+ */
+class Addresses {
+
+    /**
+     * Returns a new instance of the address of a simulated user, a private ip unique for each index.
+     */
+    static InetSocketAddress of(int index) {
+        try {
+            byte[] ip = {10, (byte) (index >>> 16), (byte) (index >>> 8), (byte) index};
+            return new InetSocketAddress(InetAddress.getByAddress(ip), 40000);
+        } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    private Addresses() {
+
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest.benchmarks;
+
+import com.cien.udptest.Broadcaster;
+import com.cien.udptest.FrameCoalescer;
+import com.cien.udptest.Main;
+import com.cien.udptest.PacketSender;
+import com.cien.udptest.PacketWriter;
+import com.cien.udptest.User;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Broadcasts a message to every user like the server does, the packet is taken in the format of each user and packed
+ * by the frame coalescer for users with multi frame packets. The datagrams are counted instead of sent, so only the
+ * work of the server is measured.
+ *
+ * @author Cien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int users;
+
+    @Param({"true", "false"})
+    public boolean coalesce;
+
+    private final PacketWriter writer = new PacketWriter();
+    private byte[] message;
+    private Broadcaster broadcaster;
+    private FrameCoalescer coalescer;
+    private long sentBytes = 0;
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+        this.message = "The quick brown fox jumps over the lazy dog, again and again.".getBytes(StandardCharsets.UTF_8);
+        PacketSender sender = (packet, address) -> this.sentBytes += packet.position();
+        this.coalescer = new FrameCoalescer(sender, Main.FRAME_FLUSH_DELAY);
+        //the same path as Server.send
+        this.broadcaster = new Broadcaster((packet, user) -> {
+            if (user.hasCapability(Main.CAPABILITY_MULTI_FRAME)) {
+                this.coalescer.append(user.getFrameBuffer(), packet.get(user.getWireFormat()));
+                return;
+            }
+            sender.send(packet.get(user.getWireFormat()), user.getSocketAddress());
+        });
+        int capabilities = Main.CAPABILITY_COMPACT_FORMAT | (this.coalesce ? Main.CAPABILITY_MULTI_FRAME : 0);
+        for (int i = 0; i < this.users; i++) {
+            User user = new User("user" + i, Addresses.of(i));
+            user.setCapabilities(capabilities);
+            this.broadcaster.add(user);
+        }
+    }
+
+    @Benchmark
+    public long broadcast() throws IOException {
+        this.writer
+                .begin(Main.MESSAGE_PACKET)
+                .putInt(this.index++)
+                .putLong(1)
+                .putBytes(this.message);
+        this.broadcaster.broadcast(this.writer);
+        this.coalescer.flushAll();
+        return this.sentBytes;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest.benchmarks;
+
+import com.cien.udptest.FrameBuffer;
+import com.cien.udptest.FrameCoalescer;
+import com.cien.udptest.Main;
+import com.cien.udptest.PacketWriter;
+import com.cien.udptest.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encodes and decodes the packets of one event loop iteration with a packet from each user: a message, a ping answer
+ * and a acknowledgement, decoded like Server.processPacket and Client.processPacket do, as single datagrams and packed
+ * into multi frame datagrams.
+ *
+ * @author Cien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int users;
+
+    @Param({"LEGACY", "COMPACT"})
+    public WireFormat format;
+
+    private final PacketWriter writer = new PacketWriter();
+    private byte[] message;
+    private ByteBuffer[] datagrams;
+    private ByteBuffer[] multiFrameDatagrams;
+
+    @Setup
+    public void setup() throws IOException {
+        this.message = "The quick brown fox jumps over the lazy dog, again and again.".getBytes(StandardCharsets.UTF_8);
+
+        List<ByteBuffer> single = new ArrayList<>();
+        List<ByteBuffer> packed = new ArrayList<>();
+        FrameCoalescer coalescer = new FrameCoalescer((packet, address) -> packed.add(copy(packet)), 0);
+        FrameBuffer frameBuffer = new FrameBuffer(null, this.format);
+        for (int i = 0; i < this.users; i++) {
+            for (int type = 0; type < 3; type++) {
+                encode(i, type);
+                ByteBuffer packet = this.writer.get(this.format);
+                single.add(copy(packet));
+                coalescer.append(frameBuffer, packet);
+            }
+        }
+        coalescer.flushAll();
+        this.datagrams = single.toArray(ByteBuffer[]::new);
+        this.multiFrameDatagrams = packed.toArray(ByteBuffer[]::new);
+    }
+
+    private static ByteBuffer copy(ByteBuffer packet) {
+        ByteBuffer copy = ByteBuffer.allocate(packet.position());
+        copy.put(packet.duplicate().flip());
+        return copy.flip();
+    }
+
+    private void encode(int user, int type) {
+        switch (type) {
+            case 0 ->
+                this.writer
+                        .begin(Main.MESSAGE_PACKET)
+                        .putInt(1000 + user)
+                        .putLong(user + 1)
+                        .putBytes(this.message);
+            case 1 ->
+                this.writer
+                        .begin(Main.PING_PACKET)
+                        .putLong(System.nanoTime())
+                        .putInt(1000 + user);
+            default ->
+                this.writer
+                        .begin(Main.ACK_PACKET)
+                        .putInt(1000 + user)
+                        .putLong(0b1011L);
+        }
+    }
+
+    private static long decodeFrame(WireFormat format, int packetId, ByteBuffer packetBuffer) {
+        return switch (packetId) {
+            case Main.MESSAGE_PACKET -> {
+                int index = format.getInt(packetBuffer);
+                long userId = format.getLong(packetBuffer);
+                byte[] data = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                yield index + userId + data.length;
+            }
+            case Main.PING_PACKET -> {
+                long time = format.getLong(packetBuffer);
+                yield time + format.getInt(packetBuffer);
+            }
+            case Main.ACK_PACKET -> {
+                int expected = format.getInt(packetBuffer);
+                yield expected + format.getLong(packetBuffer);
+            }
+            default ->
+                throw new IllegalStateException("Unexpected packet " + packetId);
+        };
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        for (int i = 0; i < this.users; i++) {
+            for (int type = 0; type < 3; type++) {
+                encode(i, type);
+                blackhole.consume(this.writer.get(this.format).position());
+            }
+        }
+    }
+
+    @Benchmark
+    public long decode() {
+        long result = 0;
+        for (ByteBuffer packetBuffer : this.datagrams) {
+            packetBuffer.position(0);
+            WireFormat packetFormat = WireFormat.detect(packetBuffer);
+            int packetId = packetFormat.readHeader(packetBuffer);
+            result += decodeFrame(packetFormat, packetId, packetBuffer);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long decodeMultiFrame() {
+        long result = 0;
+        for (ByteBuffer packetBuffer : this.multiFrameDatagrams) {
+            packetBuffer.position(0);
+            WireFormat packetFormat = WireFormat.detect(packetBuffer);
+            int packetId = packetFormat.readHeader(packetBuffer);
+            if (packetId != Main.MULTI_FRAME_PACKET) {
+                result += decodeFrame(packetFormat, packetId, packetBuffer);
+                continue;
+            }
+            int limit = packetBuffer.limit();
+            while (packetBuffer.hasRemaining()) {
+                int frameLength = packetFormat.getFrameLength(packetBuffer);
+                if (frameLength == 0) {
+                    break;
+                }
+                int end = packetBuffer.position() + frameLength;
+                packetBuffer.limit(end);
+                result += decodeFrame(packetFormat, packetFormat.getPacketId(packetBuffer), packetBuffer);
+                packetBuffer.limit(limit).position(end);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest.benchmarks;
+
+import com.cien.udptest.User;
+import com.cien.udptest.Users;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The name conflict check of a login, like Server.admit: the name is decoded from the login packet and looked up in
+ * the active names, both for names that are taken and for names that are free. A tenth of the users are disconnected,
+ * their names are released by the lookup.
+ *
+ * @author Cien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginBenchmark {
+
+    private static final int LOGINS = 4096; //a power of two
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int users;
+
+    private final Users usersMap = new Users();
+    private final byte[][] takenNames = new byte[LOGINS][];
+    private final byte[][] freeNames = new byte[LOGINS][];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < this.users; i++) {
+            User user = new User("user" + i, Addresses.of(i));
+            this.usersMap.add(user);
+            if (i % 10 == 9) {
+                user.disconnect();
+            }
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < LOGINS; i++) {
+            int user;
+            do {
+                user = random.nextInt(this.users);
+            } while (user % 10 == 9);
+            this.takenNames[i] = ("user" + user).getBytes(StandardCharsets.UTF_8);
+            this.freeNames[i] = ("new user " + i).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public boolean nameTaken() {
+        String name = new String(this.takenNames[this.next++ & (LOGINS - 1)], StandardCharsets.UTF_8);
+        return this.usersMap.getByActiveName(name) != null;
+    }
+
+    @Benchmark
+    public boolean nameFree() {
+        String name = new String(this.freeNames[this.next++ & (LOGINS - 1)], StandardCharsets.UTF_8);
+        return this.usersMap.getByActiveName(name) != null;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest.benchmarks;
+
+import com.cien.udptest.FrameCoalescer;
+import com.cien.udptest.Main;
+import com.cien.udptest.MessageHistory;
+import com.cien.udptest.PacketSender;
+import com.cien.udptest.PacketWriter;
+import com.cien.udptest.ResendScheduler;
+import com.cien.udptest.User;
+import com.cien.udptest.WireFormat;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serves a resend request of a range of the lobby history from every user, through the resend scheduler and the same
+ * path as Server.resend: the compact packets kept by the history are sent as they are, the legacy packets are encoded
+ * again. The history is twice as large as its heap tail, so part of the ranges are read from the spilled segments.
+ *
+ * @author Cien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResendBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int users;
+
+    @Param({"64", "512"})
+    public int range;
+
+    @Param({"LEGACY", "COMPACT"})
+    public WireFormat format;
+
+    private final PacketWriter writer = new PacketWriter();
+    private final Random random = new Random(42);
+    private MessageHistory history;
+    private ResendScheduler scheduler;
+    private FrameCoalescer coalescer;
+    private User[] resendUsers;
+    private long sentBytes = 0;
+    private long now = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        this.history = new MessageHistory(Main.HISTORY_TAIL_SIZE, null);
+        for (int i = 0; i < Main.HISTORY_TAIL_SIZE * 2; i++) {
+            this.history.append(1 + (i % 100), ("Message number " + i + " of the history.").getBytes(StandardCharsets.UTF_8));
+        }
+        PacketSender sender = (packet, address) -> this.sentBytes += packet.position();
+        this.coalescer = new FrameCoalescer(sender, Main.FRAME_FLUSH_DELAY);
+        this.scheduler = new ResendScheduler((user, room, index) -> {
+            if (user.getWireFormat() == WireFormat.COMPACT) {
+                this.coalescer.append(user.getFrameBuffer(), this.history.getPacket(index));
+                return;
+            }
+            this.writer
+                    .begin(Main.MESSAGE_PACKET)
+                    .putInt(index)
+                    .putLong(this.history.getUserId(index))
+                    .putBytes(this.history.getMessage(index));
+            this.coalescer.append(user.getFrameBuffer(), this.writer.get(user.getWireFormat()));
+        }, Main.RESEND_RATE, Main.RESEND_BURST, Main.RESEND_WINDOW);
+
+        int capabilities = Main.CAPABILITY_MULTI_FRAME | (this.format == WireFormat.COMPACT ? Main.CAPABILITY_COMPACT_FORMAT : 0);
+        this.resendUsers = new User[this.users];
+        for (int i = 0; i < this.users; i++) {
+            this.resendUsers[i] = new User("user" + i, Addresses.of(i));
+            this.resendUsers[i].setCapabilities(capabilities);
+        }
+    }
+
+    @Benchmark
+    public long serveRanges() throws IOException {
+        for (User user : this.resendUsers) {
+            int from = this.random.nextInt(this.history.size() - this.range);
+            this.scheduler.request(user, Main.LOBBY_ROOM, from, from + this.range, this.now);
+        }
+        //the clock jumps to the next tokens instead of waiting for them
+        while (this.scheduler.getPendingCount() > 0) {
+            this.now = Math.max(this.now + 1, this.scheduler.getNextTime());
+            this.scheduler.run(this.now);
+            this.coalescer.flushAll();
+        }
+        return this.sentBytes;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest.benchmarks;
+
+import com.cien.udptest.Network;
+import com.cien.udptest.SimulatedNetwork;
+import com.cien.udptest.SocketNetwork;
+import com.cien.udptest.Transport;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A datagram sent from one transport to other and received, on the loopback socket and on a simulated network without
+ * loss or latency, the cost the simulated network adds or saves in the in-process load tests.
+ *
+ * @author Cien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+
+    @Param({"socket", "simulated"})
+    public String network;
+
+    @Param({"64", "1024"})
+    public int size;
+
+    private Transport sender;
+    private Transport receiver;
+    private SocketAddress receiverAddress;
+    private ByteBuffer packet;
+    private final ByteBuffer received = ByteBuffer.allocate(2048);
+
+    @Setup
+    public void setup() throws IOException {
+        Network net = (this.network.equals("simulated") ? new SimulatedNetwork(42) : new SocketNetwork());
+        InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        this.sender = net.open(loopback);
+        this.receiver = net.open(loopback);
+        this.receiverAddress = this.receiver.getLocalAddress();
+        this.packet = ByteBuffer.allocate(this.size).position(this.size);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.sender.close();
+        this.receiver.close();
+    }
+
+    @Benchmark
+    public SocketAddress sendAndReceive() throws IOException {
+        this.sender.send(this.packet, this.receiverAddress);
+        SocketAddress source;
+        do {
+            this.received.clear();
+            source = this.receiver.receive(this.received);
+        } while (source == null);
+        return source;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest.benchmarks;
+
+import com.cien.udptest.User;
+import com.cien.udptest.Users;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looks up users by address, like the server does for every datagram, and by id. The addresses looked up are new
+ * instances equal to the addresses of the users, as received from the socket.
+ *
+ * @author Cien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UsersBenchmark {
+
+    private static final int LOOKUPS = 4096; //a power of two
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int users;
+
+    private final Users usersMap = new Users();
+    private final InetSocketAddress[] addresses = new InetSocketAddress[LOOKUPS];
+    private final long[] ids = new long[LOOKUPS];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        User[] created = new User[this.users];
+        for (int i = 0; i < this.users; i++) {
+            created[i] = new User("user" + i, Addresses.of(i));
+            this.usersMap.add(created[i]);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            int user = random.nextInt(this.users);
+            this.addresses[i] = Addresses.of(user);
+            this.ids[i] = created[user].getUserId();
+        }
+    }
+
+    @Benchmark
+    public User getBySocketAddress() {
+        return this.usersMap.getBySocketAddress(this.addresses[this.next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public User getByUserId() {
+        return this.usersMap.getByUserId(this.ids[this.next++ & (LOOKUPS - 1)]);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Keeps a array of the connected users and sends a already encoded packet to all of them. A broadcaster can also keep
+ * the members of a room, the index of each user is then kept in the room slots of the user.
+ *
+ * @author Cien
+ */
+public class Broadcaster {
+
+    @FunctionalInterface
+    public static interface UserSender {
+
+        public void send(PacketWriter packet, User user) throws IOException;
+    }
+
+    private final UserSender sender;
+    private final int room;
+    private User[] recipients = new User[64];
+    private int count = 0;
+
+    /**
+     * Creates a broadcaster for the members of a room.
+     *
+     * @param sender the sender
+     * @param room the id of the room, -1 for the connected users
+     */
+    public Broadcaster(UserSender sender, int room) {
+        Objects.requireNonNull(sender, "Sender is null.");
+        this.sender = sender;
+        this.room = room;
+    }
+
+    public Broadcaster(UserSender sender) {
+        this(sender, -1);
+    }
+
+    public int getRoom() {
+        return room;
+    }
+
+    private int getIndex(User user) {
+        return (this.room == -1 ? user.getBroadcastIndex() : user.getRoomSlot(this.room));
+    }
+
+    private void setIndex(User user, int index) {
+        if (this.room == -1) {
+            user.setBroadcastIndex(index);
+        } else {
+            user.setRoomSlot(this.room, index);
+        }
+    }
+
+    public boolean add(User user) {
+        if (getIndex(user) != -1) {
+            return false;
+        }
+        if (this.count >= this.recipients.length) {
+            this.recipients = Arrays.copyOf(this.recipients, this.recipients.length * 2);
+        }
+        setIndex(user, this.count);
+        this.recipients[this.count] = user;
+        this.count++;
+        return true;
+    }
+
+    public boolean remove(User user) {
+        int index = getIndex(user);
+        if (index == -1 || this.recipients[index] != user) {
+            return false;
+        }
+        this.count--;
+        User last = this.recipients[this.count];
+        this.recipients[index] = last;
+        setIndex(last, index);
+        this.recipients[this.count] = null;
+        setIndex(user, -1);
+        return true;
+    }
+
+    public boolean contains(User user) {
+        return getIndex(user) != -1;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Sends the packet to every recipient, in the format of each recipient.
+     *
+     * @param packet the encoded packet
+     * @param except a user that will not receive the packet, can be null
+     * @throws IOException if a I/O error occurs
+     */
+    public void broadcast(PacketWriter packet, User except) throws IOException {
+        User[] array = this.recipients;
+        for (int i = 0; i < this.count; i++) {
+            User u = array[i];
+            if (u == except) {
+                continue;
+            }
+            this.sender.send(packet, u);
+        }
+    }
+
+    /**
+     * Sends the packet to the recipients that support a capability, or to the recipients that don't.
+     *
+     * @param packet the encoded packet
+     * @param except a user that will not receive the packet, can be null
+     * @param capability the capability, zero sends to every recipient
+     * @param supported true to send to the recipients that support the capability, false to send to the others
+     * @throws IOException if a I/O error occurs
+     */
+    public void broadcast(PacketWriter packet, User except, int capability, boolean supported) throws IOException {
+        if (capability == 0) {
+            broadcast(packet, except);
+            return;
+        }
+        User[] array = this.recipients;
+        for (int i = 0; i < this.count; i++) {
+            User u = array[i];
+            if (u == except || u.hasCapability(capability) != supported) {
+                continue;
+            }
+            this.sender.send(packet, u);
+        }
+    }
+
+    public void broadcast(PacketWriter packet) throws IOException {
+        broadcast(packet, null);
+    }
+}
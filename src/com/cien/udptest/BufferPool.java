@@ -0,0 +1,111 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of receive buffers, buffers are leased by the receiver and released after being processed.
+ *
+ * @author Cien
+ */
+public class BufferPool {
+
+    private final int capacity;
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<PooledBuffer> available;
+
+    private final AtomicLong leases = new AtomicLong(0);
+    private final AtomicLong exhaustions = new AtomicLong(0);
+    private final AtomicLong discarded = new AtomicLong(0);
+
+    public BufferPool(int capacity, int bufferSize, boolean direct) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be larger than zero.");
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be larger than zero.");
+        }
+        this.capacity = capacity;
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.available = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.available.add(new PooledBuffer(this, bufferSize, direct));
+        }
+    }
+
+    public BufferPool(int capacity, int bufferSize) {
+        this(capacity, bufferSize, false);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Leases a buffer from the pool, if the pool is exhausted a new buffer is allocated and the exhaustion counter is
+     * incremented.
+     *
+     * @return a cleared buffer
+     */
+    public PooledBuffer lease() {
+        this.leases.incrementAndGet();
+        PooledBuffer buffer = this.available.poll();
+        if (buffer == null) {
+            this.exhaustions.incrementAndGet();
+            buffer = new PooledBuffer(this, this.bufferSize, this.direct);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    void release(PooledBuffer buffer) {
+        if (!this.available.offer(buffer)) {
+            this.discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the amount of buffers available in the pool
+     */
+    public int getAvailable() {
+        return this.available.size();
+    }
+
+    /**
+     * @return the amount of buffers currently leased, does not count buffers allocated after the pool was exhausted
+     */
+    public int getOccupancy() {
+        return this.capacity - this.available.size();
+    }
+
+    public long getLeaseCount() {
+        return this.leases.get();
+    }
+
+    public long getExhaustionCount() {
+        return this.exhaustions.get();
+    }
+
+    public long getDiscardedCount() {
+        return this.discarded.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[occupancy:" + getOccupancy() + "/" + this.capacity + ",leases:" + getLeaseCount() + ",exhaustions:" + getExhaustionCount() + ",discarded:" + getDiscardedCount() + ",direct:" + this.direct + "]";
+    }
+}
@@ -1,538 +1,1235 @@
-/*
- * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
- * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
- */
-package com.cien.udptest;
-
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Objects;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import javax.swing.SwingUtilities;
-
-/**
- *
- * @author Cien
- */
-public class Client extends Thread {
-
-    private static interface IORunnable {
-
-        public void run() throws IOException;
-    }
-
-    public static class UsernameConflictException extends Exception {
-
-        private static final long serialVersionUID = 1L;
-
-        public UsernameConflictException() {
-            super();
-        }
-    }
-
-    private final String username;
-    private final DatagramSocket socket;
-    private final Users users;
-    private final User clientUser;
-
-    private volatile RuntimeException receiverThreadException;
-    private final Thread receiverThread;
-
-    private final Queue<DatagramPacket> received = new ConcurrentLinkedQueue<>();
-
-    private final Queue<IORunnable> tasks = new ConcurrentLinkedQueue<>();
-    private final ClientGUI clientGUI;
-
-    private String[] messages = new String[32];
-    private int currentMessagesIndex = 0;
-
-    private int currentServerMessageIndex = 0;
-
-    private long lastPacketFromServerTime;
-    private int lastTimeoutWarning = 0;
-
-    private boolean firstPing = false;
-    private boolean exit = false;
-
-    public Client(String username, SocketAddress server) throws SocketException, IOException, InterruptedException, UsernameConflictException {
-        Objects.requireNonNull(username, "Username is null.");
-        Objects.requireNonNull(server, "Server Address is null.");
-        this.username = username;
-        this.socket = new DatagramSocket();
-        this.socket.connect(server);
-        this.users = new Users();
-
-        byte[] usernameData = this.username.getBytes(StandardCharsets.UTF_8);
-        if (usernameData.length > Main.PAYLOAD_SIZE) {
-            throw new IllegalArgumentException("Username is too large! Max is " + usernameData.length + " bytes.");
-        }
-
-        byte[] loginPacketData = new byte[Main.PACKET_SIZE];
-        ByteBuffer loginPacketBuffer = ByteBuffer.wrap(loginPacketData);
-
-        loginPacketBuffer
-                .putLong(Main.MAGIC_NUMBER)
-                .putInt(Main.LOGIN_PACKET)
-                .putInt(usernameData.length)
-                .put(usernameData);
-
-        DatagramPacket loginPacket = new DatagramPacket(loginPacketData, loginPacketData.length);
-
-        boolean timeout = true;
-        for (int i = 0; i < 8; i++) {
-            this.socket.send(loginPacket);
-
-            try {
-                this.socket.setSoTimeout(1000);
-                this.socket.receive(loginPacket);
-                this.socket.setSoTimeout(0);
-                timeout = false;
-                break;
-            } catch (SocketTimeoutException ex) {
-            }
-        }
-        if (timeout) {
-            this.socket.close();
-            throw new SocketTimeoutException("Login timed out after 8 tries.");
-        }
-
-        loginPacketBuffer.rewind();
-
-        if (loginPacketBuffer.getLong() != Main.MAGIC_NUMBER) {
-            this.socket.close();
-            throw new IOException("Invalid magic number! Is this the correct server?");
-        }
-
-        if (loginPacketBuffer.getInt() != Main.LOGIN_PACKET) {
-            this.socket.close();
-            throw new IOException("Invalid packet id! Is the server corrupted?");
-        }
-
-        long userId = loginPacketBuffer.getLong();
-
-        if (userId < 0) {
-            this.socket.close();
-            throw new UsernameConflictException();
-        }
-
-        this.clientUser = new User(this.username, userId);
-        this.clientUser.updateLastPacketReceivedTime();
-        this.users.add(this.clientUser);
-
-        this.receiverThread = new Thread(() -> {
-            try {
-                while (true) {
-                    DatagramPacket packet = new DatagramPacket(new byte[Main.PACKET_SIZE], Main.PACKET_SIZE);
-                    this.socket.receive(packet);
-                    this.received.add(packet);
-                }
-            } catch (IOException ex) {
-                throw new UncheckedIOException(ex);
-            }
-        }, "Receiver-Thread-" + server.toString());
-        this.receiverThread.setDaemon(true);
-        this.receiverThread.setUncaughtExceptionHandler((t, e) -> {
-            this.receiverThreadException = new RuntimeException("Exception in " + t.getName(), e);
-        });
-
-        this.clientGUI = new ClientGUI(this);
-
-        this.setUncaughtExceptionHandler((t, e) -> {
-            SwingUtilities.invokeLater(() -> {
-                this.clientGUI.onError(e);
-            });
-        });
-
-        SwingUtilities.invokeLater(() -> {
-            this.clientGUI.onUserConnected(clientUser);
-        });
-
-        this.lastPacketFromServerTime = System.currentTimeMillis();
-    }
-
-    public String getUsername() {
-        return username;
-    }
-
-    public DatagramSocket getSocket() {
-        return socket;
-    }
-
-    public void typing() {
-        this.tasks.add(() -> {
-            byte[] typingPacketData = new byte[Main.PACKET_SIZE];
-            ByteBuffer.wrap(typingPacketData)
-                    .putLong(Main.MAGIC_NUMBER)
-                    .putInt(Main.TYPING_PACKET);
-
-            this.socket.send(new DatagramPacket(typingPacketData, typingPacketData.length));
-        });
-    }
-
-    public boolean sendMessage(String message) {
-        byte[] messageData = message.getBytes(StandardCharsets.UTF_8);
-        if (messageData.length > Main.PAYLOAD_SIZE) {
-            return false;
-        }
-
-        this.tasks.add(() -> {
-            byte[] messagePacketData = new byte[Main.PACKET_SIZE];
-            ByteBuffer.wrap(messagePacketData)
-                    .putLong(Main.MAGIC_NUMBER)
-                    .putInt(Main.MESSAGE_PACKET)
-                    .putInt(this.currentMessagesIndex)
-                    .putInt(messageData.length)
-                    .put(messageData);
-
-            if (this.currentMessagesIndex >= this.messages.length) {
-                this.messages = Arrays.copyOf(this.messages, this.messages.length * 2);
-            }
-            this.messages[this.currentMessagesIndex] = message;
-            this.currentMessagesIndex++;
-
-            this.socket.send(new DatagramPacket(messagePacketData, messagePacketData.length));
-        });
-        return true;
-    }
-
-    public void exit() {
-        this.tasks.add(() -> {
-            try (this.socket) {
-                byte[] messagePacketData = new byte[Main.PACKET_SIZE];
-                ByteBuffer.wrap(messagePacketData)
-                        .putLong(Main.MAGIC_NUMBER)
-                        .putInt(Main.DISCONNECTED_PACKET);
-
-                this.socket.send(new DatagramPacket(messagePacketData, messagePacketData.length));
-            }
-
-            this.exit = true;
-        });
-    }
-
-    @Override
-    public void run() {
-        this.receiverThread.start();
-        SwingUtilities.invokeLater(() -> {
-            this.clientGUI.setLocationRelativeTo(null);
-            this.clientGUI.setTitle(this.username);
-            this.clientGUI.setVisible(true);
-        });
-
-        System.out.println("Current client identified as " + this.clientUser.toDetailedString());
-
-        try {
-            while (true) {
-                loop();
-                if (this.exit) {
-                    break;
-                }
-            }
-        } catch (IOException | InterruptedException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private void loop() throws InterruptedException, IOException {
-        if (this.receiverThreadException != null) {
-            throw this.receiverThreadException;
-        }
-
-        IORunnable t;
-        while ((t = this.tasks.poll()) != null) {
-            t.run();
-        }
-
-        if (this.exit) {
-            return;
-        }
-
-        DatagramPacket r;
-        while ((r = this.received.poll()) != null) {
-            processPacket(r);
-        }
-
-        int timeoutWarning = (int) ((System.currentTimeMillis() - this.lastPacketFromServerTime) / 1000);
-        if (timeoutWarning > Main.MAX_TIMEOUT_WARNINGS) {
-            throw new SocketTimeoutException("Timed out");
-        }
-        if (timeoutWarning > this.lastTimeoutWarning) {
-            SwingUtilities.invokeLater(() -> {
-                this.clientGUI.onTimeout(timeoutWarning);
-            });
-            this.lastTimeoutWarning = timeoutWarning;
-            System.out.println("Warning: Lost connection to the server, retrying... (" + timeoutWarning + "/" + Main.MAX_TIMEOUT_WARNINGS + ")");
-
-            for (User s : this.users.getUsers()) {
-                if (s.isDisconnected()) {
-                    continue;
-                }
-                s.updateLastPacketReceivedTime();
-            }
-        } else if (timeoutWarning == 0 && this.lastTimeoutWarning != 0) {
-            SwingUtilities.invokeLater(() -> {
-                this.clientGUI.onConnectionRestored();
-            });
-            this.lastTimeoutWarning = 0;
-            System.out.println("Info: Connection restored!");
-        }
-
-        for (User s : this.users.getUsers()) {
-            if (s.isTyping() && s.hasTypingTimedOut()) {
-                s.stopTyping();
-                SwingUtilities.invokeLater(() -> {
-                    this.clientGUI.onUserStopTyping(s);
-                });
-            }
-            if (s.hasTimedOut() && !s.isDisconnected()) {
-                s.disconnect();
-                if (s.isTyping()) {
-                    s.stopTyping();
-                    SwingUtilities.invokeLater(() -> {
-                        this.clientGUI.onUserStopTyping(s);
-                    });
-                }
-                System.out.println("Info: " + s.toDetailedString() + " Timed out!");
-                SwingUtilities.invokeLater(() -> {
-                    this.clientGUI.onUserDisconnected(s);
-                });
-            }
-        }
-
-        Thread.sleep(Main.TPS);
-    }
-
-    private void processPacket(DatagramPacket packet) throws IOException {
-        ByteBuffer packetBuffer = ByteBuffer.wrap(packet.getData());
-
-        this.lastPacketFromServerTime = System.currentTimeMillis();
-
-        if (packetBuffer.getLong() != Main.MAGIC_NUMBER) {
-            System.out.println("Warning: Received packet with unknown magic number from server!");
-            return;
-        }
-
-        int packetId = packetBuffer.getInt();
-
-        switch (packetId) {
-            case Main.RESEND_MESSAGE_PACKET -> {
-                int from = packetBuffer.getInt();
-                int to = packetBuffer.getInt();
-
-                if (from < 0 || to > this.currentMessagesIndex) {
-                    System.out.println("Warning: Server requested a invalid range of messages, from " + from + ", to " + to);
-                    return;
-                }
-
-                for (int i = from; i < to; i++) {
-                    String message = this.messages[i];
-                    byte[] messageData = message.getBytes(StandardCharsets.UTF_8);
-
-                    packetBuffer.rewind()
-                            .putLong(Main.MAGIC_NUMBER)
-                            .putInt(Main.MESSAGE_PACKET)
-                            .putInt(i)
-                            .putInt(messageData.length)
-                            .put(messageData);
-
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength()));
-                }
-            }
-            case Main.MESSAGE_PACKET -> {
-                int currentMessageId = packetBuffer.getInt();
-                long userId = packetBuffer.getLong();
-                User user = this.users.getByUserId(userId);
-                if (currentMessageId < this.currentServerMessageIndex) {
-                    System.out.println("Warning: Received old message packet from server, discarded!");
-                    return;
-                }
-                if (currentMessageId > this.currentServerMessageIndex) {
-                    packetBuffer
-                            .rewind()
-                            .putLong(Main.MAGIC_NUMBER)
-                            .putInt(Main.RESEND_MESSAGE_PACKET)
-                            .putInt(this.currentServerMessageIndex)
-                            .putInt(currentMessageId + 1);
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength()));
-                    System.out.println("Warning: Message packet drop detected from server! (" + ((currentMessageId + 1) - this.currentServerMessageIndex) + " packets!)");
-                    return;
-                }
-                if (user == null) {
-                    packetBuffer
-                            .rewind()
-                            .putLong(Main.MAGIC_NUMBER)
-                            .putInt(Main.IDENTIFY_PACKET)
-                            .putLong(userId);
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength()));
-                    System.out.println("Info: Received message from unknown user id " + userId + ", info requested.");
-                    return;
-                }
-                this.currentServerMessageIndex++;
-
-                if (user.isTyping()) {
-                    user.stopTyping();
-                    SwingUtilities.invokeLater(() -> {
-                        this.clientGUI.onUserStopTyping(user);
-                    });
-                }
-
-                int messageSize = packetBuffer.getInt();
-                if (messageSize < 0 || messageSize > Main.PAYLOAD_SIZE) {
-                    System.out.println("Warning: Received message packet with message size too large (or too small!) from server, " + messageSize + " bytes");
-                    return;
-                }
-
-                if (!user.isDisconnected()) {
-                    user.updateLastPacketReceivedTime();
-                }
-
-                byte[] messageData = new byte[messageSize];
-                packetBuffer.get(messageData);
-                String message = new String(messageData, StandardCharsets.UTF_8);
-
-                SwingUtilities.invokeLater(() -> {
-                    this.clientGUI.onMessageReceived(new UserMessage(user, message));
-                });
-
-                System.out.println("Info: " + user.toDetailedString() + " -> " + message);
-            }
-            case Main.IDENTIFY_PACKET -> {
-                long userId = packetBuffer.getLong();
-                boolean disconnected = packetBuffer.getInt() != 0;
-                if (this.users.getByUserId(userId) != null) {
-                    return;
-                }
-
-                int nameSize = packetBuffer.getInt();
-                if (nameSize < 0 || nameSize > Main.PAYLOAD_SIZE) {
-                    System.out.println("Warning: Received identify packet with name size too large (or too small!) from server, " + nameSize + " bytes");
-                    return;
-                }
-                byte[] nameData = new byte[nameSize];
-                packetBuffer.get(nameData);
-                String name = new String(nameData, StandardCharsets.UTF_8);
-
-                User u = new User(name, userId);
-                if (disconnected) {
-                    u.disconnect();
-                } else {
-                    u.updateLastPacketReceivedTime();
-
-                    SwingUtilities.invokeLater(() -> {
-                        this.clientGUI.onUserConnected(u);
-                    });
-                }
-                this.users.add(u);
-
-                System.out.println("Info: User ID " + userId + " identified as " + u.toDetailedString());
-            }
-            case Main.PING_PACKET -> {
-                this.socket.send(new DatagramPacket(packet.getData(), packet.getLength()));
-
-                packetBuffer.getLong();
-                int serverMessagesLength = packetBuffer.getInt();
-                if (serverMessagesLength < 0) {
-                    System.out.println("Warning: Received ping packet from server with negative messages length.");
-                }
-                if (serverMessagesLength > this.currentServerMessageIndex) {
-                    if (!this.firstPing) {
-                        this.firstPing = true;
-                        packetBuffer
-                                .rewind()
-                                .putLong(Main.MAGIC_NUMBER)
-                                .putInt(Main.IDENTIFY_PACKET)
-                                .putLong(-1);
-                        this.socket.send(new DatagramPacket(packet.getData(), packet.getLength()));
-                        System.out.println("Info: Requesting users from server.");
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException ex) {
-                            throw new RuntimeException(ex);
-                        }
-                    } else {
-                        System.out.println("Warning: Client is running " + (serverMessagesLength - this.currentMessagesIndex) + " messages behind, requesting...");
-                        packetBuffer
-                                .rewind()
-                                .putLong(Main.MAGIC_NUMBER)
-                                .putInt(Main.RESEND_MESSAGE_PACKET)
-                                .putInt(this.currentMessagesIndex)
-                                .putInt(serverMessagesLength);
-                        this.socket.send(new DatagramPacket(packet.getData(), packet.getLength()));
-                    }
-                }
-            }
-            case Main.USER_PING_VALUE_PACKET -> {
-                long userId = packetBuffer.getLong();
-                User user = this.users.getByUserId(userId);
-                if (user == null) {
-                    packetBuffer
-                            .rewind()
-                            .putLong(Main.MAGIC_NUMBER)
-                            .putInt(Main.IDENTIFY_PACKET)
-                            .putLong(userId);
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength()));
-                    System.out.println("Info: Received ping value from unknown user id " + userId + ", info requested.");
-                    return;
-                }
-                if (user.isDisconnected()) {
-                    System.out.println("Warning: Received ping value from server of a disconnected user! " + user.toDetailedString());
-                    return;
-                }
-
-                int ping = packetBuffer.getInt();
-
-                if (ping < 0) {
-                    System.out.println("Warning: Received negative ping of user " + user.toDetailedString() + " from the server.");
-                    return;
-                }
-
-                user.updateLastPacketReceivedTime();
-                user.setPing(ping);
-
-                SwingUtilities.invokeLater(() -> {
-                    this.clientGUI.onUserPingUpdate(user);
-                });
-            }
-            case Main.DISCONNECTED_PACKET -> {
-                long userId = packetBuffer.getLong();
-                User user = this.users.getByUserId(userId);
-                if (user == null || user.isDisconnected()) {
-                    return;
-                }
-                user.disconnect();
-                if (user.isTyping()) {
-                    user.stopTyping();
-                    SwingUtilities.invokeLater(() -> {
-                        this.clientGUI.onUserStopTyping(user);
-                    });
-                }
-                System.out.println("Info: " + user.toDetailedString() + " Disconnected.");
-                SwingUtilities.invokeLater(() -> {
-                    this.clientGUI.onUserDisconnected(user);
-                });
-            }
-            case Main.TYPING_PACKET -> {
-                long userId = packetBuffer.getLong();
-                User user = this.users.getByUserId(userId);
-                if (user == null || user.isDisconnected()) {
-                    return;
-                }
-                if (!user.isTyping()) {
-                    SwingUtilities.invokeLater(() -> {
-                        this.clientGUI.onUserStartTyping(user);
-                    });
-                }
-                user.typing();
-            }
-        }
-    }
-}
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.swing.SwingUtilities;
+
+/**
+ *
+ * @author Cien
+ */
+public class Client extends Thread {
+
+    private static interface IORunnable {
+
+        public void run() throws IOException;
+    }
+
+    public static class UsernameConflictException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public UsernameConflictException() {
+            super();
+        }
+    }
+
+    private final String username;
+    private final Transport transport;
+    private final Network.Poller<Transport> poller;
+    //the server and the addresses it gave to fail over to
+    private final List<SocketAddress> servers = new ArrayList<>();
+    private volatile SocketAddress serverAddress;
+    private final Users users;
+    private final User clientUser;
+
+    private static class BufferedMessage {
+
+        private final long userId;
+        private final byte[] data;
+
+        public BufferedMessage(long userId, byte[] data) {
+            this.userId = userId;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A room the client joined, each room has its own sequence of messages.
+     */
+    private static class ClientRoom {
+
+        private final int id;
+        private final String name;
+        private int currentServerMessageIndex = 0;
+        private final ReorderBuffer<BufferedMessage> reorderBuffer = new ReorderBuffer<>();
+        //listed by the last ping, or forgotten by a restarted server and joined again with a new history
+        private boolean listed = false;
+        private boolean forgotten = false;
+
+        public ClientRoom(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private final BufferPool bufferPool = new BufferPool(Main.CLIENT_BUFFER_POOL_SIZE, Main.PACKET_SIZE);
+    private final PacketWriter writer = new PacketWriter();
+    private final FrameCoalescer coalescer = new FrameCoalescer((packet, address) -> send(packet), 0);
+    private final FrameBuffer frameBuffer;
+    private final int serverCapabilities;
+    private final WireFormat serverFormat;
+
+    private volatile RuntimeException receiverThreadException;
+    private final Thread receiverThread;
+
+    private final BlockingQueue<PooledBuffer> received = new ArrayBlockingQueue<>(Main.CLIENT_BUFFER_POOL_SIZE);
+
+    private final Queue<IORunnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ClientGUI clientGUI;
+
+    private String[] messages = new String[32];
+    private int[] messageRooms = new int[32];
+    private int currentMessagesIndex = 0;
+
+    private final List<ClientRoom> rooms = new ArrayList<>();
+    private volatile ClientRoom currentRoom = new ClientRoom(Main.LOBBY_ROOM, Main.LOBBY_NAME);
+    private String joiningRoom = null;
+    private final int[] missing = new int[ReorderBuffer.WINDOW];
+    private final TimerWheel timers = new TimerWheel(System.currentTimeMillis());
+
+    private long lastPacketFromServerTime;
+    private int lastTimeoutWarning = 0;
+
+    private boolean firstPing = false;
+    private long rosterVersion = 0;
+    private long serverRosterVersion = 0;
+    private long lastRosterRequestTime = 0;
+    private volatile long lastTypingTime = 0;
+    private boolean exit = false;
+
+    public Client(String username, SocketAddress server) throws SocketException, IOException, InterruptedException, UsernameConflictException {
+        this(username, server, new SocketNetwork());
+    }
+
+    /**
+     * Logs in to a server.
+     *
+     * @param username the name of the user
+     * @param server the address of the server
+     * @param network the network the client opens its transport on
+     */
+    public Client(String username, SocketAddress server, Network network) throws SocketException, IOException, InterruptedException, UsernameConflictException {
+        Objects.requireNonNull(username, "Username is null.");
+        Objects.requireNonNull(server, "Server Address is null.");
+        Objects.requireNonNull(network, "Network is null.");
+        this.username = username;
+        this.transport = network.open(null);
+        try {
+            this.poller = network.openPoller();
+            this.poller.register(this.transport, this.transport);
+            this.transport.connect(server);
+        } catch (IOException | RuntimeException ex) {
+            this.transport.close();
+            throw ex;
+        }
+        this.users = new Users();
+
+        byte[] usernameData = this.username.getBytes(StandardCharsets.UTF_8);
+        if (usernameData.length > Main.PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Username is too large! Max is " + usernameData.length + " bytes.");
+        }
+
+        byte[] loginPacketData = new byte[Main.PACKET_SIZE];
+        ByteBuffer loginPacketBuffer = ByteBuffer.wrap(loginPacketData);
+
+        loginPacketBuffer
+                .putLong(Main.MAGIC_NUMBER)
+                .putInt(Main.LOGIN_PACKET)
+                .putInt(usernameData.length)
+                .put(usernameData)
+                .putInt(Main.LOGIN_CAPABILITIES_MARKER)
+                .putInt(Main.CAPABILITY_MULTI_FRAME | Main.CAPABILITY_COMPACT_FORMAT | Main.CAPABILITY_SACK
+                        | Main.CAPABILITY_ADAPTIVE_PING | Main.CAPABILITY_PING_DIGEST | Main.CAPABILITY_TYPING_DIGEST
+                        | Main.CAPABILITY_ROSTER | Main.CAPABILITY_ROOMS)
+                .putInt(Main.LOGIN_COOKIE_MARKER);
+        int cookiePosition = loginPacketBuffer.position();
+        loginPacketBuffer.putLong(0);
+
+        int loginPacketLength = loginPacketBuffer.position();
+
+        ByteBuffer loginResponse = ByteBuffer.allocate(Main.PACKET_SIZE);
+
+        long userId;
+        int tries = 0;
+        int redirects = 0;
+        boolean resend = true;
+        while (true) {
+            if (resend) {
+                if (tries >= 8) {
+                    closeTransport();
+                    throw new SocketTimeoutException("Login timed out after 8 tries.");
+                }
+                this.transport.send(ByteBuffer.wrap(loginPacketData).position(loginPacketLength), server);
+                tries++;
+            }
+            resend = true;
+
+            if (!receiveLogin(loginResponse, 1000)) {
+                continue;
+            }
+
+            loginPacketBuffer = loginResponse.flip();
+
+            if (loginPacketBuffer.getLong() != Main.MAGIC_NUMBER) {
+                closeTransport();
+                throw new IOException("Invalid magic number! Is this the correct server?");
+            }
+
+            if (loginPacketBuffer.getInt() != Main.LOGIN_PACKET) {
+                closeTransport();
+                throw new IOException("Invalid packet id! Is the server corrupted?");
+            }
+
+            userId = loginPacketBuffer.getLong();
+
+            if (userId == Main.LOGIN_COOKIE_REQUIRED
+                    && loginPacketBuffer.remaining() >= Integer.BYTES + Long.BYTES
+                    && loginPacketBuffer.getInt() == Main.LOGIN_COOKIE_MARKER) {
+                //the login is sent again with the cookie, proving the address is ours
+                ByteBuffer.wrap(loginPacketData).putLong(cookiePosition, loginPacketBuffer.getLong());
+                continue;
+            }
+            if (userId == Main.LOGIN_QUEUED) {
+                //the answer comes when the server admits the login, waiting in the queue doesn't count as a try
+                System.out.println("Info: Waiting in the login queue of the server...");
+                tries = 0;
+                resend = false;
+                continue;
+            }
+            if (userId == Main.LOGIN_REDIRECT
+                    && loginPacketBuffer.remaining() >= Integer.BYTES) {
+                //the name belongs to other node of the cluster, the login starts again there
+                if (redirects >= 4) {
+                    closeTransport();
+                    throw new IOException("Login redirected too many times! Is the cluster misconfigured?");
+                }
+                int ipLength = loginPacketBuffer.getInt();
+                if ((ipLength != 4 && ipLength != 16) || loginPacketBuffer.remaining() < ipLength + Integer.BYTES) {
+                    closeTransport();
+                    throw new IOException("Invalid redirect address! Is the server corrupted?");
+                }
+                byte[] ip = new byte[ipLength];
+                loginPacketBuffer.get(ip);
+                server = new InetSocketAddress(InetAddress.getByAddress(ip), loginPacketBuffer.getInt());
+                System.out.println("Info: Login redirected to " + server);
+                this.transport.disconnect();
+                this.transport.connect(server);
+                ByteBuffer.wrap(loginPacketData).putLong(cookiePosition, 0);
+                redirects++;
+                tries = 0;
+                continue;
+            }
+            break;
+        }
+
+        if (userId < 0) {
+            closeTransport();
+            throw new UsernameConflictException();
+        }
+
+        if (loginPacketBuffer.remaining() >= Integer.BYTES * 2 && loginPacketBuffer.getInt() == Main.LOGIN_ACCEPTED_CAPABILITIES_MARKER) {
+            this.serverCapabilities = loginPacketBuffer.getInt();
+        } else {
+            this.serverCapabilities = 0;
+        }
+        this.servers.add(server);
+        if (loginPacketBuffer.remaining() >= Integer.BYTES * 2 && loginPacketBuffer.getInt() == Main.LOGIN_FAILOVER_MARKER) {
+            int count = loginPacketBuffer.getInt();
+            for (int i = 0; i < count && loginPacketBuffer.remaining() >= Integer.BYTES; i++) {
+                int ipLength = loginPacketBuffer.getInt();
+                if ((ipLength != 4 && ipLength != 16) || loginPacketBuffer.remaining() < ipLength + Integer.BYTES) {
+                    System.out.println("Warning: Received invalid failover address from server, ignored.");
+                    break;
+                }
+                byte[] ip = new byte[ipLength];
+                loginPacketBuffer.get(ip);
+                this.servers.add(new InetSocketAddress(InetAddress.getByAddress(ip), loginPacketBuffer.getInt()));
+            }
+        }
+        this.serverAddress = server;
+        if (this.servers.size() > 1) {
+            //the standby must be heard once it takes over, the packets are filtered by the list instead
+            this.transport.disconnect();
+            System.out.println("Info: Server can fail over to " + this.servers.subList(1, this.servers.size()));
+        }
+        if ((this.serverCapabilities & Main.CAPABILITY_COMPACT_FORMAT) != 0) {
+            this.serverFormat = WireFormat.COMPACT;
+        } else {
+            this.serverFormat = WireFormat.LEGACY;
+        }
+        this.frameBuffer = new FrameBuffer(null, this.serverFormat);
+        this.rooms.add(this.currentRoom);
+
+        this.clientUser = new User(this.username, userId);
+        this.clientUser.updateLastPacketReceivedTime();
+        this.users.add(this.clientUser);
+        startTimeout(this.clientUser);
+        if ((this.serverCapabilities & Main.CAPABILITY_ROSTER) != 0) {
+            this.tasks.add(this::requestRoster);
+        }
+
+        this.receiverThread = new Thread(() -> {
+            try {
+                while (true) {
+                    PooledBuffer buffer = this.bufferPool.lease();
+                    while (!buffer.receive(this.transport)) {
+                        this.poller.select(Long.MAX_VALUE, Client::ignore);
+                    }
+                    this.received.put(buffer);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }, "Receiver-Thread-" + server.toString());
+        this.receiverThread.setDaemon(true);
+        this.receiverThread.setUncaughtExceptionHandler((t, e) -> {
+            this.receiverThreadException = new RuntimeException("Exception in " + t.getName(), e);
+        });
+
+        this.clientGUI = new ClientGUI(this);
+
+        this.setUncaughtExceptionHandler((t, e) -> {
+            SwingUtilities.invokeLater(() -> {
+                this.clientGUI.onError(e);
+            });
+        });
+
+        SwingUtilities.invokeLater(() -> {
+            this.clientGUI.onUserConnected(clientUser);
+        });
+
+        this.lastPacketFromServerTime = System.currentTimeMillis();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public SocketAddress getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * Waits for the answer of a login, datagrams from other addresses are discarded by the connected transport.
+     *
+     * @param buffer the buffer, cleared before receiving
+     * @param timeout the maximum time to wait in milliseconds
+     * @return false if the timeout expired
+     */
+    private boolean receiveLogin(ByteBuffer buffer, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        buffer.clear();
+        while (this.transport.receive(buffer) == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            this.poller.select(remaining, Client::ignore);
+        }
+        return true;
+    }
+
+    private void closeTransport() throws IOException {
+        try (this.transport; this.poller) {
+            //closed by the try
+        }
+    }
+
+    private static void ignore(Transport transport) {
+        //the client has a single transport, it receives until it is empty after every select
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Tells the server the user is typing, called on every key typed, the typing packet is sent at most once every
+     * {@link Main#TYPING_RESEND_INTERVAL} milliseconds.
+     */
+    public void typing() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastTypingTime < Main.TYPING_RESEND_INTERVAL) {
+            return;
+        }
+        this.lastTypingTime = now;
+        this.tasks.add(() -> {
+            this.writer
+                    .begin(Main.TYPING_PACKET);
+
+            sendFrame(this.writer);
+        });
+    }
+
+    public boolean sendMessage(String message) {
+        byte[] messageData = message.getBytes(StandardCharsets.UTF_8);
+        if (messageData.length > Main.PAYLOAD_SIZE) {
+            return false;
+        }
+
+        //the server stops showing the user as typing when the message arrives
+        this.lastTypingTime = 0;
+
+        this.tasks.add(() -> {
+            if (this.currentMessagesIndex >= this.messages.length) {
+                this.messages = Arrays.copyOf(this.messages, this.messages.length * 2);
+                this.messageRooms = Arrays.copyOf(this.messageRooms, this.messages.length);
+            }
+            this.messages[this.currentMessagesIndex] = message;
+            this.messageRooms[this.currentMessagesIndex] = this.currentRoom.id;
+            this.currentMessagesIndex++;
+
+            sendMessage(this.currentMessagesIndex - 1);
+        });
+        return true;
+    }
+
+    /**
+     * Joins a room, the room is created by the server if it doesn't exist, messages are sent to the room after the
+     * server answers.
+     *
+     * @param room the name of the room
+     * @return false if the name is invalid or the server has no rooms
+     */
+    public boolean joinRoom(String room) {
+        byte[] roomData = room.getBytes(StandardCharsets.UTF_8);
+        if (roomData.length == 0 || roomData.length > Main.ROOM_NAME_SIZE || (this.serverCapabilities & Main.CAPABILITY_ROOMS) == 0) {
+            return false;
+        }
+        this.tasks.add(() -> {
+            this.joiningRoom = room;
+            sendJoin(roomData);
+        });
+        return true;
+    }
+
+    /**
+     * Leaves the room messages are sent to, messages are sent to the lobby or to other room after the server answers.
+     *
+     * @return false if it's the only room the client is in
+     */
+    public boolean leaveRoom() {
+        ClientRoom room = this.currentRoom;
+        synchronized (this.rooms) {
+            if (this.rooms.size() <= 1) {
+                return false;
+            }
+        }
+        this.tasks.add(() -> {
+            this.writer
+                    .begin(Main.LEAVE_ROOM_PACKET)
+                    .putInt(room.id);
+            sendFrame(this.writer);
+        });
+        return true;
+    }
+
+    public void exit() {
+        this.tasks.add(() -> {
+            try (this.transport; this.poller) {
+                this.writer
+                        .begin(Main.DISCONNECTED_PACKET);
+
+                sendNow(this.writer);
+            }
+
+            this.exit = true;
+        });
+    }
+
+    @Override
+    public void run() {
+        this.receiverThread.start();
+        SwingUtilities.invokeLater(() -> {
+            this.clientGUI.setLocationRelativeTo(null);
+            this.clientGUI.setTitle(this.username);
+            this.clientGUI.setVisible(true);
+        });
+
+        System.out.println("Current client identified as " + this.clientUser.toDetailedString());
+
+        try {
+            while (true) {
+                loop();
+                if (this.exit) {
+                    break;
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void loop() throws InterruptedException, IOException {
+        if (this.receiverThreadException != null) {
+            throw this.receiverThreadException;
+        }
+
+        IORunnable t;
+        while ((t = this.tasks.poll()) != null) {
+            t.run();
+        }
+
+        if (this.exit) {
+            return;
+        }
+
+        PooledBuffer r;
+        while ((r = this.received.poll()) != null) {
+            processPacket(r);
+        }
+
+        //a server with adaptive pings may stay quiet for up to the largest ping interval
+        long silence = System.currentTimeMillis() - this.lastPacketFromServerTime;
+        if ((this.serverCapabilities & Main.CAPABILITY_ADAPTIVE_PING) != 0) {
+            silence = Math.max(silence - Main.PING_INTERVAL_MAX, 0);
+        }
+        int timeoutWarning = (int) (silence / 1000);
+        if (timeoutWarning > Main.MAX_TIMEOUT_WARNINGS) {
+            throw new SocketTimeoutException("Timed out");
+        }
+        if (timeoutWarning > this.lastTimeoutWarning) {
+            SwingUtilities.invokeLater(() -> {
+                this.clientGUI.onTimeout(timeoutWarning);
+            });
+            this.lastTimeoutWarning = timeoutWarning;
+            System.out.println("Warning: Lost connection to the server, retrying... (" + timeoutWarning + "/" + Main.MAX_TIMEOUT_WARNINGS + ")");
+
+            for (User s : this.users.getUsers()) {
+                if (s.isDisconnected()) {
+                    continue;
+                }
+                s.updateLastPacketReceivedTime();
+            }
+        } else if (timeoutWarning == 0 && this.lastTimeoutWarning != 0) {
+            SwingUtilities.invokeLater(() -> {
+                this.clientGUI.onConnectionRestored();
+            });
+            this.lastTimeoutWarning = 0;
+            System.out.println("Info: Connection restored!");
+        }
+
+        this.timers.advance(System.currentTimeMillis());
+
+        for (ClientRoom room : this.rooms) {
+            if (!room.reorderBuffer.isEmpty() && room.reorderBuffer.isAckDue(System.currentTimeMillis())) {
+                //the resent messages may have been lost too
+                sendAck(room);
+            }
+        }
+
+        this.coalescer.flushAll();
+
+        Thread.sleep(Main.TPS);
+    }
+
+    /**
+     * Creates the timers of a user and starts checking for its timeout.
+     */
+    private void startTimeout(User user) {
+        user.setTimeoutTimer(new TimerWheel.Timer((timer, now) -> {
+            if (user.isDisconnected()) {
+                return;
+            }
+            if (!user.hasTimedOut(now)) {
+                //the timer is only moved forward when it expires, receiving a packet doesn't touch the wheel
+                this.timers.schedule(timer, user.getLastPacketReceivedTime() + Main.MAX_TIMEOUT_WARNINGS * 1000);
+                return;
+            }
+            user.disconnect();
+            stopTyping(user);
+            System.out.println("Info: " + user.toDetailedString() + " Timed out!");
+            SwingUtilities.invokeLater(() -> {
+                this.clientGUI.onUserDisconnected(user);
+            });
+        }));
+        user.setTypingTimer(new TimerWheel.Timer((timer, now) -> {
+            if (user.hasTypingTimedOut(now)) {
+                stopTyping(user);
+            } else if (user.isTyping()) {
+                this.timers.schedule(timer, user.getTypingTime() + 1);
+            }
+        }));
+        this.timers.schedule(user.getTimeoutTimer(), user.getLastPacketReceivedTime() + Main.MAX_TIMEOUT_WARNINGS * 1000);
+    }
+
+    private void startTyping(User user) {
+        if (!user.isTyping()) {
+            SwingUtilities.invokeLater(() -> {
+                this.clientGUI.onUserStartTyping(user);
+            });
+        }
+        user.typing();
+        this.timers.schedule(user.getTypingTimer(), user.getTypingTime() + 1);
+    }
+
+    private void stopTyping(User user) {
+        if (!user.isTyping()) {
+            return;
+        }
+        user.stopTyping();
+        this.timers.cancel(user.getTypingTimer());
+        SwingUtilities.invokeLater(() -> {
+            this.clientGUI.onUserStopTyping(user);
+        });
+    }
+
+    /**
+     * Asks the server for the roster changes since the version of the client, at most once every
+     * {@link Main#ROSTER_REQUEST_INTERVAL} milliseconds.
+     */
+    private void requestRoster() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - this.lastRosterRequestTime < Main.ROSTER_REQUEST_INTERVAL) {
+            return;
+        }
+        this.lastRosterRequestTime = now;
+        this.writer
+                .begin(Main.ROSTER_PACKET)
+                .putLong(this.rosterVersion);
+        sendFrame(this.writer);
+    }
+
+    /**
+     * Asks the server who a unknown user is, servers with a roster are asked for the changes the client missed
+     * instead, unless the roster is up to date and the user was reaped.
+     */
+    private void identify(long userId) throws IOException {
+        boolean rosterBehind = (this.serverRosterVersion == 0 || this.rosterVersion < this.serverRosterVersion);
+        if ((this.serverCapabilities & Main.CAPABILITY_ROSTER) != 0 && rosterBehind) {
+            requestRoster();
+            return;
+        }
+        this.writer
+                .begin(Main.IDENTIFY_PACKET)
+                .putLong(userId);
+        sendFrame(this.writer);
+    }
+
+    private void addUser(long userId, String name, boolean disconnected) {
+        User u = new User(name, userId);
+        if (disconnected) {
+            u.disconnect();
+        } else {
+            u.updateLastPacketReceivedTime();
+
+            SwingUtilities.invokeLater(() -> {
+                this.clientGUI.onUserConnected(u);
+            });
+        }
+        this.users.add(u);
+        if (!disconnected) {
+            startTimeout(u);
+        }
+
+        System.out.println("Info: User ID " + userId + " identified as " + u.toDetailedString());
+    }
+
+    private void userDisconnected(User user) {
+        user.disconnect();
+        this.timers.cancel(user.getTimeoutTimer());
+        stopTyping(user);
+        System.out.println("Info: " + user.toDetailedString() + " Disconnected.");
+        SwingUtilities.invokeLater(() -> {
+            this.clientGUI.onUserDisconnected(user);
+        });
+    }
+
+    /**
+     * Delivers the next message of the server.
+     *
+     * @return false if the author is unknown, the message must be received again after the author is identified
+     */
+    private boolean deliverMessage(ClientRoom room, long userId, byte[] messageData) throws IOException {
+        User user = this.users.getByUserId(userId);
+        if (user == null) {
+            identify(userId);
+            System.out.println("Info: Received message from unknown user id " + userId + ", info requested.");
+            return false;
+        }
+        room.currentServerMessageIndex++;
+
+        stopTyping(user);
+
+        if (!user.isDisconnected()) {
+            user.updateLastPacketReceivedTime();
+        }
+
+        UserMessage message = new UserMessage(user, messageData);
+
+        String roomName = (room.id != Main.LOBBY_ROOM ? room.name : null);
+        SwingUtilities.invokeLater(() -> {
+            this.clientGUI.onMessageReceived(roomName, message);
+        });
+
+        System.out.println("Info: " + user.toDetailedString() + " -> " + (roomName != null ? "[" + roomName + "] " : "") + message.getMessage());
+        return true;
+    }
+
+    /**
+     * Tells the server which messages of a room were received after a missing message.
+     */
+    private void sendAck(ClientRoom room) throws IOException {
+        this.writer
+                .begin(Main.ACK_PACKET)
+                .putInt(room.currentServerMessageIndex)
+                .putLong(room.reorderBuffer.getBitmap(room.currentServerMessageIndex));
+        if (room.id != Main.LOBBY_ROOM) {
+            this.writer.putInt(room.id);
+        }
+        sendFrame(this.writer);
+    }
+
+    /**
+     * Asks the server for a range of messages of a room.
+     */
+    private void requestMessages(ClientRoom room, int from, int to) throws IOException {
+        this.writer
+                .begin(Main.RESEND_MESSAGE_PACKET)
+                .putInt(from)
+                .putInt(to);
+        if (room.id != Main.LOBBY_ROOM) {
+            this.writer.putInt(room.id);
+        }
+        sendFrame(this.writer);
+    }
+
+    /**
+     * Sends a message of the client, messages to other room than the lobby carry the id of the room.
+     */
+    private void sendMessage(int index) throws IOException {
+        this.writer
+                .begin(Main.MESSAGE_PACKET)
+                .putInt(index)
+                .putBytes(this.messages[index].getBytes(StandardCharsets.UTF_8));
+        if (this.messageRooms[index] != Main.LOBBY_ROOM) {
+            this.writer.putInt(this.messageRooms[index]);
+        }
+        sendFrame(this.writer);
+    }
+
+    private void sendJoin(byte[] roomData) throws IOException {
+        this.writer
+                .begin(Main.JOIN_ROOM_PACKET)
+                .putBytes(roomData);
+        sendFrame(this.writer);
+    }
+
+    private ClientRoom getRoom(int id) {
+        for (ClientRoom room : this.rooms) {
+            if (room.id == id) {
+                return room;
+            }
+        }
+        return null;
+    }
+
+    private void send(ByteBuffer packetBuffer) throws IOException {
+        this.transport.send(packetBuffer, this.serverAddress);
+    }
+
+    /**
+     * Sends a packet to the server, packed with other frames if the server supports it.
+     */
+    private void sendFrame(PacketWriter packet) throws IOException {
+        ByteBuffer packetBuffer = packet.get(this.serverFormat);
+        if ((this.serverCapabilities & Main.CAPABILITY_MULTI_FRAME) != 0) {
+            this.coalescer.append(this.frameBuffer, packetBuffer);
+            return;
+        }
+        send(packetBuffer);
+    }
+
+    /**
+     * Sends a packet to the server as a single datagram, after any pending frames.
+     */
+    private void sendNow(PacketWriter packet) throws IOException {
+        this.coalescer.send(packet.get(this.serverFormat), this.frameBuffer);
+    }
+
+    /**
+     * Reads the history sizes of the rooms sent with a ping, the client asks for the messages it missed and joins again
+     * the rooms the server doesn't list, the server forgets the rooms when it restarts.
+     */
+    private void checkRooms(WireFormat format, ByteBuffer packetBuffer) throws IOException {
+        int count = format.getInt(packetBuffer);
+        if (count < 0 || count > Main.MAX_ROOMS) {
+            System.out.println("Warning: Received ping packet with too many (or too few!) rooms from server, " + count);
+            return;
+        }
+        for (ClientRoom room : this.rooms) {
+            room.listed = false;
+        }
+        int listed = 0;
+        for (int i = 0; i < count; i++) {
+            ClientRoom room = getRoom(format.getInt(packetBuffer));
+            int historySize = format.getInt(packetBuffer);
+            if (room == null) {
+                continue;
+            }
+            room.listed = true;
+            listed++;
+            if (historySize > room.currentServerMessageIndex) {
+                System.out.println("Warning: Client is running " + (historySize - room.currentServerMessageIndex) + " messages behind in room " + room.name + ", requesting...");
+                requestMessages(room, room.currentServerMessageIndex, historySize);
+            }
+        }
+        int joined = this.rooms.size() - (getRoom(Main.LOBBY_ROOM) != null ? 1 : 0);
+        if (listed == joined) {
+            return;
+        }
+        for (ClientRoom room : this.rooms) {
+            if (room.id == Main.LOBBY_ROOM || room.listed) {
+                continue;
+            }
+            //the rooms are not persisted, the history of the room starts again from the first message
+            room.forgotten = true;
+            System.out.println("Info: Joining room " + room.name + " again.");
+            sendJoin(room.name.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void processPacket(PooledBuffer buffer) throws IOException {
+        try {
+            SocketAddress address = buffer.getAddress();
+            if (!address.equals(this.serverAddress)) {
+                if (!this.servers.contains(address)) {
+                    return;
+                }
+                //a standby only talks to the clients after taking over
+                System.out.println("Info: Server failed over to " + address);
+                this.serverAddress = address;
+            }
+            processPacket(buffer.getData());
+        } catch (BufferUnderflowException ex) {
+            System.out.println("Warning: Received truncated packet from server, " + buffer.getLength() + " bytes");
+        } catch (WireFormat.MalformedPacketException ex) {
+            System.out.println("Warning: Received malformed packet from server, " + ex.getMessage());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private void processPacket(ByteBuffer packetBuffer) throws IOException {
+        this.lastPacketFromServerTime = System.currentTimeMillis();
+
+        WireFormat format = WireFormat.detect(packetBuffer);
+        if (format == null) {
+            System.out.println("Warning: Received packet with unknown magic number from server!");
+            return;
+        }
+
+        int packetId = format.readHeader(packetBuffer);
+
+        if (packetId == Main.MULTI_FRAME_PACKET) {
+            int limit = packetBuffer.limit();
+            while (packetBuffer.hasRemaining()) {
+                int frameLength = format.getFrameLength(packetBuffer);
+                if (frameLength == 0) {
+                    break;
+                }
+                if (frameLength > packetBuffer.remaining()) {
+                    System.out.println("Warning: Received truncated frame from server, " + frameLength + " bytes");
+                    return;
+                }
+                int end = packetBuffer.position() + frameLength;
+                packetBuffer.limit(end);
+                int framePacketId = format.getPacketId(packetBuffer);
+                if (framePacketId == Main.MULTI_FRAME_PACKET) {
+                    System.out.println("Warning: Received nested multi frame packet from server.");
+                } else {
+                    processFrame(format, framePacketId, packetBuffer);
+                }
+                packetBuffer.limit(limit).position(end);
+            }
+            return;
+        }
+
+        processFrame(format, packetId, packetBuffer);
+    }
+
+    private void processFrame(WireFormat format, int packetId, ByteBuffer packetBuffer) throws IOException {
+        switch (packetId) {
+            case Main.RESEND_MESSAGE_PACKET -> {
+                int from = format.getInt(packetBuffer);
+                int to = format.getInt(packetBuffer);
+
+                if (from < 0 || to > this.currentMessagesIndex) {
+                    System.out.println("Warning: Server requested a invalid range of messages, from " + from + ", to " + to);
+                    return;
+                }
+
+                for (int i = from; i < to; i++) {
+                    sendMessage(i);
+                }
+            }
+            case Main.MESSAGE_PACKET -> {
+                int currentMessageId = format.getInt(packetBuffer);
+                long userId = format.getLong(packetBuffer);
+
+                int messageSize = format.getInt(packetBuffer);
+                if (messageSize < 0 || messageSize > Main.PAYLOAD_SIZE) {
+                    System.out.println("Warning: Received message packet with message size too large (or too small!) from server, " + messageSize + " bytes");
+                    return;
+                }
+                byte[] messageData = new byte[messageSize];
+                packetBuffer.get(messageData);
+
+                int roomId = (packetBuffer.hasRemaining() ? format.getInt(packetBuffer) : Main.LOBBY_ROOM);
+                ClientRoom room = getRoom(roomId);
+                if (room == null) {
+                    System.out.println("Warning: Received message packet of room " + roomId + " the client is not in, discarded!");
+                    return;
+                }
+
+                if (currentMessageId < room.currentServerMessageIndex) {
+                    System.out.println("Warning: Received old message packet from server, discarded!");
+                    return;
+                }
+                boolean selective = (this.serverCapabilities & Main.CAPABILITY_SACK) != 0;
+                if (currentMessageId > room.currentServerMessageIndex && !selective) {
+                    requestMessages(room, room.currentServerMessageIndex, currentMessageId + 1);
+                    System.out.println("Warning: Message packet drop detected from server! (" + ((currentMessageId + 1) - room.currentServerMessageIndex) + " packets!)");
+                    return;
+                }
+
+                if (currentMessageId > room.currentServerMessageIndex) {
+                    if (!room.reorderBuffer.add(room.currentServerMessageIndex, currentMessageId, new BufferedMessage(userId, messageData))) {
+                        System.out.println("Warning: Message packet from server is too far ahead, discarded!");
+                    }
+                    if (room.reorderBuffer.isAckDue(System.currentTimeMillis())) {
+                        sendAck(room);
+                    }
+                    return;
+                }
+
+                if (!deliverMessage(room, userId, messageData)) {
+                    return;
+                }
+
+                if (!room.reorderBuffer.isEmpty()) {
+                    room.reorderBuffer.discardBefore(room.currentServerMessageIndex);
+                    BufferedMessage next;
+                    while ((next = room.reorderBuffer.take(room.currentServerMessageIndex)) != null) {
+                        if (!deliverMessage(room, next.userId, next.data)) {
+                            //kept until the author is identified
+                            room.reorderBuffer.add(room.currentServerMessageIndex - 1, room.currentServerMessageIndex, next);
+                            break;
+                        }
+                    }
+                }
+            }
+            case Main.ACK_PACKET -> {
+                int expected = format.getInt(packetBuffer);
+                long bitmap = format.getLong(packetBuffer);
+
+                int count = ReorderBuffer.getMissing(expected, bitmap, this.missing);
+                for (int i = 0; i < count; i++) {
+                    int index = this.missing[i];
+                    if (index < 0 || index >= this.currentMessagesIndex) {
+                        System.out.println("Warning: Server acknowledged a invalid message, " + index);
+                        return;
+                    }
+                    sendMessage(index);
+                }
+            }
+            case Main.IDENTIFY_PACKET -> {
+                long userId = format.getLong(packetBuffer);
+                boolean disconnected = format.getInt(packetBuffer) != 0;
+                if (this.users.getByUserId(userId) != null) {
+                    return;
+                }
+
+                int nameSize = format.getInt(packetBuffer);
+                if (nameSize < 0 || nameSize > Main.PAYLOAD_SIZE) {
+                    System.out.println("Warning: Received identify packet with name size too large (or too small!) from server, " + nameSize + " bytes");
+                    return;
+                }
+                byte[] nameData = new byte[nameSize];
+                packetBuffer.get(nameData);
+
+                addUser(userId, new String(nameData, StandardCharsets.UTF_8), disconnected);
+            }
+            case Main.ROSTER_PACKET -> {
+                long from = format.getLong(packetBuffer);
+                long to = from + format.getLong(packetBuffer);
+                if (from > this.rosterVersion) {
+                    System.out.println("Warning: Missed roster changes from " + this.rosterVersion + " to " + from + ", requesting...");
+                    requestRoster();
+                    return;
+                }
+                if (to <= this.rosterVersion) {
+                    return;
+                }
+
+                int count = format.getInt(packetBuffer);
+                if (count < 0 || count > Main.PACKET_SIZE) {
+                    System.out.println("Warning: Received roster packet with too many (or too few!) entries from server, " + count);
+                    return;
+                }
+
+                long userId = 0;
+                for (int i = 0; i < count; i++) {
+                    userId += format.getLong(packetBuffer);
+                    boolean disconnected = format.getInt(packetBuffer) != 0;
+                    byte[] nameData;
+                    try {
+                        nameData = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                    } catch (WireFormat.MalformedPacketException ex) {
+                        System.out.println("Warning: Received roster packet with name size too large (or too small!) from server, " + ex.getMessage());
+                        return;
+                    }
+
+                    User user = this.users.getByUserId(userId);
+                    if (user == null) {
+                        addUser(userId, new String(nameData, StandardCharsets.UTF_8), disconnected);
+                    } else if (disconnected && !user.isDisconnected() && user != this.clientUser) {
+                        userDisconnected(user);
+                    }
+                }
+                this.rosterVersion = to;
+            }
+            case Main.PING_PACKET -> {
+                long time = format.getLong(packetBuffer);
+                int serverMessagesLength = format.getInt(packetBuffer);
+
+                this.writer
+                        .begin(Main.PING_PACKET)
+                        .putLong(time)
+                        .putInt(serverMessagesLength);
+                sendNow(this.writer);
+
+                if (serverMessagesLength < 0) {
+                    System.out.println("Warning: Received ping packet from server with negative messages length.");
+                }
+                boolean roster = (this.serverCapabilities & Main.CAPABILITY_ROSTER) != 0;
+                if (roster) {
+                    this.serverRosterVersion = Math.max(this.serverRosterVersion, format.getLong(packetBuffer));
+                    if (this.serverRosterVersion > this.rosterVersion) {
+                        requestRoster();
+                    }
+                }
+                if ((this.serverCapabilities & Main.CAPABILITY_ROOMS) != 0) {
+                    checkRooms(format, packetBuffer);
+                }
+                ClientRoom lobby = getRoom(Main.LOBBY_ROOM);
+                if (lobby != null && serverMessagesLength > lobby.currentServerMessageIndex) {
+                    if (!this.firstPing && !roster) {
+                        this.firstPing = true;
+                        this.writer
+                            .begin(Main.IDENTIFY_PACKET)
+                                .putLong(-1);
+                        sendNow(this.writer);
+                        System.out.println("Info: Requesting users from server.");
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    } else {
+                        System.out.println("Warning: Client is running " + (serverMessagesLength - lobby.currentServerMessageIndex) + " messages behind, requesting...");
+                        requestMessages(lobby, lobby.currentServerMessageIndex, serverMessagesLength);
+                    }
+                }
+            }
+            case Main.USER_PING_VALUE_PACKET -> {
+                long userId = format.getLong(packetBuffer);
+                User user = this.users.getByUserId(userId);
+                if (user == null) {
+                    identify(userId);
+                    System.out.println("Info: Received ping value from unknown user id " + userId + ", info requested.");
+                    return;
+                }
+                if (user.isDisconnected()) {
+                    System.out.println("Warning: Received ping value from server of a disconnected user! " + user.toDetailedString());
+                    return;
+                }
+
+                int ping = format.getInt(packetBuffer);
+
+                if (ping < 0) {
+                    System.out.println("Warning: Received negative ping of user " + user.toDetailedString() + " from the server.");
+                    return;
+                }
+
+                user.updateLastPacketReceivedTime();
+                user.setPing(ping);
+
+                SwingUtilities.invokeLater(() -> {
+                    this.clientGUI.onUserPingUpdate(user);
+                });
+            }
+            case Main.PING_DIGEST_PACKET -> {
+                int count = format.getInt(packetBuffer);
+                if (count < 0 || count > Main.PING_DIGEST_ENTRIES) {
+                    System.out.println("Warning: Received ping digest with too many (or too few!) entries from server, " + count);
+                    return;
+                }
+
+                long userId = 0;
+                int ping = 0;
+                int updated = 0;
+                for (int i = 0; i < count; i++) {
+                    userId += format.getLong(packetBuffer);
+                    ping += format.getInt(packetBuffer);
+
+                    User user = this.users.getByUserId(userId);
+                    if (user == null || user.isDisconnected() || ping < 0) {
+                        continue;
+                    }
+                    user.updateLastPacketReceivedTime();
+                    user.setPing(ping);
+                    updated++;
+                }
+
+                if (updated != 0) {
+                    SwingUtilities.invokeLater(() -> {
+                        this.clientGUI.onUserPingsUpdate();
+                    });
+                }
+            }
+            case Main.DISCONNECTED_PACKET -> {
+                long userId = format.getLong(packetBuffer);
+                User user = this.users.getByUserId(userId);
+                if (user == null || user.isDisconnected()) {
+                    return;
+                }
+                userDisconnected(user);
+            }
+            case Main.TYPING_PACKET -> {
+                long userId = format.getLong(packetBuffer);
+                User user = this.users.getByUserId(userId);
+                if (user == null || user.isDisconnected()) {
+                    return;
+                }
+                startTyping(user);
+            }
+            case Main.JOIN_ROOM_PACKET -> {
+                int roomId = format.getInt(packetBuffer);
+                int historySize = format.getInt(packetBuffer);
+                String name = new String(format.getBytes(packetBuffer, Main.ROOM_NAME_SIZE), StandardCharsets.UTF_8);
+
+                if (roomId == -1) {
+                    //too many rooms, in the server or joined by this user
+                    System.out.println("Warning: Server refused to join room " + name);
+                    if (name.equals(this.joiningRoom)) {
+                        this.joiningRoom = null;
+                        SwingUtilities.invokeLater(() -> {
+                            this.clientGUI.onRoomRefused(name);
+                        });
+                    }
+                    return;
+                }
+
+                ClientRoom room = getRoom(roomId);
+                if (room == null || room.forgotten || !room.name.equals(name)) {
+                    room = new ClientRoom(roomId, name);
+                    synchronized (this.rooms) {
+                        //a restarted server may give the room other id, or give its id to other room
+                        for (int i = this.rooms.size() - 1; i >= 0; i--) {
+                            ClientRoom old = this.rooms.get(i);
+                            if (old.name.equals(name) || old.id == roomId) {
+                                this.rooms.remove(i);
+                            }
+                        }
+                        if (this.currentRoom.name.equals(name)) {
+                            this.currentRoom = room;
+                        }
+                        this.rooms.add(room);
+                    }
+                    if (historySize > 0) {
+                        requestMessages(room, 0, historySize);
+                    }
+                    System.out.println("Info: Joined room " + name + " (id " + roomId + ", " + historySize + " messages)");
+                }
+                if (name.equals(this.joiningRoom)) {
+                    this.joiningRoom = null;
+                    this.currentRoom = room;
+                    SwingUtilities.invokeLater(() -> {
+                        this.clientGUI.onRoomJoined(name);
+                    });
+                }
+            }
+            case Main.LEAVE_ROOM_PACKET -> {
+                int roomId = format.getInt(packetBuffer);
+                ClientRoom room = getRoom(roomId);
+                if (room == null) {
+                    return;
+                }
+                synchronized (this.rooms) {
+                    this.rooms.remove(room);
+                }
+                if (this.currentRoom == room) {
+                    ClientRoom next = getRoom(Main.LOBBY_ROOM);
+                    if (next == null && !this.rooms.isEmpty()) {
+                        next = this.rooms.get(0);
+                    }
+                    if (next == null) {
+                        //every client is at least in the lobby
+                        next = new ClientRoom(Main.LOBBY_ROOM, Main.LOBBY_NAME);
+                        synchronized (this.rooms) {
+                            this.rooms.add(next);
+                        }
+                        sendJoin(Main.LOBBY_NAME.getBytes(StandardCharsets.UTF_8));
+                    }
+                    this.currentRoom = next;
+                }
+                String current = this.currentRoom.name;
+                SwingUtilities.invokeLater(() -> {
+                    this.clientGUI.onRoomLeft(room.name, current);
+                });
+                System.out.println("Info: Left room " + room.name);
+            }
+            case Main.TYPING_DIGEST_PACKET -> {
+                int count = format.getInt(packetBuffer);
+                if (count < 0 || count > Main.TYPING_DIGEST_ENTRIES) {
+                    System.out.println("Warning: Received typing digest with too many (or too few!) entries from server, " + count);
+                    return;
+                }
+
+                long userId = 0;
+                for (int i = 0; i < count; i++) {
+                    userId += format.getLong(packetBuffer);
+                    boolean typing = format.getInt(packetBuffer) != 0;
+
+                    User user = this.users.getByUserId(userId);
+                    if (user == null || user.isDisconnected() || user == this.clientUser) {
+                        continue;
+                    }
+                    if (typing) {
+                        startTyping(user);
+                    } else {
+                        stopTyping(user);
+                    }
+                }
+            }
+        }
+    }
+}
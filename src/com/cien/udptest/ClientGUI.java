@@ -92,6 +92,13 @@ public final class ClientGUI extends javax.swing.JFrame {
     }
     
     public void onUserPingUpdate(User user) {
+        onUserPingsUpdate();
+    }
+    
+    /**
+     * Called once after the pings of several users were updated.
+     */
+    public void onUserPingsUpdate() {
         if (System.currentTimeMillis() >= this.nextUserListRepaint) {
             this.nextUserListRepaint = System.currentTimeMillis() + 3000;
             this.userList.repaint();
@@ -103,8 +110,30 @@ public final class ClientGUI extends javax.swing.JFrame {
         updateUserList();
     }
     
-    public void onMessageReceived(UserMessage message) {
-        pushText(message.getUser().getName()+": "+message.getMessage());
+    /**
+     * Called when a message is received.
+     *
+     * @param room the name of the room or null for the lobby
+     * @param message the message
+     */
+    public void onMessageReceived(String room, UserMessage message) {
+        if (room == null) {
+            pushText(message.getUser().getName()+": "+message.getMessage());
+            return;
+        }
+        pushText("["+room+"] "+message.getUser().getName()+": "+message.getMessage());
+    }
+    
+    public void onRoomJoined(String room) {
+        pushText("Joined "+room+", messages are sent to "+room+".");
+    }
+    
+    public void onRoomRefused(String room) {
+        pushText("Could not join "+room+", the server refused it.");
+    }
+    
+    public void onRoomLeft(String room, String current) {
+        pushText("Left "+room+", messages are sent to "+current+".");
     }
     
     public void onTimeout(int warning) {
@@ -214,7 +243,24 @@ public final class ClientGUI extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     private void sendButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_sendButtonActionPerformed
-        if (this.client.sendMessage(this.messageField.getText())) {
+        String text = this.messageField.getText();
+        if (text.startsWith("/join ")) {
+            if (this.client.joinRoom(text.substring("/join ".length()).trim())) {
+                this.messageField.setText("");
+            } else {
+                pushText("Invalid room name or the server has no rooms!");
+            }
+            return;
+        }
+        if (text.equals("/leave")) {
+            if (this.client.leaveRoom()) {
+                this.messageField.setText("");
+            } else {
+                pushText("The last room can't be left!");
+            }
+            return;
+        }
+        if (this.client.sendMessage(text)) {
             this.messageField.setText("");
         } else {
             pushText("Message too long!");
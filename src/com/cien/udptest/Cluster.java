@@ -0,0 +1,541 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The view a server node has of its cluster, names are assigned to the nodes by a consistent hash so every node agrees
+ * on the owner of a user or a room. Links carry a random session of the process, the link to a restarted node starts
+ * again. Node packets are trusted by their source address alone, a cluster must only run on a trusted network. Used by
+ * a single server thread.
+ *
+ * @author Cien
+ */
+public class Cluster {
+
+    /**
+     * The reliable packets exchanged with other node.
+     */
+    private static class Link {
+
+        private final InetSocketAddress address;
+        //sequence of the next reliable packet sent, and the first one the node didn't acknowledge
+        private int nextSequence = 0;
+        private int acknowledged = 0;
+        private int heartbeatAcknowledged = 0;
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        //sequence of the next reliable packet expected from the node
+        private int expected = 0;
+        private int heartbeatCursor = 0;
+        //session of the node, 0 until its first packet
+        private long session = 0;
+
+        private Link(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * A room owned by other node, the history is caught up with the size the owner announces.
+     */
+    private static class Replica {
+
+        private int knownSize = 0;
+        private int requestedUntil = 0;
+        private long lastRequestTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Parses a list of addresses in the form host:port,host:port...
+     *
+     * @param list the list
+     * @return the addresses
+     * @throws IllegalArgumentException if a address is invalid
+     */
+    public static InetSocketAddress[] parseNodes(String list) {
+        Objects.requireNonNull(list, "List is null.");
+        String[] entries = list.split(",");
+        InetSocketAddress[] nodes = new InetSocketAddress[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid node address '" + entry + "', must be host:port");
+            }
+            int port;
+            try {
+                port = Integer.parseInt(entry.substring(separator + 1));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid port of node '" + entry + "': " + ex.getMessage());
+            }
+            InetSocketAddress address = new InetSocketAddress(entry.substring(0, separator), port);
+            if (address.isUnresolved()) {
+                throw new IllegalArgumentException("Unknown host of node '" + entry + "'");
+            }
+            nodes[i] = address;
+        }
+        return nodes;
+    }
+
+    /**
+     * Hashes a name to a point of the ring, FNV-1a followed by the finalizer of MurmurHash3 so similar names are
+     * spread over the ring.
+     *
+     * @param key the name
+     * @return the point
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xFF);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private final int nodeIndex;
+    private final long session;
+    private final Link[] links;
+    private final HashMap<SocketAddress, Integer> nodeIndices = new HashMap<>();
+
+    private final long[] ringPoints;
+    private final int[] ringNodes;
+    private final int lobbyOwner;
+
+    private final Users remoteUsers = new Users();
+    private final LongObjectMap<Replica> replicas = new LongObjectMap<>();
+    //rooms owned by this node and the nodes that have members in each one
+    private final List<Integer> ownedRooms = new ArrayList<>();
+    private final LongObjectMap<boolean[]> subscribers = new LongObjectMap<>();
+    private final HashMap<String, List<User>> pendingJoins = new HashMap<>();
+
+    /**
+     * Creates the view of a node.
+     *
+     * @param nodes the addresses of every node, in the same order in every node
+     * @param nodeIndex the index of this node in the list
+     */
+    public Cluster(InetSocketAddress[] nodes, int nodeIndex) {
+        Objects.requireNonNull(nodes, "Nodes is null.");
+        if (nodeIndex < 0 || nodeIndex >= nodes.length) {
+            throw new IllegalArgumentException("Node index " + nodeIndex + " is not in the cluster of " + nodes.length + " nodes.");
+        }
+        if (nodes.length > Main.CLUSTER_MAX_NODES) {
+            throw new IllegalArgumentException("Too many nodes, max is " + Main.CLUSTER_MAX_NODES);
+        }
+        this.nodeIndex = nodeIndex;
+        this.session = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        this.links = new Link[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            if (this.nodeIndices.put(nodes[i], i) != null) {
+                throw new IllegalArgumentException("Node " + nodes[i] + " is in the cluster twice.");
+            }
+            if (i != nodeIndex) {
+                this.links[i] = new Link(nodes[i]);
+            }
+        }
+
+        //the points only depend on the index of the nodes, so every node builds the same ring
+        int points = nodes.length * Main.CLUSTER_VIRTUAL_NODES;
+        long[][] ring = new long[points][];
+        for (int i = 0; i < nodes.length; i++) {
+            for (int v = 0; v < Main.CLUSTER_VIRTUAL_NODES; v++) {
+                ring[i * Main.CLUSTER_VIRTUAL_NODES + v] = new long[]{hash("node-" + i + "#" + v), i};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.ringPoints = new long[points];
+        this.ringNodes = new int[points];
+        for (int i = 0; i < points; i++) {
+            this.ringPoints[i] = ring[i][0];
+            this.ringNodes[i] = (int) ring[i][1];
+        }
+
+        this.lobbyOwner = getOwner(Main.LOBBY_NAME);
+        if (this.lobbyOwner == nodeIndex) {
+            owned(Main.LOBBY_ROOM);
+            for (int i = 0; i < nodes.length; i++) {
+                subscribe(Main.LOBBY_ROOM, i);
+            }
+        } else {
+            this.replicas.put(Main.LOBBY_ROOM, new Replica());
+        }
+    }
+
+    public int getNodeIndex() {
+        return nodeIndex;
+    }
+
+    public int getNodeCount() {
+        return links.length;
+    }
+
+    public long getSession() {
+        return session;
+    }
+
+    /**
+     * Checks the session of a packet of a node, if the node restarted the reliable packets
+     * waiting for it are discarded and both sequences start again from zero.
+     *
+     * @param node the node
+     * @param session the session of the node
+     * @return true if the node restarted since its last session
+     */
+    public boolean checkSession(int node, long session) {
+        Link link = this.links[node];
+        if (link.session == session) {
+            return false;
+        }
+        boolean restarted = (link.session != 0);
+        link.session = session;
+        if (restarted) {
+            link.nextSequence = 0;
+            link.acknowledged = 0;
+            link.heartbeatAcknowledged = 0;
+            link.pending.clear();
+            link.expected = 0;
+        }
+        return restarted;
+    }
+
+    /**
+     * Returns the users of a node, the node of a user is in the high bits of its id.
+     *
+     * @param node the node
+     * @return the users connected to the node
+     */
+    public List<User> getRemoteUsers(int node) {
+        List<User> list = new ArrayList<>();
+        for (User u : this.remoteUsers.getUsers()) {
+            if ((u.getUserId() >>> Main.CLUSTER_USER_ID_BITS) == node) {
+                list.add(u);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the index of the node with a address.
+     *
+     * @param address the address
+     * @return the index or -1 if it's not the address of other node
+     */
+    public int getNode(SocketAddress address) {
+        Integer index = this.nodeIndices.get(address);
+        if (index == null || index == this.nodeIndex) {
+            return -1;
+        }
+        return index;
+    }
+
+    public InetSocketAddress getNodeAddress(int node) {
+        return this.links[node].address;
+    }
+
+    /**
+     * Returns the node that owns a name, the first point of the ring after the hash of the name.
+     *
+     * @param name the name of a user or a room
+     * @return the index of the node
+     */
+    public int getOwner(String name) {
+        int index = Arrays.binarySearch(this.ringPoints, hash(name));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        if (index == this.ringPoints.length) {
+            index = 0;
+        }
+        return this.ringNodes[index];
+    }
+
+    /**
+     * Returns the node that owns a room, the ids of the rooms carry the index of the node that created them.
+     *
+     * @param room the id of the room
+     * @return the index of the node
+     */
+    public int getRoomOwner(int room) {
+        if (room == Main.LOBBY_ROOM) {
+            return this.lobbyOwner;
+        }
+        return room >>> Main.CLUSTER_ROOM_ID_BITS;
+    }
+
+    public boolean isOwner(int room) {
+        return getRoomOwner(room) == this.nodeIndex;
+    }
+
+    /**
+     * Returns the first id of the rooms created by this node.
+     *
+     * @return the id
+     */
+    public int getFirstRoomId() {
+        return (this.nodeIndex << Main.CLUSTER_ROOM_ID_BITS) + 1;
+    }
+
+    /**
+     * Returns the first id of the users of this node, the node of a user can be found from its id.
+     *
+     * @return the id
+     */
+    public long getFirstUserId() {
+        return ((long) this.nodeIndex) << Main.CLUSTER_USER_ID_BITS;
+    }
+
+    /**
+     * Returns the users connected to the other nodes.
+     *
+     * @return the users
+     */
+    public Users getRemoteUsers() {
+        return remoteUsers;
+    }
+
+    /**
+     * Returns the next sequence of the reliable packets sent to a node, the packet must be passed to
+     * {@link #sent(int, byte[])} after being encoded.
+     *
+     * @param node the node
+     * @return the sequence or -1 if too many packets are waiting for the node, the packet must not be sent
+     */
+    public int nextSequence(int node) {
+        Link link = this.links[node];
+        if (link.pending.size() >= Main.CLUSTER_PENDING_SIZE) {
+            return -1;
+        }
+        return link.nextSequence++;
+    }
+
+    /**
+     * Keeps a reliable packet until the node acknowledges it.
+     *
+     * @param node the node
+     * @param packet the packet encoded in the compact format
+     */
+    public void sent(int node, byte[] packet) {
+        this.links[node].pending.add(packet);
+    }
+
+    /**
+     * Checks the sequence of a reliable packet received from a node, packets must be processed in order so packets
+     * out of order are discarded and sent again by the node.
+     *
+     * @param node the node
+     * @param sequence the sequence of the packet
+     * @return true if the packet is the next one and must be processed
+     */
+    public boolean received(int node, int sequence) {
+        Link link = this.links[node];
+        if (sequence != link.expected) {
+            return false;
+        }
+        link.expected++;
+        return true;
+    }
+
+    /**
+     * Returns the sequence of the next reliable packet expected from a node, sent to the node as the acknowledgement.
+     *
+     * @param node the node
+     * @return the sequence
+     */
+    public int getExpected(int node) {
+        return this.links[node].expected;
+    }
+
+    /**
+     * Releases the reliable packets a node received.
+     *
+     * @param node the node
+     * @param expected the sequence of the next packet the node expects
+     */
+    public void acknowledged(int node, int expected) {
+        Link link = this.links[node];
+        while (link.acknowledged - expected < 0 && !link.pending.isEmpty()) {
+            link.pending.poll();
+            link.acknowledged++;
+        }
+    }
+
+    /**
+     * Returns the reliable packets to send again to a node, called every heartbeat, the packets are only sent again
+     * if the node acknowledged nothing since the last heartbeat.
+     *
+     * @param node the node
+     * @return the packets, oldest first
+     */
+    public List<byte[]> getRetransmissions(int node) {
+        Link link = this.links[node];
+        boolean stalled = (link.acknowledged == link.heartbeatAcknowledged);
+        link.heartbeatAcknowledged = link.acknowledged;
+        if (!stalled || link.pending.isEmpty()) {
+            return List.of();
+        }
+        List<byte[]> list = new ArrayList<>();
+        for (byte[] packet : link.pending) {
+            if (list.size() >= Main.CLUSTER_RESEND_BURST) {
+                break;
+            }
+            list.add(packet);
+        }
+        return list;
+    }
+
+    /**
+     * Records a room created by this node.
+     *
+     * @param room the id of the room
+     */
+    public void owned(int room) {
+        this.ownedRooms.add(room);
+        this.subscribers.put(room, new boolean[this.links.length]);
+    }
+
+    /**
+     * Records a node that has members in a room owned by this node, the messages of the room are sent to the node.
+     *
+     * @param room the id of the room
+     * @param node the node
+     */
+    public void subscribe(int room, int node) {
+        boolean[] nodes = this.subscribers.get(room);
+        if (nodes != null && node != this.nodeIndex) {
+            nodes[node] = true;
+        }
+    }
+
+    public boolean isSubscribed(int room, int node) {
+        boolean[] nodes = this.subscribers.get(room);
+        return nodes != null && nodes[node];
+    }
+
+    /**
+     * Returns the next rooms to announce to a node in a heartbeat, the rooms are announced in turns so a heartbeat
+     * stays in a single packet.
+     *
+     * @param node the node
+     * @return the ids of the rooms
+     */
+    public int[] getHeartbeatRooms(int node) {
+        Link link = this.links[node];
+        int[] rooms = new int[Main.CLUSTER_HEARTBEAT_ROOMS];
+        int count = 0;
+        int size = this.ownedRooms.size();
+        for (int i = 0; i < size && count < rooms.length; i++) {
+            int room = this.ownedRooms.get((link.heartbeatCursor + i) % size);
+            if (isSubscribed(room, node)) {
+                rooms[count++] = room;
+            }
+        }
+        if (size != 0) {
+            link.heartbeatCursor = (link.heartbeatCursor + Main.CLUSTER_HEARTBEAT_ROOMS) % size;
+        }
+        return Arrays.copyOf(rooms, count);
+    }
+
+    /**
+     * Records a room owned by other node that this node has members in.
+     *
+     * @param room the id of the room
+     */
+    public void replicated(int room) {
+        if (this.replicas.get(room) == null) {
+            this.replicas.put(room, new Replica());
+        }
+    }
+
+    public boolean isReplicated(int room) {
+        return this.replicas.get(room) != null;
+    }
+
+    /**
+     * Records the size of the history of a replicated room as announced by its owner.
+     *
+     * @param room the id of the room
+     * @param size the size
+     */
+    public void setKnownSize(int room, int size) {
+        Replica replica = this.replicas.get(room);
+        if (replica != null && size > replica.knownSize) {
+            replica.knownSize = size;
+        }
+    }
+
+    public int getKnownSize(int room) {
+        Replica replica = this.replicas.get(room);
+        return (replica != null ? replica.knownSize : 0);
+    }
+
+    /**
+     * Returns until where the missing messages of a replicated room must be requested, at most
+     * {@link Main#CLUSTER_CATCHUP_SIZE} messages at a time and a request is only repeated if it wasn't answered in
+     * {@link Main#CLUSTER_RESEND_INTERVAL} milliseconds.
+     *
+     * @param room the id of the room
+     * @param size the size of the replica
+     * @param now the current time in milliseconds
+     * @return the end of the range to request (exclusive) or -1 if nothing must be requested
+     */
+    public int requestMissing(int room, int size, long now) {
+        Replica replica = this.replicas.get(room);
+        if (replica == null || size >= replica.knownSize) {
+            return -1;
+        }
+        if (size < replica.requestedUntil && now - replica.lastRequestTime < Main.CLUSTER_RESEND_INTERVAL) {
+            return -1;
+        }
+        replica.requestedUntil = Math.min(replica.knownSize, size + Main.CLUSTER_CATCHUP_SIZE);
+        replica.lastRequestTime = now;
+        return replica.requestedUntil;
+    }
+
+    /**
+     * Queues a user waiting for the owner of a room to answer a join.
+     *
+     * @param name the name of the room
+     * @param user the user
+     * @return true if it's the first user waiting for the room, the owner must be asked
+     */
+    public boolean addPendingJoin(String name, User user) {
+        List<User> waiting = this.pendingJoins.get(name);
+        if (waiting == null) {
+            waiting = new ArrayList<>();
+            this.pendingJoins.put(name, waiting);
+        }
+        if (!waiting.contains(user)) {
+            waiting.add(user);
+        }
+        return waiting.size() == 1;
+    }
+
+    /**
+     * Takes the users waiting for a room.
+     *
+     * @param name the name of the room
+     * @return the users, empty if none
+     */
+    public List<User> takePendingJoins(String name) {
+        List<User> waiting = this.pendingJoins.remove(name);
+        return (waiting != null ? waiting : List.of());
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The packets a server node exchanges with the other nodes of its cluster, the state of the links and of the rooms is
+ * kept by the {@link Cluster}. Used by a single server thread.
+ *
+ * @author Cien
+ */
+public class ClusterNode {
+
+    /**
+     * What the server does with the users and the rooms of the other nodes.
+     */
+    public interface Listener {
+
+        void userConnected(User remoteUser) throws IOException;
+
+        void userDisconnected(User remoteUser) throws IOException;
+
+        /**
+         * A message was added to the history of a room, by this node if it owns the room or by the owner.
+         */
+        void roomMessage(int room, int index, long userId, byte[] message) throws IOException;
+
+        /**
+         * Creates a room owned by this node.
+         *
+         * @return the room or null if there are too many rooms
+         */
+        Rooms.Room createRoom(String name);
+
+        void roomJoined(Rooms.Room room, List<User> waiting) throws IOException;
+
+        void roomRefused(String name, List<User> waiting) throws IOException;
+
+        /**
+         * Returns the users connected to this node, announced again to nodes that restarted.
+         */
+        User[] getUsers();
+    }
+
+    private final Cluster cluster;
+    private final PacketSender sender;
+    private final Rooms rooms;
+    private final Listener listener;
+    private final PacketWriter writer = new PacketWriter();
+
+    public ClusterNode(Cluster cluster, PacketSender sender, Rooms rooms, Listener listener) {
+        this.cluster = Objects.requireNonNull(cluster, "Cluster is null.");
+        this.sender = Objects.requireNonNull(sender, "Sender is null.");
+        this.rooms = Objects.requireNonNull(rooms, "Rooms is null.");
+        this.listener = Objects.requireNonNull(listener, "Listener is null.");
+    }
+
+    private void send(int node) throws IOException {
+        this.sender.send(this.writer.get(WireFormat.COMPACT), this.cluster.getNodeAddress(node));
+    }
+
+    /**
+     * Begins a reliable packet to other node, the packet is sent with {@link #sendReliable(int)} after its fields.
+     *
+     * @return false if too many packets are waiting for the node, the packet must not be sent
+     */
+    private boolean beginReliable(int node, int packetId) {
+        int sequence = this.cluster.nextSequence(node);
+        if (sequence == -1) {
+            System.out.println("Warning: Too many packets waiting for node " + this.cluster.getNodeAddress(node) + ", discarded!");
+            return false;
+        }
+        this.writer
+                .begin(packetId)
+                .putLong(this.cluster.getSession())
+                .putInt(sequence);
+        return true;
+    }
+
+    private void sendReliable(int node) throws IOException {
+        this.cluster.sent(node, this.writer.toByteArray(WireFormat.COMPACT));
+        send(node);
+    }
+
+    /**
+     * Tells the other nodes a user of this node connected or disconnected.
+     *
+     * @param user the user
+     * @throws IOException if a I/O error occurs
+     */
+    public void sendUser(User user) throws IOException {
+        for (int node = 0; node < this.cluster.getNodeCount(); node++) {
+            if (node != this.cluster.getNodeIndex()) {
+                sendUser(user, node);
+            }
+        }
+    }
+
+    private void sendUser(User user, int node) throws IOException {
+        if (!beginReliable(node, Main.NODE_USER_PACKET)) {
+            return;
+        }
+        this.writer
+                .putLong(user.getUserId())
+                .putInt(user.isDisconnected() ? 1 : 0)
+                .putBytes(user.getName().getBytes(StandardCharsets.UTF_8));
+        sendReliable(node);
+    }
+
+    /**
+     * Forwards a message of a user of this node to the owner of the room, which sends it back with its index.
+     *
+     * @param room the room
+     * @param userId the id of the author
+     * @param message the message
+     * @throws IOException if a I/O error occurs
+     */
+    public void forward(int room, long userId, byte[] message) throws IOException {
+        int owner = this.cluster.getRoomOwner(room);
+        if (!beginReliable(owner, Main.NODE_FORWARD_PACKET)) {
+            return;
+        }
+        this.writer
+                .putInt(room)
+                .putLong(userId)
+                .putBytes(message);
+        sendReliable(owner);
+    }
+
+    /**
+     * Asks the owner of a room for a user of this node to join it, the user is answered when the owner tells the id
+     * of the room.
+     *
+     * @param owner the node that owns the name of the room
+     * @param nameData the UTF-8 encoded name of the room
+     * @param user the user
+     * @throws IOException if a I/O error occurs
+     */
+    public void join(int owner, byte[] nameData, User user) throws IOException {
+        if (this.cluster.addPendingJoin(new String(nameData, StandardCharsets.UTF_8), user) && beginReliable(owner, Main.NODE_JOIN_PACKET)) {
+            this.writer.putBytes(nameData);
+            sendReliable(owner);
+        }
+    }
+
+    private void writeDeliver(int room, int index, long userId, byte[] message) {
+        this.writer
+                .begin(Main.NODE_DELIVER_PACKET)
+                .putInt(room)
+                .putInt(index)
+                .putLong(userId)
+                .putBytes(message);
+    }
+
+    /**
+     * Sends a message of a room owned by this node to the nodes with members in the room.
+     *
+     * @param room the room
+     * @param index the index of the message in the history of the room
+     * @param userId the id of the author
+     * @param message the message
+     * @throws IOException if a I/O error occurs
+     */
+    public void deliver(int room, int index, long userId, byte[] message) throws IOException {
+        if (!this.cluster.isOwner(room)) {
+            return;
+        }
+        for (int node = 0; node < this.cluster.getNodeCount(); node++) {
+            if (this.cluster.isSubscribed(room, node)) {
+                writeDeliver(room, index, userId, message);
+                send(node);
+            }
+        }
+    }
+
+    /**
+     * Asks the owner of a replicated room for the messages the replica is missing.
+     */
+    private void requestMissing(int room, long now) throws IOException {
+        int size = this.rooms.get(room).getHistory().size();
+        int end = this.cluster.requestMissing(room, size, now);
+        if (end == -1) {
+            return;
+        }
+        this.writer
+                .begin(Main.NODE_RESEND_PACKET)
+                .putInt(room)
+                .putInt(size)
+                .putInt(end);
+        send(this.cluster.getRoomOwner(room));
+    }
+
+    /**
+     * Sends the heartbeats to the other nodes, with the acknowledgement of their reliable packets and the history
+     * sizes of the rooms they replicate, and sends again the reliable packets they didn't acknowledge.
+     *
+     * @throws IOException if a I/O error occurs
+     */
+    public void heartbeat() throws IOException {
+        for (int node = 0; node < this.cluster.getNodeCount(); node++) {
+            if (node == this.cluster.getNodeIndex()) {
+                continue;
+            }
+            SocketAddress address = this.cluster.getNodeAddress(node);
+            for (byte[] packet : this.cluster.getRetransmissions(node)) {
+                this.sender.send(ByteBuffer.wrap(packet).position(packet.length), address);
+            }
+            int[] heartbeatRooms = this.cluster.getHeartbeatRooms(node);
+            this.writer
+                    .begin(Main.NODE_HEARTBEAT_PACKET)
+                    .putLong(this.cluster.getSession())
+                    .putInt(this.cluster.getExpected(node))
+                    .putInt(heartbeatRooms.length);
+            for (int room : heartbeatRooms) {
+                this.writer
+                        .putInt(room)
+                        .putInt(this.rooms.get(room).getHistory().size());
+            }
+            send(node);
+        }
+    }
+
+    /**
+     * Resets the link to a node that restarted, its users are gone and it doesn't know the users of this node.
+     */
+    private void checkSession(int node, long session) throws IOException {
+        if (!this.cluster.checkSession(node, session)) {
+            return;
+        }
+        List<User> gone = this.cluster.getRemoteUsers(node);
+        System.out.println("Warning: Node " + this.cluster.getNodeAddress(node) + " restarted, " + gone.size() + " of its users disconnected.");
+        for (User u : gone) {
+            remoteUserDisconnected(u);
+        }
+        for (User u : this.listener.getUsers()) {
+            if (!u.isDisconnected()) {
+                sendUser(u, node);
+            }
+        }
+    }
+
+    private void remoteUserDisconnected(User remoteUser) throws IOException {
+        remoteUser.disconnect();
+        this.cluster.getRemoteUsers().remove(remoteUser);
+        this.listener.userDisconnected(remoteUser);
+    }
+
+    /**
+     * Processes a packet of other node.
+     *
+     * @param packetBuffer the packet
+     * @param node the node
+     * @param now the current time in milliseconds
+     * @throws IOException if a I/O error occurs
+     */
+    public void received(ByteBuffer packetBuffer, int node, long now) throws IOException {
+        WireFormat format = WireFormat.detect(packetBuffer);
+        if (format != WireFormat.COMPACT) {
+            System.out.println("Warning: Received packet in the " + format + " format from node " + this.cluster.getNodeAddress(node) + ", nodes must use the compact format.");
+            return;
+        }
+        int packetId = format.readHeader(packetBuffer);
+
+        switch (packetId) {
+            case Main.NODE_HEARTBEAT_PACKET -> {
+                checkSession(node, format.getLong(packetBuffer));
+                this.cluster.acknowledged(node, format.getInt(packetBuffer));
+                int count = format.getInt(packetBuffer);
+                if (count < 0 || count > Main.CLUSTER_HEARTBEAT_ROOMS) {
+                    System.out.println("Warning: Received heartbeat with too many (or too few!) rooms from node " + this.cluster.getNodeAddress(node) + ", " + count);
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    int room = format.getInt(packetBuffer);
+                    int size = format.getInt(packetBuffer);
+                    if (this.cluster.getRoomOwner(room) == node && this.cluster.isReplicated(room)) {
+                        this.cluster.setKnownSize(room, size);
+                        requestMissing(room, now);
+                    }
+                }
+                return;
+            }
+            case Main.NODE_ACK_PACKET -> {
+                checkSession(node, format.getLong(packetBuffer));
+                this.cluster.acknowledged(node, format.getInt(packetBuffer));
+                return;
+            }
+            case Main.NODE_DELIVER_PACKET -> {
+                int room = format.getInt(packetBuffer);
+                int index = format.getInt(packetBuffer);
+                long userId = format.getLong(packetBuffer);
+                byte[] messageData = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                if (this.cluster.getRoomOwner(room) != node || !this.cluster.isReplicated(room)) {
+                    return;
+                }
+                MessageHistory roomHistory = this.rooms.get(room).getHistory();
+                int size = roomHistory.size();
+                if (index > size) {
+                    this.cluster.setKnownSize(room, index + 1);
+                    requestMissing(room, now);
+                    return;
+                }
+                if (index < size) {
+                    return;
+                }
+                roomHistory.append(userId, messageData);
+                this.listener.roomMessage(room, index, userId, messageData);
+                requestMissing(room, now);
+                return;
+            }
+            case Main.NODE_RESEND_PACKET -> {
+                int room = format.getInt(packetBuffer);
+                int from = format.getInt(packetBuffer);
+                int to = format.getInt(packetBuffer);
+                if (!this.cluster.isOwner(room) || !this.cluster.isSubscribed(room, node)) {
+                    return;
+                }
+                MessageHistory roomHistory = this.rooms.get(room).getHistory();
+                to = Math.min(Math.min(to, roomHistory.size()), from + Main.CLUSTER_CATCHUP_SIZE);
+                if (from < 0) {
+                    System.out.println("Warning: Node " + this.cluster.getNodeAddress(node) + " requested a invalid range of messages, from " + from + ", to " + to);
+                    return;
+                }
+                for (int i = from; i < to; i++) {
+                    writeDeliver(room, i, roomHistory.getUserId(i), roomHistory.getMessage(i));
+                    send(node);
+                }
+                return;
+            }
+        }
+
+        //the other packets are reliable, they are acknowledged and processed in order
+        checkSession(node, format.getLong(packetBuffer));
+        int sequence = format.getInt(packetBuffer);
+        boolean next = this.cluster.received(node, sequence);
+        this.writer
+                .begin(Main.NODE_ACK_PACKET)
+                .putLong(this.cluster.getSession())
+                .putInt(this.cluster.getExpected(node));
+        send(node);
+        if (!next) {
+            return;
+        }
+
+        switch (packetId) {
+            case Main.NODE_USER_PACKET -> {
+                long userId = format.getLong(packetBuffer);
+                boolean disconnected = format.getInt(packetBuffer) != 0;
+                String name = new String(format.getBytes(packetBuffer, Main.PAYLOAD_SIZE), StandardCharsets.UTF_8);
+                Users remoteUsers = this.cluster.getRemoteUsers();
+                User remoteUser = remoteUsers.getByUserId(userId);
+                if (!disconnected) {
+                    if (remoteUser != null) {
+                        return;
+                    }
+                    remoteUser = new User(name, userId);
+                    remoteUsers.add(remoteUser);
+                    this.listener.userConnected(remoteUser);
+                    return;
+                }
+                if (remoteUser != null) {
+                    remoteUserDisconnected(remoteUser);
+                }
+            }
+            case Main.NODE_FORWARD_PACKET -> {
+                int room = format.getInt(packetBuffer);
+                long userId = format.getLong(packetBuffer);
+                byte[] messageData = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                Rooms.Room owned = this.rooms.get(room);
+                if (owned == null || !this.cluster.isOwner(room)) {
+                    System.out.println("Warning: Node " + this.cluster.getNodeAddress(node) + " forwarded a message to room " + room + " that this node doesn't own, discarded!");
+                    return;
+                }
+                int index = owned.getHistory().append(userId, messageData);
+                this.listener.roomMessage(room, index, userId, messageData);
+            }
+            case Main.NODE_JOIN_PACKET -> {
+                byte[] nameData = format.getBytes(packetBuffer, Main.ROOM_NAME_SIZE);
+                String name = new String(nameData, StandardCharsets.UTF_8);
+                Rooms.Room room = this.rooms.get(name);
+                if (room == null && this.cluster.getOwner(name) == this.cluster.getNodeIndex()) {
+                    room = this.listener.createRoom(name);
+                }
+                if (room == null || !this.cluster.isOwner(room.getId())) {
+                    System.out.println("Warning: Node " + this.cluster.getNodeAddress(node) + " could not join room " + name + "!");
+                    if (beginReliable(node, Main.NODE_ROOM_PACKET)) {
+                        this.writer
+                                .putInt(-1)
+                                .putInt(0)
+                                .putBytes(nameData);
+                        sendReliable(node);
+                    }
+                    return;
+                }
+                this.cluster.subscribe(room.getId(), node);
+                if (beginReliable(node, Main.NODE_ROOM_PACKET)) {
+                    this.writer
+                            .putInt(room.getId())
+                            .putInt(room.getHistory().size())
+                            .putBytes(nameData);
+                    sendReliable(node);
+                }
+            }
+            case Main.NODE_ROOM_PACKET -> {
+                int roomId = format.getInt(packetBuffer);
+                int size = format.getInt(packetBuffer);
+                String name = new String(format.getBytes(packetBuffer, Main.ROOM_NAME_SIZE), StandardCharsets.UTF_8);
+                List<User> waiting = this.cluster.takePendingJoins(name);
+                if (roomId == -1 || this.cluster.getRoomOwner(roomId) != node) {
+                    System.out.println("Warning: Node " + this.cluster.getNodeAddress(node) + " refused room " + name + ", " + waiting.size() + " users could not join it!");
+                    this.listener.roomRefused(name, waiting);
+                    return;
+                }
+                Rooms.Room room = this.rooms.register(roomId, name);
+                this.cluster.replicated(roomId);
+                this.cluster.setKnownSize(roomId, size);
+                requestMissing(roomId, now);
+                this.listener.roomJoined(room, waiting);
+            }
+            default -> {
+                System.out.println("Warning: Received unknown packet " + packetId + " from node " + this.cluster.getNodeAddress(node));
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * A multi frame datagram being built for a single destination.
+ *
+ * @author Cien
+ */
+public class FrameBuffer {
+
+    private final SocketAddress address;
+    private final WireFormat format;
+    private final ByteBuffer data = ByteBuffer.allocate(Main.PACKET_SIZE);
+    private int frames = 0;
+    private boolean pending = false;
+
+    public FrameBuffer(SocketAddress address, WireFormat format) {
+        Objects.requireNonNull(format, "Format is null.");
+        this.address = address;
+        this.format = format;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    ByteBuffer getData() {
+        return data;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    void incrementFrames() {
+        this.frames++;
+    }
+
+    boolean isPending() {
+        return pending;
+    }
+
+    void setPending(boolean pending) {
+        this.pending = pending;
+    }
+
+    void reset() {
+        this.data.clear();
+        this.frames = 0;
+    }
+
+    public boolean isEmpty() {
+        return this.frames == 0;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Packs several frames for the same destination into a single MULTI_FRAME_PACKET datagram, each frame is a packet
+ * without its header prefix, prefixed by its length.
+ *
+ * @author Cien
+ */
+public class FrameCoalescer {
+
+    private final PacketSender sender;
+    private final int flushDelay;
+
+    private FrameBuffer[] pending = new FrameBuffer[64];
+    private int pendingCount = 0;
+    private long nextFlushTime = Long.MAX_VALUE;
+
+    private long framesCount = 0;
+    private long datagramsCount = 0;
+
+    /**
+     * @param sender the sender used to send the datagrams
+     * @param flushDelay the maximum time in milliseconds a frame can wait for more frames
+     */
+    public FrameCoalescer(PacketSender sender, int flushDelay) {
+        Objects.requireNonNull(sender, "Sender is null.");
+        if (flushDelay < 0) {
+            throw new IllegalArgumentException("Flush delay is negative.");
+        }
+        this.sender = sender;
+        this.flushDelay = flushDelay;
+    }
+
+    public int getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Appends a encoded packet as a frame, the packet must be in the format of the destination and end at its
+     * position.
+     *
+     * @param buffer the destination buffer
+     * @param packet the encoded packet
+     * @throws IOException if a pending datagram had to be sent and failed
+     */
+    public void append(FrameBuffer buffer, ByteBuffer packet) throws IOException {
+        WireFormat format = buffer.getFormat();
+        int prefixSize = format.getPrefixSize();
+        int frameLength = packet.position() - prefixSize;
+        int frameSize = format.getFrameLengthSize(frameLength) + frameLength;
+
+        ByteBuffer data = buffer.getData();
+        if (!buffer.isEmpty() && data.remaining() < frameSize) {
+            flush(buffer);
+        }
+        if (buffer.isEmpty()) {
+            data.clear();
+            format.putHeader(data, Main.MULTI_FRAME_PACKET);
+            if (data.remaining() < frameSize) {
+                data.clear();
+                send(packet, buffer);
+                return;
+            }
+        }
+        format.putFrameLength(data, frameLength);
+        data.put(data.position(), packet, prefixSize, frameLength);
+        data.position(data.position() + frameLength);
+        buffer.incrementFrames();
+        this.framesCount++;
+
+        if (!buffer.isPending()) {
+            buffer.setPending(true);
+            if (this.pendingCount >= this.pending.length) {
+                this.pending = Arrays.copyOf(this.pending, this.pending.length * 2);
+            }
+            this.pending[this.pendingCount++] = buffer;
+            if (this.pendingCount == 1) {
+                this.nextFlushTime = System.currentTimeMillis() + this.flushDelay;
+            }
+        }
+    }
+
+    /**
+     * Sends a packet after every pending frame of the destination, for packets that must not wait.
+     *
+     * @param buffer the destination buffer
+     * @param packet the encoded packet, from zero to its position
+     * @throws IOException if a I/O error occurs
+     */
+    public void send(ByteBuffer packet, FrameBuffer buffer) throws IOException {
+        flush(buffer);
+        this.sender.send(packet, buffer.getAddress());
+    }
+
+    /**
+     * Sends the pending frames of a destination.
+     *
+     * @param buffer the destination buffer
+     * @throws IOException if a I/O error occurs
+     */
+    public void flush(FrameBuffer buffer) throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        try {
+            this.sender.send(buffer.getData(), buffer.getAddress());
+            this.datagramsCount++;
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Sends the pending frames of every destination.
+     *
+     * @throws IOException if a I/O error occurs
+     */
+    public void flushAll() throws IOException {
+        try {
+            for (int i = 0; i < this.pendingCount; i++) {
+                FrameBuffer buffer = this.pending[i];
+                this.pending[i] = null;
+                buffer.setPending(false);
+                flush(buffer);
+            }
+        } finally {
+            this.pendingCount = 0;
+            this.nextFlushTime = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Sends the pending frames if the flush delay has passed.
+     *
+     * @param currentTime the current time in milliseconds
+     * @throws IOException if a I/O error occurs
+     */
+    public void flushIfDue(long currentTime) throws IOException {
+        if (currentTime >= this.nextFlushTime) {
+            flushAll();
+        }
+    }
+
+    /**
+     * @return the time the pending frames must be sent or {@link Long#MAX_VALUE} if there are none
+     */
+    public long getNextFlushTime() {
+        return nextFlushTime;
+    }
+
+    public long getFramesCount() {
+        return framesCount;
+    }
+
+    public long getDatagramsCount() {
+        return datagramsCount;
+    }
+}
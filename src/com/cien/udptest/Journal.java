@@ -0,0 +1,432 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of the users and lobby messages of a server, replayed from the last snapshot when the server
+ * starts again. Message records are written before the broadcast and the log is synced every fsync interval. Rooms
+ * other than the lobby are not durable. Can be shared by the shards of a server.
+ *
+ * @author Cien
+ */
+public class Journal {
+
+    private static final int SNAPSHOT_MAGIC = 0x4A524E4C;
+
+    private static final byte USER_RECORD = 1;
+    private static final byte MESSAGE_RECORD = 2;
+    private static final byte DISCONNECT_RECORD = 3;
+    private static final byte MESSAGE_ID_RECORD = 4;
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+
+    private final Path directory;
+    private final int fsyncInterval;
+    private final long snapshotInterval;
+    private final MessageHistory history;
+    private final Tombstones tombstones;
+    private final Supplier<? extends Iterable<User>> users;
+
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private FileChannel log = null;
+    private long generation = 0;
+    private int recordsSinceSnapshot = 0;
+    private boolean unsynced = false;
+    private long nextSyncTime = Long.MAX_VALUE;
+    private long nextSnapshotTime = Long.MAX_VALUE;
+
+    /**
+     * Creates a journal, {@link #replay()} must be called before anything is written.
+     *
+     * @param config the config with the journal directory and intervals
+     * @param history the persistent history of the server
+     * @param tombstones the tombstones of the server
+     * @param users the users written in the snapshots, called from the thread that calls {@link #flush(long)}
+     */
+    public Journal(ServerConfig config, MessageHistory history, Tombstones tombstones, Supplier<? extends Iterable<User>> users) {
+        Objects.requireNonNull(config, "Config is null.");
+        Objects.requireNonNull(config.getJournalDirectory(), "Journal directory is null.");
+        Objects.requireNonNull(history, "History is null.");
+        Objects.requireNonNull(tombstones, "Tombstones is null.");
+        Objects.requireNonNull(users, "Users is null.");
+        this.directory = config.getJournalDirectory();
+        this.fsyncInterval = config.getFsyncInterval();
+        this.snapshotInterval = config.getSnapshotInterval() * 1000L;
+        this.history = history;
+        this.tombstones = tombstones;
+        this.users = users;
+    }
+
+    private Path getLogPath(long logGeneration) {
+        return this.directory.resolve("journal-" + logGeneration + ".log");
+    }
+
+    private Path getSnapshotPath() {
+        return this.directory.resolve("snapshot.dat");
+    }
+
+    /**
+     * Restores the history and the tombstones from the last snapshot and the log after it, then writes a new snapshot.
+     *
+     * @return the users that were connected when the server stopped
+     * @throws IOException if the journal could not be read or the new snapshot could not be written
+     */
+    public synchronized List<User> replay() throws IOException {
+        long startTime = System.nanoTime();
+        Files.createDirectories(this.directory);
+
+        LongObjectMap<User> restored = new LongObjectMap<>();
+
+        Path snapshotPath = getSnapshotPath();
+        if (Files.exists(snapshotPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath), 64 * 1024))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Invalid journal snapshot " + snapshotPath);
+                }
+                this.generation = in.readLong();
+                User.restoreLastUserId(in.readLong());
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long id = in.readLong();
+                    byte[] name = new byte[in.readInt()];
+                    in.readFully(name);
+                    byte[] address = new byte[in.readInt()];
+                    in.readFully(address);
+                    int port = in.readInt();
+                    int capabilities = in.readInt();
+                    int nextMessageId = in.readInt();
+                    boolean disconnected = in.readBoolean();
+
+                    User user = new User(new String(name, StandardCharsets.UTF_8), id, new InetSocketAddress(InetAddress.getByAddress(address), port));
+                    //disconnected users are restored as tombstones, they would be reaped anyway
+                    if (disconnected) {
+                        this.tombstones.add(user);
+                        continue;
+                    }
+                    user.setCapabilities(capabilities);
+                    user.setNextMessageId(nextMessageId);
+                    restored.put(id, user);
+                }
+                this.tombstones.read(in);
+                this.history.read(in);
+            }
+        }
+
+        int records = replayLog(getLogPath(this.generation), restored);
+
+        User[] restoredUsers = new User[restored.size()];
+        restored.copyValues(restoredUsers);
+        List<User> result = Arrays.asList(restoredUsers);
+
+        snapshot(result);
+
+        System.out.println("Info: Journal replayed in " + ((System.nanoTime() - startTime) / 1000000) + " ms, "
+                + restoredUsers.length + " users, " + this.history.size() + " messages, " + records + " records after the snapshot");
+        return result;
+    }
+
+    private int replayLog(Path path, LongObjectMap<User> restored) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int records = 0;
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                break;
+            }
+            ByteBuffer record = data.slice(data.position(), length);
+            this.crc.reset();
+            this.crc.update(record.duplicate());
+            if ((int) this.crc.getValue() != checksum) {
+                break;
+            }
+            data.position(data.position() + length);
+            records++;
+
+            switch (record.get()) {
+                case USER_RECORD -> {
+                    long id = record.getLong();
+                    byte[] name = new byte[record.getInt()];
+                    record.get(name);
+                    byte[] address = new byte[record.getInt()];
+                    record.get(address);
+                    int port = record.getInt();
+                    int capabilities = record.getInt();
+                    if (restored.containsKey(id) || this.tombstones.getName(id) != null) {
+                        continue;
+                    }
+                    User user = new User(new String(name, StandardCharsets.UTF_8), id, new InetSocketAddress(InetAddress.getByAddress(address), port));
+                    user.setCapabilities(capabilities);
+                    restored.put(id, user);
+                }
+                case MESSAGE_RECORD -> {
+                    int index = record.getInt();
+                    long userId = record.getLong();
+                    int messageId = record.getInt();
+                    byte[] message = new byte[record.getInt()];
+                    record.get(message);
+                    if (index == this.history.size()) {
+                        this.history.append(userId, message);
+                    } else if (index > this.history.size()) {
+                        System.out.println("Warning: Journal is missing messages before message " + index + ", message discarded.");
+                    }
+                    User user = restored.get(userId);
+                    if (user != null && messageId >= user.getNextMessageId()) {
+                        user.setNextMessageId(messageId + 1);
+                    }
+                }
+                case MESSAGE_ID_RECORD -> {
+                    User user = restored.get(record.getLong());
+                    int messageId = record.getInt();
+                    if (user != null && messageId >= user.getNextMessageId()) {
+                        user.setNextMessageId(messageId + 1);
+                    }
+                }
+                case DISCONNECT_RECORD -> {
+                    User user = restored.remove(record.getLong());
+                    if (user != null) {
+                        this.tombstones.add(user);
+                    }
+                }
+                default -> {
+                    System.out.println("Warning: Unknown journal record, replay stopped.");
+                    return records;
+                }
+            }
+        }
+        return records;
+    }
+
+    private ByteBuffer beginRecord(byte type, int size) {
+        int required = RECORD_HEADER_SIZE + 1 + size;
+        if (this.pending.remaining() < required) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(this.pending.capacity() * 2, this.pending.position() + required));
+            this.pending.flip();
+            larger.put(this.pending);
+            this.pending = larger;
+        }
+        return this.pending
+                .putInt(0)
+                .putInt(0)
+                .put(type);
+    }
+
+    private void endRecord(int start) {
+        int length = this.pending.position() - start - RECORD_HEADER_SIZE;
+        this.crc.reset();
+        this.crc.update(this.pending.slice(start + RECORD_HEADER_SIZE, length));
+        this.pending
+                .putInt(start, length)
+                .putInt(start + Integer.BYTES, (int) this.crc.getValue());
+        this.recordsSinceSnapshot++;
+    }
+
+    public synchronized void userConnected(User user) {
+        InetSocketAddress socketAddress = (InetSocketAddress) user.getSocketAddress();
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] address = socketAddress.getAddress().getAddress();
+
+        int start = this.pending.position();
+        beginRecord(USER_RECORD, Long.BYTES + Integer.BYTES * 4 + name.length + address.length)
+                .putLong(user.getUserId())
+                .putInt(name.length)
+                .put(name)
+                .putInt(address.length)
+                .put(address)
+                .putInt(socketAddress.getPort())
+                .putInt(user.getCapabilities());
+        endRecord(start);
+    }
+
+    /**
+     * Appends a message to the history and writes it to the log, before the message is broadcast.
+     *
+     * @param user the author
+     * @param messageId the id of the message in the sequence of the author
+     * @param message the UTF-8 encoded message
+     * @return the index of the message in the history
+     * @throws IOException if the history could not spill a segment or the log could not be written
+     */
+    public synchronized int appendMessage(User user, int messageId, byte[] message) throws IOException {
+        int index = this.history.append(user.getUserId(), message);
+
+        int start = this.pending.position();
+        beginRecord(MESSAGE_RECORD, Integer.BYTES * 3 + Long.BYTES + message.length)
+                .putInt(index)
+                .putLong(user.getUserId())
+                .putInt(messageId)
+                .putInt(message.length)
+                .put(message);
+        endRecord(start);
+        writeAhead();
+        return index;
+    }
+
+    /**
+     * Journals the id of a message sent to a room other than the lobby, the rooms are not kept but the sequence of the
+     * author must continue after the message, written to the log before the message is broadcast.
+     *
+     * @param user the author
+     * @param messageId the id of the message in the sequence of the author
+     * @throws IOException if the log could not be written
+     */
+    public synchronized void messageIdUsed(User user, int messageId) throws IOException {
+        int start = this.pending.position();
+        beginRecord(MESSAGE_ID_RECORD, Long.BYTES + Integer.BYTES)
+                .putLong(user.getUserId())
+                .putInt(messageId);
+        endRecord(start);
+        writeAhead();
+    }
+
+    /**
+     * Writes the buffered records, with the record of a message at the end, and syncs them if every batch is synced.
+     */
+    private void writeAhead() throws IOException {
+        writePending();
+        if (this.fsyncInterval == 0) {
+            this.log.force(false);
+        } else {
+            this.unsynced = true;
+        }
+    }
+
+    public synchronized void userDisconnected(User user) {
+        int start = this.pending.position();
+        beginRecord(DISCONNECT_RECORD, Long.BYTES)
+                .putLong(user.getUserId());
+        endRecord(start);
+    }
+
+    /**
+     * Writes the buffered records and syncs or snapshots the journal if it is time to.
+     *
+     * @param now the current time in milliseconds
+     * @throws IOException if the journal could not be written
+     */
+    public synchronized void flush(long now) throws IOException {
+        if (this.pending.position() > 0) {
+            writePending();
+            this.unsynced = true;
+        }
+        if (this.unsynced && this.nextSyncTime == Long.MAX_VALUE) {
+            this.nextSyncTime = now + this.fsyncInterval;
+        }
+        if (this.unsynced && now >= this.nextSyncTime) {
+            this.log.force(false);
+            this.unsynced = false;
+            this.nextSyncTime = Long.MAX_VALUE;
+        }
+        if (this.recordsSinceSnapshot > 0 && now >= this.nextSnapshotTime) {
+            snapshot(this.users.get());
+        }
+    }
+
+    /**
+     * Returns when {@link #flush(long)} has to be called again to sync or snapshot the journal.
+     *
+     * @return the time in milliseconds
+     */
+    public synchronized long getNextFlushTime() {
+        long next = this.nextSyncTime;
+        if (this.recordsSinceSnapshot > 0) {
+            next = Math.min(next, this.nextSnapshotTime);
+        }
+        return next;
+    }
+
+    private void writePending() throws IOException {
+        this.pending.flip();
+        while (this.pending.hasRemaining()) {
+            this.log.write(this.pending);
+        }
+        this.pending.clear();
+    }
+
+    private void snapshot(Iterable<User> snapshotUsers) throws IOException {
+        if (this.log != null && this.pending.position() > 0) {
+            writePending();
+        }
+
+        List<User> snapshotList = new ArrayList<>();
+        for (User u : snapshotUsers) {
+            snapshotList.add(u);
+        }
+
+        long nextGeneration = this.generation + 1;
+        Path temporary = this.directory.resolve("snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(nextGeneration);
+            out.writeLong(User.getLastUserId());
+            out.writeInt(snapshotList.size());
+            for (User u : snapshotList) {
+                InetSocketAddress socketAddress = (InetSocketAddress) u.getSocketAddress();
+                byte[] name = u.getName().getBytes(StandardCharsets.UTF_8);
+                byte[] address = socketAddress.getAddress().getAddress();
+                out.writeLong(u.getUserId());
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeInt(address.length);
+                out.write(address);
+                out.writeInt(socketAddress.getPort());
+                out.writeInt(u.getCapabilities());
+                out.writeInt(u.getNextMessageId());
+                out.writeBoolean(u.isDisconnected());
+            }
+            this.tombstones.write(out);
+            this.history.write(out);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, getSnapshotPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        FileChannel nextLog = FileChannel.open(getLogPath(nextGeneration),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        if (this.log != null) {
+            this.log.close();
+        }
+        Files.deleteIfExists(getLogPath(this.generation));
+
+        this.log = nextLog;
+        this.generation = nextGeneration;
+        this.recordsSinceSnapshot = 0;
+        this.unsynced = false;
+        this.nextSyncTime = Long.MAX_VALUE;
+        this.nextSnapshotTime = System.currentTimeMillis() + this.snapshotInterval;
+    }
+}
@@ -0,0 +1,878 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A headless load generator, thousands of simulated sessions that log in, chat, type and answer pings, multiplexed on a
+ * few worker threads, and measure the end to end latency of the messages.
+ *
+ * @author Cien
+ */
+public class LoadTest {
+
+    public static final int MIN_MESSAGE_SIZE = 32; //room for the marker and the send time
+
+    private static final int SENT_RING = 256; //messages of each session kept to be sent again, a power of two
+    private static final int LOGIN_TRIES = 8;
+    private static final int MAX_REDIRECTS = 4;
+
+    /**
+     * Histogram of latencies in microseconds, each power of two is split into 32 buckets so a percentile is off by
+     * at most about 3%.
+     */
+    public static class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private long count = 0;
+        private long max = 0;
+
+        public LatencyHistogram() {
+
+        }
+
+        private static int getBucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(micros, 0);
+            }
+            int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(micros)) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+        }
+
+        private static long getLowestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            return ((long) (bucket % SUB_BUCKETS) + SUB_BUCKETS) << shift;
+        }
+
+        public void record(long micros) {
+            this.counts[getBucket(micros)]++;
+            this.count++;
+            this.max = Math.max(this.max, micros);
+        }
+
+        public void add(LatencyHistogram other) {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] += other.counts[i];
+            }
+            this.count += other.count;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns a percentile of the recorded latencies.
+         *
+         * @param percentile the percentile, from 0 to 100
+         * @return the lowest latency of the bucket of the percentile, in microseconds
+         */
+        public long getPercentile(double percentile) {
+            long target = Math.max(1, (long) Math.ceil(this.count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= target) {
+                    return Math.min(getLowestValue(i), this.max);
+                }
+            }
+            return this.max;
+        }
+    }
+
+    /**
+     * The counters of a worker, only touched by its thread, copied to a snapshot for the progress reports.
+     */
+    private static class Counters {
+
+        long loginPackets;
+        long loggedIn;
+        long loginFailures;
+        long redirects;
+        long queued;
+        long messagesSent;
+        long messagesResent;
+        long typingSent;
+        long pingsAnswered;
+        long delivered;
+        long duplicates;
+        long gaps;
+        long tooFarAhead;
+        long acksSent;
+        long resendRequests;
+        long undelivered;
+        long packetsSent;
+        long packetsReceived;
+        long bytesSent;
+        long bytesReceived;
+        long sendFailures;
+        long malformed;
+
+        void add(Counters o) {
+            this.loginPackets += o.loginPackets;
+            this.loggedIn += o.loggedIn;
+            this.loginFailures += o.loginFailures;
+            this.redirects += o.redirects;
+            this.queued += o.queued;
+            this.messagesSent += o.messagesSent;
+            this.messagesResent += o.messagesResent;
+            this.typingSent += o.typingSent;
+            this.pingsAnswered += o.pingsAnswered;
+            this.delivered += o.delivered;
+            this.duplicates += o.duplicates;
+            this.gaps += o.gaps;
+            this.tooFarAhead += o.tooFarAhead;
+            this.acksSent += o.acksSent;
+            this.resendRequests += o.resendRequests;
+            this.undelivered += o.undelivered;
+            this.packetsSent += o.packetsSent;
+            this.packetsReceived += o.packetsReceived;
+            this.bytesSent += o.bytesSent;
+            this.bytesReceived += o.bytesReceived;
+            this.sendFailures += o.sendFailures;
+            this.malformed += o.malformed;
+        }
+
+        void set(Counters o) {
+            this.loginPackets = 0;
+            this.loggedIn = 0;
+            this.loginFailures = 0;
+            this.redirects = 0;
+            this.queued = 0;
+            this.messagesSent = 0;
+            this.messagesResent = 0;
+            this.typingSent = 0;
+            this.pingsAnswered = 0;
+            this.delivered = 0;
+            this.duplicates = 0;
+            this.gaps = 0;
+            this.tooFarAhead = 0;
+            this.acksSent = 0;
+            this.resendRequests = 0;
+            this.undelivered = 0;
+            this.packetsSent = 0;
+            this.packetsReceived = 0;
+            this.bytesSent = 0;
+            this.bytesReceived = 0;
+            this.sendFailures = 0;
+            this.malformed = 0;
+            add(o);
+        }
+    }
+
+    private static enum SessionState {
+        LOGGING_IN, CONNECTED, FAILED
+    }
+
+    private static class Session {
+
+        final int index;
+        final byte[] nameData;
+        final boolean idle;
+        final byte[][] sent = new byte[SENT_RING][];
+        final ReorderBuffer<Boolean> reorderBuffer = new ReorderBuffer<>();
+
+        Transport transport;
+        InetSocketAddress server;
+        SessionState state = SessionState.LOGGING_IN;
+        long cookie = 0;
+        int tries = 0;
+        int redirects = 0;
+        boolean queued = false;
+        WireFormat format = WireFormat.LEGACY;
+        int serverCapabilities = 0;
+        int nextMessageId = 0;
+        //next lobby message expected, -1 until the first ping or message tells where the lobby is
+        int expected = -1;
+        int highest = -1;
+        int lastPingLength = 0;
+
+        TimerWheel.Timer loginTimer;
+        TimerWheel.Timer messageTimer;
+        TimerWheel.Timer typingTimer;
+        TimerWheel.Timer ackTimer;
+
+        Session(int index, String name, boolean idle) {
+            this.index = index;
+            this.nameData = name.getBytes(StandardCharsets.UTF_8);
+            this.idle = idle;
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private final Network.Poller<Session> poller;
+        private final TimerWheel timers = new TimerWheel(System.currentTimeMillis());
+        private final List<Session> sessions = new ArrayList<>();
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocate(Main.PACKET_SIZE);
+        private final ByteBuffer loginBuffer = ByteBuffer.allocate(Main.PACKET_SIZE);
+        private final PacketWriter writer = new PacketWriter();
+        private final int[] missing = new int[ReorderBuffer.WINDOW];
+        private final Counters counters = new Counters();
+        private final Counters snapshot = new Counters();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Worker(int index) throws IOException {
+            super("LoadTest-Worker-" + index);
+            this.poller = network.openPoller();
+        }
+
+        void addSession(Session session, long loginTime) {
+            session.loginTimer = new TimerWheel.Timer((timer, now) -> login(session, now));
+            session.messageTimer = new TimerWheel.Timer((timer, now) -> {
+                if (!sending || session.state != SessionState.CONNECTED) {
+                    return;
+                }
+                sendMessage(session);
+                schedule(timer, now, config.getMessageRate());
+            });
+            session.typingTimer = new TimerWheel.Timer((timer, now) -> {
+                if (!sending || session.state != SessionState.CONNECTED) {
+                    return;
+                }
+                this.writer
+                        .begin(Main.TYPING_PACKET);
+                send(session, this.writer.get(session.format));
+                this.counters.typingSent++;
+                schedule(timer, now, config.getTypingRate());
+            });
+            session.ackTimer = new TimerWheel.Timer((timer, now) -> {
+                if (session.state != SessionState.CONNECTED || session.reorderBuffer.isEmpty()) {
+                    return;
+                }
+                if (session.reorderBuffer.isAckDue(now)) {
+                    //the resent messages may have been lost too
+                    sendAck(session);
+                }
+                this.timers.schedule(timer, now + Main.SACK_INTERVAL);
+            });
+            this.sessions.add(session);
+            this.timers.schedule(session.loginTimer, loginTime);
+        }
+
+        /**
+         * Schedules the next event of a poisson process.
+         */
+        private void schedule(TimerWheel.Timer timer, long now, double rate) {
+            if (rate <= 0) {
+                return;
+            }
+            double delay = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * 1000.0 / rate;
+            this.timers.schedule(timer, now + Math.max(1, (long) delay));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    long now = System.currentTimeMillis();
+                    this.timers.advance(now);
+                    long timeout = Math.min(this.timers.getNextTime() - now, Main.LOADTEST_REPORT_INTERVAL);
+                    this.poller.select(Math.max(timeout, 1), this::receive);
+                    publish();
+                }
+
+                for (Session s : this.sessions) {
+                    if (s.transport == null) {
+                        continue;
+                    }
+                    if (s.state == SessionState.CONNECTED) {
+                        this.counters.undelivered += Math.max(0, s.lastPingLength - s.expected);
+                        this.writer
+                                .begin(Main.DISCONNECTED_PACKET);
+                        send(s, this.writer.get(s.format));
+                    }
+                    s.transport.close();
+                }
+                this.poller.close();
+                publish();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private void publish() {
+            synchronized (this.snapshot) {
+                this.snapshot.set(this.counters);
+            }
+        }
+
+        void collect(Counters total) {
+            synchronized (this.snapshot) {
+                total.add(this.snapshot);
+            }
+        }
+
+        private void login(Session s, long now) throws IOException {
+            if (s.state != SessionState.LOGGING_IN || stopped) {
+                return;
+            }
+            if (s.transport == null) {
+                s.transport = network.open(getSessionAddress(s.index));
+                s.server = target;
+                s.transport.connect(s.server);
+                this.poller.register(s.transport, s);
+            }
+            if (s.tries >= LOGIN_TRIES) {
+                fail(s, "Login timed out after " + LOGIN_TRIES + " tries.");
+                return;
+            }
+            s.tries++;
+            sendLogin(s);
+            this.timers.schedule(s.loginTimer, now + Main.LOADTEST_LOGIN_TIMEOUT);
+        }
+
+        private void sendLogin(Session s) {
+            this.loginBuffer.clear()
+                    .putLong(Main.MAGIC_NUMBER)
+                    .putInt(Main.LOGIN_PACKET)
+                    .putInt(s.nameData.length)
+                    .put(s.nameData)
+                    .putInt(Main.LOGIN_CAPABILITIES_MARKER)
+                    .putInt(config.getCapabilities())
+                    .putInt(Main.LOGIN_COOKIE_MARKER)
+                    .putLong(s.cookie);
+            send(s, this.loginBuffer);
+            this.counters.loginPackets++;
+        }
+
+        private void fail(Session s, String reason) {
+            s.state = SessionState.FAILED;
+            this.timers.cancel(s.loginTimer);
+            this.counters.loginFailures++;
+            if (this.counters.loginFailures <= Main.MAX_TIMEOUT_WARNINGS) {
+                System.out.println("Warning: Session " + new String(s.nameData, StandardCharsets.UTF_8) + " could not log in, " + reason);
+            }
+        }
+
+        private void send(Session s, ByteBuffer packet) {
+            try {
+                s.transport.send(packet, s.server);
+                this.counters.packetsSent++;
+                this.counters.bytesSent += packet.position();
+            } catch (IOException ex) {
+                //a unreachable server is reported by the next send or receive of a connected transport
+                this.counters.sendFailures++;
+            }
+        }
+
+        private void receive(Session s) {
+            while (true) {
+                this.receiveBuffer.clear();
+                try {
+                    if (s.transport.receive(this.receiveBuffer) == null) {
+                        return;
+                    }
+                } catch (IOException ex) {
+                    this.counters.sendFailures++;
+                    return;
+                }
+                this.receiveBuffer.flip();
+                this.counters.packetsReceived++;
+                this.counters.bytesReceived += this.receiveBuffer.remaining();
+                try {
+                    switch (s.state) {
+                        case LOGGING_IN ->
+                            processLogin(s, this.receiveBuffer);
+                        case CONNECTED ->
+                            processPacket(s, this.receiveBuffer);
+                        default -> {
+                        }
+                    }
+                } catch (BufferUnderflowException | WireFormat.MalformedPacketException ex) {
+                    this.counters.malformed++;
+                } catch (IOException ex) {
+                    this.counters.sendFailures++;
+                }
+            }
+        }
+
+        private void processLogin(Session s, ByteBuffer packetBuffer) throws IOException {
+            if (packetBuffer.getLong() != Main.MAGIC_NUMBER || packetBuffer.getInt() != Main.LOGIN_PACKET) {
+                //sent before a lost answer to the login, the login is sent again
+                return;
+            }
+            long now = this.timers.getTime();
+            long userId = packetBuffer.getLong();
+
+            if (userId == Main.LOGIN_COOKIE_REQUIRED
+                    && packetBuffer.remaining() >= Integer.BYTES + Long.BYTES
+                    && packetBuffer.getInt() == Main.LOGIN_COOKIE_MARKER) {
+                s.cookie = packetBuffer.getLong();
+                login(s, now);
+                return;
+            }
+            if (userId == Main.LOGIN_QUEUED) {
+                if (!s.queued) {
+                    s.queued = true;
+                    this.counters.queued++;
+                }
+                s.tries = 0;
+                this.timers.schedule(s.loginTimer, now + Main.LOADTEST_LOGIN_TIMEOUT);
+                return;
+            }
+            if (userId == Main.LOGIN_REDIRECT && packetBuffer.remaining() >= Integer.BYTES) {
+                if (s.redirects >= MAX_REDIRECTS) {
+                    fail(s, "redirected too many times.");
+                    return;
+                }
+                int ipLength = packetBuffer.getInt();
+                if ((ipLength != 4 && ipLength != 16) || packetBuffer.remaining() < ipLength + Integer.BYTES) {
+                    fail(s, "invalid redirect address.");
+                    return;
+                }
+                byte[] ip = new byte[ipLength];
+                packetBuffer.get(ip);
+                s.server = new InetSocketAddress(InetAddress.getByAddress(ip), packetBuffer.getInt());
+                s.transport.disconnect();
+                s.transport.connect(s.server);
+                s.cookie = 0;
+                s.tries = 0;
+                s.redirects++;
+                this.counters.redirects++;
+                login(s, now);
+                return;
+            }
+            if (userId < 0) {
+                fail(s, "the name is already being used.");
+                return;
+            }
+
+            if (packetBuffer.remaining() >= Integer.BYTES * 2 && packetBuffer.getInt() == Main.LOGIN_ACCEPTED_CAPABILITIES_MARKER) {
+                s.serverCapabilities = packetBuffer.getInt();
+            }
+            if ((s.serverCapabilities & Main.CAPABILITY_COMPACT_FORMAT) != 0) {
+                s.format = WireFormat.COMPACT;
+            }
+            s.state = SessionState.CONNECTED;
+            this.timers.cancel(s.loginTimer);
+            this.counters.loggedIn++;
+            if (!s.idle) {
+                schedule(s.messageTimer, now, config.getMessageRate());
+                schedule(s.typingTimer, now, config.getTypingRate());
+            }
+        }
+
+        private void processPacket(Session s, ByteBuffer packetBuffer) throws IOException {
+            WireFormat format = WireFormat.detect(packetBuffer);
+            if (format == null) {
+                this.counters.malformed++;
+                return;
+            }
+            int packetId = format.readHeader(packetBuffer);
+
+            if (packetId == Main.MULTI_FRAME_PACKET) {
+                int limit = packetBuffer.limit();
+                while (packetBuffer.hasRemaining()) {
+                    int frameLength = format.getFrameLength(packetBuffer);
+                    if (frameLength == 0) {
+                        break;
+                    }
+                    if (frameLength > packetBuffer.remaining()) {
+                        this.counters.malformed++;
+                        return;
+                    }
+                    int end = packetBuffer.position() + frameLength;
+                    packetBuffer.limit(end);
+                    int framePacketId = format.getPacketId(packetBuffer);
+                    if (framePacketId != Main.MULTI_FRAME_PACKET) {
+                        processFrame(s, format, framePacketId, packetBuffer);
+                    }
+                    packetBuffer.limit(limit).position(end);
+                }
+                return;
+            }
+
+            processFrame(s, format, packetId, packetBuffer);
+        }
+
+        private void processFrame(Session s, WireFormat format, int packetId, ByteBuffer packetBuffer) throws IOException {
+            switch (packetId) {
+                case Main.MESSAGE_PACKET -> {
+                    int index = format.getInt(packetBuffer);
+                    format.getLong(packetBuffer);
+                    byte[] messageData = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                    int room = (packetBuffer.hasRemaining() ? format.getInt(packetBuffer) : Main.LOBBY_ROOM);
+                    if (room == Main.LOBBY_ROOM) {
+                        messageReceived(s, index, messageData);
+                    }
+                }
+                case Main.ACK_PACKET -> {
+                    int expected = format.getInt(packetBuffer);
+                    long bitmap = format.getLong(packetBuffer);
+                    int count = ReorderBuffer.getMissing(expected, bitmap, this.missing);
+                    for (int i = 0; i < count; i++) {
+                        resendMessage(s, this.missing[i]);
+                    }
+                }
+                case Main.RESEND_MESSAGE_PACKET -> {
+                    int from = Math.max(format.getInt(packetBuffer), s.nextMessageId - SENT_RING);
+                    int to = Math.min(format.getInt(packetBuffer), s.nextMessageId);
+                    for (int i = from; i < to; i++) {
+                        resendMessage(s, i);
+                    }
+                }
+                case Main.PING_PACKET -> {
+                    long time = format.getLong(packetBuffer);
+                    int length = format.getInt(packetBuffer);
+
+                    this.writer
+                            .begin(Main.PING_PACKET)
+                            .putLong(time)
+                            .putInt(length);
+                    send(s, this.writer.get(s.format));
+                    this.counters.pingsAnswered++;
+
+                    if (s.expected == -1) {
+                        //the history before the session logged in is not downloaded
+                        s.expected = length;
+                        s.highest = length - 1;
+                    } else if (length > s.expected && s.lastPingLength > s.expected) {
+                        //still missing messages the previous ping already announced
+                        requestMessages(s, s.expected, length);
+                    }
+                    s.lastPingLength = length;
+                }
+                default -> {
+                    //the roster, digests and the other users are not tracked by the sessions
+                }
+            }
+        }
+
+        private void messageReceived(Session s, int index, byte[] messageData) throws IOException {
+            if (s.expected == -1) {
+                s.expected = index;
+                s.highest = index - 1;
+            }
+            if (index < s.expected) {
+                this.counters.duplicates++;
+                return;
+            }
+            int offset = index - s.expected - 1;
+            if (offset >= 0 && offset < ReorderBuffer.WINDOW && ((s.reorderBuffer.getBitmap(s.expected) >>> offset) & 1) != 0) {
+                this.counters.duplicates++;
+                return;
+            }
+            if (index > s.highest + 1) {
+                //each message is counted once, the first time a later message skips it
+                this.counters.gaps += index - s.highest - 1;
+            }
+            s.highest = Math.max(s.highest, index);
+
+            if (index > s.expected) {
+                if ((s.serverCapabilities & Main.CAPABILITY_SACK) == 0) {
+                    requestMessages(s, s.expected, index + 1);
+                    return;
+                }
+                if (!s.reorderBuffer.add(s.expected, index, Boolean.TRUE)) {
+                    this.counters.tooFarAhead++;
+                    return;
+                }
+                delivered(messageData);
+                long now = this.timers.getTime();
+                if (s.reorderBuffer.isAckDue(now)) {
+                    sendAck(s);
+                }
+                if (!s.ackTimer.isScheduled()) {
+                    this.timers.schedule(s.ackTimer, now + Main.SACK_INTERVAL);
+                }
+                return;
+            }
+
+            delivered(messageData);
+            s.expected++;
+            if (!s.reorderBuffer.isEmpty()) {
+                s.reorderBuffer.discardBefore(s.expected);
+                while (s.reorderBuffer.take(s.expected) != null) {
+                    s.expected++;
+                }
+            }
+        }
+
+        /**
+         * Counts a message received for the first time, messages of this test carry the time they were sent.
+         */
+        private void delivered(byte[] messageData) {
+            this.counters.delivered++;
+            if (messageData.length < marker.length || !Arrays.equals(messageData, 0, marker.length, marker, 0, marker.length)) {
+                return;
+            }
+            long sentTime = 0;
+            for (int i = marker.length; i < messageData.length && messageData[i] != ' '; i++) {
+                sentTime = sentTime * 10 + (messageData[i] - '0');
+            }
+            this.latency.record((System.nanoTime() - startTime - sentTime) / 1000);
+        }
+
+        private void sendAck(Session s) {
+            this.writer
+                    .begin(Main.ACK_PACKET)
+                    .putInt(s.expected)
+                    .putLong(s.reorderBuffer.getBitmap(s.expected));
+            send(s, this.writer.get(s.format));
+            this.counters.acksSent++;
+        }
+
+        private void requestMessages(Session s, int from, int to) {
+            this.writer
+                    .begin(Main.RESEND_MESSAGE_PACKET)
+                    .putInt(from)
+                    .putInt(to);
+            send(s, this.writer.get(s.format));
+            this.counters.resendRequests++;
+        }
+
+        private void sendMessage(Session s) {
+            byte[] time = (Long.toString(System.nanoTime() - startTime) + " ").getBytes(StandardCharsets.US_ASCII);
+            byte[] messageData = new byte[config.getMessageSize()];
+            Arrays.fill(messageData, (byte) 'x');
+            System.arraycopy(marker, 0, messageData, 0, marker.length);
+            System.arraycopy(time, 0, messageData, marker.length, Math.min(time.length, messageData.length - marker.length));
+
+            int messageId = s.nextMessageId++;
+            s.sent[messageId & (SENT_RING - 1)] = messageData;
+            writeMessage(s, messageId, messageData);
+            this.counters.messagesSent++;
+        }
+
+        private void resendMessage(Session s, int messageId) {
+            if (messageId < 0 || messageId >= s.nextMessageId || s.nextMessageId - messageId > SENT_RING) {
+                return;
+            }
+            writeMessage(s, messageId, s.sent[messageId & (SENT_RING - 1)]);
+            this.counters.messagesResent++;
+        }
+
+        private void writeMessage(Session s, int messageId, byte[] messageData) {
+            this.writer
+                    .begin(Main.MESSAGE_PACKET)
+                    .putInt(messageId)
+                    .putBytes(messageData);
+            send(s, this.writer.get(s.format));
+        }
+    }
+
+    private final LoadTestConfig config;
+    private final Network network;
+    private final SimulatedNetwork simulatedNetwork;
+    private final Server server;
+    private final InetSocketAddress target;
+    private final byte[] marker;
+    private final long startTime = System.nanoTime();
+    private final Worker[] workers;
+
+    private volatile boolean sending = true;
+    private volatile boolean stopped = false;
+
+    public LoadTest(LoadTestConfig config) throws IOException {
+        Objects.requireNonNull(config, "Config is null.");
+        Objects.requireNonNull(config.getServer(), "Server Address is null.");
+        this.config = config;
+        if (config.isSimulated()) {
+            this.simulatedNetwork = new SimulatedNetwork(config.getSeed());
+            this.simulatedNetwork.setLoss(config.getLoss());
+            this.simulatedNetwork.setLatency(config.getLatency());
+            this.simulatedNetwork.setJitter(config.getJitter());
+            this.simulatedNetwork.setDuplicate(config.getDuplicate());
+            this.simulatedNetwork.setReorder(config.getReorder());
+            this.network = this.simulatedNetwork;
+
+            ServerConfig serverConfig = new ServerConfig(config.getServer().getPort(), config.getServer().getAddress());
+            serverConfig.setNetwork(this.simulatedNetwork);
+            this.server = new Server(serverConfig);
+            this.server.setDaemon(true);
+            this.server.start();
+            this.target = (InetSocketAddress) this.server.getTransport().getLocalAddress();
+        } else {
+            this.simulatedNetwork = null;
+            this.network = new SocketNetwork();
+            this.server = null;
+            this.target = config.getServer();
+        }
+        //identifies the messages of this run, the lobby may have messages of other runs or real users
+        this.marker = ("lt" + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + " ").getBytes(StandardCharsets.US_ASCII);
+
+        this.workers = new Worker[Math.min(config.getThreads(), config.getSessions())];
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Worker(i);
+        }
+        long now = System.currentTimeMillis();
+        int idleSessions = 0;
+        for (int i = 0; i < config.getSessions(); i++) {
+            //the idle sessions are spread evenly between the others
+            boolean idle = Math.floor((i + 1) * config.getIdle()) > Math.floor(i * config.getIdle());
+            if (idle) {
+                idleSessions++;
+            }
+            Session session = new Session(i, config.getNamePrefix() + i, idle);
+            this.workers[i % this.workers.length].addSession(session, now + (i * 1000L) / config.getLoginRate());
+        }
+        System.out.println("Info: " + config.getSessions() + " sessions (" + idleSessions + " idle) on " + this.workers.length + " threads against " + this.target
+                + (this.simulatedNetwork != null ? " on a simulated network with seed " + config.getSeed() : ""));
+    }
+
+    public LoadTestConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the local address of a session, on a simulated network every session has its own address derived from
+     * its index, so the fates of its datagrams are the same on every run.
+     *
+     * @param index the index of the session
+     * @return the address or null for any free port
+     */
+    private InetSocketAddress getSessionAddress(int index) throws IOException {
+        if (this.simulatedNetwork == null) {
+            return null;
+        }
+        byte[] ip = {10, (byte) (index >>> 16), (byte) (index >>> 8), (byte) index};
+        return new InetSocketAddress(InetAddress.getByAddress(ip), Main.SIMULATED_FIRST_PORT);
+    }
+
+    private Counters collect() {
+        Counters total = new Counters();
+        for (Worker w : this.workers) {
+            w.collect(total);
+        }
+        return total;
+    }
+
+    private static void printProgress(Counters current, Counters last, long elapsed) {
+        double seconds = Math.max(elapsed, 1) / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                "Info: %d sessions, %.1f messages/s sent, %.1f deliveries/s, %d gaps, %d acknowledgements, %d resend requests",
+                current.loggedIn,
+                (current.messagesSent - last.messagesSent) / seconds,
+                (current.delivered - last.delivered) / seconds,
+                current.gaps - last.gaps,
+                current.acksSent - last.acksSent,
+                current.resendRequests - last.resendRequests));
+    }
+
+    /**
+     * Runs the test: logs in the sessions at the login rate, measures for the duration of the test, stops sending and
+     * waits {@link Main#LOADTEST_DRAIN_TIME} milliseconds for the sessions to recover the messages they missed, then
+     * prints the report.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void run() throws InterruptedException {
+        for (Worker w : this.workers) {
+            w.start();
+        }
+
+        long loginTimeout = (this.config.getSessions() * 1000L) / this.config.getLoginRate()
+                + 2L * LOGIN_TRIES * Main.LOADTEST_LOGIN_TIMEOUT;
+        long loginStart = System.nanoTime();
+        Counters last = collect();
+        long lastTime = loginStart;
+        while (true) {
+            Thread.sleep(Main.LOADTEST_REPORT_INTERVAL);
+            Counters current = collect();
+            long now = System.nanoTime();
+            printProgress(current, last, now - lastTime);
+            last = current;
+            lastTime = now;
+            if (current.loggedIn + current.loginFailures >= this.config.getSessions()) {
+                break;
+            }
+            if ((now - loginStart) / 1_000_000L > loginTimeout) {
+                System.out.println("Warning: Only " + current.loggedIn + " of " + this.config.getSessions() + " sessions logged in, measuring anyway.");
+                break;
+            }
+        }
+        System.out.println("Info: Logged in " + last.loggedIn + " sessions in " + ((lastTime - loginStart) / 1_000_000L) + " ms, measuring for " + this.config.getDuration() + " seconds...");
+
+        Counters start = last;
+        long startMeasure = lastTime;
+        for (int i = 0; i < this.config.getDuration() * 1000 / Main.LOADTEST_REPORT_INTERVAL; i++) {
+            Thread.sleep(Main.LOADTEST_REPORT_INTERVAL);
+            Counters current = collect();
+            long now = System.nanoTime();
+            printProgress(current, last, now - lastTime);
+            last = current;
+            lastTime = now;
+        }
+        Counters end = last;
+        long elapsed = lastTime - startMeasure;
+
+        this.sending = false;
+        System.out.println("Info: Draining for " + Main.LOADTEST_DRAIN_TIME + " ms...");
+        Thread.sleep(Main.LOADTEST_DRAIN_TIME);
+        this.stopped = true;
+        for (Worker w : this.workers) {
+            w.poller.wakeup();
+        }
+        LatencyHistogram latency = new LatencyHistogram();
+        for (Worker w : this.workers) {
+            w.join();
+            latency.add(w.latency);
+        }
+
+        printReport(start, end, elapsed, collect(), latency);
+    }
+
+    private void printReport(Counters start, Counters end, long elapsed, Counters total, LatencyHistogram latency) {
+        double seconds = Math.max(elapsed, 1) / 1e9;
+        System.out.println("Load test report, " + this.config.getSessions() + " sessions, " + String.format(Locale.ROOT, "%.1f", seconds) + " seconds measured:");
+        System.out.println("Logins: " + total.loggedIn + " accepted, " + total.loginFailures + " failed, "
+                + total.redirects + " redirected, " + total.queued + " queued, " + total.loginPackets + " login packets");
+        System.out.println(String.format(Locale.ROOT,
+                "Throughput: %.1f messages/s sent, %.1f deliveries/s, %.1f packets/s sent, %.1f packets/s received, %.1f KiB/s received",
+                (end.messagesSent - start.messagesSent) / seconds,
+                (end.delivered - start.delivered) / seconds,
+                (end.packetsSent - start.packetsSent) / seconds,
+                (end.packetsReceived - start.packetsReceived) / seconds,
+                (end.bytesReceived - start.bytesReceived) / seconds / 1024.0));
+        System.out.println(String.format(Locale.ROOT,
+                "Loss: %d gaps in %d deliveries (%.4f%%), %d messages still missing after the drain, %d discarded too far ahead, %d duplicates",
+                total.gaps, total.delivered, total.delivered > 0 ? total.gaps * 100.0 / total.delivered : 0.0,
+                total.undelivered, total.tooFarAhead, total.duplicates));
+        System.out.println("Resends: " + total.acksSent + " acknowledgements, " + total.resendRequests + " resend requests, "
+                + total.messagesResent + " messages sent again by the sessions");
+        System.out.println("Sent: " + total.messagesSent + " messages, " + total.typingSent + " typing packets, "
+                + total.pingsAnswered + " pings answered, " + total.sendFailures + " socket errors, " + total.malformed + " malformed packets");
+        if (this.simulatedNetwork != null) {
+            System.out.println("Network: " + this.simulatedNetwork.getStatistics());
+        }
+        if (latency.getCount() == 0) {
+            System.out.println("Latency: no messages of this test were received");
+            return;
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "Latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms (%d samples)",
+                latency.getPercentile(50) / 1000.0,
+                latency.getPercentile(90) / 1000.0,
+                latency.getPercentile(99) / 1000.0,
+                latency.getPercentile(99.9) / 1000.0,
+                latency.getMax() / 1000.0,
+                latency.getCount()));
+    }
+}
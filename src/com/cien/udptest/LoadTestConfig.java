@@ -0,0 +1,310 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.net.InetSocketAddress;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * @author Cien
+ */
+public class LoadTestConfig {
+
+    private InetSocketAddress server = null;
+    private int sessions = 1000;
+    private int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private int duration = 30;
+    private double messageRate = 0.1;
+    private double typingRate = 0.2;
+    private double idle = 0.5;
+    private int loginRate = Main.LOGIN_RATE / 2;
+    private int messageSize = 64;
+    private int capabilities = Main.CAPABILITY_MULTI_FRAME | Main.CAPABILITY_COMPACT_FORMAT | Main.CAPABILITY_SACK
+            | Main.CAPABILITY_ADAPTIVE_PING | Main.CAPABILITY_PING_DIGEST | Main.CAPABILITY_TYPING_DIGEST
+            | Main.CAPABILITY_ROSTER;
+    private String namePrefix = "load" + Integer.toHexString(ThreadLocalRandom.current().nextInt(0x1000, 0x10000)) + "-";
+    private boolean simulated = false;
+    private double loss = 0;
+    private int latency = 0;
+    private int jitter = 0;
+    private double duplicate = 0;
+    private double reorder = 0;
+    private long seed = 1;
+
+    public LoadTestConfig() {
+
+    }
+
+    public LoadTestConfig(InetSocketAddress server) {
+        this.server = server;
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    public void setServer(InetSocketAddress server) {
+        this.server = server;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    public void setSessions(int sessions) {
+        if (sessions <= 0) {
+            throw new IllegalArgumentException("Sessions must be larger than zero.");
+        }
+        this.sessions = sessions;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be larger than zero.");
+        }
+        this.threads = threads;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public void setDuration(int duration) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException("Duration must be larger than zero.");
+        }
+        this.duration = duration;
+    }
+
+    public double getMessageRate() {
+        return messageRate;
+    }
+
+    public void setMessageRate(double messageRate) {
+        if (!(messageRate >= 0)) {
+            throw new IllegalArgumentException("Message rate is negative.");
+        }
+        this.messageRate = messageRate;
+    }
+
+    public double getTypingRate() {
+        return typingRate;
+    }
+
+    public void setTypingRate(double typingRate) {
+        if (!(typingRate >= 0)) {
+            throw new IllegalArgumentException("Typing rate is negative.");
+        }
+        this.typingRate = typingRate;
+    }
+
+    public double getIdle() {
+        return idle;
+    }
+
+    public void setIdle(double idle) {
+        if (!(idle >= 0 && idle <= 1)) {
+            throw new IllegalArgumentException("Idle must be between 0 and 1.");
+        }
+        this.idle = idle;
+    }
+
+    public int getLoginRate() {
+        return loginRate;
+    }
+
+    public void setLoginRate(int loginRate) {
+        if (loginRate <= 0) {
+            throw new IllegalArgumentException("Login rate must be larger than zero.");
+        }
+        this.loginRate = loginRate;
+    }
+
+    public int getMessageSize() {
+        return messageSize;
+    }
+
+    public void setMessageSize(int messageSize) {
+        if (messageSize < LoadTest.MIN_MESSAGE_SIZE || messageSize > Main.PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Message size must be between " + LoadTest.MIN_MESSAGE_SIZE + " and " + Main.PAYLOAD_SIZE + " bytes.");
+        }
+        this.messageSize = messageSize;
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public void setCapabilities(int capabilities) {
+        if (capabilities < 0) {
+            throw new IllegalArgumentException("Capabilities are negative.");
+        }
+        this.capabilities = capabilities;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public void setNamePrefix(String namePrefix) {
+        Objects.requireNonNull(namePrefix, "Name prefix is null.");
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * Returns if the test runs on a {@link SimulatedNetwork}, with the server in the same process bound to the server
+     * address of this config.
+     *
+     * @return true if the network is simulated
+     */
+    public boolean isSimulated() {
+        return simulated;
+    }
+
+    public void setSimulated(boolean simulated) {
+        this.simulated = simulated;
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    public void setLoss(double loss) {
+        if (!(loss >= 0 && loss <= 1)) {
+            throw new IllegalArgumentException("Loss must be between 0 and 1.");
+        }
+        this.loss = loss;
+    }
+
+    public int getLatency() {
+        return latency;
+    }
+
+    public void setLatency(int latency) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("Latency is negative.");
+        }
+        this.latency = latency;
+    }
+
+    public int getJitter() {
+        return jitter;
+    }
+
+    public void setJitter(int jitter) {
+        if (jitter < 0) {
+            throw new IllegalArgumentException("Jitter is negative.");
+        }
+        this.jitter = jitter;
+    }
+
+    public double getDuplicate() {
+        return duplicate;
+    }
+
+    public void setDuplicate(double duplicate) {
+        if (!(duplicate >= 0 && duplicate <= 1)) {
+            throw new IllegalArgumentException("Duplicate must be between 0 and 1.");
+        }
+        this.duplicate = duplicate;
+    }
+
+    public double getReorder() {
+        return reorder;
+    }
+
+    public void setReorder(double reorder) {
+        if (!(reorder >= 0 && reorder <= 1)) {
+            throw new IllegalArgumentException("Reorder must be between 0 and 1.");
+        }
+        this.reorder = reorder;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Applies a option of the command line, in the --name=value form.
+     *
+     * @param option the option
+     * @throws IllegalArgumentException if the option is unknown or its value is invalid
+     */
+    public void applyOption(String option) {
+        Objects.requireNonNull(option, "Option is null.");
+        if (!option.startsWith("--")) {
+            throw new IllegalArgumentException("Invalid option '" + option + "'");
+        }
+        int separator = option.indexOf('=');
+        if (separator == -1) {
+            throw new IllegalArgumentException("Option '" + option + "' has no value");
+        }
+        String name = option.substring(2, separator);
+        String value = option.substring(separator + 1);
+        switch (name) {
+            case "sessions" -> setSessions(parseInt(name, value));
+            case "threads" -> setThreads(parseInt(name, value));
+            case "duration" -> setDuration(parseInt(name, value));
+            case "message-rate" -> setMessageRate(parseDouble(name, value));
+            case "typing-rate" -> setTypingRate(parseDouble(name, value));
+            case "idle" -> setIdle(parseDouble(name, value));
+            case "login-rate" -> setLoginRate(parseInt(name, value));
+            case "message-size" -> setMessageSize(parseInt(name, value));
+            case "capabilities" -> setCapabilities(parseInt(name, value));
+            case "name-prefix" -> setNamePrefix(value);
+            case "network" -> setSimulated(parseNetwork(value));
+            case "loss" -> setLoss(parseDouble(name, value));
+            case "latency" -> setLatency(parseInt(name, value));
+            case "jitter" -> setJitter(parseInt(name, value));
+            case "duplicate" -> setDuplicate(parseDouble(name, value));
+            case "reorder" -> setReorder(parseDouble(name, value));
+            case "seed" -> setSeed(parseLong(name, value));
+            default -> throw new IllegalArgumentException("Unknown option '" + name + "'");
+        }
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + ex.getMessage());
+        }
+    }
+
+    private static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + ex.getMessage());
+        }
+    }
+
+    private static boolean parseNetwork(String value) {
+        return switch (value) {
+            case "socket" -> false;
+            case "simulated" -> true;
+            default -> throw new IllegalArgumentException("Invalid value for network: '" + value + "', expected socket or simulated");
+        };
+    }
+
+    private static double parseDouble(String name, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + ex.getMessage());
+        }
+    }
+
+}
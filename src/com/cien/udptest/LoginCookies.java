@@ -0,0 +1,86 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Objects;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless login cookies, like the SYN cookies of TCP, a truncated HMAC of the address of the client and the current
+ * period. Not thread safe, each shard creates its own instance with the shared secret.
+ *
+ * @author Cien
+ */
+public class LoginCookies {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * Creates a random secret.
+     *
+     * @return the secret
+     */
+    public static byte[] createSecret() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return secret;
+    }
+
+    private final Mac mac;
+    private final ByteBuffer input = ByteBuffer.allocate(Long.BYTES + 16 + Integer.BYTES);
+
+    public LoginCookies(byte[] secret) {
+        Objects.requireNonNull(secret, "Secret is null.");
+        try {
+            this.mac = Mac.getInstance(ALGORITHM);
+            this.mac.init(new SecretKeySpec(secret, ALGORITHM));
+        } catch (GeneralSecurityException ex) {
+            //every java platform must support HmacSHA256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private long compute(SocketAddress address, long period) {
+        InetSocketAddress inetAddress = (InetSocketAddress) address;
+        this.input.clear();
+        this.input
+                .putLong(period)
+                .put(inetAddress.getAddress().getAddress())
+                .putInt(inetAddress.getPort())
+                .flip();
+        this.mac.update(this.input);
+        return ByteBuffer.wrap(this.mac.doFinal()).getLong();
+    }
+
+    /**
+     * Creates the cookie of a address.
+     *
+     * @param address the address of the client
+     * @param now the current time in milliseconds
+     * @return the cookie
+     */
+    public long create(SocketAddress address, long now) {
+        return compute(address, now / Main.LOGIN_COOKIE_LIFETIME);
+    }
+
+    /**
+     * Checks a cookie sent by a client, cookies of the current and the previous period are valid.
+     *
+     * @param cookie the cookie
+     * @param address the address of the client
+     * @param now the current time in milliseconds
+     * @return true if the cookie is valid
+     */
+    public boolean verify(long cookie, SocketAddress address, long now) {
+        long period = now / Main.LOGIN_COOKIE_LIFETIME;
+        return cookie == compute(address, period) || cookie == compute(address, period - 1);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Admits the logins at a steady rate with a token bucket, so a thundering herd of reconnects is spread over time
+ * instead of stalling the server. The queue has a limited size and the logins of clients that didn't prove their
+ * address with a cookie have a separate, lower rate, so spoofed logins can't fill the server with users.
+ *
+ * @author Cien
+ */
+public class LoginQueue {
+
+    /**
+     * A login waiting to be admitted.
+     */
+    public static class Login {
+
+        private final SocketAddress address;
+        private final byte[] name;
+        private final int capabilities;
+        private final boolean verified;
+
+        private Login(SocketAddress address, byte[] name, int capabilities, boolean verified) {
+            this.address = address;
+            this.name = name;
+            this.capabilities = capabilities;
+            this.verified = verified;
+        }
+
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        public byte[] getName() {
+            return name;
+        }
+
+        public int getCapabilities() {
+            return capabilities;
+        }
+
+        public boolean isVerified() {
+            return verified;
+        }
+    }
+
+    private final ArrayDeque<Login> queue = new ArrayDeque<>();
+    private final HashMap<SocketAddress, Login> queued = new HashMap<>();
+    private final int rate;
+    private final int capacity;
+    private final int unverifiedRate;
+
+    private double tokens;
+    private double unverifiedTokens;
+    private long refillTime;
+    private long nextTime = Long.MAX_VALUE;
+    private int rejected = 0;
+
+    /**
+     * Creates a queue.
+     *
+     * @param rate how many logins are admitted per second
+     * @param capacity how many logins can wait
+     * @param unverifiedRate how many logins without a valid cookie are accepted per second
+     * @param now the current time in milliseconds
+     */
+    public LoginQueue(int rate, int capacity, int unverifiedRate, long now) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.unverifiedRate = unverifiedRate;
+        this.tokens = getBurst(rate);
+        this.unverifiedTokens = getBurst(unverifiedRate);
+        this.refillTime = now;
+    }
+
+    private static int getBurst(int rate) {
+        return Math.min(Main.LOGIN_BURST, rate);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - this.refillTime;
+        if (elapsed <= 0) {
+            return;
+        }
+        this.tokens = Math.min(getBurst(this.rate), this.tokens + (elapsed * this.rate) / 1000.0);
+        this.unverifiedTokens = Math.min(getBurst(this.unverifiedRate), this.unverifiedTokens + (elapsed * this.unverifiedRate) / 1000.0);
+        this.refillTime = now;
+    }
+
+    /**
+     * Queues a login.
+     *
+     * @param address the address of the client
+     * @param name the name encoded as UTF-8
+     * @param capabilities the requested capabilities
+     * @param verified if the client sent a valid cookie
+     * @param now the current time in milliseconds
+     * @return false if the login was rejected, the queue is full or too many unverified logins were received
+     */
+    public boolean offer(SocketAddress address, byte[] name, int capabilities, boolean verified, long now) {
+        Objects.requireNonNull(address, "Address is null.");
+        Objects.requireNonNull(name, "Name is null.");
+        if (this.queue.size() >= this.capacity) {
+            this.rejected++;
+            return false;
+        }
+        if (!verified) {
+            refill(now);
+            if (this.unverifiedTokens < 1.0) {
+                this.rejected++;
+                return false;
+            }
+            this.unverifiedTokens -= 1.0;
+        }
+        Login login = new Login(address, name, capabilities, verified);
+        this.queue.add(login);
+        this.queued.put(address, login);
+        this.nextTime = Math.min(this.nextTime, now);
+        return true;
+    }
+
+    public boolean contains(SocketAddress address) {
+        return this.queued.containsKey(address);
+    }
+
+    /**
+     * Takes the next login if there's a token for it.
+     *
+     * @param now the current time in milliseconds
+     * @return the login or null if the queue is empty or the rate was reached
+     */
+    public Login poll(long now) {
+        if (this.queue.isEmpty()) {
+            this.nextTime = Long.MAX_VALUE;
+            return null;
+        }
+        refill(now);
+        if (this.tokens < 1.0) {
+            this.nextTime = now + Math.max(1, (long) Math.ceil(((1.0 - this.tokens) * 1000.0) / this.rate));
+            return null;
+        }
+        this.tokens -= 1.0;
+        Login login = this.queue.poll();
+        this.queued.remove(login.getAddress());
+        return login;
+    }
+
+    /**
+     * Returns when {@link #poll(long)} has a login to admit again.
+     *
+     * @return the time in milliseconds
+     */
+    public long getNextTime() {
+        return nextTime;
+    }
+
+    public int size() {
+        return this.queue.size();
+    }
+
+    /**
+     * Returns how many logins were rejected since the server started.
+     *
+     * @return the count
+     */
+    public int getRejectedCount() {
+        return rejected;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A open addressing hash map with primitive long keys, lookups don't box the key. Null values are not allowed.
+ *
+ * @author Cien
+ * @param <V> the type of the values
+ */
+public class LongObjectMap<V> {
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+
+    public LongObjectMap(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 4) * 2 - 1) * 2;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public LongObjectMap() {
+        this(16);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int index = hash(key) & this.mask;
+        while (this.values[index] != null) {
+            if (this.keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = indexOf(key);
+        if (index == -1) {
+            return null;
+        }
+        return (V) this.values[index];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) != -1;
+    }
+
+    /**
+     * Associates a value with a key.
+     *
+     * @param key the key
+     * @param value the value, not null
+     * @return the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        Objects.requireNonNull(value, "Value is null.");
+        int index = hash(key) & this.mask;
+        while (this.values[index] != null) {
+            if (this.keys[index] == key) {
+                V old = (V) this.values[index];
+                this.values[index] = value;
+                return old;
+            }
+            index = (index + 1) & this.mask;
+        }
+        this.keys[index] = key;
+        this.values[index] = value;
+        this.size++;
+        if (this.size * 2 > this.keys.length) {
+            resize(this.keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes a key, the following entries of the same cluster are shifted back so no tombstones are needed.
+     *
+     * @param key the key
+     * @return the removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index == -1) {
+            return null;
+        }
+        V old = (V) this.values[index];
+        int hole = index;
+        int next = (hole + 1) & this.mask;
+        while (this.values[next] != null) {
+            int ideal = hash(this.keys[next]) & this.mask;
+            //moves the entry if its ideal slot is not between the hole and its current slot
+            if (((next - ideal) & this.mask) >= ((next - hole) & this.mask)) {
+                this.keys[hole] = this.keys[next];
+                this.values[hole] = this.values[next];
+                hole = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+        this.values[hole] = null;
+        this.keys[hole] = 0;
+        this.size--;
+        return old;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object value = oldValues[i];
+            if (value == null) {
+                continue;
+            }
+            int index = hash(oldKeys[i]) & this.mask;
+            while (this.values[index] != null) {
+                index = (index + 1) & this.mask;
+            }
+            this.keys[index] = oldKeys[i];
+            this.values[index] = value;
+        }
+    }
+
+    /**
+     * Copies every value to a array, the array must have at least {@link #size()} elements.
+     *
+     * @param array the destination array
+     * @return the number of values copied
+     */
+    public int copyValues(Object[] array) {
+        int index = 0;
+        for (Object value : this.values) {
+            if (value != null) {
+                array[index++] = value;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Copies every key to a array, in the same order as {@link #copyValues(Object[])}.
+     *
+     * @param array the destination array
+     * @return the number of keys copied
+     */
+    public int copyKeys(long[] array) {
+        int index = 0;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                array[index++] = this.keys[i];
+            }
+        }
+        return index;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(this.keys, 0);
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+}
@@ -1,169 +1,382 @@
-/*
- * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
- * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Main.java to edit this template
- */
-package com.cien.udptest;
-
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.PortUnreachableException;
-import java.net.SocketAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.swing.UIManager;
-import javax.swing.UnsupportedLookAndFeelException;
-
-/**
- *
- * @author Cien
- */
-public class Main {
-
-    static {
-        try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | UnsupportedLookAndFeelException ex) {
-            Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Native Look and Feel not supported.", ex);
-        }
-    }
-
-    public static final int PACKET_SIZE = 512;
-    public static final int PAYLOAD_SIZE = PACKET_SIZE - 64;
-    public static final long MAGIC_NUMBER = -3534974220920654048L;
-    public static final int TPS = 1000 / 60; //60 ticks per second
-    public static final int MAX_TIMEOUT_WARNINGS = 10;
-    public static final int PING_INTERVAL = 400;
-    public static final int TYPING_DELAY = 3000;
-    
-    public static final int LOGIN_PACKET = 0;
-    public static final int MESSAGE_PACKET = 1;
-    public static final int RESEND_MESSAGE_PACKET = 2;
-    public static final int IDENTIFY_PACKET = 3;
-    public static final int PING_PACKET = 4;
-    public static final int USER_PING_VALUE_PACKET = 5;
-    public static final int DISCONNECTED_PACKET = 6;
-    public static final int TYPING_PACKET = 7;
-    
-    /**
-     * @param args the command line arguments
-     */
-    public static void main(String[] args) {
-        if (args.length == 0) {
-            System.out.println("Usage:");
-            System.out.println("-client <name> <ip> <port>");
-            System.out.println("-server <port> [ip]");
-            return;
-        }
-        switch (args[0]) {
-            case "-client" -> {
-                if (args.length > 4) {
-                    System.out.println("Too much arguments!");
-                } else if (args.length < 4) {
-                    System.out.println("Too little arguments!");
-                }
-                if (args.length != 4) {
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                    return;
-                }
-
-                String name = args[1];
-
-                String host = args[2];
-
-                int port;
-                try {
-                    port = Integer.parseInt(args[3]);
-                } catch (NumberFormatException ex) {
-                    System.out.println("Invalid port number: " + ex.getMessage());
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                    return;
-                }
-
-                SocketAddress serverAddress;
-                try {
-                    serverAddress = new InetSocketAddress(InetAddress.getByName(host), port);
-                } catch (UnknownHostException ex) {
-                    System.out.println("Invalid host: " + ex.getMessage());
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                    return;
-                }
-                
-                try {
-                    Client c = new Client(name, serverAddress);
-                    System.out.println("Connected with success to " + c.getSocket().getRemoteSocketAddress());
-                    System.out.println("Starting...");
-                    c.start();
-                } catch (SocketTimeoutException ex) {
-                    System.out.println("Timeout! Could not connect: " + ex.getMessage());
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                } catch (PortUnreachableException ex) {
-                    System.out.println("Port unreachable!");
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                } catch (SocketException | IllegalArgumentException ex) {
-                    System.out.println("Error: " + ex.getMessage());
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                } catch (IOException ex) {
-                    System.out.println("Error! Could not connect: " + ex.getMessage());
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                } catch (InterruptedException ex) {
-                    System.out.println("Client thread interrupted: "+ex.getMessage());
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                } catch (Client.UsernameConflictException ex) {
-                    System.out.println("This username is already being used!");
-                    System.out.println("Usage: -client <name> <ip> <port>");
-                }
-            }
-            case "-server" -> {
-                if (args.length > 3) {
-                    System.out.println("Too much arguments!");
-                    System.out.println("Usage: -server <port> [ip]");
-                    return;
-                } else if (args.length < 2) {
-                    System.out.println("Too little arguments!");
-                    System.out.println("Usage: -server <port> [ip]");
-                    return;
-                }
-                
-                int port;
-                try {
-                    port = Integer.parseInt(args[1]);
-                } catch (NumberFormatException ex) {
-                    System.out.println("Invalid port number: " + ex.getMessage());
-                    System.out.println("Usage: -server <port> [ip]");
-                    return;
-                }
-                
-                InetAddress address = null;
-                if (args.length == 3) {
-                    try {
-                        address = InetAddress.getByName(args[2]);
-                    } catch (UnknownHostException ex) {
-                        System.out.println("Unknown ip: "+ex.getMessage());
-                        System.out.println("Usage: -server <port> [ip]");
-                        return;
-                    }
-                }
-                
-                try {
-                    Server s = new Server(port, address);
-                    s.start();
-                    System.out.println("Server started on port "+port);
-                } catch (SocketException | IllegalArgumentException ex) {
-                    System.out.println("Invalid port: " + ex.getMessage());
-                    System.out.println("Usage: -server <port> [ip]");
-                }
-            }
-            default -> {
-                System.out.println("Unknown option '" + args[0] + "'");
-                System.out.println("Usage:");
-                System.out.println("-client <name> <ip> <port>");
-                System.out.println("-server <port>");
-            }
-        }
-    }
-
-}
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Main.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.UIManager;
+import javax.swing.UnsupportedLookAndFeelException;
+
+/**
+ *
+ * @author Cien
+ */
+public class Main {
+
+    static {
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | UnsupportedLookAndFeelException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Native Look and Feel not supported.", ex);
+        }
+    }
+
+    public static final int PACKET_SIZE = 512;
+    public static final int PAYLOAD_SIZE = PACKET_SIZE - 64;
+    public static final long MAGIC_NUMBER = -3534974220920654048L;
+    public static final byte COMPACT_HEADER = (byte) 0xA2; //must not be the first byte of the magic number
+    public static final int TPS = 1000 / 60; //60 ticks per second
+    public static final int MAX_TIMEOUT_WARNINGS = 10;
+    public static final int FAILURE_WARNING_INTERVAL = 1000; //minimum time between warnings of failed packets and timer tasks
+    public static final int PING_INTERVAL = 400; //initial ping interval, the largest for clients without adaptive pings
+    public static final int PING_INTERVAL_MIN = 100;
+    public static final int PING_INTERVAL_MAX = 2000;
+    public static final int TYPING_DELAY = 3000;
+    public static final int TYPING_RESEND_INTERVAL = 1000; //minimum time between typing packets of a client
+    public static final int TYPING_DIGEST_INTERVAL = 250; //time the changes of the typing users are collected for
+    public static final int TYPING_DIGEST_REFRESH = 1500; //time between digests while someone is typing, below the delay
+    public static final int TYPING_DIGEST_ENTRIES = 40; //users per typing digest packet
+    public static final int REAP_DELAY = 60 * 1000; //time a disconnected user stays in memory
+    public static final int CLIENT_BUFFER_POOL_SIZE = 64;
+    public static final int FRAME_FLUSH_DELAY = 2;
+    public static final int HISTORY_SEGMENT_SIZE = 1024; //messages per history segment
+    public static final int HISTORY_TAIL_SIZE = 4096; //messages of the history kept in the heap
+    public static final int HISTORY_MAPPED_SEGMENTS = 8; //spilled segments of each history kept mapped, the least recently used are unmapped
+    public static final int HISTORY_UNWRITTEN_SEGMENTS = 4; //spilled segments of each history the writer thread can be behind
+    public static final int JOURNAL_FSYNC_INTERVAL = 100;
+    public static final int JOURNAL_SNAPSHOT_INTERVAL = 60; //seconds
+    public static final int RESEND_RATE = 1000; //messages per second for each user
+    public static final int RESEND_BURST = 32;
+    public static final int RESEND_WINDOW = 512;
+    public static final int TIMER_SLOTS = 1024; //must be a power of two
+    public static final int TIMER_RESOLUTION = TPS; //milliseconds covered by each slot of a timer wheel
+    public static final int PING_DIGEST_INTERVAL = 1000; //time between digests of the pings that changed
+    public static final int PING_DIGEST_KEEPALIVE = 4000; //time between digests of every ping, must be below the timeout
+    public static final int PING_DIGEST_ENTRIES = 40; //pings per digest packet
+    public static final int PING_DIGEST_MIN_CHANGE = 2; //milliseconds, or a tenth of the last ping sent if larger
+    public static final int SACK_INTERVAL = 100; //minimum time between acknowledgements of the same sequence
+    public static final int ROSTER_REQUEST_INTERVAL = 250; //minimum time between roster requests of a client
+    public static final int LOGIN_RATE = 500; //logins admitted per second
+    public static final int LOGIN_BURST = 32;
+    public static final int LOGIN_QUEUE_SIZE = 4096;
+    public static final int UNVERIFIED_LOGIN_RATE = 50; //logins per second from clients without cookies
+    public static final int LOGIN_COOKIE_LIFETIME = 30 * 1000; //a cookie is valid for one or two of these periods
+    public static final int LOBBY_ROOM = 0; //the room every user joins on login, the only room of old clients
+    public static final String LOBBY_NAME = "lobby";
+    public static final int ROOM_NAME_SIZE = 64; //bytes
+    public static final int MAX_ROOMS = 4096;
+    public static final int ROOM_HISTORY_TAIL_SIZE = 64; //messages of each room kept in the heap, so the heap of the rooms is bounded by MAX_ROOMS
+    //rooms a user can join besides the lobby, the history size of each of them must fit in a ping
+    public static final int MAX_ROOMS_PER_USER = (PAYLOAD_SIZE - Long.BYTES * 2 - Integer.BYTES * 2) / (Integer.BYTES * 2);
+    public static final int CLUSTER_MAX_NODES = 64;
+    public static final int CLUSTER_VIRTUAL_NODES = 64; //points of each node in the hash ring
+    public static final int CLUSTER_USER_ID_BITS = 40; //the user ids of a node start at its index shifted by this
+    public static final int CLUSTER_ROOM_ID_BITS = 20; //the room ids of a node start at its index shifted by this
+    public static final int CLUSTER_HEARTBEAT_INTERVAL = 200;
+    public static final int CLUSTER_HEARTBEAT_ROOMS = 48; //history sizes per heartbeat
+    public static final int CLUSTER_PENDING_SIZE = 4096; //reliable packets waiting for the acknowledgement of a node
+    public static final int CLUSTER_RESEND_BURST = 64; //reliable packets sent again per heartbeat
+    public static final int CLUSTER_RESEND_INTERVAL = 100; //minimum time between requests of missing room messages
+    public static final int CLUSTER_CATCHUP_SIZE = 128; //room messages sent per request of a node
+    public static final int STANDBY_HEARTBEAT_INTERVAL = 200;
+    public static final int STANDBY_TIMEOUT = 2000; //time without heartbeats before the standby takes over
+    public static final int STANDBY_PENDING_SIZE = 4096; //replication packets waiting for the acknowledgement of the standby
+    public static final int STANDBY_RESEND_BURST = 64; //replication packets sent again per heartbeat
+    public static final int STANDBY_SYNC_BURST = 256; //history messages sent per flush to a standby that is catching up
+    public static final int LOADTEST_LOGIN_TIMEOUT = 1000; //time a load test session waits for the answer to a login
+    public static final int LOADTEST_REPORT_INTERVAL = 1000;
+    public static final int LOADTEST_DRAIN_TIME = 3000; //time the sessions keep receiving after they stop sending
+    public static final int SIMULATED_RECEIVE_BUFFER = 4096; //datagrams queued in a simulated transport before the next are dropped
+    public static final int SIMULATED_FIRST_PORT = 49152; //first port given to simulated transports bound to any port
+    
+    public static final int LOGIN_PACKET = 0;
+    public static final int MESSAGE_PACKET = 1;
+    public static final int RESEND_MESSAGE_PACKET = 2;
+    public static final int IDENTIFY_PACKET = 3;
+    public static final int PING_PACKET = 4;
+    public static final int USER_PING_VALUE_PACKET = 5;
+    public static final int DISCONNECTED_PACKET = 6;
+    public static final int TYPING_PACKET = 7;
+    public static final int MULTI_FRAME_PACKET = 8;
+    public static final int ACK_PACKET = 9;
+    public static final int PING_DIGEST_PACKET = 10;
+    public static final int TYPING_DIGEST_PACKET = 11;
+    public static final int ROSTER_PACKET = 12;
+    public static final int JOIN_ROOM_PACKET = 13;
+    public static final int LEAVE_ROOM_PACKET = 14;
+    
+    //packets between the nodes of a cluster, always in the compact format
+    public static final int NODE_HEARTBEAT_PACKET = 32;
+    public static final int NODE_ACK_PACKET = 33;
+    public static final int NODE_USER_PACKET = 34;
+    public static final int NODE_FORWARD_PACKET = 35;
+    public static final int NODE_DELIVER_PACKET = 36;
+    public static final int NODE_RESEND_PACKET = 37;
+    public static final int NODE_JOIN_PACKET = 38;
+    public static final int NODE_ROOM_PACKET = 39;
+    
+    //packets between a primary and its standby, always in the compact format
+    public static final int REPLICATION_PACKET = 40;
+    public static final int STANDBY_ACK_PACKET = 41;
+    public static final int STANDBY_HEARTBEAT_PACKET = 42;
+    
+    //sent after the username of the login packet, followed by the requested capabilities
+    public static final int LOGIN_CAPABILITIES_MARKER = 0xFFC0FFEE;
+    //sent after the user id of the login response, followed by the accepted capabilities
+    public static final int LOGIN_ACCEPTED_CAPABILITIES_MARKER = 0xFEC0FFEE;
+    //sent after the capabilities of the login packet and after the user id of a challenge, followed by the cookie
+    public static final int LOGIN_COOKIE_MARKER = 0xFDC0FFEE;
+    //sent after the accepted capabilities of the login response, followed by the addresses to fail over to
+    public static final int LOGIN_FAILOVER_MARKER = 0xFCC0FFEE;
+    
+    //user ids of the login responses that are not a answer
+    public static final long LOGIN_COOKIE_REQUIRED = -2;
+    public static final long LOGIN_QUEUED = -3;
+    public static final long LOGIN_REDIRECT = -4; //followed by the address of the node that owns the name
+    
+    public static final int CAPABILITY_MULTI_FRAME = 1;
+    public static final int CAPABILITY_COMPACT_FORMAT = 2;
+    public static final int CAPABILITY_SACK = 4;
+    public static final int CAPABILITY_ADAPTIVE_PING = 8;
+    public static final int CAPABILITY_PING_DIGEST = 16;
+    public static final int CAPABILITY_TYPING_DIGEST = 32;
+    public static final int CAPABILITY_ROSTER = 64;
+    public static final int CAPABILITY_ROOMS = 128;
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage:");
+            System.out.println("-client <name> <ip> <port>");
+            System.out.println("-server <port> [ip] [--option=value...]");
+            System.out.println("Server options:");
+            System.out.println("--engine=<selector|polling>");
+            System.out.println("--buffer-pool=<receive buffers>");
+            System.out.println("--direct-buffers=<true|false>");
+            System.out.println("--coalesce=<true|false>");
+            System.out.println("--flush-delay=<milliseconds>");
+            System.out.println("--shards=<number of shards>");
+            System.out.println("--history-tail=<messages>");
+            System.out.println("--history-dir=<directory>");
+            System.out.println("--journal=<directory>");
+            System.out.println("--fsync-interval=<milliseconds>");
+            System.out.println("--snapshot-interval=<seconds>");
+            System.out.println("--resend-rate=<messages per second>");
+            System.out.println("--resend-window=<messages>");
+            System.out.println("--login-rate=<logins per second>");
+            System.out.println("--login-queue=<logins>");
+            System.out.println("--unverified-logins=<logins per second>");
+            System.out.println("--cluster=<host:port,host:port...>");
+            System.out.println("--node=<index in the cluster>");
+            System.out.println("--standby=<host:port>");
+            System.out.println("--primary=<host:port>");
+            System.out.println("-loadtest <ip> <port> [--option=value...]");
+            System.out.println("Load test options:");
+            System.out.println("--sessions=<simulated users>");
+            System.out.println("--threads=<worker threads>");
+            System.out.println("--duration=<seconds>");
+            System.out.println("--message-rate=<messages per second of each session>");
+            System.out.println("--typing-rate=<typing packets per second of each session>");
+            System.out.println("--idle=<fraction of sessions that only answer pings>");
+            System.out.println("--login-rate=<logins per second>");
+            System.out.println("--message-size=<bytes>");
+            System.out.println("--capabilities=<capability bits>");
+            System.out.println("--name-prefix=<prefix of the session names>");
+            System.out.println("--network=<socket|simulated>");
+            System.out.println("--loss=<probability of a simulated datagram being lost>");
+            System.out.println("--latency=<simulated one way delay in milliseconds>");
+            System.out.println("--jitter=<simulated random delay in milliseconds>");
+            System.out.println("--duplicate=<probability of a simulated datagram being duplicated>");
+            System.out.println("--reorder=<probability of a simulated datagram being reordered>");
+            System.out.println("--seed=<seed of the simulated network>");
+            return;
+        }
+        switch (args[0]) {
+            case "-client" -> {
+                if (args.length > 4) {
+                    System.out.println("Too much arguments!");
+                } else if (args.length < 4) {
+                    System.out.println("Too little arguments!");
+                }
+                if (args.length != 4) {
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                    return;
+                }
+
+                String name = args[1];
+
+                String host = args[2];
+
+                int port;
+                try {
+                    port = Integer.parseInt(args[3]);
+                } catch (NumberFormatException ex) {
+                    System.out.println("Invalid port number: " + ex.getMessage());
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                    return;
+                }
+
+                SocketAddress serverAddress;
+                try {
+                    serverAddress = new InetSocketAddress(InetAddress.getByName(host), port);
+                } catch (UnknownHostException ex) {
+                    System.out.println("Invalid host: " + ex.getMessage());
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                    return;
+                }
+                
+                try {
+                    Client c = new Client(name, serverAddress);
+                    System.out.println("Connected with success to " + c.getServerAddress());
+                    System.out.println("Starting...");
+                    c.start();
+                } catch (SocketTimeoutException ex) {
+                    System.out.println("Timeout! Could not connect: " + ex.getMessage());
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                } catch (PortUnreachableException ex) {
+                    System.out.println("Port unreachable!");
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                } catch (SocketException | IllegalArgumentException ex) {
+                    System.out.println("Error: " + ex.getMessage());
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                } catch (IOException ex) {
+                    System.out.println("Error! Could not connect: " + ex.getMessage());
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                } catch (InterruptedException ex) {
+                    System.out.println("Client thread interrupted: "+ex.getMessage());
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                } catch (Client.UsernameConflictException ex) {
+                    System.out.println("This username is already being used!");
+                    System.out.println("Usage: -client <name> <ip> <port>");
+                }
+            }
+            case "-server" -> {
+                int positional = 0;
+                while (positional + 1 < args.length && !args[positional + 1].startsWith("--")) {
+                    positional++;
+                }
+                if (positional > 2) {
+                    System.out.println("Too much arguments!");
+                    System.out.println("Usage: -server <port> [ip] [--option=value...]");
+                    return;
+                } else if (positional < 1) {
+                    System.out.println("Too little arguments!");
+                    System.out.println("Usage: -server <port> [ip] [--option=value...]");
+                    return;
+                }
+                
+                int port;
+                try {
+                    port = Integer.parseInt(args[1]);
+                } catch (NumberFormatException ex) {
+                    System.out.println("Invalid port number: " + ex.getMessage());
+                    System.out.println("Usage: -server <port> [ip] [--option=value...]");
+                    return;
+                }
+                
+                InetAddress address = null;
+                if (positional == 2) {
+                    try {
+                        address = InetAddress.getByName(args[2]);
+                    } catch (UnknownHostException ex) {
+                        System.out.println("Unknown ip: "+ex.getMessage());
+                        System.out.println("Usage: -server <port> [ip] [--option=value...]");
+                        return;
+                    }
+                }
+                
+                ServerConfig config = new ServerConfig(port, address);
+                try {
+                    for (int i = positional + 1; i < args.length; i++) {
+                        config.applyOption(args[i]);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Error: " + ex.getMessage());
+                    System.out.println("Usage: -server <port> [ip] [--option=value...]");
+                    return;
+                }
+                
+                try {
+                    if (config.getShards() > 1) {
+                        ShardGroup g = new ShardGroup(config);
+                        g.start();
+                        System.out.println("Server started on port "+port+" ("+g.getShardCount()+" shards)");
+                    } else {
+                        Server s = new Server(config);
+                        s.start();
+                        System.out.println("Server started on port "+port+" ("+s.getEngine()+" engine)");
+                    }
+                } catch (SocketException ex) {
+                    System.out.println("Invalid port: " + ex.getMessage());
+                    System.out.println("Usage: -server <port> [ip] [--option=value...]");
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Error: " + ex.getMessage());
+                    System.out.println("Usage: -server <port> [ip] [--option=value...]");
+                } catch (IOException ex) {
+                    System.out.println("Error! Could not start the server: " + ex.getMessage());
+                    System.out.println("Usage: -server <port> [ip] [--option=value...]");
+                }
+            }
+            case "-loadtest" -> {
+                if (args.length < 3 || args[1].startsWith("--") || args[2].startsWith("--")) {
+                    System.out.println("Too little arguments!");
+                    System.out.println("Usage: -loadtest <ip> <port> [--option=value...]");
+                    return;
+                }
+
+                int port;
+                try {
+                    port = Integer.parseInt(args[2]);
+                } catch (NumberFormatException ex) {
+                    System.out.println("Invalid port number: " + ex.getMessage());
+                    System.out.println("Usage: -loadtest <ip> <port> [--option=value...]");
+                    return;
+                }
+
+                LoadTestConfig config;
+                try {
+                    config = new LoadTestConfig(new InetSocketAddress(InetAddress.getByName(args[1]), port));
+                    for (int i = 3; i < args.length; i++) {
+                        config.applyOption(args[i]);
+                    }
+                } catch (UnknownHostException ex) {
+                    System.out.println("Invalid host: " + ex.getMessage());
+                    System.out.println("Usage: -loadtest <ip> <port> [--option=value...]");
+                    return;
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Error: " + ex.getMessage());
+                    System.out.println("Usage: -loadtest <ip> <port> [--option=value...]");
+                    return;
+                }
+
+                try {
+                    new LoadTest(config).run();
+                } catch (IOException ex) {
+                    System.out.println("Error! Could not start the load test: " + ex.getMessage());
+                } catch (InterruptedException ex) {
+                    System.out.println("Load test interrupted: " + ex.getMessage());
+                }
+            }
+            default -> {
+                System.out.println("Unknown option '" + args[0] + "'");
+                System.out.println("Usage:");
+                System.out.println("-client <name> <ip> <port>");
+                System.out.println("-server <port> [ip] [--option=value...]");
+                System.out.println("-loadtest <ip> <port> [--option=value...]");
+            }
+        }
+    }
+
+}
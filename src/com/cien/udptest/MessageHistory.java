@@ -0,0 +1,441 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The messages accepted by the server, stored as compact message packets in fixed size segments. The newest segments
+ * are kept in the heap, older ones are spilled by a shared writer thread to memory mapped files and at most {@link
+ * Main#HISTORY_MAPPED_SEGMENTS} of them stay mapped. Can be shared by the shards of a server.
+ *
+ * @author Cien
+ */
+public class MessageHistory {
+
+    private interface Segment {
+
+        ByteBuffer getPacket(int index);
+    }
+
+    private static class HeapSegment implements Segment {
+
+        private final byte[][] packets;
+        private int count = 0;
+
+        public HeapSegment(int capacity) {
+            this.packets = new byte[capacity][];
+        }
+
+        @Override
+        public ByteBuffer getPacket(int index) {
+            byte[] packet = this.packets[index];
+            return ByteBuffer.wrap(packet).position(packet.length);
+        }
+    }
+
+    private static class MappedSegment implements Segment {
+
+        private final MappedByteBuffer data;
+        private final int dataStart;
+
+        public MappedSegment(MappedByteBuffer data) {
+            this.data = data;
+            this.dataStart = Integer.BYTES + (data.getInt(0) + 1) * Integer.BYTES;
+        }
+
+        private int offset(int index) {
+            return this.dataStart + this.data.getInt(Integer.BYTES + index * Integer.BYTES);
+        }
+
+        @Override
+        public ByteBuffer getPacket(int index) {
+            int start = offset(index);
+            int length = offset(index + 1) - start;
+            return this.data.slice(start, length).position(length);
+        }
+    }
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "History-Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int segmentSize;
+    private final int hotSegments;
+    private final Path directory;
+    private final boolean persistent;
+    private final boolean closeOnExit;
+
+    private final ByteBuffer encoder = ByteBuffer.allocate(Main.PACKET_SIZE);
+    //the segments that are not spilled yet, the first one is the segment after the spilled segments
+    private final List<HeapSegment> segments = new ArrayList<>();
+    //the least recently used mapping is dropped, the file is unmapped when the buffer is collected
+    private final Map<Integer, MappedSegment> mapped = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, MappedSegment> eldest) {
+            return size() > Main.HISTORY_MAPPED_SEGMENTS;
+        }
+    };
+    //the spilled segments that the writer didn't write yet, the first one is the segment after the written segments
+    private final List<HeapSegment> unwritten = new ArrayList<>();
+    private IOException writeError = null;
+    private HeapSegment tail;
+    private int spilled = 0;
+    private int written = 0;
+    private Path spillDirectory = null;
+    private boolean temporaryDirectory = false;
+    private Thread cleaner = null;
+    private volatile int size = 0;
+
+    /**
+     * Creates a history.
+     *
+     * @param tailSize how many messages are kept in the heap
+     * @param directory where spilled segments are written, null to use a temporary directory
+     * @param persistent if the spilled segments are synced to the disk and kept after the server exits
+     */
+    public MessageHistory(int tailSize, Path directory, boolean persistent) {
+        this(tailSize, directory, persistent, !persistent);
+    }
+
+    /**
+     * Creates a history that is closed by its owner when the process exits, like the histories of the rooms.
+     */
+    MessageHistory(int tailSize, Path directory, boolean persistent, boolean closeOnExit) {
+        if (tailSize <= 0) {
+            throw new IllegalArgumentException("Tail size must be larger than zero.");
+        }
+        if (persistent && directory == null) {
+            throw new IllegalArgumentException("A persistent history requires a directory.");
+        }
+        this.segmentSize = Math.min(tailSize, Main.HISTORY_SEGMENT_SIZE);
+        this.hotSegments = (tailSize + this.segmentSize - 1) / this.segmentSize;
+        this.directory = directory;
+        this.persistent = persistent;
+        this.closeOnExit = closeOnExit;
+        this.tail = new HeapSegment(this.segmentSize);
+        this.segments.add(this.tail);
+    }
+
+    public MessageHistory(int tailSize, Path directory) {
+        this(tailSize, directory, false);
+    }
+
+    public MessageHistory() {
+        this(Main.HISTORY_TAIL_SIZE, null);
+    }
+
+    /**
+     * Creates the history of a server, the history is persistent if the server uses a journal.
+     */
+    static MessageHistory create(ServerConfig config) {
+        if (config.getJournalDirectory() != null) {
+            return new MessageHistory(config.getHistoryTailSize(), config.getJournalDirectory().resolve("history"), true);
+        }
+        return new MessageHistory(config.getHistoryTailSize(), config.getHistoryDirectory(), false);
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @param userId the id of the author
+     * @param message the UTF-8 encoded message
+     * @return the index of the message
+     * @throws IOException if a old segment could not be spilled
+     */
+    public synchronized int append(long userId, byte[] message) throws IOException {
+        Objects.requireNonNull(message, "Message is null.");
+        this.encoder.clear();
+        WireFormat.COMPACT.putHeader(this.encoder, Main.MESSAGE_PACKET);
+        WireFormat.COMPACT.putInt(this.encoder, this.size);
+        WireFormat.COMPACT.putLong(this.encoder, userId);
+        WireFormat.COMPACT.putBytes(this.encoder, message, 0, message.length);
+        return appendPacket(Arrays.copyOf(this.encoder.array(), this.encoder.position()));
+    }
+
+    private int appendPacket(byte[] packet) throws IOException {
+        if (this.tail.count == this.segmentSize) {
+            this.tail = new HeapSegment(this.segmentSize);
+            this.segments.add(this.tail);
+            while (this.segments.size() > this.hotSegments) {
+                HeapSegment segment = this.segments.remove(0);
+                Path path = getSegmentPath(this.spilled);
+                this.unwritten.add(segment);
+                this.spilled++;
+                WRITER.execute(() -> writeSpilled(segment, path));
+            }
+            awaitWriter(Main.HISTORY_UNWRITTEN_SEGMENTS);
+        }
+        int index = this.size;
+        this.tail.packets[this.tail.count] = packet;
+        this.tail.count++;
+        this.size = index + 1;
+        return index;
+    }
+
+    /**
+     * Waits until the writer is at most a number of segments behind.
+     */
+    private void awaitWriter(int segments) throws IOException {
+        while (this.unwritten.size() > segments) {
+            if (this.writeError != null) {
+                throw new IOException("Could not spill history segment " + this.written + ", " + this.writeError.getMessage(), this.writeError);
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the history writer.");
+            }
+        }
+    }
+
+    /**
+     * Writes a spilled segment, called by the writer thread.
+     */
+    private void writeSpilled(HeapSegment segment, Path path) {
+        synchronized (this) {
+            if (this.writeError != null) {
+                return;
+            }
+        }
+        try {
+            spill(segment, path);
+        } catch (IOException ex) {
+            synchronized (this) {
+                this.writeError = ex;
+                notifyAll();
+            }
+            System.out.println("Warning: Could not spill history segment " + path + ", " + ex.getMessage());
+            return;
+        }
+        synchronized (this) {
+            this.unwritten.remove(0);
+            this.written++;
+            notifyAll();
+        }
+    }
+
+    private void spill(HeapSegment segment, Path path) throws IOException {
+        int dataSize = 0;
+        for (int i = 0; i < segment.count; i++) {
+            dataSize += segment.packets[i].length;
+        }
+        ByteBuffer file = ByteBuffer.allocate(Integer.BYTES + (segment.count + 1) * Integer.BYTES + dataSize);
+        file.putInt(segment.count);
+        int offset = 0;
+        for (int i = 0; i < segment.count; i++) {
+            file.putInt(offset);
+            offset += segment.packets[i].length;
+        }
+        file.putInt(offset);
+        for (int i = 0; i < segment.count; i++) {
+            file.put(segment.packets[i]);
+        }
+        file.flip();
+
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            while (file.hasRemaining()) {
+                channel.write(file);
+            }
+            if (this.persistent) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Returns a spilled segment, mapping it again if it was unmapped.
+     */
+    private MappedSegment getMapped(int segmentIndex) {
+        MappedSegment segment = this.mapped.get(segmentIndex);
+        if (segment != null) {
+            return segment;
+        }
+        try (FileChannel channel = FileChannel.open(getSegmentPath(segmentIndex), StandardOpenOption.READ)) {
+            //the mapping stays valid after the channel is closed
+            segment = new MappedSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not map spilled history segment " + segmentIndex, ex);
+        }
+        this.mapped.put(segmentIndex, segment);
+        return segment;
+    }
+
+    private Path getSegmentPath(int segmentIndex) throws IOException {
+        if (this.spillDirectory == null) {
+            if (this.directory != null) {
+                this.spillDirectory = Files.createDirectories(this.directory);
+            } else {
+                this.spillDirectory = Files.createTempDirectory("udptest-history");
+                this.temporaryDirectory = true;
+            }
+            if (this.closeOnExit) {
+                this.cleaner = new Thread(this::close, "History-Cleaner");
+                Runtime.getRuntime().addShutdownHook(this.cleaner);
+            }
+        }
+        return this.spillDirectory.resolve("segment-" + segmentIndex + ".dat");
+    }
+
+    /**
+     * Writes the messages that are not written to segment files yet, used by the journal snapshots.
+     */
+    synchronized void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.segmentSize);
+        out.writeInt(this.size);
+        out.writeInt(this.written);
+        for (int i = this.written * this.segmentSize; i < this.size; i++) {
+            ByteBuffer packet = getPacket(i);
+            out.writeInt(packet.position());
+            out.write(packet.array(), packet.arrayOffset(), packet.position());
+        }
+    }
+
+    /**
+     * Restores a empty persistent history from a journal snapshot, the spilled segments are mapped again when used.
+     */
+    synchronized void read(DataInputStream in) throws IOException {
+        if (!this.persistent || this.size != 0) {
+            throw new IllegalStateException("Only a empty persistent history can be restored.");
+        }
+        int writtenSegmentSize = in.readInt();
+        if (writtenSegmentSize != this.segmentSize) {
+            throw new IOException("The history was written with segments of " + writtenSegmentSize + " messages, the history tail can't be changed while using the same journal.");
+        }
+        int writtenSize = in.readInt();
+        int writtenSpilled = in.readInt();
+        for (int i = 0; i < writtenSpilled; i++) {
+            Path path = getSegmentPath(i);
+            if (!Files.isRegularFile(path)) {
+                throw new IOException("Spilled history segment " + path + " is missing.");
+            }
+        }
+        this.spilled = writtenSpilled;
+        this.written = writtenSpilled;
+        this.size = writtenSpilled * this.segmentSize;
+        while (this.size < writtenSize) {
+            byte[] packet = new byte[in.readInt()];
+            in.readFully(packet);
+            appendPacket(packet);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+    }
+
+    /**
+     * Returns the message packet of a message in the compact format, packets of spilled segments are views of the mapped
+     * file. The packet spans from zero to the position of the buffer and must not be modified.
+     *
+     * @param index the index of the message
+     * @return the packet
+     */
+    public synchronized ByteBuffer getPacket(int index) {
+        checkIndex(index);
+        int segmentIndex = index / this.segmentSize;
+        Segment segment;
+        if (segmentIndex < this.written) {
+            segment = getMapped(segmentIndex);
+        } else if (segmentIndex < this.spilled) {
+            segment = this.unwritten.get(segmentIndex - this.written);
+        } else {
+            segment = this.segments.get(segmentIndex - this.spilled);
+        }
+        return segment.getPacket(index % this.segmentSize);
+    }
+
+    /**
+     * Reads the packet of a message, positioned after the message index.
+     */
+    private ByteBuffer readPacket(int index) {
+        ByteBuffer packet = getPacket(index).flip();
+        WireFormat.COMPACT.readHeader(packet);
+        WireFormat.COMPACT.getInt(packet);
+        return packet;
+    }
+
+    public synchronized long getUserId(int index) {
+        return WireFormat.COMPACT.getLong(readPacket(index));
+    }
+
+    /**
+     * Decodes the text of a message.
+     *
+     * @param index the index of the message
+     * @return the UTF-8 encoded message
+     */
+    public synchronized byte[] getMessage(int index) {
+        ByteBuffer packet = readPacket(index);
+        WireFormat.COMPACT.getLong(packet);
+        return WireFormat.COMPACT.getBytes(packet, Main.PAYLOAD_SIZE);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Waits for the writer to write the spilled segments and deletes them if the history is not persistent, the history
+     * must not be used after this. Called when the process exits.
+     */
+    public synchronized void close() {
+        this.mapped.clear();
+        if (this.spillDirectory == null) {
+            return;
+        }
+        try {
+            awaitWriter(0);
+        } catch (IOException ex) {
+            //the segments that were written are still deleted
+        }
+        if (this.persistent) {
+            return;
+        }
+        if (this.cleaner != null && Thread.currentThread() != this.cleaner) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(this.cleaner);
+            } catch (IllegalStateException ex) {
+                //already exiting, the hook runs after this
+            }
+            this.cleaner = null;
+        }
+        try {
+            for (int i = 0; i < this.spilled; i++) {
+                Files.deleteIfExists(getSegmentPath(i));
+            }
+            if (this.temporaryDirectory) {
+                Files.deleteIfExists(this.spillDirectory);
+            }
+        } catch (IOException ex) {
+            System.out.println("Warning: Could not delete the spilled history in " + this.spillDirectory + ", " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.function.Consumer;
+
+/**
+ * Opens transports, the real one is a {@link SocketNetwork} and a {@link SimulatedNetwork} runs in memory.
+ *
+ * @author Cien
+ */
+public interface Network {
+
+    /**
+     * Waits for datagrams on many transports, like a selector.
+     *
+     * @param <T> the type of the attachments
+     */
+    public interface Poller<T> extends Closeable {
+
+        /**
+         * Registers a transport, a transport can only be registered in a single poller.
+         *
+         * @param transport a transport of the same network
+         * @param attachment the attachment given to the consumer of {@link #select}
+         * @throws IOException if a I/O error occurs
+         */
+        public void register(Transport transport, T attachment) throws IOException;
+
+        /**
+         * Waits until a registered transport has datagrams to receive, the timeout expires or {@link #wakeup()} is
+         * called.
+         *
+         * @param timeout the maximum time to wait in milliseconds, zero or negative to not wait
+         * @param ready called with the attachment of every transport that has datagrams
+         * @return the number of transports that had datagrams
+         * @throws IOException if a I/O error occurs
+         */
+        public int select(long timeout, Consumer<? super T> ready) throws IOException;
+
+        public void wakeup();
+
+    }
+
+    /**
+     * Opens a transport.
+     *
+     * @param address the local address, null or a port of zero for any free port
+     * @return the transport
+     * @throws IOException if the transport could not be bound
+     */
+    public Transport open(InetSocketAddress address) throws IOException;
+
+    public <T> Poller<T> openPoller() throws IOException;
+
+}
@@ -0,0 +1,27 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Interface.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author Cien
+ */
+@FunctionalInterface
+public interface PacketSender {
+
+    /**
+     * Sends a encoded packet, from zero to its position, the position of the buffer must be left unmodified so it can
+     * be sent again.
+     *
+     * @param packet the encoded packet
+     * @param address the destination
+     * @throws IOException if a I/O error occurs
+     */
+    public void send(ByteBuffer packet, SocketAddress address) throws IOException;
+}
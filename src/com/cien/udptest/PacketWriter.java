@@ -0,0 +1,81 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes a packet in every wire format at the same time, so a packet sent to users with different formats is only
+ * built once. The encoded packets go from position zero to the position of their buffers.
+ *
+ * @author Cien
+ */
+public class PacketWriter {
+
+    private final ByteBuffer legacy = ByteBuffer.allocate(Main.PACKET_SIZE);
+    private final ByteBuffer compact = ByteBuffer.allocate(Main.PACKET_SIZE);
+
+    public PacketWriter() {
+
+    }
+
+    public PacketWriter begin(int packetId) {
+        WireFormat.LEGACY.putHeader(this.legacy.clear(), packetId);
+        WireFormat.COMPACT.putHeader(this.compact.clear(), packetId);
+        return this;
+    }
+
+    public PacketWriter putInt(int value) {
+        WireFormat.LEGACY.putInt(this.legacy, value);
+        WireFormat.COMPACT.putInt(this.compact, value);
+        return this;
+    }
+
+    public PacketWriter putLong(long value) {
+        WireFormat.LEGACY.putLong(this.legacy, value);
+        WireFormat.COMPACT.putLong(this.compact, value);
+        return this;
+    }
+
+    public PacketWriter putBytes(byte[] data, int offset, int length) {
+        WireFormat.LEGACY.putBytes(this.legacy, data, offset, length);
+        WireFormat.COMPACT.putBytes(this.compact, data, offset, length);
+        return this;
+    }
+
+    public PacketWriter putBytes(byte[] data) {
+        return putBytes(data, 0, data.length);
+    }
+
+    /**
+     * Replaces the current packet by already encoded packets.
+     *
+     * @param legacy the packet in the legacy format
+     * @param compact the same packet in the compact format
+     * @return this writer
+     */
+    public PacketWriter load(byte[] legacy, byte[] compact) {
+        this.legacy.clear().put(legacy);
+        this.compact.clear().put(compact);
+        return this;
+    }
+
+    public byte[] toByteArray(WireFormat format) {
+        ByteBuffer buffer = get(format);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * @param format the format
+     * @return the encoded packet, from zero to its position
+     */
+    public ByteBuffer get(WireFormat format) {
+        return switch (format) {
+            case LEGACY -> this.legacy;
+            case COMPACT -> this.compact;
+        };
+    }
+}
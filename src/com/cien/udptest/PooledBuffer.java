@@ -0,0 +1,75 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author Cien
+ */
+public class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer data;
+    private SocketAddress address;
+    private boolean leased = false;
+
+    PooledBuffer(BufferPool pool, int size, boolean direct) {
+        this.pool = pool;
+        this.data = (direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size));
+    }
+
+    void reset() {
+        this.data.clear();
+        this.address = null;
+        this.leased = true;
+    }
+
+    /**
+     * Receives a datagram from a transport without blocking.
+     *
+     * @param transport the transport
+     * @return true if a datagram was received
+     * @throws IOException if a I/O error occurs
+     */
+    public boolean receive(Transport transport) throws IOException {
+        this.data.clear();
+        this.address = transport.receive(this.data);
+        if (this.address == null) {
+            return false;
+        }
+        this.data.flip();
+        return true;
+    }
+
+    /**
+     * @return the received data, from position zero to the length of the datagram
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return this.data.limit();
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns this buffer to its pool, the buffer must not be used after this.
+     */
+    public void release() {
+        if (!this.leased) {
+            throw new IllegalStateException("Buffer was already released.");
+        }
+        this.leased = false;
+        this.pool.release(this);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+/**
+ * Keeps the messages that arrived before the expected message of a sequence, up to {@link #WINDOW} messages ahead of it.
+ * The messages that are kept are reported in the bitmap of a selective acknowledgement, so only the missing messages
+ * are sent again.
+ *
+ * @author Cien
+ * @param <T> the type of the messages
+ */
+public class ReorderBuffer<T> {
+
+    /**
+     * How many messages after the expected message can be kept, one for each bit of the bitmap.
+     */
+    public static final int WINDOW = Long.SIZE;
+
+    private final int[] indexes = new int[WINDOW];
+    private final Object[] messages = new Object[WINDOW];
+    private int count = 0;
+    private long lastAckTime = 0;
+
+    public ReorderBuffer() {
+
+    }
+
+    /**
+     * Keeps a message that arrived early.
+     *
+     * @param expected the index of the expected message
+     * @param index the index of the message
+     * @param message the message
+     * @return false if the message is too far ahead of the expected message
+     */
+    public boolean add(int expected, int index, T message) {
+        int offset = index - expected - 1;
+        if (offset < 0 || offset >= WINDOW) {
+            return false;
+        }
+        int slot = index & (WINDOW - 1);
+        if (this.messages[slot] == null) {
+            this.count++;
+        }
+        this.indexes[slot] = index;
+        this.messages[slot] = message;
+        return true;
+    }
+
+    /**
+     * Removes the message with a index, used to deliver the kept messages once the expected message arrives.
+     *
+     * @param index the index of the message
+     * @return the message or null if it wasn't kept
+     */
+    @SuppressWarnings("unchecked")
+    public T take(int index) {
+        int slot = index & (WINDOW - 1);
+        Object message = this.messages[slot];
+        if (message == null || this.indexes[slot] != index) {
+            return null;
+        }
+        this.messages[slot] = null;
+        this.count--;
+        return (T) message;
+    }
+
+    /**
+     * Returns the bitmap of a acknowledgement, the bit n is set if the message expected + 1 + n is kept.
+     *
+     * @param expected the index of the expected message
+     * @return the bitmap
+     */
+    public long getBitmap(int expected) {
+        long bitmap = 0;
+        for (int slot = 0; slot < WINDOW; slot++) {
+            if (this.messages[slot] == null) {
+                continue;
+            }
+            int offset = this.indexes[slot] - expected - 1;
+            if (offset >= 0 && offset < WINDOW) {
+                bitmap |= 1L << offset;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Removes the messages that are not after the expected message anymore.
+     *
+     * @param expected the index of the expected message
+     */
+    public void discardBefore(int expected) {
+        for (int slot = 0; slot < WINDOW; slot++) {
+            if (this.messages[slot] != null && this.indexes[slot] < expected) {
+                this.messages[slot] = null;
+                this.count--;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * Checks if a acknowledgement should be sent, acknowledgements are sent at most once every
+     * {@link Main#SACK_INTERVAL} milliseconds while there are missing messages.
+     *
+     * @param now the current time in milliseconds
+     * @return true if a acknowledgement should be sent now
+     */
+    public boolean isAckDue(long now) {
+        if (now - this.lastAckTime < Main.SACK_INTERVAL) {
+            return false;
+        }
+        this.lastAckTime = now;
+        return true;
+    }
+
+    /**
+     * Returns the indexes that a acknowledgement reports as missing, the expected message and every message before the
+     * last kept message that is not in the bitmap.
+     *
+     * @param expected the index of the expected message
+     * @param bitmap the bitmap of the acknowledgement
+     * @param missing the array that receives the indexes, with at least {@link #WINDOW} elements
+     * @return the number of missing indexes
+     */
+    public static int getMissing(int expected, long bitmap, int[] missing) {
+        int count = 0;
+        missing[count++] = expected;
+        int highest = Long.SIZE - 1 - Long.numberOfLeadingZeros(bitmap);
+        for (int i = 0; i < highest; i++) {
+            if ((bitmap & (1L << i)) == 0) {
+                missing[count++] = expected + 1 + i;
+            }
+        }
+        return count;
+    }
+}
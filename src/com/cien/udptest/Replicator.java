@@ -0,0 +1,334 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * The replication stream of a primary server to its standby, the records the journal keeps in numbered packets sent
+ * again until the standby acknowledges them. A new standby session or a lost stream starts a new epoch that syncs the
+ * standby again. Used by a single server thread.
+ *
+ * @author Cien
+ */
+public class Replicator {
+
+    static final byte USER_RECORD = 1;
+    static final byte MESSAGE_RECORD = 2;
+    static final byte DISCONNECT_RECORD = 3;
+    static final byte MESSAGE_ID_RECORD = 4;
+    static final byte TOMBSTONE_RECORD = 5;
+    static final byte SYNCED_RECORD = 6;
+
+    private final InetSocketAddress standby;
+    private final PacketSender sender;
+    private final MessageHistory history;
+    private final Tombstones tombstones;
+    private final Supplier<? extends Iterable<User>> users;
+
+    private final ByteBuffer current = ByteBuffer.allocate(Main.PACKET_SIZE);
+    private final ByteBuffer record = ByteBuffer.allocate(Main.PACKET_SIZE);
+    private final ByteBuffer heartbeat = ByteBuffer.allocate(Main.PACKET_SIZE);
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+
+    //nothing is recorded until the standby acknowledges for the first time
+    private boolean lost = true;
+    private long session = 0;
+    private int epoch = 0;
+    private int nextSequence = 0;
+    private int acknowledged = 0;
+    private int heartbeatAcknowledged = 0;
+    //next message of the history sent to a standby that is catching up, -1 if it caught up
+    private int syncIndex = -1;
+
+    /**
+     * Creates the replication stream of a server.
+     *
+     * @param standby the address of the standby
+     * @param sender sends the packets from the socket of the server
+     * @param history the history of the server
+     * @param tombstones the tombstones of the server
+     * @param users the users of the server, sent again when a new epoch starts
+     */
+    public Replicator(InetSocketAddress standby, PacketSender sender, MessageHistory history, Tombstones tombstones, Supplier<? extends Iterable<User>> users) {
+        Objects.requireNonNull(standby, "Standby is null.");
+        Objects.requireNonNull(sender, "Sender is null.");
+        Objects.requireNonNull(history, "History is null.");
+        Objects.requireNonNull(tombstones, "Tombstones is null.");
+        Objects.requireNonNull(users, "Users is null.");
+        this.standby = standby;
+        this.sender = sender;
+        this.history = history;
+        this.tombstones = tombstones;
+        this.users = users;
+    }
+
+    public InetSocketAddress getStandbyAddress() {
+        return standby;
+    }
+
+    public boolean isStandby(SocketAddress address) {
+        return this.standby.equals(address);
+    }
+
+    /**
+     * Processes a packet of the standby.
+     *
+     * @param packetBuffer the packet
+     * @throws IOException if a I/O error occurs
+     */
+    public void process(ByteBuffer packetBuffer) throws IOException {
+        WireFormat format = WireFormat.detect(packetBuffer);
+        if (format != WireFormat.COMPACT) {
+            System.out.println("Warning: Received packet in the " + format + " format from " + this.standby + ", replication must use the compact format.");
+            return;
+        }
+        int packetId = format.readHeader(packetBuffer);
+        if (packetId != Main.STANDBY_ACK_PACKET) {
+            System.out.println("Warning: Received unknown packet " + packetId + " from " + this.standby);
+            return;
+        }
+        long standbySession = format.getLong(packetBuffer);
+        int standbyEpoch = format.getInt(packetBuffer);
+        int expected = format.getInt(packetBuffer);
+        int historySize = format.getInt(packetBuffer);
+        acknowledged(standbySession, standbyEpoch, expected, historySize);
+    }
+
+    private ByteBuffer beginRecord(byte type) {
+        this.record.clear();
+        return this.record.put(type);
+    }
+
+    private void endRecord() throws IOException {
+        if (this.current.position() + this.record.position() > this.current.capacity()) {
+            seal();
+            if (this.lost) {
+                return;
+            }
+        }
+        if (this.current.position() == 0) {
+            WireFormat.COMPACT.putHeader(this.current, Main.REPLICATION_PACKET);
+            WireFormat.COMPACT.putInt(this.current, this.epoch);
+            WireFormat.COMPACT.putInt(this.current, this.nextSequence);
+        }
+        this.current.put(this.record.flip());
+    }
+
+    /**
+     * Sends the current packet and keeps it until the standby acknowledges it.
+     */
+    private void seal() throws IOException {
+        if (this.current.position() == 0) {
+            return;
+        }
+        if (this.pending.size() >= Main.STANDBY_PENDING_SIZE) {
+            System.out.println("Warning: Standby " + this.standby + " is not acknowledging the replication, it will be synced again when it does.");
+            this.lost = true;
+            this.pending.clear();
+            this.current.clear();
+            return;
+        }
+        this.pending.add(Arrays.copyOf(this.current.array(), this.current.position()));
+        this.nextSequence++;
+        this.sender.send(this.current, this.standby);
+        this.current.clear();
+    }
+
+    private void writeUser(User user) throws IOException {
+        if (this.lost) {
+            return;
+        }
+        InetSocketAddress socketAddress = (InetSocketAddress) user.getSocketAddress();
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] address = socketAddress.getAddress().getAddress();
+        ByteBuffer r = beginRecord(USER_RECORD);
+        WireFormat.COMPACT.putLong(r, user.getUserId());
+        WireFormat.COMPACT.putBytes(r, name, 0, name.length);
+        WireFormat.COMPACT.putBytes(r, address, 0, address.length);
+        WireFormat.COMPACT.putInt(r, socketAddress.getPort());
+        WireFormat.COMPACT.putInt(r, user.getCapabilities());
+        endRecord();
+    }
+
+    private void writeTombstone(long userId, byte[] name) throws IOException {
+        ByteBuffer r = beginRecord(TOMBSTONE_RECORD);
+        WireFormat.COMPACT.putLong(r, userId);
+        WireFormat.COMPACT.putBytes(r, name, 0, name.length);
+        endRecord();
+    }
+
+    private void writeMessage(int index, long userId, int messageId, byte[] message) throws IOException {
+        ByteBuffer r = beginRecord(MESSAGE_RECORD);
+        WireFormat.COMPACT.putInt(r, index);
+        WireFormat.COMPACT.putLong(r, userId);
+        WireFormat.COMPACT.putInt(r, messageId);
+        WireFormat.COMPACT.putBytes(r, message, 0, message.length);
+        endRecord();
+    }
+
+    public void userConnected(User user) throws IOException {
+        writeUser(user);
+    }
+
+    /**
+     * Replicates a message appended to the history.
+     *
+     * @param index the index of the message in the history
+     * @param user the author
+     * @param messageId the id of the message in the sequence of the author
+     * @param message the UTF-8 encoded message
+     * @throws IOException if a packet could not be sent
+     */
+    public void messageAppended(int index, User user, int messageId, byte[] message) throws IOException {
+        if (this.lost) {
+            return;
+        }
+        if (this.syncIndex != -1) {
+            //the message is streamed with the rest of the history
+            messageIdUsed(user, messageId);
+            return;
+        }
+        writeMessage(index, user.getUserId(), messageId, message);
+    }
+
+    public void messageIdUsed(User user, int messageId) throws IOException {
+        if (this.lost) {
+            return;
+        }
+        ByteBuffer r = beginRecord(MESSAGE_ID_RECORD);
+        WireFormat.COMPACT.putLong(r, user.getUserId());
+        WireFormat.COMPACT.putInt(r, messageId);
+        endRecord();
+    }
+
+    public void userDisconnected(User user) throws IOException {
+        if (this.lost) {
+            return;
+        }
+        ByteBuffer r = beginRecord(DISCONNECT_RECORD);
+        WireFormat.COMPACT.putLong(r, user.getUserId());
+        endRecord();
+    }
+
+    /**
+     * Processes a acknowledgement of the standby.
+     *
+     * @param standbySession the session of the standby
+     * @param standbyEpoch the epoch the standby is in
+     * @param expected the sequence of the next packet the standby expects
+     * @param historySize the size of the history of the standby
+     * @throws IOException if a packet could not be sent
+     */
+    public void acknowledged(long standbySession, int standbyEpoch, int expected, int historySize) throws IOException {
+        if (this.lost || standbySession != this.session) {
+            this.session = standbySession;
+            sync(historySize);
+            return;
+        }
+        if (standbyEpoch != this.epoch) {
+            return;
+        }
+        while (this.acknowledged - expected < 0 && !this.pending.isEmpty()) {
+            this.pending.poll();
+            this.acknowledged++;
+        }
+    }
+
+    /**
+     * Starts a new epoch, the state of the server is sent again.
+     */
+    private void sync(int historySize) throws IOException {
+        this.lost = false;
+        this.epoch++;
+        this.nextSequence = 0;
+        this.acknowledged = 0;
+        this.heartbeatAcknowledged = 0;
+        this.pending.clear();
+        this.current.clear();
+        this.syncIndex = Math.max(0, Math.min(historySize, this.history.size()));
+
+        for (long userId : this.tombstones.getUserIds()) {
+            writeTombstone(userId, this.tombstones.getName(userId));
+        }
+        int count = 0;
+        for (User u : this.users.get()) {
+            if (u.isDisconnected()) {
+                writeTombstone(u.getUserId(), u.getName().getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            writeUser(u);
+            if (u.getNextMessageId() > 0) {
+                messageIdUsed(u, u.getNextMessageId() - 1);
+            }
+            count++;
+        }
+        System.out.println("Info: Syncing standby " + this.standby + ", epoch " + this.epoch + ", " + count + " users, history from message " + this.syncIndex);
+    }
+
+    /**
+     * Sends the records of this event loop iteration and the next part of the history to a standby that is catching
+     * up.
+     *
+     * @throws IOException if a packet could not be sent
+     */
+    public void flush() throws IOException {
+        if (this.lost) {
+            return;
+        }
+        for (int i = 0; i < Main.STANDBY_SYNC_BURST && this.syncIndex != -1; i++) {
+            if (this.syncIndex >= this.history.size()) {
+                beginRecord(SYNCED_RECORD);
+                endRecord();
+                if (this.lost) {
+                    return;
+                }
+                this.syncIndex = -1;
+                System.out.println("Info: Standby " + this.standby + " caught up with the history.");
+                break;
+            }
+            writeMessage(this.syncIndex, this.history.getUserId(this.syncIndex), -1, this.history.getMessage(this.syncIndex));
+            if (this.lost) {
+                return;
+            }
+            this.syncIndex++;
+        }
+        seal();
+    }
+
+    /**
+     * Sends the heartbeat to the standby and the packets it didn't acknowledge, called every
+     * {@link Main#STANDBY_HEARTBEAT_INTERVAL} milliseconds. The packets are only sent again if the standby acknowledged
+     * nothing since the last heartbeat. The heartbeat tells the standby if the records of its epoch are being dropped.
+     *
+     * @throws IOException if a packet could not be sent
+     */
+    public void heartbeat() throws IOException {
+        boolean stalled = (this.acknowledged == this.heartbeatAcknowledged);
+        this.heartbeatAcknowledged = this.acknowledged;
+        if (!this.lost && stalled) {
+            int count = 0;
+            for (byte[] packet : this.pending) {
+                if (count++ >= Main.STANDBY_RESEND_BURST) {
+                    break;
+                }
+                this.sender.send(ByteBuffer.wrap(packet).position(packet.length), this.standby);
+            }
+        }
+        this.heartbeat.clear();
+        WireFormat.COMPACT.putHeader(this.heartbeat, Main.STANDBY_HEARTBEAT_PACKET);
+        WireFormat.COMPACT.putInt(this.heartbeat, this.epoch);
+        WireFormat.COMPACT.putInt(this.heartbeat, (this.lost ? 1 : 0));
+        this.sender.send(this.heartbeat, this.standby);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Paces the messages resent to each user with a token bucket, so a user catching up doesn't stall the server. Single
+ * messages from selective acknowledgements are sent before the range of the user.
+ *
+ * @author Cien
+ */
+public class ResendScheduler {
+
+    public interface MessageSender {
+
+        public void send(User user, int room, int index) throws IOException;
+    }
+
+    /**
+     * The messages that are being resent to a user.
+     */
+    public static class Request {
+
+        private int room;
+        private int next;
+        private int end;
+        private int[] selective = new int[ReorderBuffer.WINDOW];
+        private int[] selectiveRooms = new int[ReorderBuffer.WINDOW];
+        private int selectiveCount = 0;
+        private double tokens;
+        private long refillTime;
+        private int index = -1;
+
+        private Request() {
+
+        }
+    }
+
+    private final MessageSender sender;
+    private final int rate;
+    private final int burst;
+    private final int window;
+    private final double batch;
+
+    private User[] users = new User[16];
+    private int count = 0;
+    private long nextTime = Long.MAX_VALUE;
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param sender sends a message of the history to a user
+     * @param rate how many messages per second are resent to each user
+     * @param burst how many messages can be resent at once to a user
+     * @param window how many messages can wait to be resent to a user, larger requests are cut
+     */
+    public ResendScheduler(MessageSender sender, int rate, int burst, int window) {
+        Objects.requireNonNull(sender, "Sender is null.");
+        this.sender = sender;
+        this.rate = rate;
+        this.burst = burst;
+        this.window = window;
+        //waits for a few tokens at once at high rates, so the server doesn't wake up for every message
+        this.batch = Math.min(burst, Math.max(1, rate / 100));
+    }
+
+    /**
+     * Schedules a range of messages to be resent, if the user already has a range being resent only the end of the range
+     * is extended, the messages before it are already on their way.
+     *
+     * @param user the user
+     * @param room the room of the messages
+     * @param from the first message
+     * @param to the end of the range, exclusive
+     * @param now the current time in milliseconds
+     */
+    public void request(User user, int room, int from, int to, long now) {
+        if (to <= from) {
+            return;
+        }
+        Request current = user.getResendRequest();
+        if (current != null && current.next < current.end && current.room != room) {
+            return;
+        }
+        Request request = schedule(user, now);
+        if (request.next >= request.end) {
+            request.room = room;
+            request.next = from;
+            request.end = to;
+        } else {
+            request.end = Math.max(request.end, to);
+        }
+        request.end = Math.min(request.end, request.next + this.window);
+    }
+
+    /**
+     * Schedules a single message to be resent, ignored if the message is already waiting to be resent.
+     *
+     * @param user the user
+     * @param room the room of the message
+     * @param index the message
+     * @param now the current time in milliseconds
+     */
+    public void requestSelective(User user, int room, int index, long now) {
+        Request request = schedule(user, now);
+        if (room == request.room && index >= request.next && index < request.end) {
+            return;
+        }
+        for (int i = 0; i < request.selectiveCount; i++) {
+            if (request.selective[i] == index && request.selectiveRooms[i] == room) {
+                return;
+            }
+        }
+        if (request.selectiveCount >= request.selective.length) {
+            if (request.selective.length >= this.window) {
+                return;
+            }
+            request.selective = Arrays.copyOf(request.selective, request.selective.length * 2);
+            request.selectiveRooms = Arrays.copyOf(request.selectiveRooms, request.selective.length);
+        }
+        request.selective[request.selectiveCount] = index;
+        request.selectiveRooms[request.selectiveCount] = room;
+        request.selectiveCount++;
+    }
+
+    private Request schedule(User user, long now) {
+        Request request = user.getResendRequest();
+        if (request == null) {
+            request = new Request();
+            request.tokens = this.burst;
+            request.refillTime = now;
+            user.setResendRequest(request);
+        }
+        if (request.index == -1) {
+            if (this.count >= this.users.length) {
+                this.users = Arrays.copyOf(this.users, this.users.length * 2);
+            }
+            request.index = this.count;
+            this.users[this.count] = user;
+            this.count++;
+        }
+        this.nextTime = now;
+        return request;
+    }
+
+    private void remove(int index) {
+        User user = this.users[index];
+        this.count--;
+        User last = this.users[this.count];
+        this.users[index] = last;
+        last.getResendRequest().index = index;
+        this.users[this.count] = null;
+        user.setResendRequest(null);
+    }
+
+    /**
+     * Sends the messages that the users have tokens for.
+     *
+     * @param now the current time in milliseconds
+     * @throws IOException if a message could not be sent
+     */
+    public void run(long now) throws IOException {
+        if (now < this.nextTime) {
+            return;
+        }
+        this.nextTime = Long.MAX_VALUE;
+        int i = 0;
+        while (i < this.count) {
+            User user = this.users[i];
+            Request request = user.getResendRequest();
+            if (user.isDisconnected()) {
+                remove(i);
+                continue;
+            }
+
+            request.tokens = Math.min(this.burst, request.tokens + ((now - request.refillTime) * this.rate) / 1000.0);
+            request.refillTime = now;
+            int sent = 0;
+            while (request.tokens >= 1.0 && sent < request.selectiveCount) {
+                this.sender.send(user, request.selectiveRooms[sent], request.selective[sent]);
+                sent++;
+                request.tokens -= 1.0;
+            }
+            if (sent > 0) {
+                System.arraycopy(request.selective, sent, request.selective, 0, request.selectiveCount - sent);
+                System.arraycopy(request.selectiveRooms, sent, request.selectiveRooms, 0, request.selectiveCount - sent);
+                request.selectiveCount -= sent;
+            }
+            while (request.tokens >= 1.0 && request.next < request.end) {
+                this.sender.send(user, request.room, request.next);
+                request.next++;
+                request.tokens -= 1.0;
+            }
+            if (request.selectiveCount == 0 && request.next >= request.end) {
+                remove(i);
+                continue;
+            }
+
+            long wait = (long) Math.ceil(((this.batch - request.tokens) * 1000.0) / this.rate);
+            this.nextTime = Math.min(this.nextTime, now + Math.max(wait, 1));
+            i++;
+        }
+    }
+
+    /**
+     * Returns when {@link #run(long)} has messages to send again.
+     *
+     * @return the time in milliseconds
+     */
+    public long getNextTime() {
+        return nextTime;
+    }
+
+    public int getPendingCount() {
+        return count;
+    }
+}
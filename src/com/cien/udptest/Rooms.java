@@ -0,0 +1,185 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * The rooms of a server, each with its own history, the lobby uses the history of the server. The other rooms are not
+ * persisted, keep {@link Main#ROOM_HISTORY_TAIL_SIZE} messages in the heap and spill the others to the rooms directory.
+ * Can be shared by the shards of a server.
+ *
+ * @author Cien
+ */
+public class Rooms {
+
+    public static class Room {
+
+        private final int id;
+        private final String name;
+        private final MessageHistory history;
+
+        private Room(int id, String name, MessageHistory history) {
+            this.id = id;
+            this.name = name;
+            this.history = history;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public MessageHistory getHistory() {
+            return history;
+        }
+    }
+
+    private final int historyTailSize;
+    private final Path directory;
+    private final HashMap<String, Room> names = new HashMap<>();
+    private final LongObjectMap<Room> ids = new LongObjectMap<>();
+    //the histories of the rooms other than the lobby, closed by a single hook when the process exits
+    private final List<MessageHistory> histories = new ArrayList<>();
+    private Thread cleaner = null;
+    private int nextId;
+
+    /**
+     * Creates the rooms of a server.
+     *
+     * @param lobbyHistory the history of the lobby
+     * @param config the config of the server
+     */
+    public Rooms(MessageHistory lobbyHistory, ServerConfig config) {
+        this(lobbyHistory, config, Main.LOBBY_ROOM + 1);
+    }
+
+    /**
+     * Creates the rooms of a server node, the nodes of a cluster give ids from different ranges to the rooms.
+     *
+     * @param lobbyHistory the history of the lobby
+     * @param config the config of the server
+     * @param firstId the id of the first room created
+     */
+    public Rooms(MessageHistory lobbyHistory, ServerConfig config, int firstId) {
+        Objects.requireNonNull(lobbyHistory, "Lobby history is null.");
+        Objects.requireNonNull(config, "Config is null.");
+        this.historyTailSize = Math.min(config.getHistoryTailSize(), Main.ROOM_HISTORY_TAIL_SIZE);
+        if (config.getJournalDirectory() != null) {
+            this.directory = config.getJournalDirectory().resolve("rooms");
+        } else if (config.getHistoryDirectory() != null) {
+            this.directory = config.getHistoryDirectory().resolve("rooms");
+        } else {
+            this.directory = null;
+        }
+        this.nextId = firstId;
+        Room lobby = new Room(Main.LOBBY_ROOM, Main.LOBBY_NAME, lobbyHistory);
+        this.names.put(lobby.getName(), lobby);
+        this.ids.put(lobby.getId(), lobby);
+        deleteDirectory();
+    }
+
+    /**
+     * Deletes the rooms spilled before the server exited, the rooms are not persisted.
+     */
+    private void deleteDirectory() {
+        if (this.directory == null || !Files.isDirectory(this.directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        } catch (IOException ex) {
+            System.out.println("Warning: Could not delete the old rooms in " + this.directory + ", " + ex.getMessage());
+        }
+    }
+
+    private MessageHistory newHistory(int id) {
+        if (this.cleaner == null) {
+            this.cleaner = new Thread(this::close, "Rooms-Cleaner");
+            Runtime.getRuntime().addShutdownHook(this.cleaner);
+        }
+        MessageHistory history = new MessageHistory(this.historyTailSize,
+                (this.directory != null ? this.directory.resolve("room-" + id) : null), false, false);
+        this.histories.add(history);
+        return history;
+    }
+
+    /**
+     * Deletes the spilled messages of every room but the lobby. Called when the process exits.
+     */
+    public synchronized void close() {
+        for (MessageHistory history : this.histories) {
+            history.close();
+        }
+        this.histories.clear();
+        deleteDirectory();
+    }
+
+    /**
+     * Returns the room with a name, the room is created if it doesn't exist.
+     *
+     * @param name the name
+     * @return the room or null if there are already {@link Main#MAX_ROOMS} rooms
+     */
+    public synchronized Room getOrCreate(String name) {
+        Objects.requireNonNull(name, "Name is null.");
+        Room room = this.names.get(name);
+        if (room != null) {
+            return room;
+        }
+        if (this.ids.size() >= Main.MAX_ROOMS) {
+            return null;
+        }
+        int id = this.nextId++;
+        room = new Room(id, name, newHistory(id));
+        this.names.put(name, room);
+        this.ids.put(room.getId(), room);
+        return room;
+    }
+
+    /**
+     * Adds a room created by other node of the cluster, its history is a replica of the history kept by the node.
+     *
+     * @param id the id given by the node
+     * @param name the name
+     * @return the room, the existing one if it was already added
+     */
+    public synchronized Room register(int id, String name) {
+        Objects.requireNonNull(name, "Name is null.");
+        Room room = this.ids.get(id);
+        if (room != null) {
+            return room;
+        }
+        room = new Room(id, name, newHistory(id));
+        this.names.put(name, room);
+        this.ids.put(id, room);
+        return room;
+    }
+
+    public synchronized Room get(int id) {
+        return this.ids.get(id);
+    }
+
+    public synchronized Room get(String name) {
+        return this.names.get(name);
+    }
+
+    public synchronized int size() {
+        return this.ids.size();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The versioned list of every user the server has seen, a change moves the entry of the user to the end so clients sync
+ * with the changes since their version. Clients older than a reaped entry receive the whole roster. Can be shared by
+ * the shards of a server.
+ *
+ * @author Cien
+ */
+public class Roster {
+
+    /**
+     * The last change of a user, entries are immutable once created so they can be encoded outside of the lock.
+     */
+    public static class Entry {
+
+        private final long userId;
+        private final byte[] name;
+        private final boolean disconnected;
+        private final long version;
+
+        private Entry previous;
+        private Entry next;
+
+        private Entry(long userId, byte[] name, boolean disconnected, long version) {
+            this.userId = userId;
+            this.name = name;
+            this.disconnected = disconnected;
+            this.version = version;
+        }
+
+        public long getUserId() {
+            return userId;
+        }
+
+        /**
+         * Returns the name of the user encoded as UTF-8, the array must not be modified.
+         *
+         * @return the name
+         */
+        public byte[] getName() {
+            return name;
+        }
+
+        public boolean isDisconnected() {
+            return disconnected;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private final LongObjectMap<Entry> entries = new LongObjectMap<>();
+    private Entry first;
+    private Entry last;
+    private volatile long version;
+    private long prunedVersion = 0;
+
+    public Roster() {
+        this.version = System.currentTimeMillis() * 1000;
+    }
+
+    private void unlink(Entry old) {
+        if (old.previous != null) {
+            old.previous.next = old.next;
+        } else {
+            this.first = old.next;
+        }
+        if (old.next != null) {
+            old.next.previous = old.previous;
+        } else {
+            this.last = old.previous;
+        }
+    }
+
+    private Entry update(long userId, byte[] name, boolean disconnected) {
+        Entry old = this.entries.get(userId);
+        if (old != null) {
+            unlink(old);
+        }
+        Entry entry = new Entry(userId, name, disconnected, this.version + 1);
+        entry.previous = this.last;
+        if (this.last != null) {
+            this.last.next = entry;
+        } else {
+            this.first = entry;
+        }
+        this.last = entry;
+        this.entries.put(userId, entry);
+        this.version = entry.version;
+        return entry;
+    }
+
+    /**
+     * Records a user that connected.
+     *
+     * @param user the user
+     * @return the new entry of the user
+     */
+    public synchronized Entry connected(User user) {
+        Objects.requireNonNull(user, "User is null.");
+        return update(user.getUserId(), user.getName().getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    /**
+     * Records users that connected, the entries get consecutive versions so they can be sent together.
+     *
+     * @param users the users
+     * @return the new entries of the users
+     */
+    public synchronized List<Entry> connected(List<User> users) {
+        List<Entry> list = new ArrayList<>(users.size());
+        for (User u : users) {
+            list.add(update(u.getUserId(), u.getName().getBytes(StandardCharsets.UTF_8), false));
+        }
+        return list;
+    }
+
+    /**
+     * Records a user that disconnected or timed out.
+     *
+     * @param user the user
+     * @return the new entry of the user
+     */
+    public synchronized Entry disconnected(User user) {
+        Objects.requireNonNull(user, "User is null.");
+        Entry old = this.entries.get(user.getUserId());
+        byte[] name = (old != null ? old.name : user.getName().getBytes(StandardCharsets.UTF_8));
+        return update(user.getUserId(), name, true);
+    }
+
+    /**
+     * Removes the entry of a user that was reaped, clients only learn its name from the tombstones after this.
+     *
+     * @param userId the id of the user
+     */
+    public synchronized void reaped(long userId) {
+        Entry old = this.entries.remove(userId);
+        if (old == null) {
+            return;
+        }
+        unlink(old);
+        this.prunedVersion = Math.max(this.prunedVersion, old.version);
+    }
+
+    /**
+     * Fills the roster with the users restored from the journal, called once before the server starts.
+     *
+     * @param users the restored users
+     */
+    public synchronized void restore(Iterable<User> users) {
+        for (User u : users) {
+            update(u.getUserId(), u.getName().getBytes(StandardCharsets.UTF_8), u.isDisconnected());
+        }
+    }
+
+    /**
+     * Returns the version of the last change.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the version of the newest entry that was removed, a client with a older version missed the change and
+     * must be sent every entry.
+     *
+     * @return the version or zero
+     */
+    public synchronized long getPrunedVersion() {
+        return prunedVersion;
+    }
+
+    /**
+     * Returns the entries that changed after a version, in the order they changed.
+     *
+     * @param since the version, zero for every entry
+     * @return the entries
+     */
+    public synchronized List<Entry> getSince(long since) {
+        Entry e = this.last;
+        while (e != null && e.previous != null && e.previous.version > since) {
+            e = e.previous;
+        }
+        List<Entry> list = new ArrayList<>();
+        while (e != null) {
+            if (e.version > since) {
+                list.add(e);
+            }
+            e = e.next;
+        }
+        return list;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+/**
+ * Estimates the round trip time of a user like TCP (RFC 6298) and chooses when to ping it again, stable users are
+ * pinged less often.
+ *
+ * @author Cien
+ */
+public class RttEstimator {
+
+    private long smoothedRtt = -1;
+    private long rttVariation = 0;
+
+    private long pingTime = -1;
+    private long lastPingTime = 0;
+    private long lastAnswerTime = 0;
+    private int interval = Main.PING_INTERVAL;
+    private int lostPings = 0;
+
+    public RttEstimator() {
+
+    }
+
+    /**
+     * Records a ping that was sent, a ping that is still unanswered when the next ping is sent counts as lost.
+     *
+     * @param nanoTime the value of {@link System#nanoTime()} sent in the ping
+     * @param now the current time in milliseconds
+     * @param maxInterval the largest interval the user accepts
+     */
+    public void pingSent(long nanoTime, long now, int maxInterval) {
+        if (this.pingTime != -1) {
+            this.lostPings++;
+            this.interval = Math.max(Main.PING_INTERVAL_MIN, this.interval / 2);
+        }
+        this.interval = Math.min(this.interval, maxInterval);
+        this.pingTime = nanoTime;
+        this.lastPingTime = now;
+    }
+
+    /**
+     * Records the answer of a ping.
+     *
+     * @param echoedTime the time echoed by the user
+     * @param nanoTime the current value of {@link System#nanoTime()}
+     * @param now the current time in milliseconds
+     * @param maxInterval the largest interval the user accepts
+     * @return false if the answer is not for the last ping sent, the answer is ignored
+     */
+    public boolean pingReceived(long echoedTime, long nanoTime, long now, int maxInterval) {
+        if (this.pingTime == -1 || echoedTime != this.pingTime) {
+            return false;
+        }
+        this.pingTime = -1;
+        this.lastAnswerTime = now;
+        long rtt = nanoTime - echoedTime;
+
+        //a sample above the retransmission timeout of TCP is a spike, with a millisecond of tolerance for the very
+        //short round trips of a local network
+        boolean spike = (this.smoothedRtt != -1 && rtt > this.smoothedRtt + 4 * this.rttVariation + 1_000_000L);
+
+        if (this.smoothedRtt == -1) {
+            this.smoothedRtt = rtt;
+            this.rttVariation = rtt / 2;
+        } else {
+            this.rttVariation = (3 * this.rttVariation + Math.abs(this.smoothedRtt - rtt)) / 4;
+            this.smoothedRtt = (7 * this.smoothedRtt + rtt) / 8;
+        }
+
+        if (spike) {
+            this.interval = Math.max(Main.PING_INTERVAL_MIN, this.interval / 2);
+        } else {
+            this.interval = Math.min(maxInterval, this.interval + this.interval / 2);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the smoothed round trip time.
+     *
+     * @return the time in nanoseconds or -1 if there's no sample yet
+     */
+    public long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Returns the variation of the round trip time, the jitter.
+     *
+     * @return the variation in nanoseconds
+     */
+    public long getRttVariation() {
+        return rttVariation;
+    }
+
+    /**
+     * Returns the ping of the user as shown to the clients, half of the smoothed round trip time.
+     *
+     * @return the ping in milliseconds
+     */
+    public int getPing() {
+        if (this.smoothedRtt == -1) {
+            return 0;
+        }
+        return (int) (this.smoothedRtt / 2_000_000L);
+    }
+
+    /**
+     * Returns the time between pings.
+     *
+     * @return the interval in milliseconds
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    public long getLastPingTime() {
+        return lastPingTime;
+    }
+
+    public long getLastAnswerTime() {
+        return lastAnswerTime;
+    }
+
+    public int getLostPings() {
+        return lostPings;
+    }
+}
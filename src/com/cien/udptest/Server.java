@@ -1,390 +1,1905 @@
-/*
- * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
- * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
- */
-package com.cien.udptest;
-
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketAddress;
-import java.net.SocketException;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-/**
- *
- * @author Cien
- */
-public class Server extends Thread {
-
-    private final DatagramSocket socket;
-    private final Users users;
-
-    private volatile RuntimeException receiverThreadException;
-    private final Thread receiverThread;
-
-    private final Queue<DatagramPacket> received = new ConcurrentLinkedQueue<>();
-
-    private UserMessage[] messages = new UserMessage[64];
-    private int currentMessagesIndex = 0;
-
-    public Server(int port, InetAddress address) throws SocketException {
-        this.socket = new DatagramSocket(port, address);
-        this.users = new Users();
-
-        this.receiverThread = new Thread(() -> {
-            try {
-                while (true) {
-                    DatagramPacket packet = new DatagramPacket(new byte[Main.PACKET_SIZE], Main.PACKET_SIZE);
-                    this.socket.receive(packet);
-                    this.received.add(packet);
-                }
-            } catch (IOException ex) {
-                throw new UncheckedIOException(ex);
-            }
-        }, "Receiver-Thread-" + port);
-        this.receiverThread.setDaemon(true);
-        this.receiverThread.setUncaughtExceptionHandler((t, e) -> {
-            this.receiverThreadException = new RuntimeException("Exception in " + t.getName(), e);
-        });
-    }
-    
-    public Server(int port) throws SocketException {
-        this(port, null);
-    }
-
-    public DatagramSocket getSocket() {
-        return socket;
-    }
-
-    @Override
-    public void run() {
-        this.receiverThread.start();
-
-        try {
-            while (true) {
-                loop();
-            }
-        } catch (InterruptedException | IOException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private void loop() throws InterruptedException, IOException {
-        if (this.receiverThreadException != null) {
-            throw this.receiverThreadException;
-        }
-
-        DatagramPacket r;
-        while ((r = this.received.poll()) != null) {
-            processPacket(r);
-        }
-
-        byte[] packetData = new byte[Main.PACKET_SIZE];
-        ByteBuffer packetBuffer = ByteBuffer.wrap(packetData);
-        for (User s : this.users.getUsers()) {
-            if (s.hasTimedOut() && !s.isDisconnected()) {
-                s.disconnect();
-                System.out.println("Info: " + s.toDetailedString() + " Timed out!");
-                continue;
-            }
-            if (System.currentTimeMillis() >= s.getNextPingTime()) {
-                s.setNextPingTime(System.currentTimeMillis() + Main.PING_INTERVAL);
-                packetBuffer
-                        .rewind()
-                        .putLong(Main.MAGIC_NUMBER)
-                        .putInt(Main.PING_PACKET)
-                        .putLong(System.currentTimeMillis())
-                        .putInt(this.currentMessagesIndex);
-                this.socket.send(new DatagramPacket(packetData, packetData.length, s.getSocketAddress()));
-            }
-        }
-
-        Thread.sleep(Main.TPS);
-    }
-
-    private void processPacket(DatagramPacket packet) throws IOException {
-        ByteBuffer packetBuffer = ByteBuffer.wrap(packet.getData());
-        SocketAddress socketAddress = packet.getSocketAddress();
-        User user = this.users.getBySocketAddress(socketAddress);
-        
-        if (user != null) {
-            if (user.isDisconnected()) {
-                System.out.println("Warning: Received packet from a disconnected user, ignoring. "+user.toDetailedString());
-                return;
-            }
-            user.updateLastPacketReceivedTime();
-        }
-
-        if (packetBuffer.getLong() != Main.MAGIC_NUMBER) {
-            System.out.println("Warning: Received packet with unknown magic number from " + socketAddress);
-            return;
-        }
-
-        int packetId = packetBuffer.getInt();
-
-        switch (packetId) {
-            case Main.LOGIN_PACKET -> {
-                if (user != null) {
-                    packetBuffer
-                            .rewind()
-                            .putLong(Main.MAGIC_NUMBER)
-                            .putInt(Main.LOGIN_PACKET)
-                            .putLong(user.getUserId());
-
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), socketAddress));
-                    return;
-                }
-                
-                int nameSize = packetBuffer.getInt();
-                if (nameSize < 0 || nameSize > Main.PAYLOAD_SIZE) {
-                    System.out.println("Warning: Received login packet with name size too large (or too small!) from " + socketAddress + ", " + nameSize);
-                    return;
-                }
-                byte[] nameData = new byte[nameSize];
-                packetBuffer.get(nameData);
-
-                String name = new String(nameData, StandardCharsets.UTF_8);
-
-                long userId = -1;
-                
-                boolean nameConflict = false;
-                for (User u:this.users.getUsers()) {
-                    if (u.isDisconnected()) {
-                        continue;
-                    }
-                    if (u.getName().equals(name)) {
-                        nameConflict = true;
-                        break;
-                    }
-                }
-                
-                if (!nameConflict) {
-                    user = new User(name, socketAddress);
-                    user.updateLastPacketReceivedTime();
-                    user.setNextPingTime(System.currentTimeMillis() + Main.PING_INTERVAL);
-
-                    userId = user.getUserId();
-
-                    packetBuffer
-                            .rewind()
-                            .putLong(Main.MAGIC_NUMBER)
-                            .putInt(Main.IDENTIFY_PACKET)
-                            .putLong(user.getUserId())
-                            .putInt(0)
-                            .putInt(nameData.length)
-                            .put(nameData);
-
-                    for (User otherUser : this.users.getUsers()) {
-                        if (otherUser.isDisconnected()) {
-                            continue;
-                        }
-                        this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), otherUser.getSocketAddress()));
-                    }
-
-                    System.out.println("Info: " + user.toDetailedString() + " Connected!");
-                    this.users.add(user);
-                }
-
-                packetBuffer
-                        .rewind()
-                        .putLong(Main.MAGIC_NUMBER)
-                        .putInt(Main.LOGIN_PACKET)
-                        .putLong(userId);
-
-                this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), socketAddress));
-            }
-        }
-
-        if (user == null) {
-            return;
-        }
-
-        switch (packetId) {
-            case Main.MESSAGE_PACKET -> {
-                int currentMessageId = packetBuffer.getInt();
-                if (currentMessageId < user.getNextMessageId()) {
-                    System.out.println("Warning: Received old message packet from " + user.toDetailedString() + ", discarded!");
-                    return;
-                }
-                if (currentMessageId > user.getNextMessageId()) {
-                    packetBuffer
-                            .rewind()
-                            .putLong(Main.MAGIC_NUMBER)
-                            .putInt(Main.RESEND_MESSAGE_PACKET)
-                            .putInt(user.getNextMessageId())
-                            .putInt(currentMessageId + 1);
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), socketAddress));
-                    System.out.println("Warning: Message packet drop detected from " + user.toDetailedString() + "! (" + ((currentMessageId + 1) - user.getNextMessageId()) + " packets!)");
-                    return;
-                }
-                user.incrementMessageId();
-
-                int messageSize = packetBuffer.getInt();
-                if (messageSize < 0 || messageSize > Main.PAYLOAD_SIZE) {
-                    System.out.println("Warning: Received message packet with message size too large (or too small!) from " + socketAddress + ", " + messageSize + " bytes");
-                    return;
-                }
-                byte[] messageData = new byte[messageSize];
-                packetBuffer.get(messageData);
-
-                String message = new String(messageData, StandardCharsets.UTF_8);
-
-                packetBuffer
-                        .rewind()
-                        .putLong(Main.MAGIC_NUMBER)
-                        .putInt(Main.MESSAGE_PACKET)
-                        .putInt(this.currentMessagesIndex)
-                        .putLong(user.getUserId())
-                        .putInt(messageData.length)
-                        .put(messageData);
-
-                for (User u : this.users.getUsers()) {
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), u.getSocketAddress()));
-                }
-
-                if (this.currentMessagesIndex >= this.messages.length) {
-                    this.messages = Arrays.copyOf(this.messages, this.messages.length * 2);
-                }
-                this.messages[this.currentMessagesIndex] = new UserMessage(user, message);
-                this.currentMessagesIndex++;
-
-                System.out.println("Info: " + user.toDetailedString() + " -> " + message);
-            }
-            case Main.IDENTIFY_PACKET -> {
-                long userId = packetBuffer.getLong();
-                if (userId == -1) {
-                    for (User otherUser : this.users.getUsers()) {
-                        if (otherUser.equals(user)) {
-                            continue;
-                        }
-                        
-                        String username = otherUser.getName();
-                        byte[] usernameData = username.getBytes(StandardCharsets.UTF_8);
-
-                        packetBuffer
-                                .rewind()
-                                .putLong(Main.MAGIC_NUMBER)
-                                .putInt(Main.IDENTIFY_PACKET)
-                                .putLong(otherUser.getUserId())
-                                .putInt(otherUser.isDisconnected() ? 1 : 0)
-                                .putInt(usernameData.length)
-                                .put(usernameData);
-                        this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), socketAddress));
-                    }
-                    return;
-                }
-
-                User otherUser = this.users.getByUserId(userId);
-                if (otherUser == null) {
-                    System.out.println("Warning: " + user.toDetailedString() + " requested info about unknown user id " + userId + "!");
-                    return;
-                }
-
-                String username = otherUser.getName();
-                byte[] usernameData = username.getBytes(StandardCharsets.UTF_8);
-
-                packetBuffer
-                        .rewind()
-                        .putLong(Main.MAGIC_NUMBER)
-                        .putInt(Main.IDENTIFY_PACKET)
-                        .putLong(otherUser.getUserId())
-                        .putInt(otherUser.isDisconnected() ? 1 : 0)
-                        .putInt(usernameData.length)
-                        .put(usernameData);
-                this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), socketAddress));
-            }
-            case Main.RESEND_MESSAGE_PACKET -> {
-                int from = packetBuffer.getInt();
-                int to = packetBuffer.getInt();
-
-                if (to == -1) {
-                    to = this.currentMessagesIndex;
-                }
-                if (from < 0 || to > this.currentMessagesIndex) {
-                    System.out.println("Warning: " + user.toDetailedString() + " requested a invalid range of messages, from " + from + ", to " + to);
-                    return;
-                }
-
-                for (int i = from; i < to; i++) {
-                    UserMessage message = this.messages[i];
-                    byte[] messageData = message.getMessage().getBytes(StandardCharsets.UTF_8);
-
-                    packetBuffer
-                            .rewind()
-                            .putLong(Main.MAGIC_NUMBER)
-                            .putInt(Main.MESSAGE_PACKET)
-                            .putInt(i)
-                            .putLong(message.getUser().getUserId())
-                            .putInt(messageData.length)
-                            .put(messageData);
-
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), socketAddress));
-                }
-            }
-            case Main.PING_PACKET -> {
-                long time = packetBuffer.getLong();
-                int ping = (int) ((System.currentTimeMillis() - time) / 2);
-
-                if (ping < 0) {
-                    System.out.println("Warning: " + user.toDetailedString() + " sent an invalid ping time (negative ping!), " + time);
-                    return;
-                }
-
-                user.setPing(ping);
-
-                packetBuffer
-                        .rewind()
-                        .putLong(Main.MAGIC_NUMBER)
-                        .putInt(Main.USER_PING_VALUE_PACKET)
-                        .putLong(user.getUserId())
-                        .putInt(ping);
-                for (User s : this.users.getUsers()) {
-                    if (s.isDisconnected()) {
-                        continue;
-                    }
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), s.getSocketAddress()));
-                }
-            }
-            case Main.DISCONNECTED_PACKET -> {
-                user.disconnect();
-                System.out.println("Info: " + user.toDetailedString() + " Disconnected!");
-                
-                packetBuffer
-                        .rewind()
-                        .putLong(Main.MAGIC_NUMBER)
-                        .putInt(Main.DISCONNECTED_PACKET)
-                        .putLong(user.getUserId());
-                for (User s : this.users.getUsers()) {
-                    if (s.isDisconnected()) {
-                        continue;
-                    }
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), s.getSocketAddress()));
-                }
-            }
-            case Main.TYPING_PACKET -> {
-                packetBuffer
-                        .rewind()
-                        .putLong(Main.MAGIC_NUMBER)
-                        .putInt(Main.TYPING_PACKET)
-                        .putLong(user.getUserId());
-                
-                for (User s : this.users.getUsers()) {
-                    if (s.isDisconnected()) {
-                        continue;
-                    }
-                    if (s.equals(user)) {
-                        continue;
-                    }
-                    this.socket.send(new DatagramPacket(packet.getData(), packet.getLength(), s.getSocketAddress()));
-                }
-            }
-        }
-    }
-}
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *
+ * @author Cien
+ */
+public class Server extends Thread {
+
+    public static enum Engine {
+        /**
+         * A receiver thread feeds a queue that is drained every tick.
+         */
+        POLLING,
+        /**
+         * The transport is polled by the server thread, packets are processed as soon as they arrive.
+         */
+        SELECTOR
+    }
+
+    /**
+     * A message of a user that arrived before one of its previous messages.
+     */
+    static class PendingMessage {
+
+        private final int room;
+        private final byte[] data;
+
+        PendingMessage(int room, byte[] data) {
+            this.room = room;
+            this.data = data;
+        }
+
+        int getRoom() {
+            return room;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+    }
+
+    private final ServerConfig config;
+    private final Engine engine;
+
+    private final Transport transport;
+    private final Network.Poller<Transport> poller;
+    private final Users users;
+
+    private final BufferPool bufferPool;
+    private final PacketWriter writer = new PacketWriter();
+    private final Broadcaster broadcaster = new Broadcaster(this::send);
+    private final Broadcaster lobby = new Broadcaster(this::send, Main.LOBBY_ROOM);
+    //the members in this shard of each room
+    private final LongObjectMap<Broadcaster> members = new LongObjectMap<>();
+    private final FrameCoalescer coalescer;
+    private final ResendScheduler resendScheduler;
+    private final LoginCookies loginCookies;
+    private final LoginQueue loginQueue;
+    private final List<User> joined = new ArrayList<>();
+    private final int[] missing = new int[ReorderBuffer.WINDOW];
+    private final int capabilities;
+
+    private volatile RuntimeException receiverThreadException;
+    private final Thread receiverThread;
+
+    private final BlockingQueue<PooledBuffer> received;
+
+    private final ShardGroup group;
+    private final Cluster cluster;
+    private final ClusterNode clusterNode;
+    private final int shardIndex;
+    private final Queue<ShardGroup.SharedPacket> inbox = new ConcurrentLinkedQueue<>();
+
+    private final MessageHistory history;
+    private final Tombstones tombstones;
+    private final Roster roster;
+    private final Rooms rooms;
+    private final Journal journal;
+    private final Replicator replicator;
+    private final Standby standby;
+
+    private final TimerWheel timers = new TimerWheel(System.currentTimeMillis());
+    private final TimerWheel.Timer unclaimedTimer = new TimerWheel.Timer(this::pingUnclaimed);
+    private final TimerWheel.Timer digestTimer = new TimerWheel.Timer(this::sendPingDigest);
+    private User[] pingChanges = new User[64];
+    private int pingChangeCount = 0;
+    private long nextPingKeepalive = 0;
+    private final TimerWheel.Timer typingDigestTimer = new TimerWheel.Timer(this::sendTypingDigest);
+    private final TimerWheel.Timer heartbeatTimer = new TimerWheel.Timer(this::sendHeartbeats);
+    private final TimerWheel.Timer replicationTimer = new TimerWheel.Timer(this::replicationHeartbeat);
+    //a typing user knows its index, a user that stopped typing is flagged so it's sent once
+    private User[] typingUsers = new User[64];
+    private int typingCount = 0;
+    private User[] stoppedTyping = new User[64];
+    private int stoppedTypingCount = 0;
+    private User[] typingEntries = new User[64];
+    private boolean typingChanged = false;
+    private long nextFailureWarning = 0;
+    private int suppressedFailures = 0;
+
+    public Server(ServerConfig config) throws IOException {
+        this(config, null, null, 0);
+    }
+
+    /**
+     * Creates a server or a shard of a group.
+     *
+     * @param config the config
+     * @param transport a already bound transport, or null to open one on the network of the config
+     * @param group the group of the shard or null
+     * @param shardIndex the index of the shard in the group
+     * @throws IOException if the transport could not be opened
+     */
+    Server(ServerConfig config, Transport transport, ShardGroup group, int shardIndex) throws IOException {
+        Objects.requireNonNull(config, "Config is null.");
+        this.config = config;
+        this.engine = config.getEngine();
+        this.users = new Users();
+        this.group = group;
+        this.shardIndex = shardIndex;
+        if (config.getClusterNodes() != null) {
+            if (group != null || config.getJournalDirectory() != null) {
+                throw new IllegalArgumentException("Cluster nodes can't use shards or a journal.");
+            }
+            this.cluster = new Cluster(config.getClusterNodes(), config.getNodeIndex());
+            User.restoreLastUserId(this.cluster.getFirstUserId());
+        } else {
+            this.cluster = null;
+        }
+        this.history = (group != null ? group.getHistory() : MessageHistory.create(config));
+        this.tombstones = (group != null ? group.getTombstones() : new Tombstones());
+        this.roster = (group != null ? group.getRoster() : new Roster());
+        if (group != null) {
+            this.rooms = group.getRooms();
+        } else if (this.cluster != null) {
+            this.rooms = new Rooms(this.history, config, this.cluster.getFirstRoomId());
+        } else {
+            this.rooms = new Rooms(this.history, config);
+        }
+        this.clusterNode = (this.cluster != null ? new ClusterNode(this.cluster, this::send, this.rooms, new NodeListener()) : null);
+        this.members.put(Main.LOBBY_ROOM, this.lobby);
+
+        this.bufferPool = new BufferPool(config.getBufferPoolSize(), Main.PACKET_SIZE, config.isDirectBuffers());
+
+        this.coalescer = (config.isCoalesce() ? new FrameCoalescer(this::send, config.getFlushDelay()) : null);
+        this.capabilities = getCapabilities(config);
+        this.resendScheduler = new ResendScheduler(this::resend, config.getResendRate(), Main.RESEND_BURST, config.getResendWindow());
+        this.loginCookies = new LoginCookies(group != null ? group.getCookieSecret() : LoginCookies.createSecret());
+        //each shard admits its part of the rate, zero unverified logins per second still refuses them on every shard
+        int shards = config.getShards();
+        int unverifiedLoginRate = config.getUnverifiedLoginRate();
+        this.loginQueue = new LoginQueue(
+                Math.max(1, config.getLoginRate() / shards),
+                Math.max(1, config.getLoginQueueSize() / shards),
+                (unverifiedLoginRate == 0 ? 0 : Math.max(1, unverifiedLoginRate / shards)),
+                System.currentTimeMillis()
+        );
+
+        if (config.getStandbyAddress() != null || config.getPrimaryAddress() != null) {
+            if (group != null || this.cluster != null) {
+                throw new IllegalArgumentException("A primary or a standby can't use shards or a cluster.");
+            }
+            if (config.getPrimaryAddress() != null && (config.getStandbyAddress() != null || config.getJournalDirectory() != null)) {
+                throw new IllegalArgumentException("A standby can't have a standby or a journal.");
+            }
+        }
+
+        if (group != null) {
+            this.journal = group.getJournal();
+        } else if (config.getJournalDirectory() != null) {
+            this.journal = new Journal(config, this.history, this.tombstones, () -> Arrays.asList(this.users.getUsers()));
+            for (User u : this.journal.replay()) {
+                restore(u);
+                this.users.add(u);
+            }
+            this.roster.restore(Arrays.asList(this.users.getUsers()));
+        } else {
+            this.journal = null;
+        }
+
+        if (config.getStandbyAddress() != null) {
+            this.replicator = new Replicator(config.getStandbyAddress(), this::send, this.history, this.tombstones, () -> Arrays.asList(this.users.getUsers()));
+        } else {
+            this.replicator = null;
+        }
+        if (config.getPrimaryAddress() != null) {
+            this.standby = new Standby(config.getPrimaryAddress(), this::send, this.history, this.tombstones);
+        } else {
+            this.standby = null;
+        }
+
+        int port = config.getPort();
+
+        if (transport == null) {
+            transport = config.getNetwork().open(new InetSocketAddress(config.getAddress(), port));
+        }
+        this.transport = transport;
+        try {
+            this.poller = config.getNetwork().openPoller();
+            this.poller.register(this.transport, this.transport);
+        } catch (IOException | RuntimeException ex) {
+            this.transport.close();
+            throw ex;
+        }
+
+        if (this.engine == Engine.SELECTOR) {
+            this.receiverThread = null;
+            this.received = null;
+            if (group != null) {
+                setName("Server-Shard-" + shardIndex);
+            }
+            return;
+        }
+
+        this.received = new ArrayBlockingQueue<>(this.bufferPool.getCapacity());
+
+        this.receiverThread = new Thread(() -> {
+            try {
+                while (true) {
+                    PooledBuffer buffer = this.bufferPool.lease();
+                    while (!buffer.receive(this.transport)) {
+                        this.poller.select(Long.MAX_VALUE, Server::ignore);
+                    }
+                    this.received.put(buffer);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }, "Receiver-Thread-" + port);
+        this.receiverThread.setDaemon(true);
+        this.receiverThread.setUncaughtExceptionHandler((t, e) -> {
+            this.receiverThreadException = new RuntimeException("Exception in " + t.getName(), e);
+        });
+    }
+
+    /**
+     * Returns the capabilities a server with this config accepts.
+     *
+     * @param config the config
+     * @return the capabilities
+     */
+    static int getCapabilities(ServerConfig config) {
+        if (config.isCoalesce()) {
+            return Main.CAPABILITY_MULTI_FRAME | Main.CAPABILITY_COMPACT_FORMAT | Main.CAPABILITY_SACK
+                    | Main.CAPABILITY_ADAPTIVE_PING | Main.CAPABILITY_PING_DIGEST | Main.CAPABILITY_TYPING_DIGEST
+                    | Main.CAPABILITY_ROSTER | Main.CAPABILITY_ROOMS;
+        }
+        return Main.CAPABILITY_COMPACT_FORMAT | Main.CAPABILITY_SACK | Main.CAPABILITY_ADAPTIVE_PING | Main.CAPABILITY_PING_DIGEST
+                | Main.CAPABILITY_TYPING_DIGEST | Main.CAPABILITY_ROSTER | Main.CAPABILITY_ROOMS;
+    }
+
+    public Server(int port, InetAddress address) throws IOException {
+        this(new ServerConfig(port, address));
+    }
+
+    public Server(int port) throws IOException {
+        this(port, null);
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public ShardGroup getGroup() {
+        return group;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    public Tombstones getTombstones() {
+        return tombstones;
+    }
+
+    public Roster getRoster() {
+        return roster;
+    }
+
+    public Rooms getRooms() {
+        return rooms;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public Replicator getReplicator() {
+        return replicator;
+    }
+
+    public Standby getStandby() {
+        return standby;
+    }
+
+    public LoginQueue getLoginQueue() {
+        return loginQueue;
+    }
+
+    /**
+     * Queues a broadcast from other shard, can be called from any thread.
+     */
+    void deliver(ShardGroup.SharedPacket packet) {
+        boolean wasEmpty = this.inbox.isEmpty();
+        this.inbox.offer(packet);
+        if (wasEmpty) {
+            this.poller.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (this.group != null && this.shardIndex == 0) {
+                this.timers.schedule(this.unclaimedTimer, System.currentTimeMillis());
+            }
+            this.timers.schedule(this.digestTimer, System.currentTimeMillis() + Main.PING_DIGEST_INTERVAL);
+            if (this.cluster != null) {
+                this.timers.schedule(this.heartbeatTimer, System.currentTimeMillis());
+            }
+            if (this.replicator != null || this.standby != null) {
+                this.timers.schedule(this.replicationTimer, System.currentTimeMillis());
+            }
+            if (this.engine == Engine.SELECTOR) {
+                while (true) {
+                    selectorLoop();
+                }
+            }
+
+            this.receiverThread.start();
+            while (true) {
+                loop();
+            }
+        } catch (InterruptedException | IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void selectorLoop() throws IOException {
+        long nextTime = this.timers.getNextTime();
+        if (this.coalescer != null) {
+            nextTime = Math.min(nextTime, this.coalescer.getNextFlushTime());
+        }
+        if (this.journal != null) {
+            nextTime = Math.min(nextTime, this.journal.getNextFlushTime());
+        }
+        nextTime = Math.min(nextTime, this.resendScheduler.getNextTime());
+        nextTime = Math.min(nextTime, this.loginQueue.getNextTime());
+        long timeout = nextTime - System.currentTimeMillis();
+        this.poller.select(timeout, Server::ignore);
+
+        advanceTimers();
+
+        PooledBuffer buffer = this.bufferPool.lease();
+        while (buffer.receive(this.transport)) {
+            processPacket(buffer);
+            buffer = this.bufferPool.lease();
+        }
+        buffer.release();
+
+        ShardGroup.SharedPacket shared;
+        while ((shared = this.inbox.poll()) != null) {
+            shared.load(this.writer);
+            if (shared.getRoom() != -1) {
+                Broadcaster roomMembers = this.members.get(shared.getRoom());
+                if (roomMembers != null) {
+                    roomMembers.broadcast(this.writer);
+                }
+                continue;
+            }
+            this.broadcaster.broadcast(this.writer, shared.getExcept(), shared.getCapability(), shared.isSupported());
+        }
+
+        admitLogins(this.timers.getTime());
+
+        this.resendScheduler.run(this.timers.getTime());
+
+        if (this.coalescer != null) {
+            this.coalescer.flushIfDue(this.timers.getTime());
+        }
+
+        if (this.journal != null) {
+            this.journal.flush(this.timers.getTime());
+        }
+
+        if (this.replicator != null) {
+            this.replicator.flush();
+        }
+    }
+
+    private void loop() throws InterruptedException, IOException {
+        if (this.receiverThreadException != null) {
+            throw this.receiverThreadException;
+        }
+
+        advanceTimers();
+
+        PooledBuffer r;
+        while ((r = this.received.poll()) != null) {
+            processPacket(r);
+        }
+
+        admitLogins(this.timers.getTime());
+
+        this.resendScheduler.run(this.timers.getTime());
+
+        if (this.coalescer != null) {
+            this.coalescer.flushAll();
+        }
+
+        if (this.journal != null) {
+            this.journal.flush(this.timers.getTime());
+        }
+
+        if (this.replicator != null) {
+            this.replicator.flush();
+        }
+
+        Thread.sleep(Main.TPS);
+    }
+
+    /**
+     * Runs the expired timers, a task that fails is logged so a single user can't stop the server.
+     */
+    private void advanceTimers() throws IOException {
+        try {
+            this.timers.advance(System.currentTimeMillis());
+        } catch (RuntimeException ex) {
+            warnFailure("Timer task failed", ex);
+        }
+    }
+
+    /**
+     * Logs a failed timer task or packet in a single line, at most once every {@link Main#FAILURE_WARNING_INTERVAL}, the
+     * failures in between are only counted.
+     */
+    private void warnFailure(String failure, RuntimeException ex) {
+        long now = System.currentTimeMillis();
+        if (now < this.nextFailureWarning) {
+            this.suppressedFailures++;
+            return;
+        }
+        this.nextFailureWarning = now + Main.FAILURE_WARNING_INTERVAL;
+        StackTraceElement[] trace = ex.getStackTrace();
+        System.out.println("Warning: " + failure + ", " + ex
+                + (trace.length > 0 ? " at " + trace[0] : "")
+                + (this.suppressedFailures > 0 ? ", " + this.suppressedFailures + " failures were not logged" : ""));
+        this.suppressedFailures = 0;
+    }
+
+    /**
+     * Creates the timers and the round trip estimator of a user, the timers are scheduled by the caller.
+     */
+    private void initTimers(User user) {
+        if (user.getPingTimer() != null) {
+            return;
+        }
+        if (user.getRttEstimator() == null) {
+            user.setRttEstimator(new RttEstimator());
+        }
+        user.setPingTimer(new TimerWheel.Timer((timer, now) -> ping(user, now)));
+        user.setTimeoutTimer(new TimerWheel.Timer((timer, now) -> checkTimeout(user, now)));
+        user.setAckTimer(new TimerWheel.Timer((timer, now) -> repeatAck(user, now)));
+        user.setTypingTimer(new TimerWheel.Timer((timer, now) -> {
+            if (user.hasTypingTimedOut(now)) {
+                stopTyping(user);
+            } else if (user.isTyping()) {
+                this.timers.schedule(timer, user.getTypingTime() + 1);
+            }
+        }));
+    }
+
+    /**
+     * Clients that don't support adaptive pings warn about a lost connection after a second without packets.
+     */
+    private static int getMaxPingInterval(User user) {
+        if (user.hasCapability(Main.CAPABILITY_ADAPTIVE_PING)) {
+            return Main.PING_INTERVAL_MAX;
+        }
+        return Main.PING_INTERVAL;
+    }
+
+    private void ping(User user, long now) throws IOException {
+        if (user.isDisconnected()) {
+            return;
+        }
+        RttEstimator rtt = user.getRttEstimator();
+        int maxInterval = getMaxPingInterval(user);
+
+        //other packets received since the last ping already show the user is alive, the ping is delayed up to the
+        //largest interval just to measure the round trip time
+        long lastPing = rtt.getLastPingTime();
+        if (user.getLastPacketReceivedTime() > Math.max(lastPing, rtt.getLastAnswerTime()) && now - lastPing < maxInterval) {
+            this.timers.schedule(user.getPingTimer(), lastPing + maxInterval);
+            return;
+        }
+
+        long nanoTime = System.nanoTime();
+        rtt.pingSent(nanoTime, now, maxInterval);
+        this.writer
+                .begin(Main.PING_PACKET)
+                .putLong(nanoTime)
+                .putInt(this.history.size());
+        if (user.hasCapability(Main.CAPABILITY_ROSTER)) {
+            //clients behind the roster version ask for the changes they missed
+            this.writer.putLong(this.roster.getVersion());
+        }
+        if (user.hasCapability(Main.CAPABILITY_ROOMS)) {
+            //the history sizes of the other rooms, clients join again the rooms missing from the list
+            int[] userRooms = user.getRooms();
+            this.writer.putInt(userRooms.length - (user.getRoomSlot(Main.LOBBY_ROOM) != -1 ? 1 : 0));
+            for (int room : userRooms) {
+                if (room != Main.LOBBY_ROOM) {
+                    this.writer
+                            .putInt(room)
+                            .putInt(this.rooms.get(room).getHistory().size());
+                }
+            }
+        }
+        sendNow(this.writer, user);
+        this.timers.schedule(user.getPingTimer(), now + rtt.getInterval());
+    }
+
+    /**
+     * Times out a user or reaps a user that disconnected a while ago, the timer is only moved forward when it expires
+     * so receiving a packet doesn't touch the wheel.
+     */
+    private void checkTimeout(User user, long now) throws IOException {
+        if (user.isDisconnected()) {
+            if (now - user.getDisconnectedTime() >= Main.REAP_DELAY) {
+                reap(user);
+            } else {
+                this.timers.schedule(user.getTimeoutTimer(), user.getDisconnectedTime() + Main.REAP_DELAY);
+            }
+            return;
+        }
+        if (user.hasTimedOut(now)) {
+            disconnect(user);
+            System.out.println("Info: " + user.toDetailedString() + " Timed out!");
+            return;
+        }
+        this.timers.schedule(user.getTimeoutTimer(), user.getLastPacketReceivedTime() + Main.MAX_TIMEOUT_WARNINGS * 1000);
+    }
+
+    /**
+     * Acknowledges again while messages of a user are still missing, the resent messages may have been lost too.
+     */
+    private void repeatAck(User user, long now) throws IOException {
+        ReorderBuffer<PendingMessage> reorderBuffer = user.getReorderBuffer();
+        if (user.isDisconnected() || reorderBuffer == null || reorderBuffer.isEmpty()) {
+            return;
+        }
+        if (reorderBuffer.isAckDue(now)) {
+            sendAck(user);
+        }
+        this.timers.schedule(user.getAckTimer(), now + Main.SACK_INTERVAL);
+    }
+
+    /**
+     * Encodes a ping digest of the next connected users from a offset, the user ids and the pings are delta encoded from
+     * the previous entry, so with sorted ids most entries take two or three bytes in the compact format.
+     *
+     * @return the index after the last user encoded
+     */
+    private int writePingDigest(User[] entries, int offset, int length) {
+        this.writer
+                .begin(Main.PING_DIGEST_PACKET)
+                .putInt(length);
+        long previousId = 0;
+        int previousPing = 0;
+        int i = offset;
+        for (int written = 0; written < length; i++) {
+            User u = entries[i];
+            if (u.isDisconnected()) {
+                continue;
+            }
+            written++;
+            int ping = u.getDigestPing();
+            this.writer
+                    .putLong(u.getUserId() - previousId)
+                    .putInt(ping - previousPing);
+            previousId = u.getUserId();
+            previousPing = ping;
+        }
+        return i;
+    }
+
+    /**
+     * Encodes roster entries, the packet carries the version the entries apply to and the version they lead to, so
+     * clients only apply packets that continue their version and ask again when one is missing.
+     */
+    private void writeRoster(List<Roster.Entry> entries, int offset, int length, long from) {
+        Roster.Entry last = entries.get(offset + length - 1);
+        this.writer
+                .begin(Main.ROSTER_PACKET)
+                .putLong(from)
+                .putLong(last.getVersion() - from)
+                .putInt(length);
+        long previousId = 0;
+        for (int i = offset; i < offset + length; i++) {
+            Roster.Entry e = entries.get(i);
+            this.writer
+                    .putLong(e.getUserId() - previousId)
+                    .putInt(e.isDisconnected() ? 1 : 0)
+                    .putBytes(e.getName());
+            previousId = e.getUserId();
+        }
+    }
+
+    /**
+     * Returns how many roster entries fit in a packet, sized for the legacy format that is never smaller than the
+     * compact one.
+     */
+    private static int getRosterLength(List<Roster.Entry> entries, int offset) {
+        int size = Long.BYTES + Integer.BYTES + Long.BYTES * 2 + Integer.BYTES;
+        int length = 0;
+        while (offset + length < entries.size()) {
+            size += Long.BYTES + Integer.BYTES * 2 + entries.get(offset + length).getName().length;
+            if (size > Main.PACKET_SIZE && length > 0) {
+                break;
+            }
+            length++;
+        }
+        return length;
+    }
+
+    private static void sortById(User[] users, int length) {
+        Arrays.sort(users, 0, length, (a, b) -> Long.compare(a.getUserId(), b.getUserId()));
+    }
+
+    /**
+     * Sends the pings of the users of this shard that changed since the last digest to everyone, every
+     * {@link Main#PING_DIGEST_KEEPALIVE} milliseconds the pings of every user are sent, clients use it to know the users
+     * are still connected. Clients without digests receive a ping value packet for each user instead.
+     */
+    private void sendPingDigest(TimerWheel.Timer timer, long now) throws IOException {
+        this.timers.schedule(timer, now + Main.PING_DIGEST_INTERVAL);
+
+        int changed = this.pingChangeCount;
+        this.pingChangeCount = 0;
+        for (int i = 0; i < changed; i++) {
+            this.pingChanges[i].setPingChanged(false);
+        }
+
+        //disconnected users are skipped instead of removed, the users snapshot is shared
+        User[] entries;
+        int length;
+        if (now >= this.nextPingKeepalive) {
+            this.nextPingKeepalive = now + Main.PING_DIGEST_KEEPALIVE;
+            entries = this.users.getUsers();
+            length = entries.length;
+        } else {
+            entries = this.pingChanges;
+            length = changed;
+            sortById(entries, length);
+        }
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            User u = entries[i];
+            if (!u.isDisconnected()) {
+                u.setDigestPing(u.getPing());
+                count++;
+            }
+        }
+
+        int next = 0;
+        for (int i = 0; i < count; i += Main.PING_DIGEST_ENTRIES) {
+            next = writePingDigest(entries, next, Math.min(Main.PING_DIGEST_ENTRIES, count - i));
+            broadcast(this.writer, null, Main.CAPABILITY_PING_DIGEST, true);
+        }
+        for (int i = 0; i < length; i++) {
+            User u = entries[i];
+            if (u.isDisconnected()) {
+                continue;
+            }
+            this.writer
+                    .begin(Main.USER_PING_VALUE_PACKET)
+                    .putLong(u.getUserId())
+                    .putInt(u.getDigestPing());
+            broadcast(this.writer, null, Main.CAPABILITY_PING_DIGEST, false);
+        }
+        Arrays.fill(this.pingChanges, 0, changed, null);
+    }
+
+    private void startTyping(User user) {
+        if (!user.isTyping()) {
+            if (this.typingCount >= this.typingUsers.length) {
+                this.typingUsers = Arrays.copyOf(this.typingUsers, this.typingUsers.length * 2);
+            }
+            user.setTypingIndex(this.typingCount);
+            this.typingUsers[this.typingCount++] = user;
+            user.setTypingStopped(false);
+            typingChanged();
+        }
+        user.typing(this.timers.getTime());
+        this.timers.schedule(user.getTypingTimer(), user.getTypingTime() + 1);
+    }
+
+    private void stopTyping(User user) {
+        if (!user.isTyping()) {
+            return;
+        }
+        removeTyping(user);
+        if (!user.isTypingStopped()) {
+            if (this.stoppedTypingCount >= this.stoppedTyping.length) {
+                this.stoppedTyping = Arrays.copyOf(this.stoppedTyping, this.stoppedTyping.length * 2);
+            }
+            user.setTypingStopped(true);
+            this.stoppedTyping[this.stoppedTypingCount++] = user;
+        }
+        typingChanged();
+    }
+
+    /**
+     * Stops the typing of a user and moves the last typing user to its index.
+     */
+    private void removeTyping(User user) {
+        user.stopTyping();
+        this.timers.cancel(user.getTypingTimer());
+        int index = user.getTypingIndex();
+        if (index < 0) {
+            return;
+        }
+        User last = this.typingUsers[--this.typingCount];
+        this.typingUsers[index] = last;
+        last.setTypingIndex(index);
+        this.typingUsers[this.typingCount] = null;
+        user.setTypingIndex(-1);
+    }
+
+    /**
+     * Collects the changes of the typing users for a short while, so a burst of changes is sent in a single digest.
+     */
+    private void typingChanged() {
+        this.typingChanged = true;
+        long time = this.timers.getTime() + Main.TYPING_DIGEST_INTERVAL;
+        if (!this.typingDigestTimer.isScheduled() || this.typingDigestTimer.getDeadline() > time) {
+            this.timers.schedule(this.typingDigestTimer, time);
+        }
+    }
+
+    /**
+     * Sends the users of this shard that are typing and the users that stopped typing to everyone, only when the typing
+     * users changed or to refresh the typing users before the clients expire them. Clients without digests receive a
+     * typing packet for each typing user instead, they expire the users that stopped typing by themselves.
+     */
+    private void sendTypingDigest(TimerWheel.Timer timer, long now) throws IOException {
+        if (this.typingCount != 0) {
+            this.timers.schedule(timer, now + Main.TYPING_DIGEST_REFRESH);
+        }
+
+        int count = this.typingCount + this.stoppedTypingCount;
+        if (count == 0 || (!this.typingChanged && this.typingCount == 0)) {
+            return;
+        }
+        if (count > this.typingEntries.length) {
+            this.typingEntries = new User[Math.max(count, this.typingEntries.length * 2)];
+        }
+        User[] entries = this.typingEntries;
+        System.arraycopy(this.typingUsers, 0, entries, 0, this.typingCount);
+        count = this.typingCount;
+        for (int i = 0; i < this.stoppedTypingCount; i++) {
+            User u = this.stoppedTyping[i];
+            //users that started typing again are already in the typing users
+            if (u.isTypingStopped()) {
+                u.setTypingStopped(false);
+                entries[count++] = u;
+            }
+        }
+        Arrays.fill(this.stoppedTyping, 0, this.stoppedTypingCount, null);
+        this.stoppedTypingCount = 0;
+        this.typingChanged = false;
+        sortById(entries, count);
+
+        for (int i = 0; i < count; i += Main.TYPING_DIGEST_ENTRIES) {
+            int length = Math.min(Main.TYPING_DIGEST_ENTRIES, count - i);
+            this.writer
+                    .begin(Main.TYPING_DIGEST_PACKET)
+                    .putInt(length);
+            long previousId = 0;
+            for (int j = i; j < i + length; j++) {
+                User u = entries[j];
+                this.writer
+                        .putLong(u.getUserId() - previousId)
+                        .putInt(u.isTyping() ? 1 : 0);
+                previousId = u.getUserId();
+            }
+            broadcast(this.writer, null, Main.CAPABILITY_TYPING_DIGEST, true);
+        }
+        for (int i = 0; i < count; i++) {
+            User u = entries[i];
+            if (!u.isTyping()) {
+                continue;
+            }
+            this.writer
+                    .begin(Main.TYPING_PACKET)
+                    .putLong(u.getUserId());
+            broadcast(this.writer, u, Main.CAPABILITY_TYPING_DIGEST, false);
+        }
+        Arrays.fill(entries, 0, count, null);
+    }
+
+    /**
+     * The first shard pings the restored users that no shard received a packet from yet, the pings are recorded in
+     * their round trip estimators like {@link #ping(User, long)} so the shard that claims a user accepts the answer.
+     */
+    private void pingUnclaimed(TimerWheel.Timer timer, long now) throws IOException {
+        for (User s : this.group.getUnclaimed()) {
+            if (s.hasTimedOut(now)) {
+                if (this.group.unclaimedTimedOut(s)) {
+                    this.users.add(s);
+                    initTimers(s);
+                    disconnect(s);
+                    System.out.println("Info: " + s.toDetailedString() + " Timed out!");
+                }
+                continue;
+            }
+            if (s.getRttEstimator() == null) {
+                s.setRttEstimator(new RttEstimator());
+            }
+            long nanoTime = System.nanoTime();
+            s.getRttEstimator().pingSent(nanoTime, now, getMaxPingInterval(s));
+            this.writer
+                    .begin(Main.PING_PACKET)
+                    .putLong(nanoTime)
+                    .putInt(this.history.size());
+            if (s.hasCapability(Main.CAPABILITY_ROSTER)) {
+                this.writer.putLong(this.roster.getVersion());
+            }
+            if (s.hasCapability(Main.CAPABILITY_ROOMS)) {
+                this.writer.putInt(0);
+            }
+            send(this.writer.get(s.getWireFormat()), s.getSocketAddress());
+        }
+        if (!this.group.getUnclaimed().isEmpty()) {
+            this.timers.schedule(timer, now + Main.PING_INTERVAL);
+        }
+    }
+
+    /**
+     * Admits the queued logins the rate allows, the users that joined are announced together.
+     */
+    private void admitLogins(long now) throws IOException {
+        LoginQueue.Login login;
+        while ((login = this.loginQueue.poll(now)) != null) {
+            User user = admit(login, now);
+            if (user != null) {
+                this.joined.add(user);
+            }
+        }
+        if (this.joined.isEmpty()) {
+            return;
+        }
+        if (this.cluster != null) {
+            for (User u : this.joined) {
+                this.clusterNode.sendUser(u);
+            }
+        }
+        announceJoined();
+    }
+
+    /**
+     * Announces the users that joined to the connected users, in roster packets or one by one to old clients.
+     */
+    private void announceJoined() throws IOException {
+        List<Roster.Entry> entries = this.roster.connected(this.joined);
+        int offset = 0;
+        long from = entries.get(0).getVersion() - 1;
+        while (offset < entries.size()) {
+            int length = getRosterLength(entries, offset);
+            writeRoster(entries, offset, length, from);
+            broadcast(this.writer, null, Main.CAPABILITY_ROSTER, true);
+            offset += length;
+            from = entries.get(offset - 1).getVersion();
+        }
+
+        for (User u : this.joined) {
+            this.writer
+                    .begin(Main.IDENTIFY_PACKET)
+                    .putLong(u.getUserId())
+                    .putInt(0)
+                    .putBytes(u.getName().getBytes(StandardCharsets.UTF_8));
+            broadcast(this.writer, u, Main.CAPABILITY_ROSTER, false);
+        }
+        this.joined.clear();
+    }
+
+    /**
+     * Creates the user of a login and answers it.
+     *
+     * @return the user or null if the name is already used
+     */
+    private User admit(LoginQueue.Login login, long now) throws IOException {
+        SocketAddress socketAddress = login.getAddress();
+        String name = new String(login.getName(), StandardCharsets.UTF_8);
+        int acceptedCapabilities = login.getCapabilities() & this.capabilities;
+
+        User user = null;
+        long userId = -1;
+
+        boolean nameConflict = (this.group == null && this.users.getByActiveName(name) != null);
+
+        if (!nameConflict) {
+            user = new User(name, socketAddress);
+            if (this.group != null && !this.group.register(user)) {
+                user = null;
+            }
+        }
+
+        if (user != null) {
+            user.setCapabilities(acceptedCapabilities);
+            user.updateLastPacketReceivedTime(now);
+            initTimers(user);
+            this.timers.schedule(user.getPingTimer(), now + Main.PING_INTERVAL);
+            this.timers.schedule(user.getTimeoutTimer(), user.getLastPacketReceivedTime() + Main.MAX_TIMEOUT_WARNINGS * 1000);
+
+            userId = user.getUserId();
+
+            System.out.println("Info: " + user.toDetailedString() + " Connected!");
+            this.users.add(user);
+            this.broadcaster.add(user);
+            this.lobby.add(user);
+            if (this.journal != null) {
+                this.journal.userConnected(user);
+            }
+            if (this.replicator != null) {
+                this.replicator.userConnected(user);
+            }
+        }
+
+        ByteBuffer loginBuffer = this.writer.get(WireFormat.LEGACY);
+        this.writer
+                .begin(Main.LOGIN_PACKET)
+                .putLong(userId);
+        loginBuffer
+                .putInt(Main.LOGIN_ACCEPTED_CAPABILITIES_MARKER)
+                .putInt(acceptedCapabilities);
+        if (user != null) {
+            putFailover(loginBuffer);
+        }
+
+        send(loginBuffer, socketAddress);
+        return user;
+    }
+
+    private void disconnect(User user) throws IOException {
+        stopTyping(user);
+        user.disconnect();
+        Roster.Entry entry = this.roster.disconnected(user);
+        writeRoster(List.of(entry), 0, 1, entry.getVersion() - 1);
+        broadcast(this.writer, null, Main.CAPABILITY_ROSTER, true);
+        if (this.cluster != null) {
+            this.clusterNode.sendUser(user);
+        }
+        this.timers.cancel(user.getPingTimer());
+        this.timers.cancel(user.getAckTimer());
+        this.timers.schedule(user.getTimeoutTimer(), user.getDisconnectedTime() + Main.REAP_DELAY);
+        this.broadcaster.remove(user);
+        for (int room : user.getRooms()) {
+            leave(user, room);
+        }
+        if (this.group != null) {
+            this.group.disconnected(user);
+        }
+        if (this.journal != null) {
+            this.journal.userDisconnected(user);
+        }
+        if (this.replicator != null) {
+            this.replicator.userDisconnected(user);
+        }
+    }
+
+    /**
+     * Appends the addresses a client can fail over to without logging in again to a login response.
+     */
+    private void putFailover(ByteBuffer loginBuffer) {
+        if (this.replicator == null) {
+            return;
+        }
+        InetSocketAddress standbyAddress = this.replicator.getStandbyAddress();
+        byte[] standbyIp = standbyAddress.getAddress().getAddress();
+        loginBuffer
+                .putInt(Main.LOGIN_FAILOVER_MARKER)
+                .putInt(1)
+                .putInt(standbyIp.length)
+                .put(standbyIp)
+                .putInt(standbyAddress.getPort());
+    }
+
+    /**
+     * Prepares a user restored from the journal to receive packets again, the user gets the full timeout to send a
+     * packet to the restarted server.
+     */
+    void restore(User user) {
+        user.setCapabilities(user.getCapabilities() & this.capabilities);
+        user.updateLastPacketReceivedTime(this.timers.getTime());
+        initTimers(user);
+        this.timers.schedule(user.getPingTimer(), this.timers.getTime());
+        this.timers.schedule(user.getTimeoutTimer(), user.getLastPacketReceivedTime() + Main.MAX_TIMEOUT_WARNINGS * 1000);
+        this.broadcaster.add(user);
+        this.lobby.add(user);
+    }
+
+    /**
+     * Moves a disconnected user to the tombstones, only the id and the name are kept.
+     */
+    private void reap(User user) {
+        this.tombstones.add(user);
+        this.roster.reaped(user.getUserId());
+        this.users.remove(user);
+        if (this.group != null) {
+            this.group.reaped(user);
+        }
+    }
+
+    /**
+     * Sends a packet to every connected user, including the users of the other shards.
+     */
+    private void broadcast(PacketWriter packet, User except) throws IOException {
+        broadcast(packet, except, 0, true);
+    }
+
+    /**
+     * Sends a packet to every connected user that supports (or doesn't support) a capability, including the users of
+     * the other shards.
+     */
+    private void broadcast(PacketWriter packet, User except, int capability, boolean supported) throws IOException {
+        this.broadcaster.broadcast(packet, except, capability, supported);
+        if (this.group != null) {
+            this.group.publish(this, packet, except, capability, supported);
+        }
+    }
+
+    /**
+     * Sends a packet to the members of a room, including the members in the other shards.
+     */
+    private void broadcast(PacketWriter packet, int room) throws IOException {
+        Broadcaster roomMembers = this.members.get(room);
+        if (roomMembers != null) {
+            roomMembers.broadcast(packet);
+        }
+        if (this.group != null) {
+            this.group.publish(this, packet, room);
+        }
+    }
+
+    private void join(User user, Rooms.Room room) {
+        Broadcaster roomMembers = this.members.get(room.getId());
+        if (roomMembers == null) {
+            roomMembers = new Broadcaster(this::send, room.getId());
+            this.members.put(room.getId(), roomMembers);
+        }
+        if (!roomMembers.contains(user)) {
+            roomMembers.add(user);
+        }
+    }
+
+    private void leave(User user, int room) {
+        Broadcaster roomMembers = this.members.get(room);
+        if (roomMembers == null || !roomMembers.contains(user)) {
+            return;
+        }
+        roomMembers.remove(user);
+        if (roomMembers.size() == 0 && room != Main.LOBBY_ROOM) {
+            this.members.remove(room);
+        }
+    }
+
+    /**
+     * Tells a user it is not a member of a room, the client stops waiting for the messages of the room.
+     */
+    private void sendLeave(User user, int room) throws IOException {
+        this.writer
+                .begin(Main.LEAVE_ROOM_PACKET)
+                .putInt(room);
+        send(this.writer, user);
+    }
+
+    /**
+     * Tells a user it joined a room.
+     */
+    private void sendJoined(User user, Rooms.Room room) throws IOException {
+        int size = room.getHistory().size();
+        if (this.cluster != null) {
+            //a replica still catching up tells the size of the owner, the missing messages arrive as they are delivered
+            size = Math.max(size, this.cluster.getKnownSize(room.getId()));
+        }
+        this.writer
+                .begin(Main.JOIN_ROOM_PACKET)
+                .putInt(room.getId())
+                .putInt(size)
+                .putBytes(room.getName().getBytes(StandardCharsets.UTF_8));
+        send(this.writer, user);
+    }
+
+    /**
+     * Tells a user it could not join a room, a join answer with a room id of -1.
+     */
+    private void sendJoinRefused(User user, byte[] nameData) throws IOException {
+        this.writer
+                .begin(Main.JOIN_ROOM_PACKET)
+                .putInt(-1)
+                .putInt(0)
+                .putBytes(nameData);
+        send(this.writer, user);
+    }
+
+    /**
+     * Checks if a user can join other room, the history size of every room of a user is sent in its pings.
+     */
+    private static boolean canJoinRoom(User user) {
+        int userRooms = user.getRooms().length - (user.getRoomSlot(Main.LOBBY_ROOM) != -1 ? 1 : 0);
+        return userRooms < Main.MAX_ROOMS_PER_USER;
+    }
+
+    private Rooms.Room createRoom(String name) {
+        Rooms.Room room = this.rooms.getOrCreate(name);
+        if (room != null && this.cluster != null) {
+            this.cluster.owned(room.getId());
+        }
+        return room;
+    }
+
+    /**
+     * Returns the history of a room if the user is a member of it.
+     */
+    private MessageHistory getRoomHistory(User user, int room) {
+        if (user.getRoomSlot(room) == -1) {
+            return null;
+        }
+        return this.rooms.get(room).getHistory();
+    }
+
+    private User getUserById(long userId) {
+        User user = this.users.getByUserId(userId);
+        if (user == null && this.group != null) {
+            user = this.group.getByUserId(userId);
+        }
+        if (user == null && this.cluster != null) {
+            user = this.cluster.getRemoteUsers().getByUserId(userId);
+        }
+        return user;
+    }
+
+    private void send(ByteBuffer packetBuffer, SocketAddress address) throws IOException {
+        this.transport.send(packetBuffer, address);
+    }
+
+    private static void ignore(Transport transport) {
+        //the server has a single transport, it receives until it is empty after every select
+    }
+
+    /**
+     * Sends a packet to a user in its format, packed with other frames if the user supports it.
+     */
+    private void send(PacketWriter packet, User user) throws IOException {
+        send(packet.get(user.getWireFormat()), user);
+    }
+
+    /**
+     * Sends a already encoded packet to a user, the packet must be in the format of the user.
+     */
+    private void send(ByteBuffer packetBuffer, User user) throws IOException {
+        if (user.hasCapability(Main.CAPABILITY_MULTI_FRAME)) {
+            this.coalescer.append(user.getFrameBuffer(), packetBuffer);
+            return;
+        }
+        send(packetBuffer, user.getSocketAddress());
+    }
+
+    /**
+     * Sends a packet to a user in its format as a single datagram, after any pending frames.
+     */
+    private void sendNow(PacketWriter packet, User user) throws IOException {
+        ByteBuffer packetBuffer = packet.get(user.getWireFormat());
+        if (user.hasCapability(Main.CAPABILITY_MULTI_FRAME)) {
+            this.coalescer.send(packetBuffer, user.getFrameBuffer());
+            return;
+        }
+        send(packetBuffer, user.getSocketAddress());
+    }
+
+    /**
+     * Accepts the next message of a user, the message is added to the history of the room and sent to its members.
+     */
+    private void acceptMessage(User user, int room, byte[] messageData) throws IOException {
+        //clients stop showing the user as typing when the message arrives
+        if (user.isTyping()) {
+            removeTyping(user);
+        }
+        int messageId = user.getNextMessageId();
+        user.incrementMessageId();
+
+        MessageHistory roomHistory = getRoomHistory(user, room);
+        if (roomHistory == null) {
+            //the message still takes its id, or the next messages of the user would wait for it forever
+            if (this.journal != null) {
+                this.journal.messageIdUsed(user, messageId);
+            }
+            if (this.replicator != null) {
+                this.replicator.messageIdUsed(user, messageId);
+            }
+            System.out.println("Warning: " + user.toDetailedString() + " sent a message to room " + room + " without joining it, discarded!");
+            sendLeave(user, room);
+            return;
+        }
+
+        if (this.cluster != null && !this.cluster.isOwner(room)) {
+            //the owner of the room gives the message its place and sends it back
+            this.clusterNode.forward(room, user.getUserId(), messageData);
+        } else {
+            int messageIndex;
+            if (room == Main.LOBBY_ROOM && this.journal != null) {
+                messageIndex = this.journal.appendMessage(user, messageId, messageData);
+            } else {
+                if (this.journal != null) {
+                    this.journal.messageIdUsed(user, messageId);
+                }
+                messageIndex = roomHistory.append(user.getUserId(), messageData);
+            }
+            if (this.replicator != null) {
+                if (room == Main.LOBBY_ROOM) {
+                    this.replicator.messageAppended(messageIndex, user, messageId, messageData);
+                } else {
+                    this.replicator.messageIdUsed(user, messageId);
+                }
+            }
+            sendRoomMessage(room, messageIndex, user.getUserId(), messageData);
+        }
+
+        if (room != Main.LOBBY_ROOM) {
+            System.out.println("Info: " + user.toDetailedString() + " -> [" + this.rooms.get(room).getName() + "] " + new String(messageData, StandardCharsets.UTF_8));
+            return;
+        }
+        System.out.println("Info: " + user.toDetailedString() + " -> " + new String(messageData, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a message of the history of a room to the members of the room, and to the nodes with members in the room
+     * if this node owns it.
+     */
+    private void sendRoomMessage(int room, int index, long userId, byte[] messageData) throws IOException {
+        this.writer
+                .begin(Main.MESSAGE_PACKET)
+                .putInt(index)
+                .putLong(userId)
+                .putBytes(messageData);
+        if (room != Main.LOBBY_ROOM) {
+            this.writer.putInt(room);
+        }
+        broadcast(this.writer, room);
+
+        if (this.cluster != null) {
+            this.clusterNode.deliver(room, index, userId, messageData);
+        }
+    }
+
+    /**
+     * Tells a user which of its messages were received after a missing message.
+     */
+    private void sendAck(User user) throws IOException {
+        this.writer
+                .begin(Main.ACK_PACKET)
+                .putInt(user.getNextMessageId())
+                .putLong(user.getReorderBuffer().getBitmap(user.getNextMessageId()));
+        send(this.writer, user);
+    }
+
+    /**
+     * Sends the last pings sent of every connected user to a user that just joined.
+     */
+    private void sendFullPingDigest(Iterable<User> allUsers, User user) throws IOException {
+        User[] entries = new User[64];
+        int count = 0;
+        for (User u : allUsers) {
+            if (u.isDisconnected()) {
+                continue;
+            }
+            if (count >= entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[count++] = u;
+        }
+        sortById(entries, count);
+        for (int i = 0; i < count; i += Main.PING_DIGEST_ENTRIES) {
+            writePingDigest(entries, i, Math.min(Main.PING_DIGEST_ENTRIES, count - i));
+            send(this.writer, user);
+        }
+    }
+
+    /**
+     * Sends a message of the history of a room to a user, called by the resend scheduler.
+     */
+    private void resend(User user, int room, int index) throws IOException {
+        if (room != Main.LOBBY_ROOM) {
+            MessageHistory roomHistory = getRoomHistory(user, room);
+            if (roomHistory == null) {
+                return;
+            }
+            this.writer
+                    .begin(Main.MESSAGE_PACKET)
+                    .putInt(index)
+                    .putLong(roomHistory.getUserId(index))
+                    .putBytes(roomHistory.getMessage(index))
+                    .putInt(room);
+            send(this.writer, user);
+            return;
+        }
+        if (user.getWireFormat() == WireFormat.COMPACT) {
+            send(this.history.getPacket(index), user);
+            return;
+        }
+        this.writer
+                .begin(Main.MESSAGE_PACKET)
+                .putInt(index)
+                .putLong(this.history.getUserId(index))
+                .putBytes(this.history.getMessage(index));
+        send(this.writer, user);
+    }
+
+    private void processPacket(PooledBuffer buffer) throws IOException {
+        try {
+            processPacket(buffer.getData(), buffer.getAddress());
+        } catch (BufferUnderflowException ex) {
+            System.out.println("Warning: Received truncated packet from " + buffer.getAddress() + ", " + buffer.getLength() + " bytes");
+        } catch (WireFormat.MalformedPacketException ex) {
+            System.out.println("Warning: Received malformed packet from " + buffer.getAddress() + ", " + ex.getMessage());
+        } catch (RuntimeException ex) {
+            //a packet that breaks the server must not stop it for every other user
+            warnFailure("Failed to process packet from " + buffer.getAddress(), ex);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private void processPacket(ByteBuffer packetBuffer, SocketAddress socketAddress) throws IOException {
+        if (this.cluster != null) {
+            int node = this.cluster.getNode(socketAddress);
+            if (node != -1) {
+                this.clusterNode.received(packetBuffer, node, this.timers.getTime());
+                return;
+            }
+        }
+        if (this.replicator != null && this.replicator.isStandby(socketAddress)) {
+            this.replicator.process(packetBuffer);
+            return;
+        }
+        if (this.standby != null && this.standby.isPrimary(socketAddress)) {
+            this.standby.process(packetBuffer, this.timers.getTime());
+            return;
+        }
+        if (this.standby != null && !this.standby.hasTakenOver()) {
+            //the clients are answered by the primary until it stops
+            return;
+        }
+
+        User user = this.users.getBySocketAddress(socketAddress);
+        
+        if (user == null && this.group != null) {
+            user = this.group.claim(socketAddress);
+            if (user != null) {
+                restore(user);
+                this.users.add(user);
+            }
+        }
+        
+        if (user != null) {
+            if (user.isDisconnected()) {
+                System.out.println("Warning: Received packet from a disconnected user, ignoring. "+user.toDetailedString());
+                return;
+            }
+            user.updateLastPacketReceivedTime(this.timers.getTime());
+        }
+
+        WireFormat format = WireFormat.detect(packetBuffer);
+        if (format == null) {
+            System.out.println("Warning: Received packet with unknown magic number from " + socketAddress);
+            return;
+        }
+
+        int packetId = format.readHeader(packetBuffer);
+
+        if (packetId == Main.MULTI_FRAME_PACKET) {
+            if (user == null) {
+                System.out.println("Warning: Received multi frame packet from unknown address " + socketAddress);
+                return;
+            }
+            int limit = packetBuffer.limit();
+            while (packetBuffer.hasRemaining()) {
+                int frameLength = format.getFrameLength(packetBuffer);
+                if (frameLength == 0) {
+                    break;
+                }
+                if (frameLength > packetBuffer.remaining()) {
+                    System.out.println("Warning: Received truncated frame from " + user.toDetailedString() + ", " + frameLength + " bytes");
+                    return;
+                }
+                int end = packetBuffer.position() + frameLength;
+                packetBuffer.limit(end);
+                int framePacketId = format.getPacketId(packetBuffer);
+                if (framePacketId == Main.LOGIN_PACKET || framePacketId == Main.MULTI_FRAME_PACKET) {
+                    System.out.println("Warning: Received invalid frame " + framePacketId + " from " + user.toDetailedString());
+                } else {
+                    processFrame(format, framePacketId, packetBuffer, socketAddress, user);
+                }
+                packetBuffer.limit(limit).position(end);
+            }
+            return;
+        }
+
+        processFrame(format, packetId, packetBuffer, socketAddress, user);
+    }
+
+    private void processFrame(WireFormat format, int packetId, ByteBuffer packetBuffer, SocketAddress socketAddress, User user) throws IOException {
+        switch (packetId) {
+            case Main.LOGIN_PACKET -> {
+                if (user != null) {
+                    ByteBuffer loginBuffer = this.writer.get(WireFormat.LEGACY);
+                    this.writer
+                            .begin(Main.LOGIN_PACKET)
+                            .putLong(user.getUserId());
+                    loginBuffer
+                            .putInt(Main.LOGIN_ACCEPTED_CAPABILITIES_MARKER)
+                            .putInt(user.getCapabilities());
+                    putFailover(loginBuffer);
+
+                    if (user.hasCapability(Main.CAPABILITY_MULTI_FRAME)) {
+                        this.coalescer.flush(user.getFrameBuffer());
+                    }
+                    send(loginBuffer, socketAddress);
+                    return;
+                }
+                
+                if (format != WireFormat.LEGACY) {
+                    System.out.println("Warning: Received login packet in the " + format + " format from " + socketAddress + ", login must use the legacy format.");
+                    return;
+                }
+                
+                byte[] nameData;
+                try {
+                    nameData = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                } catch (WireFormat.MalformedPacketException ex) {
+                    System.out.println("Warning: Received login packet with name size too large (or too small!) from " + socketAddress + ", " + ex.getMessage());
+                    return;
+                }
+
+                int requestedCapabilities = 0;
+                boolean cookies = false;
+                long cookie = 0;
+                if (packetBuffer.remaining() >= Integer.BYTES * 2 && packetBuffer.getInt() == Main.LOGIN_CAPABILITIES_MARKER) {
+                    requestedCapabilities = packetBuffer.getInt();
+                    if (packetBuffer.remaining() >= Integer.BYTES + Long.BYTES && packetBuffer.getInt() == Main.LOGIN_COOKIE_MARKER) {
+                        cookies = true;
+                        cookie = packetBuffer.getLong();
+                    }
+                }
+
+                //clients with cookies understand redirects, old clients are admitted by any node
+                if (cookies && this.cluster != null) {
+                    int owner = this.cluster.getOwner(new String(nameData, StandardCharsets.UTF_8));
+                    if (owner != this.cluster.getNodeIndex()) {
+                        InetSocketAddress ownerAddress = this.cluster.getNodeAddress(owner);
+                        byte[] ownerIp = ownerAddress.getAddress().getAddress();
+                        ByteBuffer redirectBuffer = this.writer.get(WireFormat.LEGACY);
+                        this.writer
+                                .begin(Main.LOGIN_PACKET)
+                                .putLong(Main.LOGIN_REDIRECT);
+                        redirectBuffer
+                                .putInt(ownerIp.length)
+                                .put(ownerIp)
+                                .putInt(ownerAddress.getPort());
+                        send(redirectBuffer, socketAddress);
+                        return;
+                    }
+                }
+
+                long now = this.timers.getTime();
+                if (this.loginQueue.contains(socketAddress)) {
+                    if (cookies) {
+                        this.writer
+                                .begin(Main.LOGIN_PACKET)
+                                .putLong(Main.LOGIN_QUEUED);
+                        send(this.writer.get(WireFormat.LEGACY), socketAddress);
+                    }
+                    return;
+                }
+
+                //the challenge is smaller than a login with a cookie, so it can't be used to amplify traffic
+                if (cookies && !this.loginCookies.verify(cookie, socketAddress, now)) {
+                    ByteBuffer challengeBuffer = this.writer.get(WireFormat.LEGACY);
+                    this.writer
+                            .begin(Main.LOGIN_PACKET)
+                            .putLong(Main.LOGIN_COOKIE_REQUIRED);
+                    challengeBuffer
+                            .putInt(Main.LOGIN_COOKIE_MARKER)
+                            .putLong(this.loginCookies.create(socketAddress, now));
+                    send(challengeBuffer, socketAddress);
+                    return;
+                }
+
+                if (this.loginQueue.offer(socketAddress, nameData, requestedCapabilities, cookies, now) && cookies) {
+                    this.writer
+                            .begin(Main.LOGIN_PACKET)
+                            .putLong(Main.LOGIN_QUEUED);
+                    send(this.writer.get(WireFormat.LEGACY), socketAddress);
+                }
+                return;
+            }
+        }
+
+        if (user == null) {
+            return;
+        }
+
+        switch (packetId) {
+            case Main.MESSAGE_PACKET -> {
+                int currentMessageId = format.getInt(packetBuffer);
+                if (currentMessageId < user.getNextMessageId()) {
+                    System.out.println("Warning: Received old message packet from " + user.toDetailedString() + ", discarded!");
+                    return;
+                }
+                ReorderBuffer<PendingMessage> reorderBuffer = user.getReorderBuffer();
+                if (currentMessageId > user.getNextMessageId() && reorderBuffer == null) {
+                    this.writer
+                            .begin(Main.RESEND_MESSAGE_PACKET)
+                            .putInt(user.getNextMessageId())
+                            .putInt(currentMessageId + 1);
+                    send(this.writer, user);
+                    System.out.println("Warning: Message packet drop detected from " + user.toDetailedString() + "! (" + ((currentMessageId + 1) - user.getNextMessageId()) + " packets!)");
+                    return;
+                }
+
+                byte[] messageData;
+                try {
+                    messageData = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                } catch (WireFormat.MalformedPacketException ex) {
+                    System.out.println("Warning: Received message packet with message size too large (or too small!) from " + socketAddress + ", " + ex.getMessage());
+                    return;
+                }
+                int room = (packetBuffer.hasRemaining() ? format.getInt(packetBuffer) : Main.LOBBY_ROOM);
+
+                if (currentMessageId > user.getNextMessageId()) {
+                    if (!reorderBuffer.add(user.getNextMessageId(), currentMessageId, new PendingMessage(room, messageData))) {
+                        System.out.println("Warning: Message packet from " + user.toDetailedString() + " is too far ahead, discarded!");
+                    }
+                    if (reorderBuffer.isAckDue(this.timers.getTime())) {
+                        sendAck(user);
+                    }
+                    if (!user.getAckTimer().isScheduled()) {
+                        this.timers.schedule(user.getAckTimer(), this.timers.getTime() + Main.SACK_INTERVAL);
+                    }
+                    return;
+                }
+
+                acceptMessage(user, room, messageData);
+
+                if (reorderBuffer != null && !reorderBuffer.isEmpty()) {
+                    reorderBuffer.discardBefore(user.getNextMessageId());
+                    PendingMessage next;
+                    while ((next = reorderBuffer.take(user.getNextMessageId())) != null) {
+                        acceptMessage(user, next.getRoom(), next.getData());
+                    }
+                }
+            }
+            case Main.ACK_PACKET -> {
+                int expected = format.getInt(packetBuffer);
+                long bitmap = format.getLong(packetBuffer);
+                int room = (packetBuffer.hasRemaining() ? format.getInt(packetBuffer) : Main.LOBBY_ROOM);
+
+                MessageHistory roomHistory = getRoomHistory(user, room);
+                if (roomHistory == null) {
+                    sendLeave(user, room);
+                    return;
+                }
+                int historySize = roomHistory.size();
+                int count = ReorderBuffer.getMissing(expected, bitmap, this.missing);
+                for (int i = 0; i < count; i++) {
+                    int index = this.missing[i];
+                    if (index < 0 || index >= historySize) {
+                        System.out.println("Warning: " + user.toDetailedString() + " acknowledged a invalid message, " + index);
+                        return;
+                    }
+                    this.resendScheduler.requestSelective(user, room, index, this.timers.getTime());
+                }
+            }
+            case Main.IDENTIFY_PACKET -> {
+                long userId = format.getLong(packetBuffer);
+                if (userId == -1) {
+                    Iterable<User> allUsers = (this.group != null ? this.group.getUsers() : Arrays.asList(this.users.getUsers()));
+                    for (User otherUser : allUsers) {
+                        if (otherUser.equals(user)) {
+                            continue;
+                        }
+                        
+                        String username = otherUser.getName();
+                        byte[] usernameData = username.getBytes(StandardCharsets.UTF_8);
+
+                        this.writer
+                                .begin(Main.IDENTIFY_PACKET)
+                                .putLong(otherUser.getUserId())
+                                .putInt(otherUser.isDisconnected() ? 1 : 0)
+                                .putBytes(usernameData);
+                        send(this.writer, user);
+                    }
+                    if (this.cluster != null) {
+                        for (User remoteUser : this.cluster.getRemoteUsers().getUsers()) {
+                            this.writer
+                                    .begin(Main.IDENTIFY_PACKET)
+                                    .putLong(remoteUser.getUserId())
+                                    .putInt(0)
+                                    .putBytes(remoteUser.getName().getBytes(StandardCharsets.UTF_8));
+                            send(this.writer, user);
+                        }
+                    }
+                    if (user.hasCapability(Main.CAPABILITY_PING_DIGEST)) {
+                        sendFullPingDigest(allUsers, user);
+                    }
+                    return;
+                }
+
+                User otherUser = getUserById(userId);
+                if (otherUser == null) {
+                    byte[] reapedName = this.tombstones.getName(userId);
+                    if (reapedName != null) {
+                        this.writer
+                                .begin(Main.IDENTIFY_PACKET)
+                                .putLong(userId)
+                                .putInt(1)
+                                .putBytes(reapedName);
+                        send(this.writer, user);
+                        return;
+                    }
+                    System.out.println("Warning: " + user.toDetailedString() + " requested info about unknown user id " + userId + "!");
+                    return;
+                }
+
+                String username = otherUser.getName();
+                byte[] usernameData = username.getBytes(StandardCharsets.UTF_8);
+
+                this.writer
+                        .begin(Main.IDENTIFY_PACKET)
+                        .putLong(otherUser.getUserId())
+                        .putInt(otherUser.isDisconnected() ? 1 : 0)
+                        .putBytes(usernameData);
+                send(this.writer, user);
+            }
+            case Main.RESEND_MESSAGE_PACKET -> {
+                int from = format.getInt(packetBuffer);
+                int to = format.getInt(packetBuffer);
+                int room = (packetBuffer.hasRemaining() ? format.getInt(packetBuffer) : Main.LOBBY_ROOM);
+
+                MessageHistory roomHistory = getRoomHistory(user, room);
+                if (roomHistory == null) {
+                    sendLeave(user, room);
+                    return;
+                }
+                int historySize = roomHistory.size();
+                if (to == -1) {
+                    to = historySize;
+                }
+                if (from < 0 || to > historySize) {
+                    System.out.println("Warning: " + user.toDetailedString() + " requested a invalid range of messages, from " + from + ", to " + to);
+                    return;
+                }
+
+                this.resendScheduler.request(user, room, from, to, this.timers.getTime());
+            }
+            case Main.PING_PACKET -> {
+                long time = format.getLong(packetBuffer);
+
+                if (!user.getRttEstimator().pingReceived(time, System.nanoTime(), this.timers.getTime(), getMaxPingInterval(user))) {
+                    System.out.println("Warning: " + user.toDetailedString() + " answered a old or unknown ping, " + time);
+                    return;
+                }
+
+                int ping = user.getRttEstimator().getPing();
+                user.setPing(ping);
+
+                int lastPing = user.getDigestPing();
+                if (!user.isPingChanged() && Math.abs(ping - lastPing) >= Math.max(Main.PING_DIGEST_MIN_CHANGE, lastPing / 10)) {
+                    user.setPingChanged(true);
+                    if (this.pingChangeCount >= this.pingChanges.length) {
+                        this.pingChanges = Arrays.copyOf(this.pingChanges, this.pingChanges.length * 2);
+                    }
+                    this.pingChanges[this.pingChangeCount++] = user;
+                }
+            }
+            case Main.DISCONNECTED_PACKET -> {
+                disconnect(user);
+                System.out.println("Info: " + user.toDetailedString() + " Disconnected!");
+                
+                this.writer
+                        .begin(Main.DISCONNECTED_PACKET)
+                        .putLong(user.getUserId());
+                broadcast(this.writer, null, Main.CAPABILITY_ROSTER, false);
+            }
+            case Main.ROSTER_PACKET -> {
+                long since = format.getLong(packetBuffer);
+                if (since < 0) {
+                    System.out.println("Warning: " + user.toDetailedString() + " requested the roster since a negative version, " + since);
+                    return;
+                }
+                if (since < this.roster.getPrunedVersion()) {
+                    //the client missed changes of reaped users, it gets every entry
+                    since = 0;
+                }
+
+                List<Roster.Entry> entries = this.roster.getSince(since);
+                int offset = 0;
+                long from = since;
+                while (offset < entries.size()) {
+                    int length = getRosterLength(entries, offset);
+                    writeRoster(entries, offset, length, from);
+                    send(this.writer, user);
+                    offset += length;
+                    from = entries.get(offset - 1).getVersion();
+                }
+
+                if (since == 0 && user.hasCapability(Main.CAPABILITY_PING_DIGEST)) {
+                    sendFullPingDigest(this.group != null ? this.group.getUsers() : Arrays.asList(this.users.getUsers()), user);
+                }
+            }
+            case Main.TYPING_PACKET -> {
+                startTyping(user);
+            }
+            case Main.JOIN_ROOM_PACKET -> {
+                byte[] nameData;
+                try {
+                    nameData = format.getBytes(packetBuffer, Main.ROOM_NAME_SIZE);
+                } catch (WireFormat.MalformedPacketException ex) {
+                    System.out.println("Warning: Received join packet with room name size too large (or too small!) from " + user.toDetailedString() + ", " + ex.getMessage());
+                    return;
+                }
+                String name = new String(nameData, StandardCharsets.UTF_8);
+                Rooms.Room room = this.rooms.get(name);
+                if ((room == null || user.getRoomSlot(room.getId()) == -1) && !canJoinRoom(user)) {
+                    System.out.println("Warning: " + user.toDetailedString() + " tried to join more than " + Main.MAX_ROOMS_PER_USER + " rooms, refused!");
+                    sendJoinRefused(user, nameData);
+                    return;
+                }
+                if (room == null && this.cluster != null) {
+                    int owner = this.cluster.getOwner(name);
+                    if (owner != this.cluster.getNodeIndex()) {
+                        //answered when the owner tells the id of the room
+                        this.clusterNode.join(owner, nameData, user);
+                        return;
+                    }
+                }
+                if (room == null) {
+                    room = createRoom(name);
+                    if (room == null) {
+                        System.out.println("Warning: " + user.toDetailedString() + " tried to create a room but there are already " + Main.MAX_ROOMS + " rooms!");
+                        sendJoinRefused(user, nameData);
+                        return;
+                    }
+                }
+                join(user, room);
+                sendJoined(user, room);
+            }
+            case Main.LEAVE_ROOM_PACKET -> {
+                int room = format.getInt(packetBuffer);
+                leave(user, room);
+                sendLeave(user, room);
+            }
+        }
+    }
+
+    /**
+     * The users and the rooms of the other nodes of the cluster.
+     */
+    private class NodeListener implements ClusterNode.Listener {
+
+        @Override
+        public void userConnected(User remoteUser) throws IOException {
+            Server.this.joined.add(remoteUser);
+            announceJoined();
+        }
+
+        @Override
+        public void userDisconnected(User remoteUser) throws IOException {
+            long userId = remoteUser.getUserId();
+            Server.this.tombstones.add(remoteUser);
+            //reaped like a local user, the owner node doesn't tell when
+            Server.this.timers.schedule(new TimerWheel.Timer((timer, now) -> Server.this.roster.reaped(userId)), Server.this.timers.getTime() + Main.REAP_DELAY);
+            Roster.Entry entry = Server.this.roster.disconnected(remoteUser);
+            writeRoster(List.of(entry), 0, 1, entry.getVersion() - 1);
+            broadcast(Server.this.writer, null, Main.CAPABILITY_ROSTER, true);
+            Server.this.writer
+                    .begin(Main.DISCONNECTED_PACKET)
+                    .putLong(userId);
+            broadcast(Server.this.writer, null, Main.CAPABILITY_ROSTER, false);
+        }
+
+        @Override
+        public void roomMessage(int room, int index, long userId, byte[] message) throws IOException {
+            sendRoomMessage(room, index, userId, message);
+        }
+
+        @Override
+        public Rooms.Room createRoom(String name) {
+            return Server.this.createRoom(name);
+        }
+
+        @Override
+        public void roomJoined(Rooms.Room room, List<User> waiting) throws IOException {
+            for (User u : waiting) {
+                if (u.isDisconnected()) {
+                    continue;
+                }
+                if (u.getRoomSlot(room.getId()) == -1 && !canJoinRoom(u)) {
+                    //Server.this.joined other rooms while waiting for the owner
+                    sendJoinRefused(u, room.getName().getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+                join(u, room);
+                sendJoined(u, room);
+            }
+        }
+
+        @Override
+        public void roomRefused(String name, List<User> waiting) throws IOException {
+            for (User u : waiting) {
+                if (!u.isDisconnected()) {
+                    sendJoinRefused(u, name.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        @Override
+        public User[] getUsers() {
+            return Server.this.users.getUsers();
+        }
+    }
+
+    private void sendHeartbeats(TimerWheel.Timer timer, long now) throws IOException {
+        this.clusterNode.heartbeat();
+        this.timers.schedule(timer, now + Main.CLUSTER_HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * Sends the replication heartbeat of a primary, or the acknowledgement of a standby, the users of a standby that
+     * took over are restored like the users of the journal and answered when they fail over.
+     */
+    private void replicationHeartbeat(TimerWheel.Timer timer, long now) throws IOException {
+        if (this.replicator != null) {
+            this.replicator.heartbeat();
+        }
+        if (this.standby != null) {
+            List<User> restored = this.standby.heartbeat(now);
+            if (restored != null) {
+                for (User u : restored) {
+                    restore(u);
+                    this.users.add(u);
+                }
+                this.roster.restore(Arrays.asList(this.users.getUsers()));
+            }
+        }
+        if (this.replicator != null || !this.standby.hasTakenOver()) {
+            this.timers.schedule(timer, now + Main.STANDBY_HEARTBEAT_INTERVAL);
+        }
+    }
+}
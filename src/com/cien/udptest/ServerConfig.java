@@ -0,0 +1,406 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ *
+ * @author Cien
+ */
+public class ServerConfig {
+
+    private int port = 0;
+    private InetAddress address = null;
+    private Server.Engine engine = Server.Engine.SELECTOR;
+    private int bufferPoolSize = 1024;
+    private boolean directBuffers = false;
+    private boolean coalesce = true;
+    private int flushDelay = Main.FRAME_FLUSH_DELAY;
+    private int shards = 1;
+    private int historyTailSize = Main.HISTORY_TAIL_SIZE;
+    private Path historyDirectory = null;
+    private Path journalDirectory = null;
+    private int fsyncInterval = Main.JOURNAL_FSYNC_INTERVAL;
+    private int snapshotInterval = Main.JOURNAL_SNAPSHOT_INTERVAL;
+    private int resendRate = Main.RESEND_RATE;
+    private int resendWindow = Main.RESEND_WINDOW;
+    private int loginRate = Main.LOGIN_RATE;
+    private int loginQueueSize = Main.LOGIN_QUEUE_SIZE;
+    private int unverifiedLoginRate = Main.UNVERIFIED_LOGIN_RATE;
+    private InetSocketAddress[] clusterNodes = null;
+    private int nodeIndex = -1;
+    private InetSocketAddress standbyAddress = null;
+    private InetSocketAddress primaryAddress = null;
+    private Network network = new SocketNetwork();
+
+    public ServerConfig() {
+
+    }
+
+    public ServerConfig(int port, InetAddress address) {
+        this.port = port;
+        this.address = address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public void setAddress(InetAddress address) {
+        this.address = address;
+    }
+
+    public Server.Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Server.Engine engine) {
+        Objects.requireNonNull(engine, "Engine is null.");
+        this.engine = engine;
+    }
+
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    public void setBufferPoolSize(int bufferPoolSize) {
+        if (bufferPoolSize <= 0) {
+            throw new IllegalArgumentException("Buffer pool size must be larger than zero.");
+        }
+        this.bufferPoolSize = bufferPoolSize;
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    public void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public int getFlushDelay() {
+        return flushDelay;
+    }
+
+    public void setFlushDelay(int flushDelay) {
+        if (flushDelay < 0) {
+            throw new IllegalArgumentException("Flush delay is negative.");
+        }
+        this.flushDelay = flushDelay;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Shards must be larger than zero.");
+        }
+        this.shards = shards;
+    }
+
+    public int getHistoryTailSize() {
+        return historyTailSize;
+    }
+
+    public void setHistoryTailSize(int historyTailSize) {
+        if (historyTailSize <= 0) {
+            throw new IllegalArgumentException("History tail size must be larger than zero.");
+        }
+        this.historyTailSize = historyTailSize;
+    }
+
+    public Path getHistoryDirectory() {
+        return historyDirectory;
+    }
+
+    public void setHistoryDirectory(Path historyDirectory) {
+        this.historyDirectory = historyDirectory;
+    }
+
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public void setJournalDirectory(Path journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public int getFsyncInterval() {
+        return fsyncInterval;
+    }
+
+    public void setFsyncInterval(int fsyncInterval) {
+        if (fsyncInterval < 0) {
+            throw new IllegalArgumentException("Fsync interval is negative.");
+        }
+        this.fsyncInterval = fsyncInterval;
+    }
+
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public void setSnapshotInterval(int snapshotInterval) {
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be larger than zero.");
+        }
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public int getResendRate() {
+        return resendRate;
+    }
+
+    public void setResendRate(int resendRate) {
+        if (resendRate <= 0) {
+            throw new IllegalArgumentException("Resend rate must be larger than zero.");
+        }
+        this.resendRate = resendRate;
+    }
+
+    public int getResendWindow() {
+        return resendWindow;
+    }
+
+    public void setResendWindow(int resendWindow) {
+        if (resendWindow <= 0) {
+            throw new IllegalArgumentException("Resend window must be larger than zero.");
+        }
+        this.resendWindow = resendWindow;
+    }
+
+    public int getLoginRate() {
+        return loginRate;
+    }
+
+    public void setLoginRate(int loginRate) {
+        if (loginRate <= 0) {
+            throw new IllegalArgumentException("Login rate must be larger than zero.");
+        }
+        this.loginRate = loginRate;
+    }
+
+    public int getLoginQueueSize() {
+        return loginQueueSize;
+    }
+
+    public void setLoginQueueSize(int loginQueueSize) {
+        if (loginQueueSize <= 0) {
+            throw new IllegalArgumentException("Login queue size must be larger than zero.");
+        }
+        this.loginQueueSize = loginQueueSize;
+    }
+
+    public int getUnverifiedLoginRate() {
+        return unverifiedLoginRate;
+    }
+
+    /**
+     * Sets how many logins per second are accepted from clients that don't support cookies, zero only accepts clients
+     * with cookies.
+     *
+     * @param unverifiedLoginRate the rate
+     */
+    public void setUnverifiedLoginRate(int unverifiedLoginRate) {
+        if (unverifiedLoginRate < 0) {
+            throw new IllegalArgumentException("Unverified login rate is negative.");
+        }
+        this.unverifiedLoginRate = unverifiedLoginRate;
+    }
+
+    /**
+     * Returns the addresses of the nodes of the cluster this server is part of.
+     *
+     * @return the addresses, including the address of this server, or null if this server is not part of a cluster
+     */
+    public InetSocketAddress[] getClusterNodes() {
+        return clusterNodes;
+    }
+
+    public void setClusterNodes(InetSocketAddress[] clusterNodes) {
+        if (clusterNodes != null && clusterNodes.length == 0) {
+            throw new IllegalArgumentException("Cluster has no nodes.");
+        }
+        this.clusterNodes = clusterNodes;
+    }
+
+    /**
+     * Returns the index of this server in the nodes of the cluster, -1 finds the only node with the port of this
+     * server.
+     *
+     * @return the index
+     */
+    public int getNodeIndex() {
+        if (this.nodeIndex == -1 && this.clusterNodes != null) {
+            int found = -1;
+            for (int i = 0; i < this.clusterNodes.length; i++) {
+                if (this.clusterNodes[i].getPort() == this.port) {
+                    if (found != -1) {
+                        throw new IllegalArgumentException("Several nodes use port " + this.port + ", the node index must be set.");
+                    }
+                    found = i;
+                }
+            }
+            if (found == -1) {
+                throw new IllegalArgumentException("No node of the cluster uses port " + this.port + ".");
+            }
+            return found;
+        }
+        return nodeIndex;
+    }
+
+    public void setNodeIndex(int nodeIndex) {
+        if (nodeIndex < -1) {
+            throw new IllegalArgumentException("Node index is negative.");
+        }
+        this.nodeIndex = nodeIndex;
+    }
+
+    /**
+     * Returns the address of the standby this server replicates to, the address is also given to the clients to fail
+     * over to.
+     *
+     * @return the address or null if this server has no standby
+     */
+    public InetSocketAddress getStandbyAddress() {
+        return standbyAddress;
+    }
+
+    public void setStandbyAddress(InetSocketAddress standbyAddress) {
+        this.standbyAddress = standbyAddress;
+    }
+
+    /**
+     * Returns the address of the primary this server is the standby of, a standby takes over when the primary stops
+     * heartbeating.
+     *
+     * @return the address or null if this server is not a standby
+     */
+    public InetSocketAddress getPrimaryAddress() {
+        return primaryAddress;
+    }
+
+    public void setPrimaryAddress(InetSocketAddress primaryAddress) {
+        this.primaryAddress = primaryAddress;
+    }
+
+    /**
+     * Returns the network the server opens its transport on, a {@link SimulatedNetwork} runs the server in memory.
+     *
+     * @return the network
+     */
+    public Network getNetwork() {
+        return network;
+    }
+
+    public void setNetwork(Network network) {
+        Objects.requireNonNull(network, "Network is null.");
+        this.network = network;
+    }
+
+    /**
+     * Applies a command line option in the form --name=value
+     *
+     * @param option the option
+     * @throws IllegalArgumentException if the option is unknown or the value is invalid
+     */
+    public void applyOption(String option) {
+        Objects.requireNonNull(option, "Option is null.");
+        if (!option.startsWith("--")) {
+            throw new IllegalArgumentException("Invalid option '" + option + "'");
+        }
+        int separator = option.indexOf('=');
+        if (separator == -1) {
+            throw new IllegalArgumentException("Option '" + option + "' has no value");
+        }
+        String name = option.substring(2, separator);
+        String value = option.substring(separator + 1);
+        switch (name) {
+            case "engine" -> {
+                switch (value) {
+                    case "polling" -> setEngine(Server.Engine.POLLING);
+                    case "selector" -> setEngine(Server.Engine.SELECTOR);
+                    default -> throw new IllegalArgumentException("Unknown engine '" + value + "', must be polling or selector");
+                }
+            }
+            case "buffer-pool" -> setBufferPoolSize(parseInt(name, value));
+            case "direct-buffers" -> setDirectBuffers(parseBoolean(name, value));
+            case "coalesce" -> setCoalesce(parseBoolean(name, value));
+            case "flush-delay" -> setFlushDelay(parseInt(name, value));
+            case "shards" -> setShards(parseInt(name, value));
+            case "history-tail" -> setHistoryTailSize(parseInt(name, value));
+            case "history-dir" -> setHistoryDirectory(parsePath(name, value));
+            case "journal" -> setJournalDirectory(parsePath(name, value));
+            case "fsync-interval" -> setFsyncInterval(parseInt(name, value));
+            case "snapshot-interval" -> setSnapshotInterval(parseInt(name, value));
+            case "resend-rate" -> setResendRate(parseInt(name, value));
+            case "resend-window" -> setResendWindow(parseInt(name, value));
+            case "login-rate" -> setLoginRate(parseInt(name, value));
+            case "login-queue" -> setLoginQueueSize(parseInt(name, value));
+            case "unverified-logins" -> setUnverifiedLoginRate(parseInt(name, value));
+            case "cluster" -> setClusterNodes(Cluster.parseNodes(value));
+            case "node" -> setNodeIndex(parseInt(name, value));
+            case "standby" -> setStandbyAddress(parseAddress(name, value));
+            case "primary" -> setPrimaryAddress(parseAddress(name, value));
+            default -> throw new IllegalArgumentException("Unknown option '" + name + "'");
+        }
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + ex.getMessage());
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String name, String value) {
+        InetSocketAddress[] addresses = Cluster.parseNodes(value);
+        if (addresses.length != 1) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": must be a single host:port");
+        }
+        return addresses[0];
+    }
+
+    private static Path parsePath(String name, String value) {
+        try {
+            return Path.of(value);
+        } catch (InvalidPathException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + ex.getMessage());
+        }
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        return switch (value) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new IllegalArgumentException("Invalid value for " + name + ": must be true or false");
+        };
+    }
+
+}
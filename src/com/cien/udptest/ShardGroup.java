@@ -0,0 +1,279 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A group of server shards bound to the same port with SO_REUSEPORT, sharing the history and a directory of the users.
+ *
+ * @author Cien
+ */
+public class ShardGroup {
+
+    /**
+     * A broadcast encoded by a shard to be sent by the other shards to their users.
+     */
+    static class SharedPacket {
+
+        private final byte[] legacy;
+        private final byte[] compact;
+        private final User except;
+        private final int capability;
+        private final boolean supported;
+        private final int room;
+
+        SharedPacket(PacketWriter packet, User except, int capability, boolean supported, int room) {
+            this.legacy = packet.toByteArray(WireFormat.LEGACY);
+            this.compact = packet.toByteArray(WireFormat.COMPACT);
+            this.except = except;
+            this.capability = capability;
+            this.supported = supported;
+            this.room = room;
+        }
+
+        void load(PacketWriter packet) {
+            packet.load(this.legacy, this.compact);
+        }
+
+        User getExcept() {
+            return except;
+        }
+
+        int getCapability() {
+            return capability;
+        }
+
+        boolean isSupported() {
+            return supported;
+        }
+
+        /**
+         * Returns the room whose members receive the packet.
+         *
+         * @return the id of the room or -1 for every user
+         */
+        int getRoom() {
+            return room;
+        }
+    }
+
+    private final ServerConfig config;
+    private final Server[] shards;
+    private final MessageHistory history;
+    private final Rooms rooms;
+    private final Journal journal;
+    private final ConcurrentHashMap<SocketAddress, User> unclaimed = new ConcurrentHashMap<>();
+    private final Tombstones tombstones = new Tombstones();
+    private final Roster roster = new Roster();
+    private final byte[] cookieSecret = LoginCookies.createSecret();
+    private final ConcurrentHashMap<Long, User> usersIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, User> activeNames = new ConcurrentHashMap<>();
+
+    public ShardGroup(ServerConfig config) throws IOException {
+        Objects.requireNonNull(config, "Config is null.");
+        if (config.getEngine() != Server.Engine.SELECTOR) {
+            throw new IllegalArgumentException("Shards require the selector engine.");
+        }
+        if (!(config.getNetwork() instanceof SocketNetwork)) {
+            throw new IllegalArgumentException("Shards require the socket network.");
+        }
+        this.config = config;
+        this.history = MessageHistory.create(config);
+        this.rooms = new Rooms(this.history, config);
+        if (config.getJournalDirectory() != null) {
+            this.journal = new Journal(config, this.history, this.tombstones, this::getUsers);
+            int capabilities = Server.getCapabilities(config);
+            for (User u : this.journal.replay()) {
+                u.setCapabilities(u.getCapabilities() & capabilities);
+                u.updateLastPacketReceivedTime();
+                this.activeNames.put(u.getName(), u);
+                this.usersIds.put(u.getUserId(), u);
+                this.unclaimed.put(u.getSocketAddress(), u);
+            }
+            this.roster.restore(this.usersIds.values());
+        } else {
+            this.journal = null;
+        }
+        this.shards = new Server[config.getShards()];
+        try {
+            InetSocketAddress bindAddress = new InetSocketAddress(config.getAddress(), config.getPort());
+            for (int i = 0; i < this.shards.length; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                try {
+                    if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        throw new IllegalArgumentException("SO_REUSEPORT is not supported on this platform, shards can't be used.");
+                    }
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    channel.bind(bindAddress);
+                    //a port of zero only binds the first shard to a random port
+                    bindAddress = (InetSocketAddress) channel.getLocalAddress();
+                } catch (IOException | RuntimeException ex) {
+                    channel.close();
+                    throw ex;
+                }
+                this.shards[i] = new Server(config, new SocketNetwork.SocketTransport(channel), this, i);
+            }
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    private void close() {
+        for (Server s : this.shards) {
+            if (s != null) {
+                try {
+                    s.getTransport().close();
+                } catch (IOException ex) {
+                    System.out.println("Warning: Could not close shard " + s.getName() + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    public Server getShard(int index) {
+        return this.shards[index];
+    }
+
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    public Tombstones getTombstones() {
+        return tombstones;
+    }
+
+    public Rooms getRooms() {
+        return rooms;
+    }
+
+    public Roster getRoster() {
+        return roster;
+    }
+
+    byte[] getCookieSecret() {
+        return cookieSecret;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public void start() {
+        for (Server s : this.shards) {
+            s.start();
+        }
+    }
+
+    /**
+     * Reserves a name for a user, the name is released when the user disconnects.
+     *
+     * @param user the user
+     * @return false if the name is already used by other user
+     */
+    boolean register(User user) {
+        if (this.activeNames.putIfAbsent(user.getName(), user) != null) {
+            return false;
+        }
+        this.usersIds.put(user.getUserId(), user);
+        return true;
+    }
+
+    void disconnected(User user) {
+        this.activeNames.remove(user.getName(), user);
+    }
+
+    void reaped(User user) {
+        this.usersIds.remove(user.getUserId(), user);
+    }
+
+    /**
+     * Hands a user restored from the journal to the shard that received a packet from its address, the kernel decides
+     * which shard receives the packets of each address.
+     *
+     * @param address the address of the packet
+     * @return the restored user or null if there's none or other shard already claimed it
+     */
+    User claim(SocketAddress address) {
+        return this.unclaimed.remove(address);
+    }
+
+    Collection<User> getUnclaimed() {
+        return this.unclaimed.values();
+    }
+
+    /**
+     * Removes a restored user that timed out before any shard claimed it.
+     *
+     * @param user the user
+     * @return false if a shard claimed the user in the meantime
+     */
+    boolean unclaimedTimedOut(User user) {
+        return this.unclaimed.remove(user.getSocketAddress(), user);
+    }
+
+    User getByUserId(long id) {
+        return this.usersIds.get(id);
+    }
+
+    Collection<User> getUsers() {
+        return this.usersIds.values();
+    }
+
+    /**
+     * Hands a broadcast to every other shard.
+     *
+     * @param from the shard that already sent the packet to its users
+     * @param packet the encoded packet
+     * @param except a user that will not receive the packet, can be null
+     * @param capability only the users that support (or don't support) this capability receive the packet, zero for
+     * every user
+     * @param supported if the users must support the capability
+     */
+    void publish(Server from, PacketWriter packet, User except, int capability, boolean supported) {
+        if (this.shards.length == 1) {
+            return;
+        }
+        publish(from, new SharedPacket(packet, except, capability, supported, -1));
+    }
+
+    /**
+     * Hands a packet for the members of a room to every other shard.
+     *
+     * @param from the shard that already sent the packet to its members
+     * @param packet the encoded packet
+     * @param room the id of the room
+     */
+    void publish(Server from, PacketWriter packet, int room) {
+        if (this.shards.length == 1) {
+            return;
+        }
+        publish(from, new SharedPacket(packet, null, 0, true, room));
+    }
+
+    private void publish(Server from, SharedPacket shared) {
+        for (Server s : this.shards) {
+            if (s != from) {
+                s.deliver(shared);
+            }
+        }
+    }
+}
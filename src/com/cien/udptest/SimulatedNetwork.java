@@ -0,0 +1,612 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A network in memory with loss, latency, jitter, duplication and reordering, reproducible with the same seed.
+ * Transports bound to the wildcard address are bound to the loopback address instead.
+ *
+ * @author Cien
+ */
+public class SimulatedNetwork implements Network {
+
+    private static class Datagram {
+
+        final byte[] data;
+        final InetSocketAddress source;
+        final Endpoint destination;
+        final long deliveryTime;
+        final long sequence;
+
+        Datagram(byte[] data, InetSocketAddress source, Endpoint destination, long deliveryTime, long sequence) {
+            this.data = data;
+            this.source = source;
+            this.destination = destination;
+            this.deliveryTime = deliveryTime;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Link {
+
+        final InetSocketAddress source;
+        final InetSocketAddress destination;
+
+        Link(InetSocketAddress source, InetSocketAddress destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.source.hashCode() + this.destination.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Link)) {
+                return false;
+            }
+            Link other = (Link) obj;
+            return this.source.equals(other.source) && this.destination.equals(other.destination);
+        }
+    }
+
+    private class Endpoint implements Transport {
+
+        final InetSocketAddress address;
+        final ArrayDeque<Datagram> inbox = new ArrayDeque<>();
+        InetSocketAddress connected = null;
+        boolean unreachable = false;
+        boolean closed = false;
+
+        SimulatedPoller<?> poller = null;
+        Object attachment = null;
+        boolean ready = false;
+
+        Endpoint(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        SimulatedNetwork getNetwork() {
+            return SimulatedNetwork.this;
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer buffer) throws IOException {
+            SimulatedNetwork.this.lock.lock();
+            try {
+                if (this.closed) {
+                    throw new ClosedChannelException();
+                }
+                if (this.unreachable) {
+                    this.unreachable = false;
+                    throw new PortUnreachableException();
+                }
+                Datagram datagram = this.inbox.poll();
+                if (datagram == null) {
+                    return null;
+                }
+                buffer.put(datagram.data, 0, Math.min(datagram.data.length, buffer.remaining()));
+                return datagram.source;
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void send(ByteBuffer packetBuffer, SocketAddress address) throws IOException {
+            InetSocketAddress destination = resolve(address);
+            byte[] data = new byte[packetBuffer.position()];
+            packetBuffer.get(0, data);
+            SimulatedNetwork.this.lock.lock();
+            try {
+                if (this.closed) {
+                    throw new ClosedChannelException();
+                }
+                if (this.connected != null && !this.connected.equals(destination)) {
+                    throw new IllegalArgumentException("Transport is connected to " + this.connected);
+                }
+                transmit(this, destination, data);
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() throws IOException {
+            return this.address;
+        }
+
+        @Override
+        public void connect(SocketAddress address) throws IOException {
+            InetSocketAddress peer = resolve(address);
+            SimulatedNetwork.this.lock.lock();
+            try {
+                this.connected = peer;
+                this.unreachable = false;
+                this.inbox.removeIf(d -> !d.source.equals(peer));
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            SimulatedNetwork.this.lock.lock();
+            try {
+                this.connected = null;
+                this.unreachable = false;
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SimulatedNetwork.this.lock.lock();
+            try {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                this.inbox.clear();
+                SimulatedNetwork.this.endpoints.remove(this.address, this);
+                if (this.poller != null) {
+                    this.poller.ready.remove(this);
+                }
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Simulated transport " + this.address;
+        }
+    }
+
+    private class SimulatedPoller<T> implements Poller<T> {
+
+        final Condition condition = SimulatedNetwork.this.lock.newCondition();
+        final ArrayDeque<Endpoint> ready = new ArrayDeque<>();
+        boolean woken = false;
+        boolean closed = false;
+
+        @Override
+        public void register(Transport transport, T attachment) throws IOException {
+            if (!(transport instanceof Endpoint) || ((Endpoint) transport).getNetwork() != SimulatedNetwork.this) {
+                throw new IllegalArgumentException("Transport is not from this network.");
+            }
+            Endpoint endpoint = (Endpoint) transport;
+            SimulatedNetwork.this.lock.lock();
+            try {
+                if (endpoint.closed) {
+                    throw new ClosedChannelException();
+                }
+                if (endpoint.poller != null && endpoint.poller != this) {
+                    throw new IllegalArgumentException("Transport is already registered in another poller.");
+                }
+                endpoint.poller = this;
+                endpoint.attachment = attachment;
+                if (!endpoint.inbox.isEmpty()) {
+                    markReady(endpoint);
+                }
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int select(long timeout, Consumer<? super T> consumer) throws IOException {
+            List<Endpoint> selected;
+            SimulatedNetwork.this.lock.lock();
+            try {
+                long remaining = (timeout > 0 ? TimeUnit.MILLISECONDS.toNanos(timeout) : 0);
+                while (this.ready.isEmpty() && !this.woken && !this.closed && remaining > 0) {
+                    try {
+                        remaining = this.condition.awaitNanos(remaining);
+                    } catch (InterruptedException ex) {
+                        //like a selector, a interrupt returns with the interrupt status set
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (this.closed) {
+                    throw new ClosedSelectorException();
+                }
+                this.woken = false;
+                selected = new ArrayList<>(this.ready);
+                for (Endpoint e : selected) {
+                    e.ready = false;
+                }
+                this.ready.clear();
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+
+            for (Endpoint e : selected) {
+                consumer.accept((T) e.attachment);
+            }
+
+            //level triggered, like a selector, a transport that still has datagrams is selected again
+            SimulatedNetwork.this.lock.lock();
+            try {
+                for (Endpoint e : selected) {
+                    if (!e.closed && e.poller == this && !e.inbox.isEmpty()) {
+                        markReady(e);
+                    }
+                }
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+            return selected.size();
+        }
+
+        @Override
+        public void wakeup() {
+            SimulatedNetwork.this.lock.lock();
+            try {
+                this.woken = true;
+                this.condition.signal();
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SimulatedNetwork.this.lock.lock();
+            try {
+                this.closed = true;
+                this.ready.clear();
+                this.condition.signalAll();
+            } finally {
+                SimulatedNetwork.this.lock.unlock();
+            }
+        }
+    }
+
+    private final long seed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition delivery = this.lock.newCondition();
+    private final HashMap<InetSocketAddress, Endpoint> endpoints = new HashMap<>();
+    private final HashMap<Link, Random> links = new HashMap<>();
+    private final PriorityQueue<Datagram> inFlight = new PriorityQueue<>((a, b) -> {
+        int compare = Long.compare(a.deliveryTime - b.deliveryTime, 0);
+        if (compare != 0) {
+            return compare;
+        }
+        return Long.compare(a.sequence, b.sequence);
+    });
+    private final Thread deliveryThread;
+    private long nextSequence = 0;
+    private int nextPort = Main.SIMULATED_FIRST_PORT;
+
+    private volatile double loss = 0;
+    private volatile int latency = 0;
+    private volatile int jitter = 0;
+    private volatile double duplicate = 0;
+    private volatile double reorder = 0;
+
+    private long sent = 0;
+    private long dropped = 0;
+    private long duplicated = 0;
+    private long reordered = 0;
+    private long overflowed = 0;
+    private long unreachable = 0;
+    private long delivered = 0;
+
+    /**
+     * Creates a network without loss or latency.
+     *
+     * @param seed the seed of the fates of the datagrams
+     */
+    public SimulatedNetwork(long seed) {
+        this.seed = seed;
+        this.deliveryThread = new Thread(this::deliveryLoop, "Simulated-Network");
+        this.deliveryThread.setDaemon(true);
+        this.deliveryThread.start();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    /**
+     * @param loss the probability of a datagram being lost, between 0 and 1
+     */
+    public void setLoss(double loss) {
+        this.loss = checkProbability("Loss", loss);
+    }
+
+    public int getLatency() {
+        return latency;
+    }
+
+    /**
+     * @param latency the one way delay of every datagram in milliseconds
+     */
+    public void setLatency(int latency) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("Latency is negative.");
+        }
+        this.latency = latency;
+    }
+
+    public int getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param jitter the maximum random delay added to the latency in milliseconds
+     */
+    public void setJitter(int jitter) {
+        if (jitter < 0) {
+            throw new IllegalArgumentException("Jitter is negative.");
+        }
+        this.jitter = jitter;
+    }
+
+    public double getDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * @param duplicate the probability of a datagram being delivered twice, between 0 and 1
+     */
+    public void setDuplicate(double duplicate) {
+        this.duplicate = checkProbability("Duplicate", duplicate);
+    }
+
+    public double getReorder() {
+        return reorder;
+    }
+
+    /**
+     * @param reorder the probability of a datagram being held back for up to twice the latency plus the jitter, so
+     * the next datagrams of its link overtake it, between 0 and 1
+     */
+    public void setReorder(double reorder) {
+        this.reorder = checkProbability("Reorder", reorder);
+    }
+
+    private static double checkProbability(String name, double value) {
+        if (!(value >= 0 && value <= 1)) {
+            throw new IllegalArgumentException(name + " must be between 0 and 1.");
+        }
+        return value;
+    }
+
+    private static InetSocketAddress resolve(SocketAddress address) {
+        Objects.requireNonNull(address, "Address is null.");
+        if (!(address instanceof InetSocketAddress)) {
+            throw new IllegalArgumentException("Unsupported address type.");
+        }
+        InetSocketAddress inetAddress = (InetSocketAddress) address;
+        if (inetAddress.isUnresolved()) {
+            throw new IllegalArgumentException("Unresolved address " + inetAddress);
+        }
+        if (inetAddress.getAddress().isAnyLocalAddress()) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), inetAddress.getPort());
+        }
+        return inetAddress;
+    }
+
+    @Override
+    public Transport open(InetSocketAddress address) throws IOException {
+        InetAddress ip = InetAddress.getLoopbackAddress();
+        int port = 0;
+        if (address != null) {
+            address = resolve(address);
+            ip = address.getAddress();
+            port = address.getPort();
+        }
+        this.lock.lock();
+        try {
+            if (port == 0) {
+                for (int i = Main.SIMULATED_FIRST_PORT; i <= 65535; i++) {
+                    int next = this.nextPort;
+                    this.nextPort = (next == 65535 ? Main.SIMULATED_FIRST_PORT : next + 1);
+                    if (!this.endpoints.containsKey(new InetSocketAddress(ip, next))) {
+                        port = next;
+                        break;
+                    }
+                }
+                if (port == 0) {
+                    throw new BindException("No free port on " + ip.getHostAddress());
+                }
+            }
+            InetSocketAddress bound = new InetSocketAddress(ip, port);
+            if (this.endpoints.containsKey(bound)) {
+                throw new BindException("Address already in use: " + bound);
+            }
+            Endpoint endpoint = new Endpoint(bound);
+            this.endpoints.put(bound, endpoint);
+            return endpoint;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> Poller<T> openPoller() throws IOException {
+        return new SimulatedPoller<>();
+    }
+
+    private void transmit(Endpoint source, InetSocketAddress destination, byte[] data) {
+        this.sent++;
+        Endpoint target = this.endpoints.get(destination);
+        if (target == null) {
+            //like a icmp port unreachable, reported to a connected sender
+            this.unreachable++;
+            if (source.connected != null) {
+                source.unreachable = true;
+            }
+            return;
+        }
+
+        Random random = this.links.computeIfAbsent(new Link(source.address, destination),
+                l -> new Random(this.seed * 0x9E3779B97F4A7C15L + l.hashCode()));
+        if (random.nextDouble() < this.loss) {
+            this.dropped++;
+            return;
+        }
+        long now = System.nanoTime();
+        schedule(new Datagram(data, source.address, target, now + delay(random), this.nextSequence++));
+        if (random.nextDouble() < this.duplicate) {
+            this.duplicated++;
+            schedule(new Datagram(data, source.address, target, now + delay(random), this.nextSequence++));
+        }
+    }
+
+    private long delay(Random random) {
+        int currentLatency = this.latency;
+        int currentJitter = this.jitter;
+        long delay = TimeUnit.MILLISECONDS.toNanos(currentLatency);
+        if (currentJitter > 0) {
+            delay += (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(currentJitter));
+        }
+        if (random.nextDouble() < this.reorder) {
+            this.reordered++;
+            long holdBack = Math.max(1, 2L * currentLatency + currentJitter);
+            delay += (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(holdBack));
+        }
+        return delay;
+    }
+
+    private void schedule(Datagram datagram) {
+        if (datagram.deliveryTime - System.nanoTime() <= 0 && this.inFlight.isEmpty()) {
+            arrive(datagram);
+            return;
+        }
+        this.inFlight.add(datagram);
+        if (this.inFlight.peek() == datagram) {
+            this.delivery.signal();
+        }
+    }
+
+    private void arrive(Datagram datagram) {
+        Endpoint destination = datagram.destination;
+        if (destination.closed) {
+            this.unreachable++;
+            return;
+        }
+        if (destination.connected != null && !destination.connected.equals(datagram.source)) {
+            return;
+        }
+        if (destination.inbox.size() >= Main.SIMULATED_RECEIVE_BUFFER) {
+            this.overflowed++;
+            return;
+        }
+        destination.inbox.add(datagram);
+        this.delivered++;
+        if (destination.poller != null) {
+            markReady(destination);
+        }
+    }
+
+    private void markReady(Endpoint endpoint) {
+        if (endpoint.ready || endpoint.poller.closed) {
+            return;
+        }
+        endpoint.ready = true;
+        endpoint.poller.ready.add(endpoint);
+        endpoint.poller.condition.signal();
+    }
+
+    private void deliveryLoop() {
+        this.lock.lock();
+        try {
+            while (true) {
+                Datagram next = this.inFlight.peek();
+                if (next == null) {
+                    this.delivery.await();
+                    continue;
+                }
+                long remaining = next.deliveryTime - System.nanoTime();
+                if (remaining > 0) {
+                    this.delivery.awaitNanos(remaining);
+                    continue;
+                }
+                this.inFlight.poll();
+                arrive(next);
+            }
+        } catch (InterruptedException ex) {
+            System.out.println("Warning: Simulated network delivery thread interrupted.");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the counters of the network, in a single line
+     */
+    public String getStatistics() {
+        this.lock.lock();
+        try {
+            return this.sent + " datagrams sent, " + this.dropped + " lost, " + this.duplicated + " duplicated, "
+                    + this.reordered + " reordered, " + this.overflowed + " overflowed, " + this.unreachable
+                    + " unreachable, " + this.delivered + " delivered, " + this.inFlight.size() + " in flight";
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getSent() {
+        this.lock.lock();
+        try {
+            return this.sent;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        this.lock.lock();
+        try {
+            return this.dropped;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getDelivered() {
+        this.lock.lock();
+        try {
+            return this.delivered;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+}
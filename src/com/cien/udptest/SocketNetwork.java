@@ -0,0 +1,147 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * The real network, transports are non-blocking datagram channels and pollers are selectors.
+ *
+ * @author Cien
+ */
+public class SocketNetwork implements Network {
+
+    public static class SocketTransport implements Transport {
+
+        private final DatagramChannel channel;
+
+        /**
+         * Wraps a channel, the channel is configured as non-blocking.
+         *
+         * @param channel the channel
+         * @throws IOException if the channel could not be configured
+         */
+        public SocketTransport(DatagramChannel channel) throws IOException {
+            Objects.requireNonNull(channel, "Channel is null.");
+            channel.configureBlocking(false);
+            this.channel = channel;
+        }
+
+        public DatagramChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer buffer) throws IOException {
+            return this.channel.receive(buffer);
+        }
+
+        @Override
+        public void send(ByteBuffer packetBuffer, SocketAddress address) throws IOException {
+            int position = packetBuffer.position();
+            int limit = packetBuffer.limit();
+            try {
+                this.channel.send(packetBuffer.flip(), address);
+            } finally {
+                packetBuffer.limit(limit).position(position);
+            }
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() throws IOException {
+            return this.channel.getLocalAddress();
+        }
+
+        @Override
+        public void connect(SocketAddress address) throws IOException {
+            this.channel.connect(address);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            this.channel.disconnect();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+
+    }
+
+    private static class SocketPoller<T> implements Poller<T> {
+
+        private final Selector selector = Selector.open();
+
+        SocketPoller() throws IOException {
+
+        }
+
+        @Override
+        public void register(Transport transport, T attachment) throws IOException {
+            if (!(transport instanceof SocketTransport)) {
+                throw new IllegalArgumentException("Transport is not from a socket network.");
+            }
+            ((SocketTransport) transport).getChannel().register(this.selector, SelectionKey.OP_READ, attachment);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int select(long timeout, Consumer<? super T> ready) throws IOException {
+            int selected;
+            if (timeout > 0) {
+                selected = this.selector.select(timeout);
+            } else {
+                selected = this.selector.selectNow();
+            }
+            for (SelectionKey key : this.selector.selectedKeys()) {
+                ready.accept((T) key.attachment());
+            }
+            this.selector.selectedKeys().clear();
+            return selected;
+        }
+
+        @Override
+        public void wakeup() {
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.selector.close();
+        }
+
+    }
+
+    public SocketNetwork() {
+
+    }
+
+    @Override
+    public Transport open(InetSocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(address);
+            return new SocketTransport(channel);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public <T> Poller<T> openPoller() throws IOException {
+        return new SocketPoller<>();
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The state a standby server keeps from the replication stream of its primary, it takes over with the replicated users
+ * when the primary stops heartbeating, but only from a synced epoch. Used by a single server thread.
+ *
+ * @author Cien
+ */
+public class Standby {
+
+    private final InetSocketAddress primary;
+    private final PacketSender sender;
+    private final MessageHistory history;
+    private final Tombstones tombstones;
+    private final long session;
+    private final PacketWriter writer = new PacketWriter();
+
+    private final LongObjectMap<User> users = new LongObjectMap<>();
+    private int epoch = -1;
+    private int expected = 0;
+    private long lastUserId = 0;
+    private long lastHeartbeatTime = 0;
+    //if the current epoch received the whole history and no record was dropped since
+    private boolean synced = false;
+    //the epoch the primary dropped records of, a synced record of it that arrives late doesn't count
+    private int lostEpoch = -1;
+    private boolean refusedWarning = false;
+    private boolean tookOver = false;
+
+    /**
+     * Creates the standby of a primary.
+     *
+     * @param primary the address of the primary
+     * @param sender sends the acknowledgements from the socket of the server
+     * @param history the history of the server, the replicated messages are appended to it
+     * @param tombstones the tombstones of the server
+     */
+    public Standby(InetSocketAddress primary, PacketSender sender, MessageHistory history, Tombstones tombstones) {
+        Objects.requireNonNull(primary, "Primary is null.");
+        Objects.requireNonNull(sender, "Sender is null.");
+        Objects.requireNonNull(history, "History is null.");
+        Objects.requireNonNull(tombstones, "Tombstones is null.");
+        this.primary = primary;
+        this.sender = sender;
+        this.history = history;
+        this.tombstones = tombstones;
+        //a restarted standby has a new session, so the primary sends everything again
+        this.session = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    }
+
+    public InetSocketAddress getPrimaryAddress() {
+        return primary;
+    }
+
+    public boolean isPrimary(SocketAddress address) {
+        return this.primary.equals(address);
+    }
+
+    public boolean hasTakenOver() {
+        return tookOver;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Processes a packet of the primary, ignored after taking over.
+     *
+     * @param packetBuffer the packet
+     * @param now the current time in milliseconds
+     * @throws IOException if a I/O error occurs
+     */
+    public void process(ByteBuffer packetBuffer, long now) throws IOException {
+        if (this.tookOver) {
+            return;
+        }
+        WireFormat format = WireFormat.detect(packetBuffer);
+        if (format != WireFormat.COMPACT) {
+            System.out.println("Warning: Received packet in the " + format + " format from " + this.primary + ", replication must use the compact format.");
+            return;
+        }
+        int packetId = format.readHeader(packetBuffer);
+        switch (packetId) {
+            case Main.REPLICATION_PACKET -> {
+                received(format, packetBuffer, now);
+                sendAck();
+            }
+            case Main.STANDBY_HEARTBEAT_PACKET -> {
+                int primaryEpoch = format.getInt(packetBuffer);
+                boolean lost = format.getInt(packetBuffer) != 0;
+                heartbeat(primaryEpoch, lost, now);
+            }
+            default -> {
+                System.out.println("Warning: Received unknown packet " + packetId + " from " + this.primary);
+            }
+        }
+    }
+
+    /**
+     * Records a heartbeat of the primary.
+     *
+     * @param primaryEpoch the epoch of the primary
+     * @param lost if the primary is dropping the records of the epoch
+     * @param now the current time in milliseconds
+     */
+    public void heartbeat(int primaryEpoch, boolean lost, long now) {
+        this.lastHeartbeatTime = now;
+        if (!lost || primaryEpoch != this.epoch || this.lostEpoch == this.epoch) {
+            return;
+        }
+        this.lostEpoch = this.epoch;
+        if (this.synced) {
+            this.synced = false;
+            System.out.println("Warning: Primary " + this.primary + " dropped replication records of epoch " + this.epoch + ", the standby can't take over until it is synced again.");
+        }
+    }
+
+    /**
+     * Applies a replication packet, packets must be applied in order so packets out of order are discarded and sent
+     * again by the primary. The first packet of a new epoch replaces the replicated users.
+     *
+     * @param format the format of the packet
+     * @param packetBuffer the packet, after the header
+     * @param now the current time in milliseconds
+     * @throws IOException if the history could not spill a segment
+     */
+    public void received(WireFormat format, ByteBuffer packetBuffer, long now) throws IOException {
+        this.lastHeartbeatTime = now;
+        int packetEpoch = format.getInt(packetBuffer);
+        int sequence = format.getInt(packetBuffer);
+        if (packetEpoch != this.epoch) {
+            if (sequence != 0) {
+                return;
+            }
+            this.epoch = packetEpoch;
+            this.expected = 0;
+            this.synced = false;
+            this.users.clear();
+        }
+        if (sequence != this.expected) {
+            return;
+        }
+        this.expected++;
+
+        while (packetBuffer.hasRemaining()) {
+            switch (packetBuffer.get()) {
+                case Replicator.USER_RECORD -> {
+                    long id = format.getLong(packetBuffer);
+                    byte[] name = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                    byte[] address = format.getBytes(packetBuffer, 16);
+                    int port = format.getInt(packetBuffer);
+                    int capabilities = format.getInt(packetBuffer);
+                    User user = new User(new String(name, StandardCharsets.UTF_8), id, new InetSocketAddress(InetAddress.getByAddress(address), port));
+                    user.setCapabilities(capabilities);
+                    this.users.put(id, user);
+                    this.lastUserId = Math.max(this.lastUserId, id);
+                }
+                case Replicator.MESSAGE_RECORD -> {
+                    int index = format.getInt(packetBuffer);
+                    long userId = format.getLong(packetBuffer);
+                    int messageId = format.getInt(packetBuffer);
+                    byte[] message = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                    if (index == this.history.size()) {
+                        this.history.append(userId, message);
+                    }
+                    messageIdUsed(userId, messageId);
+                }
+                case Replicator.MESSAGE_ID_RECORD -> {
+                    long userId = format.getLong(packetBuffer);
+                    messageIdUsed(userId, format.getInt(packetBuffer));
+                }
+                case Replicator.DISCONNECT_RECORD -> {
+                    User user = this.users.remove(format.getLong(packetBuffer));
+                    if (user != null) {
+                        this.tombstones.add(user);
+                    }
+                }
+                case Replicator.TOMBSTONE_RECORD -> {
+                    long id = format.getLong(packetBuffer);
+                    byte[] name = format.getBytes(packetBuffer, Main.PAYLOAD_SIZE);
+                    this.users.remove(id);
+                    if (this.tombstones.getName(id) == null) {
+                        this.tombstones.add(new User(new String(name, StandardCharsets.UTF_8), id));
+                    }
+                    this.lastUserId = Math.max(this.lastUserId, id);
+                }
+                case Replicator.SYNCED_RECORD -> {
+                    if (this.lostEpoch == this.epoch) {
+                        continue;
+                    }
+                    this.synced = true;
+                    System.out.println("Info: Standby synced with primary " + this.primary + ", epoch " + this.epoch + ", " + this.users.size() + " users, " + this.history.size() + " messages.");
+                }
+                default -> {
+                    System.out.println("Warning: Unknown replication record from primary " + this.primary + ", rest of the packet discarded.");
+                    return;
+                }
+            }
+        }
+    }
+
+    private void messageIdUsed(long userId, int messageId) {
+        User user = this.users.get(userId);
+        if (user != null && messageId >= user.getNextMessageId()) {
+            user.setNextMessageId(messageId + 1);
+        }
+    }
+
+    /**
+     * Writes the acknowledgement of the replication stream, sent after every packet and every
+     * {@link Main#STANDBY_HEARTBEAT_INTERVAL} milliseconds.
+     *
+     * @param writer the writer
+     */
+    public void writeAck(PacketWriter writer) {
+        writer
+                .begin(Main.STANDBY_ACK_PACKET)
+                .putLong(this.session)
+                .putInt(this.epoch)
+                .putInt(this.expected)
+                .putInt(this.history.size());
+    }
+
+    private void sendAck() throws IOException {
+        writeAck(this.writer);
+        this.sender.send(this.writer.get(WireFormat.COMPACT), this.primary);
+    }
+
+    /**
+     * Sends the acknowledgement every {@link Main#STANDBY_HEARTBEAT_INTERVAL} milliseconds, or takes over if the
+     * primary stopped heartbeating.
+     *
+     * @param now the current time in milliseconds
+     * @return the replicated users that were connected if the standby took over, null otherwise
+     * @throws IOException if a I/O error occurs
+     */
+    public List<User> heartbeat(long now) throws IOException {
+        if (this.tookOver) {
+            return null;
+        }
+        if (!shouldTakeOver(now)) {
+            sendAck();
+            return null;
+        }
+        List<User> restored = takeOver();
+        System.out.println("Warning: Primary " + this.primary + " stopped heartbeating, took over with "
+                + restored.size() + " users and " + this.history.size() + " messages.");
+        return restored;
+    }
+
+    /**
+     * Checks if the primary stopped heartbeating, a standby whose epoch is not synced doesn't take over and warns once
+     * each time the primary stops.
+     *
+     * @param now the current time in milliseconds
+     * @return true if the standby must take over
+     */
+    public boolean shouldTakeOver(long now) {
+        if (this.tookOver || now - this.lastHeartbeatTime <= Main.STANDBY_TIMEOUT) {
+            this.refusedWarning = false;
+            return false;
+        }
+        if (!this.synced) {
+            //a primary that never heartbeated didn't start yet
+            if (!this.refusedWarning && this.lastHeartbeatTime != 0) {
+                this.refusedWarning = true;
+                System.out.println("Warning: Primary " + this.primary + " stopped heartbeating but "
+                        + (this.epoch == -1 ? "the replication never started" : "epoch " + this.epoch + " of the replication is not synced")
+                        + ", only " + this.history.size() + " messages replicated, NOT taking over! The clients wait for the primary to be restarted.");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes over the primary, the replication stream is ignored from now on.
+     *
+     * @return the replicated users that were connected
+     */
+    public List<User> takeOver() {
+        this.tookOver = true;
+        User.restoreLastUserId(this.lastUserId);
+        User[] restored = new User[this.users.size()];
+        this.users.copyValues(restored);
+        this.users.clear();
+        return Arrays.asList(restored);
+    }
+}
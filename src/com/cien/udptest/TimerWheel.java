@@ -0,0 +1,228 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * A hashed timing wheel, advancing it only visits the slots that passed. Timers are usually fields of their owner, so
+ * scheduling doesn't allocate. Not thread safe, if a task throws the other expired timers run on the next advance.
+ *
+ * @author Cien
+ */
+public class TimerWheel {
+
+    public interface Task {
+
+        /**
+         * Called when a timer expires, the timer can be scheduled again.
+         *
+         * @param timer the timer
+         * @param now the time of the wheel
+         * @throws IOException if the task failed
+         */
+        public void run(Timer timer, long now) throws IOException;
+    }
+
+    public static class Timer {
+
+        private final Task task;
+        private Timer previous;
+        private Timer next;
+        private long deadline;
+        private int list = -1;
+
+        public Timer(Task task) {
+            Objects.requireNonNull(task, "Task is null.");
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return this.list != -1;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final int resolution;
+    private final int mask;
+    //the last list holds the expired timers until they run
+    private final Timer[] lists;
+    private final int expired;
+
+    private long time;
+    private long cursor;
+    private int count = 0;
+    private long nextTime = Long.MAX_VALUE;
+    private boolean nextTimeValid = true;
+
+    /**
+     * Creates a wheel.
+     *
+     * @param slots the number of slots, a power of two
+     * @param resolution the time covered by each slot in milliseconds
+     * @param now the current time in milliseconds
+     */
+    public TimerWheel(int slots, int resolution, long now) {
+        if (slots <= 0 || Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Slots must be a power of two.");
+        }
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Resolution must be larger than zero.");
+        }
+        this.resolution = resolution;
+        this.mask = slots - 1;
+        this.lists = new Timer[slots + 1];
+        this.expired = slots;
+        this.time = now;
+        this.cursor = now / resolution;
+    }
+
+    public TimerWheel(long now) {
+        this(Main.TIMER_SLOTS, Main.TIMER_RESOLUTION, now);
+    }
+
+    /**
+     * Returns the coarse clock, the time of the last advance.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private void link(Timer timer, int list) {
+        Timer head = this.lists[list];
+        timer.previous = null;
+        timer.next = head;
+        if (head != null) {
+            head.previous = timer;
+        }
+        this.lists[list] = timer;
+        timer.list = list;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            this.lists[timer.list] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.list = -1;
+    }
+
+    /**
+     * Schedules a timer, a timer that is already scheduled is moved to the new deadline.
+     *
+     * @param timer the timer
+     * @param deadline when the timer expires, in milliseconds
+     */
+    public void schedule(Timer timer, long deadline) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+        } else {
+            this.count++;
+        }
+        timer.deadline = deadline;
+        //the first slot that starts at or after the deadline, so every timer of the current turn of a slot is due when
+        //the slot is visited, timers that are already due go to the slot of the next advance
+        long tick = Math.max(Math.floorDiv(deadline + this.resolution - 1, this.resolution), this.cursor);
+        link(timer, (int) (tick & this.mask));
+        this.nextTime = Math.min(this.nextTime, tick * this.resolution);
+    }
+
+    public void cancel(Timer timer) {
+        if (!timer.isScheduled()) {
+            return;
+        }
+        unlink(timer);
+        this.count--;
+    }
+
+    /**
+     * Updates the clock and runs the tasks of the expired timers.
+     *
+     * @param now the current time in milliseconds
+     * @throws IOException if a task failed
+     */
+    public void advance(long now) throws IOException {
+        this.time = now;
+        runExpired(now);
+        long target = now / this.resolution;
+        if (target < this.cursor) {
+            return;
+        }
+        this.nextTimeValid = false;
+        if (target - this.cursor > this.mask) {
+            //a full turn visits every slot
+            this.cursor = target - this.mask;
+        }
+        while (this.cursor <= target && this.count > 0) {
+            int slot = (int) (this.cursor & this.mask);
+            Timer timer = this.lists[slot];
+            while (timer != null) {
+                Timer next = timer.next;
+                //timers of later turns stay in the slot
+                if (timer.deadline <= now) {
+                    unlink(timer);
+                    link(timer, this.expired);
+                }
+                timer = next;
+            }
+            this.cursor++;
+            runExpired(now);
+        }
+        this.cursor = Math.max(this.cursor, target + 1);
+    }
+
+    private void runExpired(long now) throws IOException {
+        Timer e;
+        while ((e = this.lists[this.expired]) != null) {
+            unlink(e);
+            this.count--;
+            e.task.run(e, now);
+        }
+    }
+
+    /**
+     * Returns the start of the next slot that has timers, the earliest time {@link #advance(long)} has something to
+     * do.
+     *
+     * @return the time in milliseconds or {@link Long#MAX_VALUE} if there are no timers
+     */
+    public long getNextTime() {
+        if (this.lists[this.expired] != null) {
+            //left by a task that threw
+            return this.time;
+        }
+        if (this.nextTimeValid) {
+            return this.nextTime;
+        }
+        this.nextTimeValid = true;
+        this.nextTime = Long.MAX_VALUE;
+        if (this.count == 0) {
+            return this.nextTime;
+        }
+        for (long tick = this.cursor; tick <= this.cursor + this.mask; tick++) {
+            if (this.lists[(int) (tick & this.mask)] != null) {
+                this.nextTime = tick * this.resolution;
+                break;
+            }
+        }
+        return this.nextTime;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * The ids and names of the users that were reaped, used to identify the authors of old messages. Can be shared by
+ * the shards of a server.
+ *
+ * @author Cien
+ */
+public class Tombstones {
+
+    private final LongObjectMap<byte[]> names = new LongObjectMap<>();
+
+    public Tombstones() {
+
+    }
+
+    public synchronized void add(User user) {
+        Objects.requireNonNull(user, "User is null.");
+        this.names.put(user.getUserId(), user.getName().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the name of a reaped user encoded as UTF-8.
+     *
+     * @param userId the id of the user
+     * @return the name or null if there's no user with this id
+     */
+    public synchronized byte[] getName(long userId) {
+        return this.names.get(userId);
+    }
+
+    public synchronized long[] getUserIds() {
+        long[] ids = new long[this.names.size()];
+        this.names.copyKeys(ids);
+        return ids;
+    }
+
+    public synchronized int size() {
+        return this.names.size();
+    }
+
+    synchronized void write(DataOutputStream out) throws IOException {
+        long[] ids = new long[this.names.size()];
+        this.names.copyKeys(ids);
+        out.writeInt(ids.length);
+        for (long id : ids) {
+            byte[] name = this.names.get(id);
+            out.writeLong(id);
+            out.writeInt(name.length);
+            out.write(name);
+        }
+    }
+
+    synchronized void read(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            byte[] name = new byte[in.readInt()];
+            in.readFully(name);
+            this.names.put(id, name);
+        }
+    }
+}
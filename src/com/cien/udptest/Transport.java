@@ -0,0 +1,43 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A datagram endpoint opened by a {@link Network}, so the server and the client can also run on a {@link
+ * SimulatedNetwork}. Packets are sent like a {@link PacketSender}.
+ *
+ * @author Cien
+ */
+public interface Transport extends PacketSender, Closeable {
+
+    /**
+     * Receives a datagram without blocking, the datagram is written at the position of the buffer and the rest of a
+     * datagram larger than the remaining space is discarded, like {@link java.nio.channels.DatagramChannel#receive}.
+     *
+     * @param buffer the buffer
+     * @return the address of the sender or null if no datagram is waiting
+     * @throws java.net.PortUnreachableException if the transport is connected and a previous packet was not delivered
+     * @throws IOException if a I/O error occurs
+     */
+    public SocketAddress receive(ByteBuffer buffer) throws IOException;
+
+    public SocketAddress getLocalAddress() throws IOException;
+
+    /**
+     * Connects the transport, after this only datagrams from the address are received.
+     *
+     * @param address the address
+     * @throws IOException if a I/O error occurs
+     */
+    public void connect(SocketAddress address) throws IOException;
+
+    public void disconnect() throws IOException;
+
+}
@@ -1,150 +1,391 @@
-/*
- * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
- * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
- */
-package com.cien.udptest;
-
-import java.net.SocketAddress;
-import java.util.Objects;
-import java.util.concurrent.atomic.AtomicLong;
-
-/**
- *
- * @author Cien
- */
-public class User {
-
-    private static final AtomicLong userIdCounter = new AtomicLong(0);
-    
-    private final String name; //server, client
-    private final long userId; //server, client
-    
-    private volatile boolean disconnected = false; //server, client
-    private volatile int ping = 0; //server, client
-    private volatile long lastPacketReceivedTime = 0; //server, client (from the server)
-    
-    private SocketAddress socketAddress; //server
-    private volatile int nextMessageId = 0; //server
-    private volatile long nextPingTime = 0; //server
-    
-    private volatile long typingTime = 0; //client
-    
-    public User(String name, SocketAddress socketAddress) {
-        Objects.requireNonNull(name, "Name is null.");
-        Objects.requireNonNull(socketAddress, "Socket Address is null.");
-        
-        this.name = name;
-        this.socketAddress = socketAddress;
-        this.userId = User.userIdCounter.incrementAndGet();
-    }
-    
-    public User(String name, long id) {
-        Objects.requireNonNull(name, "Name is null.");
-        
-        this.name = name;
-        this.userId = id; 
-   }
-
-    public String getName() {
-        return name;
-    }
-
-    public SocketAddress getSocketAddress() {
-        return socketAddress;
-    }
-
-    public long getUserId() {
-        return userId;
-    }
-
-    public long getLastPacketReceivedTime() {
-        return lastPacketReceivedTime;
-    }
-    
-     public boolean hasTimedOut() {
-        return (System.currentTimeMillis() - this.lastPacketReceivedTime) >= Main.MAX_TIMEOUT_WARNINGS * 1000;
-    }
-    
-    public boolean isDisconnected() {
-        return this.disconnected;
-    }
-    
-    public void disconnect() {
-        this.disconnected = true;
-    }
-    
-    public void updateLastPacketReceivedTime() {
-        this.lastPacketReceivedTime = System.currentTimeMillis();
-    }
-
-    public int getNextMessageId() {
-        return this.nextMessageId;
-    }
-
-    public void incrementMessageId() {
-        this.nextMessageId++;
-    }
-
-    public long getNextPingTime() {
-        return nextPingTime;
-    }
-
-    public void setNextPingTime(long nextPingTime) {
-        this.nextPingTime = nextPingTime;
-    }
-
-    public int getPing() {
-        return ping;
-    }
-
-    public void setPing(int ping) {
-        this.ping = ping;
-    }
-
-    public boolean isTyping() {
-        return this.typingTime != 0;
-    }
-    
-    public void typing() {
-        this.typingTime = System.currentTimeMillis() + Main.TYPING_DELAY;
-    }
-    
-    public void stopTyping() {
-        this.typingTime = 0;
-    }
-    
-    public boolean hasTypingTimedOut() {
-        return this.typingTime != 0 && System.currentTimeMillis() > this.typingTime;
-    }
-    
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj) {
-            return true;
-        }
-        if (obj == null) {
-            return false;
-        }
-        if (getClass() != obj.getClass()) {
-            return false;
-        }
-        final User other = (User) obj;
-        return this.userId == other.userId;
-    }
-
-    @Override
-    public int hashCode() {
-        int hash = 7;
-        hash = 37 * hash + (int) (this.userId ^ (this.userId >>> 32));
-        return hash;
-    }
-    
-    public String toDetailedString() {
-        return "[user:"+this.name+",id:"+this.userId+",ip:"+this.socketAddress+",ping:"+this.ping+",disconnected:"+isDisconnected()+",timedOut:"+hasTimedOut()+"]";
-    }
-    
-    @Override
-    public String toString() {
-        return this.name+", "+this.ping+" ms";
-    }
-}
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author Cien
+ */
+public class User {
+
+    private static final AtomicLong userIdCounter = new AtomicLong(0);
+    
+    private final String name; //server, client
+    private final long userId; //server, client
+    
+    private volatile boolean disconnected = false; //server, client
+    private volatile long disconnectedTime = 0; //server
+    private volatile int ping = 0; //server, client
+    private volatile long lastPacketReceivedTime = 0; //server, client (from the server)
+    
+    private SocketAddress socketAddress; //server
+    private volatile int nextMessageId = 0; //server
+    private int broadcastIndex = -1; //server
+    private int[] rooms = new int[0]; //server
+    private int[] roomSlots = new int[0]; //server
+    private int capabilities = 0; //server
+    private FrameBuffer frameBuffer; //server
+    private ResendScheduler.Request resendRequest; //server
+    private ReorderBuffer<Server.PendingMessage> reorderBuffer; //server
+    private TimerWheel.Timer pingTimer; //server
+    private RttEstimator rttEstimator; //server
+    private volatile int digestPing = 0; //server
+    private boolean pingChanged = false; //server
+    private int typingIndex = -1; //server
+    private boolean typingStopped = false; //server
+    private TimerWheel.Timer timeoutTimer; //server, client
+    private TimerWheel.Timer ackTimer; //server
+    private TimerWheel.Timer typingTimer; //server, client
+    
+    private volatile long typingTime = 0; //server, client
+    
+    public User(String name, SocketAddress socketAddress) {
+        Objects.requireNonNull(name, "Name is null.");
+        Objects.requireNonNull(socketAddress, "Socket Address is null.");
+        
+        this.name = name;
+        this.socketAddress = socketAddress;
+        this.userId = User.userIdCounter.incrementAndGet();
+    }
+    
+    public User(String name, long id) {
+        Objects.requireNonNull(name, "Name is null.");
+        
+        this.name = name;
+        this.userId = id; 
+   }
+    
+    /**
+     * Recreates a server user from the journal.
+     */
+    User(String name, long id, SocketAddress socketAddress) {
+        this(name, id);
+        Objects.requireNonNull(socketAddress, "Socket Address is null.");
+        this.socketAddress = socketAddress;
+        restoreLastUserId(id);
+    }
+    
+    static long getLastUserId() {
+        return User.userIdCounter.get();
+    }
+    
+    /**
+     * Makes sure new users will not reuse the id of a user restored from the journal.
+     */
+    static void restoreLastUserId(long id) {
+        User.userIdCounter.accumulateAndGet(id, Math::max);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public SocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public long getLastPacketReceivedTime() {
+        return lastPacketReceivedTime;
+    }
+    
+     public boolean hasTimedOut() {
+        return hasTimedOut(System.currentTimeMillis());
+    }
+
+    public boolean hasTimedOut(long now) {
+        return (now - this.lastPacketReceivedTime) >= Main.MAX_TIMEOUT_WARNINGS * 1000;
+    }
+    
+    public boolean isDisconnected() {
+        return this.disconnected;
+    }
+    
+    public void disconnect() {
+        this.disconnectedTime = System.currentTimeMillis();
+        this.disconnected = true;
+    }
+
+    public long getDisconnectedTime() {
+        return disconnectedTime;
+    }
+    
+    public void updateLastPacketReceivedTime() {
+        updateLastPacketReceivedTime(System.currentTimeMillis());
+    }
+
+    public void updateLastPacketReceivedTime(long now) {
+        this.lastPacketReceivedTime = now;
+    }
+
+    public int getNextMessageId() {
+        return this.nextMessageId;
+    }
+
+    public void incrementMessageId() {
+        this.nextMessageId++;
+    }
+
+    void setNextMessageId(int nextMessageId) {
+        this.nextMessageId = nextMessageId;
+    }
+
+    int getBroadcastIndex() {
+        return broadcastIndex;
+    }
+
+    void setBroadcastIndex(int broadcastIndex) {
+        this.broadcastIndex = broadcastIndex;
+    }
+
+    /**
+     * Returns the index of the user in the members of a room.
+     *
+     * @param room the id of the room
+     * @return the index or -1 if the user is not a member
+     */
+    int getRoomSlot(int room) {
+        for (int i = 0; i < this.rooms.length; i++) {
+            if (this.rooms[i] == room) {
+                return this.roomSlots[i];
+            }
+        }
+        return -1;
+    }
+
+    void setRoomSlot(int room, int slot) {
+        for (int i = 0; i < this.rooms.length; i++) {
+            if (this.rooms[i] != room) {
+                continue;
+            }
+            if (slot != -1) {
+                this.roomSlots[i] = slot;
+                return;
+            }
+            int last = this.rooms.length - 1;
+            this.rooms[i] = this.rooms[last];
+            this.roomSlots[i] = this.roomSlots[last];
+            this.rooms = Arrays.copyOf(this.rooms, last);
+            this.roomSlots = Arrays.copyOf(this.roomSlots, last);
+            return;
+        }
+        if (slot == -1) {
+            return;
+        }
+        this.rooms = Arrays.copyOf(this.rooms, this.rooms.length + 1);
+        this.roomSlots = Arrays.copyOf(this.roomSlots, this.roomSlots.length + 1);
+        this.rooms[this.rooms.length - 1] = room;
+        this.roomSlots[this.roomSlots.length - 1] = slot;
+    }
+
+    /**
+     * Returns the ids of the rooms the user is a member of, the array must not be modified.
+     *
+     * @return the ids
+     */
+    int[] getRooms() {
+        return rooms;
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+        if ((capabilities & Main.CAPABILITY_MULTI_FRAME) != 0) {
+            this.frameBuffer = new FrameBuffer(this.socketAddress, getWireFormat());
+        } else {
+            this.frameBuffer = null;
+        }
+        if ((capabilities & Main.CAPABILITY_SACK) != 0) {
+            this.reorderBuffer = new ReorderBuffer<>();
+        } else {
+            this.reorderBuffer = null;
+        }
+    }
+
+    public WireFormat getWireFormat() {
+        return hasCapability(Main.CAPABILITY_COMPACT_FORMAT) ? WireFormat.COMPACT : WireFormat.LEGACY;
+    }
+
+    public boolean hasCapability(int capability) {
+        return (this.capabilities & capability) != 0;
+    }
+
+    public FrameBuffer getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    /**
+     * Returns the messages of the user that arrived before a missing message, only for users that support selective
+     * acknowledgements.
+     *
+     * @return the reorder buffer or null
+     */
+    public ReorderBuffer<Server.PendingMessage> getReorderBuffer() {
+        return reorderBuffer;
+    }
+
+    ResendScheduler.Request getResendRequest() {
+        return resendRequest;
+    }
+
+    void setResendRequest(ResendScheduler.Request resendRequest) {
+        this.resendRequest = resendRequest;
+    }
+
+    TimerWheel.Timer getPingTimer() {
+        return pingTimer;
+    }
+
+    void setPingTimer(TimerWheel.Timer pingTimer) {
+        this.pingTimer = pingTimer;
+    }
+
+    RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    void setRttEstimator(RttEstimator rttEstimator) {
+        this.rttEstimator = rttEstimator;
+    }
+
+    /**
+     * Returns the last ping of the user sent to the other users.
+     *
+     * @return the ping in milliseconds
+     */
+    public int getDigestPing() {
+        return digestPing;
+    }
+
+    void setDigestPing(int digestPing) {
+        this.digestPing = digestPing;
+    }
+
+    boolean isPingChanged() {
+        return pingChanged;
+    }
+
+    void setPingChanged(boolean pingChanged) {
+        this.pingChanged = pingChanged;
+    }
+
+    int getTypingIndex() {
+        return typingIndex;
+    }
+
+    void setTypingIndex(int typingIndex) {
+        this.typingIndex = typingIndex;
+    }
+
+    boolean isTypingStopped() {
+        return typingStopped;
+    }
+
+    void setTypingStopped(boolean typingStopped) {
+        this.typingStopped = typingStopped;
+    }
+
+    TimerWheel.Timer getTimeoutTimer() {
+        return timeoutTimer;
+    }
+
+    void setTimeoutTimer(TimerWheel.Timer timeoutTimer) {
+        this.timeoutTimer = timeoutTimer;
+    }
+
+    TimerWheel.Timer getAckTimer() {
+        return ackTimer;
+    }
+
+    void setAckTimer(TimerWheel.Timer ackTimer) {
+        this.ackTimer = ackTimer;
+    }
+
+    TimerWheel.Timer getTypingTimer() {
+        return typingTimer;
+    }
+
+    void setTypingTimer(TimerWheel.Timer typingTimer) {
+        this.typingTimer = typingTimer;
+    }
+
+    public int getPing() {
+        return ping;
+    }
+
+    public void setPing(int ping) {
+        this.ping = ping;
+    }
+
+    public boolean isTyping() {
+        return this.typingTime != 0;
+    }
+
+    public long getTypingTime() {
+        return typingTime;
+    }
+    
+    public void typing() {
+        typing(System.currentTimeMillis());
+    }
+
+    public void typing(long now) {
+        this.typingTime = now + Main.TYPING_DELAY;
+    }
+    
+    public void stopTyping() {
+        this.typingTime = 0;
+    }
+    
+    public boolean hasTypingTimedOut() {
+        return hasTypingTimedOut(System.currentTimeMillis());
+    }
+
+    public boolean hasTypingTimedOut(long now) {
+        return this.typingTime != 0 && now > this.typingTime;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final User other = (User) obj;
+        return this.userId == other.userId;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 37 * hash + (int) (this.userId ^ (this.userId >>> 32));
+        return hash;
+    }
+    
+    public String toDetailedString() {
+        return "[user:"+this.name+",id:"+this.userId+",ip:"+this.socketAddress+",ping:"+this.ping+",disconnected:"+isDisconnected()+",timedOut:"+hasTimedOut()+"]";
+    }
+    
+    @Override
+    public String toString() {
+        return this.name+", "+this.ping+" ms";
+    }
+}
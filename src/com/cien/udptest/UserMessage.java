@@ -1,63 +1,83 @@
-/*
- * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
- * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
- */
-package com.cien.udptest;
-
-import java.util.Objects;
-
-/**
- *
- * @author Cien
- */
-public class UserMessage {
-    
-    private final User user;
-    private final String message;
-    
-    public UserMessage(User user, String message) {
-        Objects.requireNonNull(user, "User is null.");
-        Objects.requireNonNull(message, "Message is null.");
-        this.user = user;
-        this.message = message;
-    }
-
-    public User getUser() {
-        return user;
-    }
-
-    public String getMessage() {
-        return message;
-    }
-
-    @Override
-    public int hashCode() {
-        int hash = 3;
-        hash = 53 * hash + Objects.hashCode(this.user);
-        hash = 53 * hash + Objects.hashCode(this.message);
-        return hash;
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj) {
-            return true;
-        }
-        if (obj == null) {
-            return false;
-        }
-        if (getClass() != obj.getClass()) {
-            return false;
-        }
-        final UserMessage other = (UserMessage) obj;
-        if (!Objects.equals(this.message, other.message)) {
-            return false;
-        }
-        return Objects.equals(this.user, other.user);
-    }
-
-    @Override
-    public String toString() {
-        return this.user.toString()+" -> "+this.message;
-    }
-}
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ *
+ * @author Cien
+ */
+public class UserMessage {
+    
+    private final User user;
+    private final byte[] data;
+    private String message;
+    
+    public UserMessage(User user, String message) {
+        Objects.requireNonNull(user, "User is null.");
+        Objects.requireNonNull(message, "Message is null.");
+        this.user = user;
+        this.data = null;
+        this.message = message;
+    }
+    
+    /**
+     * Creates a message from its UTF-8 encoded text, the text is only decoded when it's needed.
+     * 
+     * @param user the author
+     * @param data the UTF-8 encoded text
+     */
+    public UserMessage(User user, byte[] data) {
+        Objects.requireNonNull(user, "User is null.");
+        Objects.requireNonNull(data, "Data is null.");
+        this.user = user;
+        this.data = data;
+        this.message = null;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public String getMessage() {
+        if (this.message == null) {
+            this.message = new String(this.data, StandardCharsets.UTF_8);
+        }
+        return this.message;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 53 * hash + Objects.hashCode(this.user);
+        hash = 53 * hash + Objects.hashCode(getMessage());
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final UserMessage other = (UserMessage) obj;
+        if (!Objects.equals(getMessage(), other.getMessage())) {
+            return false;
+        }
+        return Objects.equals(this.user, other.user);
+    }
+
+    @Override
+    public String toString() {
+        return this.user.toString()+" -> "+getMessage();
+    }
+}
@@ -1,57 +1,101 @@
-/*
- * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
- * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
- */
-package com.cien.udptest;
-
-import java.net.SocketAddress;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-
-/**
- *
- * @author Cien
- */
-public class Users {
-    
-    private final Set<User> users = new HashSet<>();
-    private final Map<SocketAddress, User> usersAddresses = new HashMap<>();
-    private final Map<Long, User> usersIds = new HashMap<>();
-    
-    public Users() {
-        
-    }
-    
-    public boolean add(User user) {
-        if (this.users.contains(user)) {
-            return false;
-        }
-        this.users.add(user);
-        this.usersAddresses.put(user.getSocketAddress(), user);
-        this.usersIds.put(user.getUserId(), user);
-        return true;
-    }
-    
-    public boolean remove(User user) {
-        boolean removed = this.users.remove(user);
-        if (removed) {
-            this.usersAddresses.remove(user.getSocketAddress());
-            this.usersIds.remove(user.getUserId());
-        }
-        return removed;
-    }
-    
-    public User getBySocketAddress(SocketAddress address) {
-        return this.usersAddresses.get(address);
-    }
-    
-    public User getByUserId(long id) {
-        return this.usersIds.get(id);
-    }
-    
-    public User[] getUsers() {
-        return this.users.toArray(User[]::new);
-    }
-}
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author Cien
+ */
+public class Users {
+    
+    private static final User[] EMPTY = new User[0];
+    
+    private final LongObjectMap<User> usersIds = new LongObjectMap<>();
+    private final Map<SocketAddress, User> usersAddresses = new HashMap<>();
+    private final Map<String, User> usersNames = new HashMap<>();
+    
+    private User[] snapshot = EMPTY;
+    private boolean snapshotValid = true;
+    
+    public Users() {
+        
+    }
+    
+    public boolean add(User user) {
+        if (this.usersIds.containsKey(user.getUserId())) {
+            return false;
+        }
+        this.usersIds.put(user.getUserId(), user);
+        if (user.getSocketAddress() != null) {
+            this.usersAddresses.put(user.getSocketAddress(), user);
+        }
+        if (!user.isDisconnected()) {
+            this.usersNames.put(user.getName(), user);
+        }
+        this.snapshotValid = false;
+        return true;
+    }
+    
+    public boolean remove(User user) {
+        User removed = this.usersIds.remove(user.getUserId());
+        if (removed == null) {
+            return false;
+        }
+        if (removed.getSocketAddress() != null) {
+            this.usersAddresses.remove(removed.getSocketAddress(), removed);
+        }
+        this.usersNames.remove(removed.getName(), removed);
+        this.snapshotValid = false;
+        return true;
+    }
+    
+    public User getBySocketAddress(SocketAddress address) {
+        return this.usersAddresses.get(address);
+    }
+    
+    public User getByUserId(long id) {
+        return this.usersIds.get(id);
+    }
+    
+    /**
+     * Finds the connected user using a name, users that disconnected release their names.
+     * 
+     * @param name the name
+     * @return the connected user or null
+     */
+    public User getByActiveName(String name) {
+        User user = this.usersNames.get(name);
+        if (user != null && user.isDisconnected()) {
+            this.usersNames.remove(name, user);
+            return null;
+        }
+        return user;
+    }
+    
+    public int size() {
+        return this.usersIds.size();
+    }
+    
+    /**
+     * Returns every user sorted by id, the array is cached until a user is added or removed and must not be modified.
+     * 
+     * @return the users
+     */
+    public User[] getUsers() {
+        if (!this.snapshotValid) {
+            User[] array = new User[this.usersIds.size()];
+            this.usersIds.copyValues(array);
+            Arrays.sort(array, (a, b) -> Long.compare(a.getUserId(), b.getUserId()));
+            this.snapshot = array;
+            this.snapshotValid = true;
+        }
+        return this.snapshot;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The encodings of a packet on the wire, both formats write the same fields in the same order.
+ *
+ * @author Cien
+ */
+public enum WireFormat {
+    /**
+     * The first format, a 8 bytes magic number, a 4 bytes packet id and fixed size big endian fields.
+     */
+    LEGACY {
+        @Override
+        public void putHeader(ByteBuffer buffer, int packetId) {
+            buffer.putLong(Main.MAGIC_NUMBER).putInt(packetId);
+        }
+
+        @Override
+        public int readHeader(ByteBuffer buffer) {
+            if (buffer.getLong() != Main.MAGIC_NUMBER) {
+                throw new MalformedPacketException("Invalid magic number.");
+            }
+            return buffer.getInt();
+        }
+
+        @Override
+        public int getPrefixSize() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void putPacketId(ByteBuffer buffer, int packetId) {
+            buffer.putInt(packetId);
+        }
+
+        @Override
+        public int getPacketId(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+
+        @Override
+        public void putFrameLength(ByteBuffer buffer, int length) {
+            buffer.putShort((short) length);
+        }
+
+        @Override
+        public int getFrameLength(ByteBuffer buffer) {
+            return Short.toUnsignedInt(buffer.getShort());
+        }
+
+        @Override
+        public int getFrameLengthSize(int length) {
+            return Short.BYTES;
+        }
+
+        @Override
+        public void putInt(ByteBuffer buffer, int value) {
+            buffer.putInt(value);
+        }
+
+        @Override
+        public int getInt(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+
+        @Override
+        public void putLong(ByteBuffer buffer, long value) {
+            buffer.putLong(value);
+        }
+
+        @Override
+        public long getLong(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    },
+    /**
+     * The version 2 format, a single header byte followed by the packet id and the fields as zigzag varints.
+     */
+    COMPACT {
+        @Override
+        public void putHeader(ByteBuffer buffer, int packetId) {
+            buffer.put(Main.COMPACT_HEADER);
+            putVarInt(buffer, packetId);
+        }
+
+        @Override
+        public int readHeader(ByteBuffer buffer) {
+            if (buffer.get() != Main.COMPACT_HEADER) {
+                throw new MalformedPacketException("Invalid header.");
+            }
+            return getVarInt(buffer);
+        }
+
+        @Override
+        public int getPrefixSize() {
+            return Byte.BYTES;
+        }
+
+        @Override
+        public void putPacketId(ByteBuffer buffer, int packetId) {
+            putVarInt(buffer, packetId);
+        }
+
+        @Override
+        public int getPacketId(ByteBuffer buffer) {
+            return getVarInt(buffer);
+        }
+
+        @Override
+        public void putFrameLength(ByteBuffer buffer, int length) {
+            putVarInt(buffer, length);
+        }
+
+        @Override
+        public int getFrameLength(ByteBuffer buffer) {
+            return getVarInt(buffer);
+        }
+
+        @Override
+        public int getFrameLengthSize(int length) {
+            return getVarIntSize(length);
+        }
+
+        @Override
+        public void putInt(ByteBuffer buffer, int value) {
+            putVarInt(buffer, (value << 1) ^ (value >> 31));
+        }
+
+        @Override
+        public int getInt(ByteBuffer buffer) {
+            int value = getVarInt(buffer);
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        @Override
+        public void putLong(ByteBuffer buffer, long value) {
+            putVarLong(buffer, (value << 1) ^ (value >> 63));
+        }
+
+        @Override
+        public long getLong(ByteBuffer buffer) {
+            long value = getVarLong(buffer);
+            return (value >>> 1) ^ -(value & 1);
+        }
+    };
+
+    public static class MalformedPacketException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public MalformedPacketException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Finds the format of a received packet without consuming it.
+     *
+     * @param buffer the packet, from its position
+     * @return the format or null if unknown
+     */
+    public static WireFormat detect(ByteBuffer buffer) {
+        int position = buffer.position();
+        if (buffer.remaining() >= 1 && buffer.get(position) == Main.COMPACT_HEADER) {
+            return COMPACT;
+        }
+        if (buffer.remaining() >= Long.BYTES && buffer.getLong(position) == Main.MAGIC_NUMBER) {
+            return LEGACY;
+        }
+        return null;
+    }
+
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new MalformedPacketException("Varint is too long.");
+    }
+
+    public static int getVarIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new MalformedPacketException("Varlong is too long.");
+    }
+
+    /**
+     * Writes the header of a packet.
+     *
+     * @param buffer the buffer
+     * @param packetId the packet id
+     */
+    public abstract void putHeader(ByteBuffer buffer, int packetId);
+
+    /**
+     * Reads and validates the header of a packet.
+     *
+     * @param buffer the buffer
+     * @return the packet id
+     * @throws MalformedPacketException if the header is invalid
+     */
+    public abstract int readHeader(ByteBuffer buffer);
+
+    /**
+     * @return the amount of bytes at the start of a packet that are not part of its frame
+     */
+    public abstract int getPrefixSize();
+
+    public abstract void putPacketId(ByteBuffer buffer, int packetId);
+
+    public abstract int getPacketId(ByteBuffer buffer);
+
+    public abstract void putFrameLength(ByteBuffer buffer, int length);
+
+    public abstract int getFrameLength(ByteBuffer buffer);
+
+    public abstract int getFrameLengthSize(int length);
+
+    public abstract void putInt(ByteBuffer buffer, int value);
+
+    public abstract int getInt(ByteBuffer buffer);
+
+    public abstract void putLong(ByteBuffer buffer, long value);
+
+    public abstract long getLong(ByteBuffer buffer);
+
+    public void putBytes(ByteBuffer buffer, byte[] data, int offset, int length) {
+        putInt(buffer, length);
+        buffer.put(data, offset, length);
+    }
+
+    /**
+     * Reads a length prefixed byte array.
+     *
+     * @param buffer the buffer
+     * @param maxLength the maximum length allowed
+     * @return the bytes
+     * @throws MalformedPacketException if the length is negative or larger than the maximum
+     */
+    public byte[] getBytes(ByteBuffer buffer, int maxLength) {
+        int length = getInt(buffer);
+        if (length < 0 || length > maxLength) {
+            throw new MalformedPacketException("Invalid length " + length + ", max is " + maxLength);
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+}
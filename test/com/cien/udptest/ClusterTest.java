@@ -0,0 +1,128 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Cien
+ */
+public class ClusterTest {
+
+    private static final int NAMES = 6000;
+
+    private static InetSocketAddress[] getNodes(int count) {
+        InetSocketAddress[] nodes = new InetSocketAddress[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7000 + i);
+        }
+        return nodes;
+    }
+
+    @Test
+    public void everyNodeAgreesOnTheOwners() {
+        InetSocketAddress[] nodes = getNodes(3);
+        Cluster[] views = new Cluster[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            views[i] = new Cluster(nodes, i);
+        }
+        for (int n = 0; n < NAMES; n++) {
+            String name = "user" + n;
+            int owner = views[0].getOwner(name);
+            for (Cluster view : views) {
+                assertEquals(owner, view.getOwner(name));
+            }
+        }
+        for (Cluster view : views) {
+            assertEquals(views[0].getOwner(Main.LOBBY_NAME), view.getRoomOwner(Main.LOBBY_ROOM));
+        }
+    }
+
+    @Test
+    public void namesAreSpreadOverTheNodes() {
+        int nodeCount = 4;
+        Cluster cluster = new Cluster(getNodes(nodeCount), 0);
+        int[] owned = new int[nodeCount];
+        for (int n = 0; n < NAMES; n++) {
+            owned[cluster.getOwner("user" + n)]++;
+        }
+        for (int count : owned) {
+            //within half of the fair share
+            assertTrue(count > NAMES / nodeCount / 2 && count < NAMES / nodeCount * 3 / 2, "unbalanced ring: " + count);
+        }
+    }
+
+    @Test
+    public void addingANodeOnlyMovesNamesToIt() {
+        Cluster before = new Cluster(getNodes(3), 0);
+        Cluster after = new Cluster(getNodes(4), 0);
+        int moved = 0;
+        for (int n = 0; n < NAMES; n++) {
+            String name = "room" + n;
+            int oldOwner = before.getOwner(name);
+            int newOwner = after.getOwner(name);
+            if (oldOwner != newOwner) {
+                assertEquals(3, newOwner);
+                moved++;
+            }
+        }
+        //about a quarter of the names, never most of them
+        assertTrue(moved > NAMES / 8 && moved < NAMES * 3 / 8, moved + " names moved");
+    }
+
+    @Test
+    public void roomAndUserIdsCarryTheirNode() {
+        InetSocketAddress[] nodes = getNodes(3);
+        for (int i = 0; i < nodes.length; i++) {
+            Cluster cluster = new Cluster(nodes, i);
+            int room = cluster.getFirstRoomId();
+            assertEquals(i, cluster.getRoomOwner(room));
+            assertEquals(i, cluster.getRoomOwner(room + 100));
+            assertTrue(cluster.isOwner(room));
+            assertEquals(i, (int) (cluster.getFirstUserId() >>> Main.CLUSTER_USER_ID_BITS));
+
+            assertEquals(-1, cluster.getNode(nodes[i]));
+            assertEquals((i + 1) % nodes.length, cluster.getNode(nodes[(i + 1) % nodes.length]));
+        }
+    }
+
+    @Test
+    public void aRestartedNodeResetsTheLink() {
+        InetSocketAddress[] nodes = getNodes(2);
+        Cluster cluster = new Cluster(nodes, 0);
+        Cluster other = new Cluster(nodes, 1);
+        assertFalse(cluster.checkSession(1, other.getSession()));
+        for (int i = 0; i < 3; i++) {
+            cluster.sent(1, new byte[]{(byte) cluster.nextSequence(1)});
+            assertTrue(cluster.received(1, i));
+        }
+        cluster.acknowledged(1, 1);
+        assertFalse(cluster.checkSession(1, other.getSession()));
+        assertEquals(3, cluster.getExpected(1));
+
+        Cluster restarted = new Cluster(nodes, 1);
+        assertTrue(cluster.checkSession(1, restarted.getSession()));
+        assertEquals(0, cluster.getExpected(1));
+        assertEquals(0, cluster.nextSequence(1));
+        assertTrue(cluster.getRetransmissions(1).isEmpty());
+        assertTrue(cluster.received(1, 0));
+    }
+
+    @Test
+    public void invalidClustersAreRefused() {
+        assertThrows(IllegalArgumentException.class, () -> new Cluster(getNodes(2), 2));
+        InetSocketAddress[] twice = {getNodes(1)[0], getNodes(1)[0]};
+        assertThrows(IllegalArgumentException.class, () -> new Cluster(twice, 0));
+        assertThrows(IllegalArgumentException.class, () -> Cluster.parseNodes("localhost"));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Each journal is replayed by a new journal, history and tombstones, like a restarted server.
+ *
+ * @author Cien
+ */
+public class JournalTest {
+
+    @TempDir
+    Path directory;
+
+    private ServerConfig config;
+    private MessageHistory history;
+    private Tombstones tombstones;
+    private final List<User> users = new ArrayList<>();
+
+    private Journal open() throws IOException {
+        if (this.config == null) {
+            this.config = new ServerConfig();
+            this.config.setJournalDirectory(this.directory);
+            this.config.setHistoryTailSize(16);
+            this.config.setSnapshotInterval(1);
+        }
+        close();
+        this.history = MessageHistory.create(this.config);
+        this.tombstones = new Tombstones();
+        this.users.clear();
+        Journal journal = new Journal(this.config, this.history, this.tombstones, () -> this.users);
+        this.users.addAll(journal.replay());
+        return journal;
+    }
+
+    /**
+     * Waits for the segments spilled by the history, like a server that stopped.
+     */
+    @AfterEach
+    public void close() {
+        if (this.history != null) {
+            this.history.close();
+        }
+    }
+
+    private User connect(Journal journal, String name, long id) throws IOException {
+        User user = new User(name, id, new InetSocketAddress(InetAddress.getLoopbackAddress(), 5000 + (int) id));
+        this.users.add(user);
+        journal.userConnected(user);
+        return user;
+    }
+
+    private static void send(Journal journal, User user, String message) throws IOException {
+        journal.appendMessage(user, user.getNextMessageId(), message.getBytes(StandardCharsets.UTF_8));
+        user.incrementMessageId();
+    }
+
+    private User getUser(long id) {
+        for (User u : this.users) {
+            if (u.getUserId() == id) {
+                return u;
+            }
+        }
+        return null;
+    }
+
+    private void assertMessages(int count) {
+        assertEquals(count, this.history.size());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(("message " + i).getBytes(StandardCharsets.UTF_8), this.history.getMessage(i));
+        }
+    }
+
+    @Test
+    public void replayRestoresTheUsersAndTheMessagesOfTheLog() throws IOException {
+        Journal journal = open();
+        User alice = connect(journal, "alice", 1);
+        User bob = connect(journal, "bob", 2);
+        for (int i = 0; i < 40; i++) {
+            send(journal, (i % 4 == 0 ? bob : alice), "message " + i);
+        }
+        //the message record is written ahead of the broadcast, without a flush
+        open();
+
+        assertMessages(40);
+        assertEquals(2, this.users.size());
+        assertEquals(30, getUser(1).getNextMessageId());
+        assertEquals(10, getUser(2).getNextMessageId());
+        assertEquals(1L, this.history.getUserId(1));
+        assertEquals(2L, this.history.getUserId(4));
+    }
+
+    @Test
+    public void disconnectedUsersAreRestoredAsTombstones() throws IOException {
+        Journal journal = open();
+        User alice = connect(journal, "alice", 1);
+        connect(journal, "bob", 2);
+        alice.disconnect();
+        this.users.remove(alice);
+        journal.userDisconnected(alice);
+        journal.flush(System.currentTimeMillis());
+
+        open();
+        assertEquals(1, this.users.size());
+        assertEquals(2L, this.users.get(0).getUserId());
+        assertArrayEquals("alice".getBytes(StandardCharsets.UTF_8), this.tombstones.getName(1));
+    }
+
+    @Test
+    public void snapshotsStartANewLogAndKeepTheSpilledHistory() throws IOException {
+        Journal journal = open();
+        User alice = connect(journal, "alice", 1);
+        for (int i = 0; i < 100; i++) {
+            send(journal, alice, "message " + i);
+        }
+        //the replay wrote the snapshot of the first generation
+        assertTrue(Files.exists(this.directory.resolve("journal-1.log")));
+        journal.flush(System.currentTimeMillis() + 2000);
+        assertFalse(Files.exists(this.directory.resolve("journal-1.log")));
+        assertTrue(Files.exists(this.directory.resolve("journal-2.log")));
+
+        //after the snapshot, only in the new log
+        for (int i = 100; i < 120; i++) {
+            send(journal, alice, "message " + i);
+        }
+
+        open();
+        assertMessages(120);
+        assertNotNull(getUser(1));
+        assertEquals(120, getUser(1).getNextMessageId());
+
+        //a replay of a replay gives the same history
+        open();
+        assertMessages(120);
+    }
+
+    @Test
+    public void aTornRecordStopsTheReplay() throws IOException {
+        Journal journal = open();
+        User alice = connect(journal, "alice", 1);
+        for (int i = 0; i < 10; i++) {
+            send(journal, alice, "message " + i);
+        }
+        //a crash in the middle of the next record
+        Files.write(this.directory.resolve("journal-1.log"), new byte[]{0, 0, 0, 64, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        open();
+        assertMessages(10);
+        assertEquals(10, getUser(1).getNextMessageId());
+    }
+}
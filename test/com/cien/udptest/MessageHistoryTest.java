@@ -0,0 +1,85 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Histories with a tail of 16 messages, so most segments are spilled by the writer thread.
+ *
+ * @author Cien
+ */
+public class MessageHistoryTest {
+
+    private static final int TAIL = 16;
+    private static final int MESSAGES = 5000;
+
+    @TempDir
+    Path directory;
+
+    private static byte[] message(int index) {
+        return ("message " + index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertMessages(MessageHistory history, int count) {
+        assertEquals(count, history.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i % 7, history.getUserId(i));
+            assertArrayEquals(message(i), history.getMessage(i));
+        }
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void spilledMessagesAreReadBackAndDeletedOnClose() throws IOException {
+        MessageHistory history = new MessageHistory(TAIL, this.directory);
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(i, history.append(i % 7, message(i)));
+        }
+        //read while the writer may still be writing the last segments
+        assertMessages(history, MESSAGES);
+        assertMessages(history, MESSAGES);
+        assertTrue(countFiles() > 0);
+
+        history.close();
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void aRestoredPersistentHistoryHasEveryMessage() throws IOException {
+        MessageHistory history = new MessageHistory(TAIL, this.directory, true);
+        for (int i = 0; i < MESSAGES; i++) {
+            history.append(i % 7, message(i));
+        }
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        history.write(new DataOutputStream(snapshot));
+        history.close();
+
+        MessageHistory restored = new MessageHistory(TAIL, this.directory, true);
+        restored.read(new DataInputStream(new ByteArrayInputStream(snapshot.toByteArray())));
+        assertMessages(restored, MESSAGES);
+        assertEquals(MESSAGES, restored.append(MESSAGES % 7, message(MESSAGES)));
+        assertMessages(restored, MESSAGES + 1);
+    }
+}
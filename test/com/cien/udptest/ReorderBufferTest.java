@@ -0,0 +1,115 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Cien
+ */
+public class ReorderBufferTest {
+
+    @Test
+    public void keepsOnlyTheWindowAfterTheExpectedMessage() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>();
+        assertFalse(buffer.add(10, 9, "old"));
+        assertFalse(buffer.add(10, 10, "expected"));
+        assertTrue(buffer.add(10, 11, "first"));
+        assertTrue(buffer.add(10, 10 + ReorderBuffer.WINDOW, "last"));
+        assertFalse(buffer.add(10, 11 + ReorderBuffer.WINDOW, "too far"));
+    }
+
+    @Test
+    public void bitmapHasOneBitForEachKeptMessage() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>();
+        assertEquals(0L, buffer.getBitmap(0));
+        buffer.add(0, 1, "a");
+        buffer.add(0, 3, "b");
+        buffer.add(0, 64, "c");
+        assertEquals(1L | (1L << 2) | (1L << 63), buffer.getBitmap(0));
+
+        //the same messages seen from a later expected message
+        assertEquals(1L | (1L << 61), buffer.getBitmap(2));
+    }
+
+    @Test
+    public void takeDeliversTheKeptMessagesInOrder() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>();
+        buffer.add(0, 2, "c");
+        buffer.add(0, 1, "b");
+        buffer.add(0, 1, "b");
+        assertFalse(buffer.isEmpty());
+
+        int expected = 1;
+        StringBuilder delivered = new StringBuilder();
+        String message;
+        while ((message = buffer.take(expected)) != null) {
+            delivered.append(message);
+            expected++;
+        }
+        assertEquals("bc", delivered.toString());
+        assertEquals(3, expected);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.take(1));
+    }
+
+    @Test
+    public void slotsAreReusedByTheNextTurnOfTheWindow() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>();
+        buffer.add(0, 1, "a");
+        //same slot, one window later
+        buffer.add(ReorderBuffer.WINDOW, ReorderBuffer.WINDOW + 1, "b");
+        assertNull(buffer.take(1));
+        assertEquals("b", buffer.take(ReorderBuffer.WINDOW + 1));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void discardBeforeDropsMessagesThatAreNotAheadAnymore() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>();
+        buffer.add(0, 1, "a");
+        buffer.add(0, 5, "b");
+        buffer.discardBefore(3);
+        assertNull(buffer.take(1));
+        assertEquals(1L << 1, buffer.getBitmap(3));
+        buffer.discardBefore(6);
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void missingIndexesAreTheHolesBeforeTheLastKeptMessage() {
+        int[] missing = new int[ReorderBuffer.WINDOW];
+
+        int count = ReorderBuffer.getMissing(5, 0L, missing);
+        assertArrayEquals(new int[]{5}, Arrays.copyOf(missing, count));
+
+        //7 and 9 were kept
+        count = ReorderBuffer.getMissing(5, (1L << 1) | (1L << 3), missing);
+        assertArrayEquals(new int[]{5, 6, 8}, Arrays.copyOf(missing, count));
+
+        //only the last message of the window was kept, every other message is missing
+        count = ReorderBuffer.getMissing(0, 1L << 63, missing);
+        assertEquals(ReorderBuffer.WINDOW, count);
+        assertEquals(0, missing[0]);
+        assertEquals(ReorderBuffer.WINDOW - 1, missing[count - 1]);
+    }
+
+    @Test
+    public void acknowledgementsAreRateLimited() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>();
+        long now = 1000;
+        assertTrue(buffer.isAckDue(now));
+        assertFalse(buffer.isAckDue(now + Main.SACK_INTERVAL - 1));
+        assertTrue(buffer.isAckDue(now + Main.SACK_INTERVAL));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Rooms spilled to the rooms directory of a history directory.
+ *
+ * @author Cien
+ */
+public class RoomsTest {
+
+    @TempDir
+    Path directory;
+
+    private Rooms open() {
+        ServerConfig config = new ServerConfig();
+        config.setHistoryDirectory(this.directory);
+        return new Rooms(new MessageHistory(), config);
+    }
+
+    private static void append(Rooms.Room room, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            room.getHistory().append(1, ("message " + i).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void roomsAreSpilledToTheRoomsDirectoryAndDeletedOnClose() throws IOException {
+        Rooms rooms = open();
+        Rooms.Room room = rooms.getOrCreate("room");
+        append(room, Main.ROOM_HISTORY_TAIL_SIZE * 4);
+        assertArrayEquals("message 0".getBytes(StandardCharsets.UTF_8), room.getHistory().getMessage(0));
+        assertTrue(Files.isDirectory(this.directory.resolve("rooms").resolve("room-" + room.getId())));
+
+        rooms.close();
+        assertFalse(Files.exists(this.directory.resolve("rooms")));
+    }
+
+    @Test
+    public void aRestartedServerDeletesTheOldRooms() throws IOException {
+        Rooms rooms = open();
+        Rooms.Room room = rooms.getOrCreate("room");
+        append(room, Main.ROOM_HISTORY_TAIL_SIZE * 4);
+        room.getHistory().getMessage(0);
+
+        //the server stopped without closing the rooms
+        Rooms restarted = open();
+        assertFalse(Files.exists(this.directory.resolve("rooms")));
+        Rooms.Room again = restarted.getOrCreate("room");
+        assertEquals(room.getId(), again.getId());
+        assertEquals(0, again.getHistory().size());
+        restarted.close();
+    }
+}
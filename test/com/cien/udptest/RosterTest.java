@@ -0,0 +1,154 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Cien
+ */
+public class RosterTest {
+
+    private static User newUser(String name, long id) {
+        return new User(name, id);
+    }
+
+    private static List<Long> getUserIds(List<Roster.Entry> entries) {
+        List<Long> ids = new ArrayList<>();
+        for (Roster.Entry e : entries) {
+            ids.add(e.getUserId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void changesSinceAVersionAreTheEntriesAfterIt() {
+        Roster roster = new Roster();
+        roster.connected(newUser("a", 1));
+        long afterA = roster.getVersion();
+        roster.connected(newUser("b", 2));
+        roster.connected(newUser("c", 3));
+
+        assertEquals(List.of(2L, 3L), getUserIds(roster.getSince(afterA)));
+        assertEquals(List.of(1L, 2L, 3L), getUserIds(roster.getSince(0)));
+        assertTrue(roster.getSince(roster.getVersion()).isEmpty());
+    }
+
+    @Test
+    public void aChangedUserMovesToTheEnd() {
+        Roster roster = new Roster();
+        User a = newUser("a", 1);
+        roster.connected(a);
+        roster.connected(newUser("b", 2));
+        long before = roster.getVersion();
+
+        Roster.Entry entry = roster.disconnected(a);
+        assertTrue(entry.isDisconnected());
+        assertEquals(roster.getVersion(), entry.getVersion());
+        assertEquals("a", new String(entry.getName(), StandardCharsets.UTF_8));
+
+        assertEquals(List.of(1L), getUserIds(roster.getSince(before)));
+        //only the last change of each user is kept
+        assertEquals(List.of(2L, 1L), getUserIds(roster.getSince(0)));
+        assertEquals(2, roster.size());
+    }
+
+    @Test
+    public void usersConnectedTogetherGetConsecutiveVersions() {
+        Roster roster = new Roster();
+        long before = roster.getVersion();
+        List<Roster.Entry> entries = roster.connected(List.of(newUser("a", 1), newUser("b", 2), newUser("c", 3)));
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(before + 1 + i, entries.get(i).getVersion());
+        }
+    }
+
+    @Test
+    public void restoreAddsTheDisconnectedUsers() {
+        User disconnected = newUser("old", 7);
+        disconnected.disconnect();
+
+        Roster roster = new Roster();
+        roster.restore(List.of(disconnected, newUser("a", 1)));
+
+        List<Roster.Entry> entries = roster.getSince(0);
+        assertEquals(List.of(7L, 1L), getUserIds(entries));
+        assertTrue(entries.get(0).isDisconnected());
+        assertFalse(entries.get(1).isDisconnected());
+    }
+
+    @Test
+    public void reapedUsersAreRemovedAndOlderClientsNeedEveryEntry() {
+        Roster roster = new Roster();
+        User a = newUser("a", 1);
+        roster.connected(a);
+        roster.connected(newUser("b", 2));
+        long synced = roster.getVersion();
+        roster.disconnected(a);
+        long disconnectedVersion = roster.getVersion();
+
+        roster.reaped(1);
+        assertEquals(List.of(2L), getUserIds(roster.getSince(0)));
+        assertEquals(1, roster.size());
+        //a client that saw the disconnect can continue from its version, a older one can't
+        assertEquals(disconnectedVersion, roster.getPrunedVersion());
+        assertTrue(synced < roster.getPrunedVersion());
+        assertTrue(roster.getSince(disconnectedVersion).isEmpty());
+
+        roster.reaped(1);
+        assertEquals(disconnectedVersion, roster.getPrunedVersion());
+    }
+
+    @Test
+    public void applyingTheDeltasGivesTheSameRosterAsAFullSync() {
+        Roster roster = new Roster();
+        Random random = new Random(3);
+        User[] users = new User[32];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = newUser("user" + i, i + 1);
+        }
+
+        //a client that syncs now and then, applying the changes since the last version it applied
+        Map<Long, Boolean> client = new HashMap<>();
+        long clientVersion = 0;
+        for (int step = 0; step < 2000; step++) {
+            User u = users[random.nextInt(users.length)];
+            if (random.nextBoolean()) {
+                roster.connected(u);
+            } else {
+                roster.disconnected(u);
+            }
+            if (random.nextInt(10) == 0) {
+                for (Roster.Entry e : roster.getSince(clientVersion)) {
+                    assertTrue(e.getVersion() > clientVersion);
+                    client.put(e.getUserId(), e.isDisconnected());
+                    clientVersion = e.getVersion();
+                }
+            }
+        }
+        for (Roster.Entry e : roster.getSince(clientVersion)) {
+            client.put(e.getUserId(), e.isDisconnected());
+            clientVersion = e.getVersion();
+        }
+        assertEquals(roster.getVersion(), clientVersion);
+
+        Map<Long, Boolean> full = new HashMap<>();
+        for (Roster.Entry e : roster.getSince(0)) {
+            full.put(e.getUserId(), e.isDisconnected());
+        }
+        assertEquals(full, client);
+    }
+}
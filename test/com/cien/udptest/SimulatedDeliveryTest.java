@@ -0,0 +1,359 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * A server and two sessions on a {@link SimulatedNetwork} that loses, duplicates and reorders datagrams. One session
+ * sends messages to the lobby and the other must receive each one of them exactly once and in the order they were
+ * sent, recovering the lost ones with acknowledgements and resend requests like the client does.
+ *
+ * @author Cien
+ */
+public class SimulatedDeliveryTest {
+
+    private static final int MESSAGES = 300;
+    private static final int SEND_INTERVAL = 2;
+    private static final int RETRY_INTERVAL = 100;
+
+    /**
+     * A session of the real protocol, with the message recovery of the client and without the rest.
+     */
+    private static class Session {
+
+        private final Transport transport;
+        private final SocketAddress server;
+        private final String name;
+        private final PacketWriter writer = new PacketWriter();
+        private final ByteBuffer buffer = ByteBuffer.allocate(Main.PACKET_SIZE);
+        private final int[] missing = new int[ReorderBuffer.WINDOW];
+        private WireFormat format = WireFormat.LEGACY;
+        private boolean loggedIn = false;
+        private long cookie = 0;
+
+        //the lobby as seen by the session
+        private int expected = 0;
+        private final ReorderBuffer<byte[]> reorderBuffer = new ReorderBuffer<>();
+        private final List<String> delivered = new ArrayList<>();
+        private int lastPingLength = 0;
+
+        //the messages of the session, and how many of them came back in the lobby
+        private final List<byte[]> sent = new ArrayList<>();
+        private int echoed = 0;
+
+        Session(Network network, SocketAddress server, String name) throws IOException {
+            this.transport = network.open(null);
+            this.transport.connect(server);
+            this.server = server;
+            this.name = name;
+        }
+
+        void send(ByteBuffer packet) throws IOException {
+            this.transport.send(packet, this.server);
+        }
+
+        void sendLogin() throws IOException {
+            byte[] nameData = this.name.getBytes(StandardCharsets.UTF_8);
+            this.buffer.clear()
+                    .putLong(Main.MAGIC_NUMBER)
+                    .putInt(Main.LOGIN_PACKET)
+                    .putInt(nameData.length)
+                    .put(nameData)
+                    .putInt(Main.LOGIN_CAPABILITIES_MARKER)
+                    .putInt(Main.CAPABILITY_MULTI_FRAME | Main.CAPABILITY_COMPACT_FORMAT | Main.CAPABILITY_SACK)
+                    .putInt(Main.LOGIN_COOKIE_MARKER)
+                    .putLong(this.cookie);
+            send(this.buffer);
+        }
+
+        void sendMessage(int messageId) throws IOException {
+            this.writer
+                    .begin(Main.MESSAGE_PACKET)
+                    .putInt(messageId)
+                    .putBytes(this.sent.get(messageId));
+            send(this.writer.get(this.format));
+        }
+
+        void requestMessages(int from, int to) throws IOException {
+            this.writer
+                    .begin(Main.RESEND_MESSAGE_PACKET)
+                    .putInt(from)
+                    .putInt(to);
+            send(this.writer.get(this.format));
+        }
+
+        void sendAck() throws IOException {
+            this.writer
+                    .begin(Main.ACK_PACKET)
+                    .putInt(this.expected)
+                    .putLong(this.reorderBuffer.getBitmap(this.expected));
+            send(this.writer.get(this.format));
+        }
+
+        /**
+         * Sends again what the other side may be missing, the tail of a sequence is only recovered by this.
+         */
+        void retry() throws IOException {
+            if (!this.loggedIn) {
+                sendLogin();
+                return;
+            }
+            for (int i = this.echoed; i < Math.min(this.sent.size(), this.echoed + ReorderBuffer.WINDOW); i++) {
+                sendMessage(i);
+            }
+            if (!this.reorderBuffer.isEmpty()) {
+                sendAck();
+            }
+        }
+
+        void receive() throws IOException {
+            while (true) {
+                this.buffer.clear();
+                if (this.transport.receive(this.buffer) == null) {
+                    return;
+                }
+                this.buffer.flip();
+                if (!this.loggedIn) {
+                    processLogin(this.buffer);
+                    continue;
+                }
+                WireFormat packetFormat = WireFormat.detect(this.buffer);
+                if (packetFormat == null) {
+                    continue;
+                }
+                int packetId = packetFormat.readHeader(this.buffer);
+                if (packetId != Main.MULTI_FRAME_PACKET) {
+                    processFrame(packetFormat, packetId, this.buffer);
+                    continue;
+                }
+                int limit = this.buffer.limit();
+                while (this.buffer.hasRemaining()) {
+                    int frameLength = packetFormat.getFrameLength(this.buffer);
+                    if (frameLength == 0) {
+                        break;
+                    }
+                    int end = this.buffer.position() + frameLength;
+                    this.buffer.limit(end);
+                    processFrame(packetFormat, packetFormat.getPacketId(this.buffer), this.buffer);
+                    this.buffer.limit(limit).position(end);
+                }
+            }
+        }
+
+        private void processLogin(ByteBuffer packet) throws IOException {
+            if (packet.getLong() != Main.MAGIC_NUMBER || packet.getInt() != Main.LOGIN_PACKET) {
+                return;
+            }
+            long userId = packet.getLong();
+            if (userId == Main.LOGIN_COOKIE_REQUIRED && packet.getInt() == Main.LOGIN_COOKIE_MARKER) {
+                this.cookie = packet.getLong();
+                sendLogin();
+                return;
+            }
+            if (userId < 0) {
+                return;
+            }
+            if (packet.remaining() >= Integer.BYTES * 2 && packet.getInt() == Main.LOGIN_ACCEPTED_CAPABILITIES_MARKER
+                    && (packet.getInt() & Main.CAPABILITY_COMPACT_FORMAT) != 0) {
+                this.format = WireFormat.COMPACT;
+            }
+            this.loggedIn = true;
+        }
+
+        private void processFrame(WireFormat packetFormat, int packetId, ByteBuffer packet) throws IOException {
+            switch (packetId) {
+                case Main.MESSAGE_PACKET -> {
+                    int index = packetFormat.getInt(packet);
+                    packetFormat.getLong(packet);
+                    byte[] message = packetFormat.getBytes(packet, Main.PAYLOAD_SIZE);
+                    messageReceived(index, message);
+                }
+                case Main.ACK_PACKET -> {
+                    int count = ReorderBuffer.getMissing(packetFormat.getInt(packet), packetFormat.getLong(packet), this.missing);
+                    for (int i = 0; i < count; i++) {
+                        if (this.missing[i] < this.sent.size()) {
+                            sendMessage(this.missing[i]);
+                        }
+                    }
+                }
+                case Main.RESEND_MESSAGE_PACKET -> {
+                    int from = packetFormat.getInt(packet);
+                    int to = Math.min(packetFormat.getInt(packet), this.sent.size());
+                    for (int i = from; i < to; i++) {
+                        sendMessage(i);
+                    }
+                }
+                case Main.PING_PACKET -> {
+                    long time = packetFormat.getLong(packet);
+                    int length = packetFormat.getInt(packet);
+                    this.writer
+                            .begin(Main.PING_PACKET)
+                            .putLong(time)
+                            .putInt(length);
+                    send(this.writer.get(this.format));
+                    if (length > this.expected && this.lastPingLength > this.expected) {
+                        requestMessages(this.expected, length);
+                    }
+                    this.lastPingLength = length;
+                }
+                default -> {
+                }
+            }
+        }
+
+        private void messageReceived(int index, byte[] message) throws IOException {
+            if (index < this.expected) {
+                return;
+            }
+            if (index > this.expected) {
+                this.reorderBuffer.add(this.expected, index, message);
+                if (this.reorderBuffer.isAckDue(System.currentTimeMillis())) {
+                    sendAck();
+                }
+                return;
+            }
+            deliver(message);
+            this.reorderBuffer.discardBefore(this.expected);
+            byte[] next;
+            while ((next = this.reorderBuffer.take(this.expected)) != null) {
+                deliver(next);
+            }
+        }
+
+        private void deliver(byte[] message) {
+            String text = new String(message, StandardCharsets.UTF_8);
+            this.delivered.add(text);
+            this.expected++;
+            if (text.startsWith(this.name + " ")) {
+                this.echoed = Math.max(this.echoed, Integer.parseInt(text.substring(this.name.length() + 1)) + 1);
+            }
+        }
+    }
+
+    private static InetSocketAddress startServer(SimulatedNetwork network) throws IOException {
+        ServerConfig config = new ServerConfig(7777, InetAddress.getLoopbackAddress());
+        config.setNetwork(network);
+        Server server = new Server(config);
+        server.setDaemon(true);
+        server.start();
+        return (InetSocketAddress) server.getTransport().getLocalAddress();
+    }
+
+    private static void login(Session... sessions) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        long nextRetry = 0;
+        while (System.currentTimeMillis() < deadline) {
+            boolean done = true;
+            for (Session s : sessions) {
+                s.receive();
+                done &= s.loggedIn;
+            }
+            if (done) {
+                return;
+            }
+            if (System.currentTimeMillis() >= nextRetry) {
+                for (Session s : sessions) {
+                    s.retry();
+                }
+                nextRetry = System.currentTimeMillis() + RETRY_INTERVAL;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void transportsLoseAndReorderDatagrams() throws IOException, InterruptedException {
+        SimulatedNetwork network = new SimulatedNetwork(7);
+        network.setLoss(0.2);
+        network.setLatency(2);
+        network.setJitter(2);
+        network.setReorder(0.2);
+        Transport sender = network.open(null);
+        Transport receiver = network.open(null);
+        for (int i = 0; i < 1000; i++) {
+            sender.send(ByteBuffer.allocate(Integer.BYTES).putInt(i), receiver.getLocalAddress());
+        }
+        Thread.sleep(200);
+
+        ByteBuffer buffer = ByteBuffer.allocate(Main.PACKET_SIZE);
+        int received = 0;
+        int outOfOrder = 0;
+        int last = -1;
+        while (receiver.receive(buffer.clear()) != null) {
+            int i = buffer.getInt(0);
+            if (i < last) {
+                outOfOrder++;
+            }
+            last = Math.max(last, i);
+            received++;
+        }
+        assertEquals(network.getDelivered(), received);
+        assertEquals(1000 - network.getDropped(), received);
+        assertTrue(received > 700 && received < 900, received + " datagrams received");
+        assertTrue(outOfOrder > 0, "nothing was reordered");
+    }
+
+    @Test
+    @Timeout(60)
+    public void everyMessageIsDeliveredOnceAndInOrder() throws IOException, InterruptedException {
+        SimulatedNetwork network = new SimulatedNetwork(42);
+        InetSocketAddress server = startServer(network);
+        Session sender = new Session(network, server, "sender");
+        Session receiver = new Session(network, server, "receiver");
+        login(sender, receiver);
+        assertTrue(sender.loggedIn && receiver.loggedIn, "login failed");
+
+        //the lossy part starts after the login, the first message of the lobby is the first one of the test
+        network.setLoss(0.1);
+        network.setLatency(5);
+        network.setJitter(5);
+        network.setDuplicate(0.05);
+        network.setReorder(0.1);
+
+        long nextSend = 0;
+        long nextRetry = 0;
+        while (receiver.delivered.size() < MESSAGES) {
+            long now = System.currentTimeMillis();
+            if (sender.sent.size() < MESSAGES && now >= nextSend) {
+                sender.sent.add((sender.name + " " + sender.sent.size()).getBytes(StandardCharsets.UTF_8));
+                sender.sendMessage(sender.sent.size() - 1);
+                nextSend = now + SEND_INTERVAL;
+            }
+            if (now >= nextRetry) {
+                sender.retry();
+                receiver.retry();
+                nextRetry = now + RETRY_INTERVAL;
+            }
+            sender.receive();
+            receiver.receive();
+            Thread.sleep(1);
+        }
+        //anything still in flight must not add messages
+        Thread.sleep(500);
+        receiver.receive();
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            expected.add("sender " + i);
+        }
+        assertEquals(expected, receiver.delivered);
+        assertTrue(network.getDropped() > 0, "nothing was lost");
+        assertNotNull(network.getStatistics());
+    }
+}
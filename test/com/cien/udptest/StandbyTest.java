@@ -0,0 +1,149 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A replicator and a standby connected by a list of packets, the packets are only delivered when the test says so.
+ *
+ * @author Cien
+ */
+public class StandbyTest {
+
+    private final InetSocketAddress primaryAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7000);
+    private final InetSocketAddress standbyAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7001);
+
+    private final MessageHistory primaryHistory = new MessageHistory();
+    private final MessageHistory standbyHistory = new MessageHistory();
+    private final List<User> users = new ArrayList<>();
+    private final List<byte[]> packets = new ArrayList<>();
+    private final PacketWriter writer = new PacketWriter();
+
+    private final Replicator replicator = new Replicator(this.standbyAddress,
+            (packet, address) -> this.packets.add(Arrays.copyOf(packet.array(), packet.position())),
+            this.primaryHistory, new Tombstones(), () -> this.users);
+    //the acknowledgements are written by the test, see ack()
+    private final Standby standby = new Standby(this.primaryAddress, (packet, address) -> {
+    }, this.standbyHistory, new Tombstones());
+
+    private final User alice = new User("alice", 1, new InetSocketAddress(InetAddress.getLoopbackAddress(), 5000));
+
+    private long now = 1000;
+
+    private void ack() throws IOException {
+        this.standby.writeAck(this.writer);
+        ByteBuffer packet = this.writer.get(WireFormat.COMPACT).flip();
+        WireFormat.COMPACT.readHeader(packet);
+        this.replicator.acknowledged(WireFormat.COMPACT.getLong(packet), WireFormat.COMPACT.getInt(packet),
+                WireFormat.COMPACT.getInt(packet), WireFormat.COMPACT.getInt(packet));
+    }
+
+    /**
+     * Delivers the packets sent so far, replication packets are acknowledged like the server does.
+     */
+    private void deliver() throws IOException {
+        List<byte[]> sent = new ArrayList<>(this.packets);
+        this.packets.clear();
+        for (byte[] data : sent) {
+            ByteBuffer packet = ByteBuffer.wrap(data);
+            int packetId = WireFormat.COMPACT.readHeader(packet);
+            if (packetId == Main.REPLICATION_PACKET) {
+                this.standby.received(WireFormat.COMPACT, packet, this.now);
+                ack();
+            } else if (packetId == Main.STANDBY_HEARTBEAT_PACKET) {
+                this.standby.heartbeat(WireFormat.COMPACT.getInt(packet), WireFormat.COMPACT.getInt(packet) != 0, this.now);
+            }
+        }
+    }
+
+    private void append(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            byte[] message = ("message " + this.primaryHistory.size()).getBytes(StandardCharsets.UTF_8);
+            int index = this.primaryHistory.append(this.alice.getUserId(), message);
+            this.replicator.messageAppended(index, this.alice, this.alice.getNextMessageId(), message);
+            this.alice.incrementMessageId();
+        }
+    }
+
+    private void connect() throws IOException {
+        this.users.add(this.alice);
+        //the first acknowledgement starts the first epoch
+        ack();
+    }
+
+    private boolean primaryStopped() {
+        return this.standby.shouldTakeOver(this.now + Main.STANDBY_TIMEOUT + 1);
+    }
+
+    @Test
+    public void theStandbyIsSyncedOnceTheWholeHistoryArrived() throws IOException {
+        append(Main.STANDBY_SYNC_BURST * 3 + 10);
+        connect();
+
+        this.replicator.flush();
+        deliver();
+        assertFalse(this.standby.isSynced());
+        assertEquals(Main.STANDBY_SYNC_BURST, this.standbyHistory.size());
+        assertFalse(primaryStopped(), "took over with part of the history");
+
+        for (int i = 0; i < 3; i++) {
+            this.replicator.flush();
+            deliver();
+        }
+        assertTrue(this.standby.isSynced());
+        assertEquals(this.primaryHistory.size(), this.standbyHistory.size());
+        assertArrayEquals(this.primaryHistory.getMessage(100), this.standbyHistory.getMessage(100));
+        assertTrue(primaryStopped());
+
+        List<User> restored = this.standby.takeOver();
+        assertEquals(1, restored.size());
+        assertEquals(this.alice.getNextMessageId(), restored.get(0).getNextMessageId());
+    }
+
+    @Test
+    public void droppedRecordsPreventTheTakeOverUntilTheNextEpochIsSynced() throws IOException {
+        connect();
+        this.replicator.flush();
+        deliver();
+        assertTrue(this.standby.isSynced());
+
+        //the standby stops acknowledging until the primary gives up on the packets
+        while (this.packets.size() < Main.STANDBY_PENDING_SIZE) {
+            append(64);
+            this.replicator.flush();
+        }
+        append(64);
+        this.replicator.flush();
+        assertEquals(Main.STANDBY_PENDING_SIZE, this.packets.size(), "packets sent after the window was full");
+        this.packets.clear();
+        this.replicator.heartbeat();
+        deliver();
+        assertFalse(this.standby.isSynced());
+        assertFalse(primaryStopped(), "took over after records were dropped");
+
+        //the next acknowledgement resyncs the standby in a new epoch
+        ack();
+        while (this.standbyHistory.size() < this.primaryHistory.size() || !this.standby.isSynced()) {
+            this.replicator.flush();
+            deliver();
+        }
+        assertEquals(this.primaryHistory.size(), this.standbyHistory.size());
+        assertTrue(primaryStopped());
+    }
+}
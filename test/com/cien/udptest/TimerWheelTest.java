@@ -0,0 +1,144 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A wheel of 8 slots of 10 ms, one turn is 80 ms.
+ *
+ * @author Cien
+ */
+public class TimerWheelTest {
+
+    private static final int SLOTS = 8;
+    private static final int RESOLUTION = 10;
+
+    private final List<Long> runs = new ArrayList<>();
+
+    private TimerWheel.Timer newTimer() {
+        return new TimerWheel.Timer((timer, now) -> this.runs.add(timer.getDeadline()));
+    }
+
+    @Test
+    public void timerOfALaterTurnWaitsInItsSlot() throws IOException {
+        TimerWheel wheel = new TimerWheel(SLOTS, RESOLUTION, 0);
+        wheel.schedule(newTimer(), 250);
+        for (long now = 0; now < 250; now += RESOLUTION) {
+            wheel.advance(now);
+        }
+        assertTrue(this.runs.isEmpty());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(250);
+        assertEquals(List.of(250L), this.runs);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void advancingSeveralTurnsRunsEveryExpiredTimerOnce() throws IOException {
+        TimerWheel wheel = new TimerWheel(SLOTS, RESOLUTION, 0);
+        wheel.schedule(newTimer(), 5);
+        wheel.schedule(newTimer(), 85);
+        wheel.schedule(newTimer(), 170);
+        wheel.schedule(newTimer(), 1000);
+
+        wheel.advance(500);
+        this.runs.sort(null);
+        assertEquals(List.of(5L, 85L, 170L), this.runs);
+        assertEquals(1, wheel.size());
+
+        wheel.advance(999);
+        assertEquals(3, this.runs.size());
+        wheel.advance(1000);
+        assertEquals(4, this.runs.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void slotsWrapAroundFromTheLastToTheFirst() throws IOException {
+        //the cursor starts in the last slot, so the timers land in the slots after the wrap
+        TimerWheel wheel = new TimerWheel(SLOTS, RESOLUTION, (SLOTS - 1) * RESOLUTION);
+        long start = wheel.getTime();
+        for (int i = 1; i <= SLOTS; i++) {
+            wheel.schedule(newTimer(), start + i * RESOLUTION);
+        }
+        for (int i = 1; i <= SLOTS; i++) {
+            wheel.advance(start + i * RESOLUTION);
+            assertEquals(i, this.runs.size());
+            assertEquals(start + i * RESOLUTION, this.runs.get(i - 1));
+        }
+    }
+
+    @Test
+    public void largeClocksAreMaskedIntoTheWheel() throws IOException {
+        long start = (1L << 40) + 3;
+        TimerWheel wheel = new TimerWheel(SLOTS, RESOLUTION, start);
+        long deadline = start + 1234;
+        wheel.schedule(newTimer(), deadline);
+        //timers run when the first slot that starts at or after their deadline is visited
+        long slotStart = Math.floorDiv(deadline + RESOLUTION - 1, RESOLUTION) * RESOLUTION;
+        wheel.advance(deadline - 1);
+        assertTrue(this.runs.isEmpty());
+        wheel.advance(slotStart);
+        assertEquals(List.of(deadline), this.runs);
+    }
+
+    @Test
+    public void rescheduleMovesAndCancelRemoves() throws IOException {
+        TimerWheel wheel = new TimerWheel(SLOTS, RESOLUTION, 0);
+        TimerWheel.Timer moved = newTimer();
+        TimerWheel.Timer cancelled = newTimer();
+        wheel.schedule(moved, 20);
+        wheel.schedule(cancelled, 20);
+        wheel.schedule(moved, 300);
+        wheel.cancel(cancelled);
+        assertFalse(cancelled.isScheduled());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(100);
+        assertTrue(this.runs.isEmpty());
+        wheel.advance(300);
+        assertEquals(List.of(300L), this.runs);
+    }
+
+    @Test
+    public void nextTimeIsTheStartOfTheFirstSlotWithTimers() throws IOException {
+        TimerWheel wheel = new TimerWheel(SLOTS, RESOLUTION, 0);
+        assertEquals(Long.MAX_VALUE, wheel.getNextTime());
+        wheel.schedule(newTimer(), 35);
+        assertEquals(40, wheel.getNextTime());
+        wheel.advance(40);
+        assertEquals(Long.MAX_VALUE, wheel.getNextTime());
+    }
+
+    @Test
+    public void timersLeftByAThrowingTaskRunOnTheNextAdvance() throws IOException {
+        TimerWheel wheel = new TimerWheel(SLOTS, RESOLUTION, 0);
+        int[] failed = {0};
+        wheel.schedule(new TimerWheel.Timer((timer, now) -> {
+            failed[0]++;
+            throw new IllegalStateException("task failed");
+        }), 10);
+        wheel.schedule(newTimer(), 10);
+        wheel.schedule(newTimer(), 10);
+
+        assertThrows(IllegalStateException.class, () -> wheel.advance(10));
+        assertEquals(wheel.getTime(), wheel.getNextTime(), "a wheel with expired timers must be advanced right away");
+
+        wheel.advance(11);
+        assertEquals(1, failed[0]);
+        assertEquals(List.of(10L, 10L), this.runs);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cien.udptest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Cien
+ */
+public class WireFormatTest {
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(Main.PACKET_SIZE);
+
+    private int encodedIntSize(int value) {
+        this.buffer.clear();
+        WireFormat.COMPACT.putInt(this.buffer, value);
+        int size = this.buffer.position();
+        this.buffer.flip();
+        assertEquals(value, WireFormat.COMPACT.getInt(this.buffer));
+        assertFalse(this.buffer.hasRemaining());
+        return size;
+    }
+
+    private int encodedLongSize(long value) {
+        this.buffer.clear();
+        WireFormat.COMPACT.putLong(this.buffer, value);
+        int size = this.buffer.position();
+        this.buffer.flip();
+        assertEquals(value, WireFormat.COMPACT.getLong(this.buffer));
+        assertFalse(this.buffer.hasRemaining());
+        return size;
+    }
+
+    @Test
+    public void smallNegativeIntsStaySmall() {
+        assertEquals(1, encodedIntSize(0));
+        assertEquals(1, encodedIntSize(-1));
+        assertEquals(1, encodedIntSize(63));
+        assertEquals(1, encodedIntSize(-64));
+        assertEquals(2, encodedIntSize(64));
+        assertEquals(2, encodedIntSize(-65));
+        assertEquals(5, encodedIntSize(Integer.MAX_VALUE));
+        assertEquals(5, encodedIntSize(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void zigzagMapsSignedToUnsigned() {
+        //0, -1, 1, -2, 2... become 0, 1, 2, 3, 4...
+        int[] values = {0, -1, 1, -2, 2};
+        for (int i = 0; i < values.length; i++) {
+            this.buffer.clear();
+            WireFormat.COMPACT.putInt(this.buffer, values[i]);
+            assertEquals(i, this.buffer.get(0));
+        }
+    }
+
+    @Test
+    public void longsRoundTrip() {
+        assertEquals(1, encodedLongSize(0));
+        assertEquals(1, encodedLongSize(-1));
+        assertEquals(10, encodedLongSize(Long.MAX_VALUE));
+        assertEquals(10, encodedLongSize(Long.MIN_VALUE));
+
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            encodedLongSize(value);
+            encodedIntSize((int) value);
+        }
+    }
+
+    @Test
+    public void varIntSizeMatchesTheEncoding() {
+        Random random = new Random(2);
+        for (int i = 0; i < 10000; i++) {
+            int value = random.nextInt() >>> random.nextInt(32);
+            this.buffer.clear();
+            WireFormat.putVarInt(this.buffer, value);
+            assertEquals(WireFormat.getVarIntSize(value), this.buffer.position());
+        }
+    }
+
+    @Test
+    public void tooLongVarintsAreMalformed() {
+        this.buffer.clear();
+        for (int i = 0; i < 5; i++) {
+            this.buffer.put((byte) 0x80);
+        }
+        this.buffer.put((byte) 0x01).flip();
+        assertThrows(WireFormat.MalformedPacketException.class, () -> WireFormat.getVarInt(this.buffer));
+
+        this.buffer.clear();
+        for (int i = 0; i < 10; i++) {
+            this.buffer.put((byte) 0x80);
+        }
+        this.buffer.put((byte) 0x01).flip();
+        assertThrows(WireFormat.MalformedPacketException.class, () -> WireFormat.getVarLong(this.buffer));
+    }
+
+    @Test
+    public void packetsRoundTripAndAreDetected() {
+        byte[] message = "hello".getBytes();
+        for (WireFormat format : WireFormat.values()) {
+            this.buffer.clear();
+            format.putHeader(this.buffer, Main.MESSAGE_PACKET);
+            format.putInt(this.buffer, 1234);
+            format.putLong(this.buffer, -5L);
+            format.putBytes(this.buffer, message, 0, message.length);
+            this.buffer.flip();
+
+            assertEquals(format, WireFormat.detect(this.buffer));
+            assertEquals(Main.MESSAGE_PACKET, format.readHeader(this.buffer));
+            assertEquals(1234, format.getInt(this.buffer));
+            assertEquals(-5L, format.getLong(this.buffer));
+            assertArrayEquals(message, format.getBytes(this.buffer, Main.PAYLOAD_SIZE));
+            assertFalse(this.buffer.hasRemaining());
+        }
+
+        this.buffer.clear().put((byte) 0x7F).flip();
+        assertNull(WireFormat.detect(this.buffer));
+    }
+}